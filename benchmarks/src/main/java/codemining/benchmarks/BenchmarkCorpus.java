@@ -0,0 +1,110 @@
+/**
+ *
+ */
+package codemining.benchmarks;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+
+import codemining.ast.AbstractTreeExtractor;
+import codemining.ast.TreeNode;
+import codemining.languagetools.ParseType;
+import codemining.lm.cfg.ContextFreeGrammar;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The corpus the benchmarks run on: the sample classes of the unit tests and
+ * a synthetic corpus of trees generated from a PCFG trained on them.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class BenchmarkCorpus {
+
+	/**
+	 * The sample code (shared with the unit tests) and how to parse it.
+	 */
+	private static final String[] SAMPLE_FILES = { "SampleClass.txt",
+			"SampleClass2.txt", "SampleMethod.txt" };
+	private static final ParseType[] SAMPLE_PARSE_TYPES = {
+			ParseType.COMPILATION_UNIT, ParseType.COMPILATION_UNIT,
+			ParseType.METHOD };
+
+	/**
+	 * The number of attempts to generate a tree within the size limit, before
+	 * giving up.
+	 */
+	private static final int MAX_GENERATION_ATTEMPTS = 1000;
+
+	/**
+	 * Return the trees of the sample classes.
+	 */
+	public static List<TreeNode<Integer>> getSampleTrees(
+			final AbstractTreeExtractor extractor) throws IOException {
+		final List<TreeNode<Integer>> trees = Lists.newArrayList();
+		for (int i = 0; i < SAMPLE_FILES.length; i++) {
+			trees.add(extractor.getTree(readSample(SAMPLE_FILES[i]),
+					SAMPLE_PARSE_TYPES[i]));
+		}
+		return trees;
+	}
+
+	/**
+	 * Return the sample trees followed by nSynthetic random trees of at most
+	 * maxTreeSize nodes. The random trees are generated by a PCFG trained on
+	 * the sample trees.
+	 */
+	public static List<TreeNode<Integer>> getTrees(
+			final AbstractTreeExtractor extractor, final int nSynthetic,
+			final int maxTreeSize) throws IOException {
+		final List<TreeNode<Integer>> trees = getSampleTrees(extractor);
+		final ContextFreeGrammar cfg = new ContextFreeGrammar(extractor);
+		for (final TreeNode<Integer> tree : trees) {
+			cfg.addRulesFrom(tree);
+		}
+		trees.addAll(getSyntheticTrees(cfg, nSynthetic, maxTreeSize));
+		return trees;
+	}
+
+	/**
+	 * Generate nTrees random trees from the given CFG, rejecting the ones
+	 * larger than maxTreeSize. A PCFG estimated from a treebank generates
+	 * finite trees almost surely, so generation terminates.
+	 */
+	public static List<TreeNode<Integer>> getSyntheticTrees(
+			final ContextFreeGrammar cfg, final int nTrees,
+			final int maxTreeSize) {
+		final List<TreeNode<Integer>> trees = Lists
+				.newArrayListWithCapacity(nTrees);
+		int nAttempts = 0;
+		while (trees.size() < nTrees) {
+			checkArgument(nAttempts++ < MAX_GENERATION_ATTEMPTS * nTrees,
+					"Failed to generate trees of at most %s nodes",
+					maxTreeSize);
+			final TreeNode<Integer> tree = cfg.generateRandom();
+			if (tree.getTreeSize() <= maxTreeSize) {
+				trees.add(tree);
+			}
+		}
+		return trees;
+	}
+
+	private static String readSample(final String name) throws IOException {
+		try (final InputStream in = BenchmarkCorpus.class.getClassLoader()
+				.getResourceAsStream(name)) {
+			checkArgument(in != null, "Sample %s not in the classpath", name);
+			return IOUtils.toString(in);
+		}
+	}
+
+	private BenchmarkCorpus() {
+		// No instantiations
+	}
+
+}
@@ -0,0 +1,36 @@
+/**
+ *
+ */
+package codemining.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the benchmarks, reporting the throughput and (through the GC profiler)
+ * the bytes allocated per operation, i.e. gc.alloc.rate.norm. Accepts the
+ * standard JMH command line options, e.g. a regexp of the benchmarks to run.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class BenchmarkRunner {
+
+	public static void main(final String[] args) throws RunnerException,
+			CommandLineOptionException {
+		final Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+
+	private BenchmarkRunner() {
+		// No instantiations
+	}
+
+}
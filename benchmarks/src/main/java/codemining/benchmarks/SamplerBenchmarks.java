@@ -0,0 +1,248 @@
+/**
+ *
+ */
+package codemining.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import codemining.ast.TreeNode;
+import codemining.ast.java.JavaAstTreeExtractor;
+import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TreeProbabilityComputer;
+import codemining.lm.tsg.samplers.blocked.BlockCollapsedGibbsSampler;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Benchmarks of the blocked sampler and of the probability computations on
+ * the grammars it learns.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SamplerBenchmarks {
+
+	/**
+	 * A sampler trained on the benchmark corpus.
+	 */
+	@State(Scope.Benchmark)
+	public abstract static class SamplerState {
+
+		@Param({ "200" })
+		public int nSyntheticTrees;
+
+		@Param({ "5000" })
+		public int maxTreeSize;
+
+		@Param({ "10" })
+		public double concentrationParameter;
+
+		@Param({ "2" })
+		public int nBurninIterations;
+
+		BlockCollapsedGibbsSampler sampler;
+
+		/**
+		 * The nodes that the sampler samples at, i.e. all nodes except from
+		 * the leaves and the roots of the trees.
+		 */
+		List<TreeNode<TSGNode>> nodes;
+
+		int nextNode;
+
+		TreeNode<TSGNode> nextNode() {
+			nextNode = (nextNode + 1) % nodes.size();
+			return nodes.get(nextNode);
+		}
+
+		void train() throws IOException {
+			final JavaAstTreeExtractor extractor = new JavaAstTreeExtractor();
+			sampler = new BlockCollapsedGibbsSampler(100,
+					concentrationParameter, new FormattedTSGrammar(extractor),
+					new FormattedTSGrammar(extractor));
+			nodes = Lists.newArrayList();
+			for (final TreeNode<Integer> tree : BenchmarkCorpus.getTrees(
+					extractor, nSyntheticTrees, maxTreeSize)) {
+				final TreeNode<TSGNode> corpusTree = sampler.addTree(
+						TSGNode.convertTree(tree, .9), true);
+				final ArrayDeque<TreeNode<TSGNode>> toVisit = new ArrayDeque<TreeNode<TSGNode>>();
+				toVisit.push(corpusTree);
+				while (!toVisit.isEmpty()) {
+					final TreeNode<TSGNode> current = toVisit.pop();
+					for (final List<TreeNode<TSGNode>> childProperty : current
+							.getChildrenByProperty()) {
+						for (final TreeNode<TSGNode> child : childProperty) {
+							if (!child.isLeaf()) {
+								toVisit.push(child);
+								nodes.add(child);
+							}
+						}
+					}
+				}
+			}
+			sampler.lockSamplerData();
+			final AtomicBoolean stop = new AtomicBoolean(false);
+			for (int i = 0; i < nBurninIterations; i++) {
+				sampler.sampleAllTreesOnce(i, nBurninIterations, stop);
+			}
+		}
+	}
+
+	/**
+	 * A trained sampler that is not sampled any further, so that the counts
+	 * of its grammar are fixed.
+	 */
+	@State(Scope.Benchmark)
+	public static class FixedSamplerState extends SamplerState {
+
+		/**
+		 * The upper, lower and joined trees and the number of same type sites
+		 * of a node.
+		 */
+		static final class Site {
+			final TreeNode<TSGNode> upper;
+			final TreeNode<TSGNode> lower;
+			final TreeNode<TSGNode> joined;
+			final int nSameTypeSites;
+
+			Site(final TreeNode<TSGNode> upper, final TreeNode<TSGNode> lower,
+					final TreeNode<TSGNode> joined, final int nSameTypeSites) {
+				this.upper = upper;
+				this.lower = lower;
+				this.joined = joined;
+				this.nSameTypeSites = nSameTypeSites;
+			}
+		}
+
+		/**
+		 * Sites of non-root nodes. All the occurrences of the joined tree are
+		 * considered same type sites, none of which is split.
+		 */
+		List<Site> sites;
+
+		List<TreeNode<TSGNode>> rules;
+
+		List<TreeNode<TSGNode>> trees;
+
+		TreeProbabilityComputer<TSGNode> probabilityComputer;
+
+		int nextSite;
+
+		int nextRule;
+
+		int nextTree;
+
+		Site nextSite() {
+			nextSite = (nextSite + 1) % sites.size();
+			return sites.get(nextSite);
+		}
+
+		TreeNode<TSGNode> nextRule() {
+			nextRule = (nextRule + 1) % rules.size();
+			return rules.get(nextRule);
+		}
+
+		TreeNode<TSGNode> nextTree() {
+			nextTree = (nextTree + 1) % trees.size();
+			return trees.get(nextTree);
+		}
+
+		@Setup
+		public void setUp() throws IOException {
+			train();
+			sites = Lists.newArrayList();
+			rules = Lists.newArrayList();
+			trees = Lists.newArrayList();
+			for (final TreeNode<TSGNode> tree : sampler.getTreeCorpus()) {
+				rules.addAll(TSGNode.getAllRootsOf(tree));
+				trees.add(TSGNode.convertTree(TSGNode.tsgTreeToInt(tree), 0));
+
+				final Map<TreeNode<TSGNode>, TreeNode<TSGNode>> nodeToRoot = TSGNode
+						.getNodeToRootMap(tree);
+				for (final Map.Entry<TreeNode<TSGNode>, TreeNode<TSGNode>> entry : nodeToRoot
+						.entrySet()) {
+					final TreeNode<TSGNode> node = entry.getKey();
+					if (node.isLeaf() || node.getData().isRoot) {
+						continue;
+					}
+					final TreeNode<TSGNode> root = entry.getValue();
+					final TreeNode<TSGNode> joined = TSGNode
+							.getSubTreeFromRoot(root);
+					node.getData().isRoot = true;
+					final TreeNode<TSGNode> upper = TSGNode
+							.getSubTreeFromRoot(root);
+					final TreeNode<TSGNode> lower = TSGNode
+							.getSubTreeFromRoot(node);
+					node.getData().isRoot = false;
+					sites.add(new Site(upper, lower, joined, sampler
+							.getSampleGrammar().countTreeOccurences(joined)));
+				}
+			}
+			probabilityComputer = new TreeProbabilityComputer<TSGNode>(
+					sampler.getSampleGrammar(), true,
+					TreeProbabilityComputer.TSGNODE_MATCHER);
+		}
+	}
+
+	/**
+	 * A sampler that keeps sampling during the benchmark.
+	 */
+	@State(Scope.Benchmark)
+	public static class SamplingState extends SamplerState {
+
+		@Setup
+		public void setUp() throws IOException {
+			train();
+		}
+	}
+
+	@Benchmark
+	public double getLog2ProbabilityOf(final FixedSamplerState state) {
+		return state.probabilityComputer
+				.getLog2ProbabilityOf(state.nextTree());
+	}
+
+	@Benchmark
+	public double getTreeCFLog2Probability(final FixedSamplerState state) {
+		return state.sampler.getPrior().getTreeCFLog2Probability(
+				state.nextRule());
+	}
+
+	@Benchmark
+	public TreeNode<TSGNode> sampleAt(final SamplingState state) {
+		final TreeNode<TSGNode> node = state.nextNode();
+		state.sampler.sampleAt(node);
+		return node;
+	}
+
+	@Benchmark
+	public double[] sampleM(final FixedSamplerState state) {
+		final FixedSamplerState.Site site = state.nextSite();
+		return state.sampler.sampleM(site.upper, site.lower, site.joined,
+				site.nSameTypeSites, 0);
+	}
+
+}
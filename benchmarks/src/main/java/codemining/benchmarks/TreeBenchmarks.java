@@ -0,0 +1,153 @@
+/**
+ *
+ */
+package codemining.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import codemining.ast.TreeBinarizer;
+import codemining.ast.TreeNode;
+import codemining.ast.java.JavaAstTreeExtractor;
+import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.idioms.PatternCorpus;
+import codemining.lm.tsg.idioms.PatternMatcher;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
+
+/**
+ * Benchmarks of the operations on trees and TSG rules: extracting rules,
+ * looking up their counts, matching patterns and binarizing.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TreeBenchmarks {
+
+	/**
+	 * The minimum size of a rule to be used as a pattern.
+	 */
+	private static final int MIN_PATTERN_SIZE = 3;
+
+	@Param({ "200" })
+	public int nSyntheticTrees;
+
+	@Param({ "5000" })
+	public int maxTreeSize;
+
+	@Param({ ".5" })
+	public double percentRoots;
+
+	private List<TreeNode<Integer>> trees;
+
+	/**
+	 * The nodes of the TSG trees that are roots of rules.
+	 */
+	private List<TreeNode<TSGNode>> ruleRoots;
+
+	private List<TreeNode<TSGNode>> rules;
+
+	private FormattedTSGrammar grammar;
+
+	private PatternMatcher<Integer> patternMatcher;
+
+	private TreeBinarizer binarizer;
+
+	private int nextTree;
+
+	private int nextRuleRoot;
+
+	private int nextRule;
+
+	@Benchmark
+	public TreeNode<Integer> binarizeTree() {
+		return binarizer.binarizeTree(nextTree());
+	}
+
+	@Benchmark
+	public int countTreeOccurences() {
+		nextRule = (nextRule + 1) % rules.size();
+		return grammar.countTreeOccurences(rules.get(nextRule));
+	}
+
+	@Benchmark
+	public Multiset<TreeNode<Integer>> getPatternsForTree() {
+		return PatternCorpus.getPatternsForTree(nextTree(), patternMatcher);
+	}
+
+	@Benchmark
+	public TreeNode<TSGNode> getSubTreeFromRoot() {
+		nextRuleRoot = (nextRuleRoot + 1) % ruleRoots.size();
+		return TSGNode.getSubTreeFromRoot(ruleRoots.get(nextRuleRoot));
+	}
+
+	private TreeNode<Integer> nextTree() {
+		nextTree = (nextTree + 1) % trees.size();
+		return trees.get(nextTree);
+	}
+
+	@Setup
+	public void setUp() throws IOException {
+		final JavaAstTreeExtractor extractor = new JavaAstTreeExtractor();
+		trees = BenchmarkCorpus
+				.getTrees(extractor, nSyntheticTrees, maxTreeSize);
+		binarizer = new TreeBinarizer(extractor);
+		grammar = new FormattedTSGrammar(extractor);
+
+		ruleRoots = Lists.newArrayList();
+		rules = Lists.newArrayList();
+		final Set<TreeNode<Integer>> patterns = Sets.newHashSet();
+		for (final TreeNode<Integer> tree : trees) {
+			final TreeNode<TSGNode> tsgTree = TSGNode.convertTree(tree,
+					percentRoots);
+			final ArrayDeque<TreeNode<TSGNode>> toVisit = new ArrayDeque<TreeNode<TSGNode>>();
+			toVisit.push(tsgTree);
+			while (!toVisit.isEmpty()) {
+				final TreeNode<TSGNode> current = toVisit.pop();
+				if (current.getData().isRoot) {
+					ruleRoots.add(current);
+				}
+				for (final List<TreeNode<TSGNode>> childProperty : current
+						.getChildrenByProperty()) {
+					for (final TreeNode<TSGNode> child : childProperty) {
+						toVisit.push(child);
+					}
+				}
+			}
+
+			for (final TreeNode<TSGNode> rule : TSGNode.getAllRootsOf(tsgTree)) {
+				grammar.addTree(rule);
+				rules.add(rule);
+				if (rule.getTreeSize() >= MIN_PATTERN_SIZE) {
+					patterns.add(TSGNode.tsgTreeToInt(rule));
+				}
+			}
+		}
+		patternMatcher = new PatternMatcher<Integer>(patterns);
+	}
+
+}
@@ -1,17 +1,33 @@
 package codemining.ast;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
 
 import codemining.languagetools.ITokenizer;
 import codemining.languagetools.ParseType;
+import codemining.util.parallel.ParallelThreadPool;
 
 import com.esotericsoftware.kryo.DefaultSerializer;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Registration;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.kryo.serializers.JavaSerializer;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
-import com.google.common.collect.Maps;
+import com.google.common.collect.ImmutableBiMap;
 
 /**
  * An abstract class for extracting tree nodes from code.
@@ -29,20 +45,132 @@ public abstract class AbstractTreeExtractor implements Serializable {
 
 	private static final long serialVersionUID = -1685391461506804381L;
 
-	private int nextSymbolId = 0;
+	private static final JavaSerializer JAVA_SERIALIZER = new JavaSerializer();
+
+	/**
+	 * Read a tree extractor written with writeWithKryo.
+	 */
+	public static AbstractTreeExtractor readWithKryo(final Kryo kryo,
+			final Input input) {
+		final Registration registration = kryo.readClass(input);
+		if (registration == null) {
+			return null;
+		}
+		return (AbstractTreeExtractor) kryo.readObject(input,
+				registration.getType(), JAVA_SERIALIZER);
+	}
+
+	/**
+	 * Write a tree extractor (that may be null) as part of a Kryo serialized
+	 * object. Extractors are always written using Java serialization, since
+	 * the DefaultSerializer annotation is not inherited by their subclasses.
+	 */
+	public static void writeWithKryo(final Kryo kryo, final Output output,
+			final AbstractTreeExtractor extractor) {
+		if (extractor == null) {
+			kryo.writeClass(output, null);
+			return;
+		}
+		kryo.writeClass(output, extractor.getClass());
+		kryo.writeObject(output, extractor, JAVA_SERIALIZER);
+	}
+
+	/**
+	 * The number of bits of the index of a symbol in its chunk.
+	 */
+	private static final int CHUNK_BITS = 10;
+
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
 
 	/**
-	 * The symbol map.
+	 * The serialized form of the alphabet is a BiMap from the ids to the
+	 * symbols, as in previous versions.
 	 */
-	protected final BiMap<Integer, AstNodeSymbol> nodeAlphabet;
+	private static final ObjectStreamField[] serialPersistentFields = {
+			new ObjectStreamField("nextSymbolId", int.class),
+			new ObjectStreamField("nodeAlphabet", BiMap.class) };
+
+	/**
+	 * The ids of the symbols. Lookups do not lock and insertions only lock a
+	 * bin of the map.
+	 */
+	private transient ConcurrentHashMap<AstNodeSymbol, Integer> symbolIds;
+
+	/**
+	 * The symbols by their id, in append-only chunks. Chunks are never
+	 * replaced, so a symbol written in a chunk is never lost when the array
+	 * of chunks grows.
+	 */
+	private transient volatile AtomicReferenceArray<AstNodeSymbol>[] symbolChunks;
+
+	private transient AtomicInteger nextSymbolId;
 
 	public AbstractTreeExtractor() {
-		final BiMap<Integer, AstNodeSymbol> base = HashBiMap.create();
-		nodeAlphabet = Maps.synchronizedBiMap(base);
+		initializeAlphabet();
 	}
 
+	/**
+	 * @param alphabet
+	 *            the initial alphabet or null, if the subclass delegates the
+	 *            alphabet to another extractor.
+	 */
 	protected AbstractTreeExtractor(final BiMap<Integer, AstNodeSymbol> alphabet) {
-		nodeAlphabet = alphabet;
+		initializeAlphabet();
+		if (alphabet != null) {
+			addAll(alphabet);
+		}
+	}
+
+	/**
+	 * Add the symbols with the given ids.
+	 */
+	private void addAll(final Map<Integer, AstNodeSymbol> alphabet) {
+		int maxId = -1;
+		for (final Map.Entry<Integer, AstNodeSymbol> entry : alphabet
+				.entrySet()) {
+			final int id = entry.getKey();
+			checkArgument(id >= 0, "Symbol ids cannot be negative");
+			final Integer previousId = symbolIds.put(entry.getValue(), id);
+			checkArgument(previousId == null,
+					"Symbol %s appears twice in the alphabet", entry.getValue());
+			getChunkFor(id).set(id & CHUNK_MASK, entry.getValue());
+			maxId = Math.max(maxId, id);
+		}
+		nextSymbolId.set(maxId + 1);
+	}
+
+	/**
+	 * Return the chunk where the symbol with the given id is stored,
+	 * allocating it if needed.
+	 */
+	private AtomicReferenceArray<AstNodeSymbol> getChunkFor(final int id) {
+		final int chunkIdx = id >>> CHUNK_BITS;
+		AtomicReferenceArray<AstNodeSymbol>[] chunks = symbolChunks;
+		if (chunkIdx >= chunks.length || chunks[chunkIdx] == null) {
+			synchronized (this) {
+				chunks = symbolChunks;
+				if (chunkIdx >= chunks.length) {
+					chunks = Arrays.copyOf(chunks,
+							Math.max(chunkIdx + 1, 2 * chunks.length));
+				}
+				if (chunks[chunkIdx] == null) {
+					chunks[chunkIdx] = new AtomicReferenceArray<AstNodeSymbol>(
+							CHUNK_SIZE);
+				}
+				symbolChunks = chunks;
+			}
+		}
+		return chunks[chunkIdx];
+	}
+
+	@SuppressWarnings("unchecked")
+	private void initializeAlphabet() {
+		symbolIds = new ConcurrentHashMap<AstNodeSymbol, Integer>(16, .75f,
+				ParallelThreadPool.NUM_THREADS);
+		symbolChunks = new AtomicReferenceArray[1];
+		nextSymbolId = new AtomicInteger();
 	}
 
 	/**
@@ -54,6 +182,18 @@ public abstract class AbstractTreeExtractor implements Serializable {
 	 */
 	public abstract String getCodeFromTree(final TreeNode<Integer> tree);
 
+	/**
+	 * Return an identity of the format of the trees that this extractor
+	 * creates, e.g. to key the caches of extracted trees. Extractors whose
+	 * trees depend on their configuration (e.g. a delegate extractor) must
+	 * include it.
+	 *
+	 * @return
+	 */
+	public String getFormatId() {
+		return getClass().getName();
+	}
+
 	/**
 	 * Return the node representing the compilation unit.
 	 *
@@ -61,8 +201,40 @@ public abstract class AbstractTreeExtractor implements Serializable {
 	 */
 	public abstract TreeNode<Integer> getKeyForCompilationUnit();
 
+	/**
+	 * Return the lowest id whose symbol matches the predicate, or -1 if there
+	 * is none. Unlike getNodeAlphabet(), this does not copy the alphabet.
+	 *
+	 * @param predicate
+	 * @return
+	 */
+	public int findSymbolId(final Predicate<AstNodeSymbol> predicate) {
+		final int nSymbols = nextSymbolId.get();
+		for (int id = 0; id < nSymbols; id++) {
+			final AstNodeSymbol symbol = getSymbol(id);
+			if (symbol != null && predicate.test(symbol)) {
+				return id;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Return a snapshot of the alphabet, mapping the ids to the symbols.
+	 *
+	 * @return
+	 */
 	public BiMap<Integer, AstNodeSymbol> getNodeAlphabet() {
-		return nodeAlphabet;
+		final ImmutableBiMap.Builder<Integer, AstNodeSymbol> alphabet = ImmutableBiMap
+				.builder();
+		final int nSymbols = nextSymbolId.get();
+		for (int id = 0; id < nSymbols; id++) {
+			final AstNodeSymbol symbol = getSymbol(id);
+			if (symbol != null) { // May still be written by another thread
+				alphabet.put(id, symbol);
+			}
+		}
+		return alphabet.build();
 	}
 
 	/**
@@ -72,17 +244,17 @@ public abstract class AbstractTreeExtractor implements Serializable {
 	 * @param symbol
 	 * @return
 	 */
-	public synchronized int getOrAddSymbolId(final AstNodeSymbol symbol) {
-		final Integer id = nodeAlphabet.inverse().get(symbol);
+	public int getOrAddSymbolId(final AstNodeSymbol symbol) {
+		final Integer id = symbolIds.get(symbol);
 		if (id != null) {
 			return id;
-		} else {
-			symbol.lockFromChanges();
-			final int currentSymboId = nextSymbolId;
-			nextSymbolId++;
-			nodeAlphabet.put(currentSymboId, symbol);
-			return currentSymboId;
 		}
+		return symbolIds.computeIfAbsent(symbol, newSymbol -> {
+			newSymbol.lockFromChanges();
+			final int newId = nextSymbolId.getAndIncrement();
+			getChunkFor(newId).set(newId & CHUNK_MASK, newSymbol);
+			return newId;
+		});
 	}
 
 	/**
@@ -93,7 +265,15 @@ public abstract class AbstractTreeExtractor implements Serializable {
 	 * @return
 	 */
 	public AstNodeSymbol getSymbol(final int key) {
-		return nodeAlphabet.get(key);
+		if (key < 0) {
+			return null;
+		}
+		final AtomicReferenceArray<AstNodeSymbol>[] chunks = symbolChunks;
+		final int chunkIdx = key >>> CHUNK_BITS;
+		if (chunkIdx >= chunks.length || chunks[chunkIdx] == null) {
+			return null;
+		}
+		return chunks[chunkIdx].get(key & CHUNK_MASK);
 	}
 
 	/**
@@ -154,4 +334,25 @@ public abstract class AbstractTreeExtractor implements Serializable {
 		}
 	}
 
-}
\ No newline at end of file
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		final ObjectInputStream.GetField fields = in.readFields();
+		initializeAlphabet();
+		@SuppressWarnings("unchecked")
+		final Map<Integer, AstNodeSymbol> alphabet = (Map<Integer, AstNodeSymbol>) fields
+				.get("nodeAlphabet", null);
+		if (alphabet != null) {
+			addAll(alphabet);
+		}
+	}
+
+	private void writeObject(final ObjectOutputStream out) throws IOException {
+		final ObjectOutputStream.PutField fields = out.putFields();
+		final BiMap<Integer, AstNodeSymbol> alphabet = HashBiMap
+				.create(getNodeAlphabet());
+		fields.put("nextSymbolId", alphabet.size());
+		fields.put("nodeAlphabet", alphabet);
+		out.writeFields();
+	}
+
+}
@@ -64,6 +64,11 @@ public class AstNodeSymbol implements Serializable {
 	 */
 	private SortedMap<String, Object> annotations = Maps.newTreeMap();
 
+	/**
+	 * The hash code of the symbol, cached once the symbol is locked.
+	 */
+	private transient volatile int cachedHashCode = 0;
+
 	/**
 	 * A list of the child properties that contain the node children
 	 */
@@ -118,6 +123,12 @@ public class AstNodeSymbol implements Serializable {
 			return false;
 		}
 
+		final int hash = cachedHashCode;
+		final int otherHash = other.cachedHashCode;
+		if (hash != 0 && otherHash != 0 && hash != otherHash) {
+			return false;
+		}
+
 		if (!simplePropValues.equals(other.simplePropValues)) {
 			return false;
 		}
@@ -155,7 +166,15 @@ public class AstNodeSymbol implements Serializable {
 
 	@Override
 	public int hashCode() {
-		return Objects.hashCode(nodeType, simplePropValues, childProperties, annotations);
+		int hash = cachedHashCode;
+		if (hash == 0) {
+			hash = Objects.hashCode(nodeType, simplePropValues, childProperties, annotations);
+			if (childProperties instanceof ImmutableList) {
+				// The symbol is locked and cannot change anymore
+				cachedHashCode = hash;
+			}
+		}
+		return hash;
 	}
 
 	public final boolean hasSimpleProperty(final String property) {
@@ -35,6 +35,16 @@ public class TreeBinarizer implements Serializable {
 		this.annotateMultinodes = annotateMultinodes;
 	}
 
+	/**
+	 * Return true if the multinodes are annotated with the type of the node
+	 * they hold.
+	 *
+	 * @return
+	 */
+	public boolean annotatesMultinodes() {
+		return annotateMultinodes;
+	}
+
 	/**
 	 * Binarize a single tree.
 	 *
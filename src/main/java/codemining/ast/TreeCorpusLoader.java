@@ -0,0 +1,417 @@
+/**
+ *
+ */
+package codemining.ast;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import codemining.util.SettingsLoader;
+import codemining.util.parallel.ParallelThreadPool;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.JavaSerializer;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Load the trees of a corpus, parsing the files in parallel. The trees can be
+ * cached in a binary file, keyed by the hash of the content of each file, so
+ * that the next tools that load the same corpus (with the same extraction)
+ * only parse the files that have changed.
+ *
+ * The cache also contains the symbols of the node alphabet used by the cached
+ * trees. When the cache is loaded, the symbols are added to the alphabet of
+ * the current tree extractor and the cached trees are remapped to its ids.
+ *
+ * Since the files are parsed in parallel, the ids of the symbols first seen
+ * while parsing depend on the order that the parsing threads reach them, so
+ * they may differ across runs. Anything that stores trees or rules by their
+ * ids must also store their symbols (e.g. SamplerCheckpoint).
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class TreeCorpusLoader {
+
+	/**
+	 * Extract the trees of a single file.
+	 */
+	@FunctionalInterface
+	public interface ITreeExtraction {
+		List<TreeNode<Integer>> getTrees(File file) throws Exception;
+	}
+
+	private static final Logger LOGGER = Logger
+			.getLogger(TreeCorpusLoader.class.getName());
+
+	private static final int MAGIC = 0x54524545;
+
+	private static final int VERSION = 1;
+
+	private static final JavaSerializer JAVA_SERIALIZER = new JavaSerializer();
+
+	/**
+	 * The directory where the corpus caches are stored. If empty, no cache is
+	 * used.
+	 */
+	public static final String CACHE_DIRECTORY = SettingsLoader
+			.getStringSetting("treeCacheDirectory", ".treeCache");
+
+	/**
+	 * Return a loader for the corpus in the given directory, using the
+	 * default cache directory.
+	 *
+	 * @param format
+	 * @param extractionName
+	 *            a name that identifies the extraction, e.g. "file" or
+	 *            "methodBodies"
+	 * @param extraction
+	 * @param corpusDirectory
+	 * @return
+	 */
+	public static TreeCorpusLoader forCorpus(
+			final AbstractTreeExtractor format, final String extractionName,
+			final ITreeExtraction extraction, final File corpusDirectory) {
+		return forCorpus(format, extractionName, extraction, corpusDirectory,
+				CACHE_DIRECTORY.isEmpty() ? null : new File(CACHE_DIRECTORY));
+	}
+
+	/**
+	 * Return a loader for the corpus in the given directory. The cache file
+	 * is named after the corpus directory, the format (including its
+	 * configuration) and the extraction, so that differently configured
+	 * formats never share a cache.
+	 *
+	 * @param format
+	 * @param extractionName
+	 * @param extraction
+	 * @param corpusDirectory
+	 * @param cacheDirectory
+	 *            the directory of the cache or null to disable caching.
+	 * @return
+	 */
+	public static TreeCorpusLoader forCorpus(
+			final AbstractTreeExtractor format, final String extractionName,
+			final ITreeExtraction extraction, final File corpusDirectory,
+			final File cacheDirectory) {
+		if (cacheDirectory == null) {
+			return new TreeCorpusLoader(format, extractionName, extraction,
+					null);
+		}
+		final String corpusId = Hashing
+				.murmur3_128()
+				.hashUnencodedChars(
+						corpusDirectory.getAbsolutePath() + ":"
+								+ getCacheTag(format, extractionName))
+				.toString();
+		return new TreeCorpusLoader(format, extractionName, extraction,
+				new File(cacheDirectory, corpusId + ".trees"));
+	}
+
+	/**
+	 * Return a loader that extracts the tree of each file using
+	 * format.getTree(File), using the default cache directory.
+	 *
+	 * @param format
+	 * @param corpusDirectory
+	 * @return
+	 */
+	public static TreeCorpusLoader forCorpus(
+			final AbstractTreeExtractor format, final File corpusDirectory) {
+		return forCorpus(format, "file", wholeFileExtraction(format),
+				corpusDirectory);
+	}
+
+	/**
+	 * Return the hash of the content of the file.
+	 */
+	private static String hashContent(final File file) throws IOException {
+		return Files.hash(file, Hashing.sha1()).toString();
+	}
+
+	/**
+	 * An extraction that returns the tree of the whole file.
+	 *
+	 * @param format
+	 * @return
+	 */
+	public static ITreeExtraction wholeFileExtraction(
+			final AbstractTreeExtractor format) {
+		return f -> Collections.singletonList(format.getTree(f));
+	}
+
+	private final AbstractTreeExtractor format;
+
+	private final String extractionName;
+
+	private final ITreeExtraction extraction;
+
+	private final File cacheFile;
+
+	/**
+	 * @param format
+	 *            the format of the trees. Its alphabet is extended with the
+	 *            symbols of the cached trees.
+	 * @param extractionName
+	 *            a name identifying the extraction. A cache written with a
+	 *            different extraction or format is ignored.
+	 * @param extraction
+	 * @param cacheFile
+	 *            the file to cache the trees or null to disable caching.
+	 */
+	public TreeCorpusLoader(final AbstractTreeExtractor format,
+			final String extractionName, final ITreeExtraction extraction,
+			final File cacheFile) {
+		this.format = checkNotNull(format);
+		this.extractionName = checkNotNull(extractionName);
+		this.extraction = checkNotNull(extraction);
+		this.cacheFile = cacheFile;
+	}
+
+	private static String getCacheTag(final AbstractTreeExtractor format,
+			final String extractionName) {
+		return format.getFormatId() + ":" + extractionName;
+	}
+
+	/**
+	 * Return the trees of the given files, in the order of the files. Files
+	 * that fail to parse are logged and are not included. The cache (if any)
+	 * is replaced by the trees of the given files.
+	 *
+	 * @param files
+	 * @return
+	 */
+	public Map<File, List<TreeNode<Integer>>> loadTrees(
+			final Collection<File> files) {
+		final Map<String, List<TreeNode<Integer>>> cached = readCache();
+		final ConcurrentMap<File, String> fileHashes = Maps
+				.newConcurrentMap();
+		final ConcurrentMap<File, List<TreeNode<Integer>>> fileTrees = Maps
+				.newConcurrentMap();
+		final Set<String> usedHashes = Sets.newConcurrentHashSet();
+		final AtomicInteger nParsed = new AtomicInteger();
+
+		final ParallelThreadPool ptp = new ParallelThreadPool();
+		for (final File file : files) {
+			ptp.pushTask(() -> {
+				try {
+					final String hash = hashContent(file);
+					List<TreeNode<Integer>> trees = cached.get(hash);
+					if (trees == null) {
+						trees = extraction.getTrees(file);
+						nParsed.incrementAndGet();
+					} else if (!usedHashes.add(hash)) {
+						// Files with the same content do not share nodes
+						final List<TreeNode<Integer>> copies = Lists
+								.newArrayListWithCapacity(trees.size());
+						for (final TreeNode<Integer> tree : trees) {
+							copies.add(tree.deepCopy());
+						}
+						trees = copies;
+					}
+					fileHashes.put(file, hash);
+					fileTrees.put(file, trees);
+				} catch (final Throwable e) {
+					LOGGER.warning("Failed to get trees for "
+							+ file.getAbsolutePath() + " "
+							+ ExceptionUtils.getFullStackTrace(e));
+				}
+			});
+		}
+		ptp.waitForTermination();
+		LOGGER.info("Loaded " + fileTrees.size() + " files, "
+				+ (fileTrees.size() - nParsed.get()) + " from the cache");
+
+		final Map<File, List<TreeNode<Integer>>> trees = Maps
+				.newLinkedHashMap();
+		for (final File file : files) {
+			if (fileTrees.containsKey(file)) {
+				trees.put(file, fileTrees.get(file));
+			}
+		}
+		if (cacheFile != null && nParsed.get() > 0) {
+			try {
+				writeCache(trees, fileHashes);
+			} catch (final IOException e) {
+				LOGGER.warning("Failed to write tree cache " + cacheFile + " "
+						+ ExceptionUtils.getFullStackTrace(e));
+			}
+		}
+		return trees;
+	}
+
+	/**
+	 * Return all the trees of the given files, in the order of the files.
+	 *
+	 * @param files
+	 * @return
+	 */
+	public List<TreeNode<Integer>> loadAllTrees(final Collection<File> files) {
+		final List<TreeNode<Integer>> allTrees = Lists.newArrayList();
+		for (final List<TreeNode<Integer>> trees : loadTrees(files).values()) {
+			allTrees.addAll(trees);
+		}
+		return allTrees;
+	}
+
+	/**
+	 * Read the cached trees by the hash of their file. Return an empty map
+	 * if there is no (valid) cache.
+	 */
+	private Map<String, List<TreeNode<Integer>>> readCache() {
+		final Map<String, List<TreeNode<Integer>>> cached = Maps.newHashMap();
+		if (cacheFile == null || !cacheFile.exists()) {
+			return cached;
+		}
+		final Kryo kryo = new Kryo();
+		try (final Input input = new Input(new BufferedInputStream(
+				new FileInputStream(cacheFile)))) {
+			if (input.readInt() != MAGIC || input.readInt() != VERSION
+					|| !input.readString().equals(
+							getCacheTag(format, extractionName))) {
+				LOGGER.info("Ignoring incompatible tree cache " + cacheFile);
+				return cached;
+			}
+
+			// Map the cached symbol ids to the ids of the current format.
+			final int nSymbols = input.readVarInt(true);
+			final Map<Integer, Integer> symbolIds = Maps
+					.newHashMapWithExpectedSize(nSymbols);
+			for (int i = 0; i < nSymbols; i++) {
+				final int cachedId = input.readVarInt(false);
+				final AstNodeSymbol symbol = kryo.readObject(input,
+						AstNodeSymbol.class, JAVA_SERIALIZER);
+				symbolIds.put(cachedId, format.getOrAddSymbolId(symbol));
+			}
+
+			final int nFiles = input.readVarInt(true);
+			for (int i = 0; i < nFiles; i++) {
+				final String hash = HashCode.fromBytes(
+						input.readBytes(input.readVarInt(true))).toString();
+				final int nTrees = input.readVarInt(true);
+				final List<TreeNode<Integer>> trees = Lists
+						.newArrayListWithCapacity(nTrees);
+				for (int j = 0; j < nTrees; j++) {
+					trees.add(readTree(input, symbolIds));
+				}
+				cached.put(hash, trees);
+			}
+		} catch (final IOException | KryoException e) {
+			LOGGER.warning("Failed to read tree cache " + cacheFile + " "
+					+ ExceptionUtils.getFullStackTrace(e));
+			cached.clear();
+		}
+		return cached;
+	}
+
+	/**
+	 * Read a tree written by writeTree, mapping its keys to the ids of the
+	 * current format.
+	 */
+	private TreeNode<Integer> readTree(final Input input,
+			final Map<Integer, Integer> symbolIds) {
+		return TreeNode.PreOrderCodec.read(
+				new TreeNode.PreOrderCodec.INodeInput<Integer, RuntimeException>() {
+					@Override
+					public int readCount() {
+						return input.readVarInt(true);
+					}
+
+					@Override
+					public Integer readData() {
+						return checkNotNull(
+								symbolIds.get(input.readVarInt(false)),
+								"Unknown symbol in tree cache");
+					}
+				}, false);
+	}
+
+	/**
+	 * Write the trees of the files and the current alphabet to the cache. The
+	 * cache is atomically replaced only after it has been fully written.
+	 */
+	private void writeCache(final Map<File, List<TreeNode<Integer>>> trees,
+			final Map<File, String> fileHashes) throws IOException {
+		final File directory = cacheFile.getAbsoluteFile().getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Failed to create " + directory);
+		}
+		final File tmpFile = new File(cacheFile.getPath() + ".tmp");
+		final Kryo kryo = new Kryo();
+		try (final Output output = new Output(new BufferedOutputStream(
+				new FileOutputStream(tmpFile)))) {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeString(getCacheTag(format, extractionName));
+
+			final Map<Integer, AstNodeSymbol> alphabet = format
+					.getNodeAlphabet();
+			output.writeVarInt(alphabet.size(), true);
+			for (final Map.Entry<Integer, AstNodeSymbol> symbol : alphabet
+					.entrySet()) {
+				output.writeVarInt(symbol.getKey(), false);
+				kryo.writeObject(output, symbol.getValue(), JAVA_SERIALIZER);
+			}
+
+			output.writeVarInt(trees.size(), true);
+			for (final Map.Entry<File, List<TreeNode<Integer>>> fileTrees : trees
+					.entrySet()) {
+				final byte[] hash = HashCode.fromString(
+						fileHashes.get(fileTrees.getKey())).asBytes();
+				output.writeVarInt(hash.length, true);
+				output.writeBytes(hash);
+				output.writeVarInt(fileTrees.getValue().size(), true);
+				for (final TreeNode<Integer> tree : fileTrees.getValue()) {
+					writeTree(output, tree);
+				}
+			}
+		}
+		java.nio.file.Files.move(tmpFile.toPath(), cacheFile.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Write the tree with the TreeNode.PreOrderCodec, each key as a varint.
+	 */
+	private void writeTree(final Output output, final TreeNode<Integer> tree) {
+		TreeNode.PreOrderCodec.write(tree,
+				new TreeNode.PreOrderCodec.INodeOutput<Integer, RuntimeException>() {
+					@Override
+					public void writeCount(final int count) {
+						output.writeVarInt(count, true);
+					}
+
+					@Override
+					public void writeData(final Integer key) {
+						output.writeVarInt(key, false);
+					}
+				});
+	}
+
+}
@@ -6,6 +6,8 @@ package codemining.ast;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkElementIndex;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayDeque;
 import java.util.List;
@@ -13,7 +15,10 @@ import java.util.Set;
 import java.util.function.Function;
 
 import com.esotericsoftware.kryo.DefaultSerializer;
-import com.esotericsoftware.kryo.serializers.JavaSerializer;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
 import com.google.common.base.Objects;
 import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
@@ -29,7 +34,7 @@ import codemining.util.data.Pair;
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  *
  */
-@DefaultSerializer(JavaSerializer.class)
+@DefaultSerializer(TreeNode.KryoSerializer.class)
 public final class TreeNode<T extends Serializable> implements Serializable {
     /**
      * Struct class for node data pairs
@@ -132,6 +137,160 @@ public final class TreeNode<T extends Serializable> implements Serializable {
         public Set<TreeNode<T>> references;
     }
 
+    /**
+     * A Kryo serializer that writes trees with the PreOrderCodec, each node
+     * data as a class and object. Immutable trees are read back as immutable
+     * trees.
+     */
+    public static final class KryoSerializer extends Serializer<TreeNode<?>> {
+
+        @Override
+        public TreeNode<?> read(final Kryo kryo, final Input input, final Class<TreeNode<?>> type) {
+            final boolean isImmutable = input.readBoolean();
+            return PreOrderCodec.read(new PreOrderCodec.INodeInput<Serializable, RuntimeException>() {
+                @Override
+                public int readCount() {
+                    return input.readVarInt(true);
+                }
+
+                @Override
+                public Serializable readData() {
+                    return (Serializable) kryo.readClassAndObject(input);
+                }
+            }, isImmutable);
+        }
+
+        @Override
+        public void write(final Kryo kryo, final Output output, final TreeNode<?> tree) {
+            output.writeBoolean(tree.cachedTreeSize > 0);
+            writeTree(kryo, output, tree);
+        }
+
+        private <T extends Serializable> void writeTree(final Kryo kryo, final Output output, final TreeNode<T> tree) {
+            PreOrderCodec.write(tree, new PreOrderCodec.INodeOutput<T, RuntimeException>() {
+                @Override
+                public void writeCount(final int count) {
+                    output.writeVarInt(count, true);
+                }
+
+                @Override
+                public void writeData(final T data) {
+                    kryo.writeClassAndObject(output, data);
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes and reads trees iteratively in pre-order, so deep trees do not
+     * overflow the stack. Each node is written as its data, its number of
+     * properties and the number of children of each property. The data and
+     * the numbers are encoded by the given INodeOutput, so that all the
+     * binary formats of trees share the same layout.
+     */
+    public static final class PreOrderCodec {
+
+        /**
+         * Reads the data and the numbers written by an INodeOutput.
+         */
+        public interface INodeInput<T, E extends Exception> {
+            int readCount() throws E;
+
+            T readData() throws E;
+        }
+
+        /**
+         * Encodes the data of the nodes and the (non-negative) numbers of
+         * properties and children.
+         */
+        public interface INodeOutput<T, E extends Exception> {
+            void writeCount(int count) throws E;
+
+            void writeData(T data) throws E;
+        }
+
+        /**
+         * Read a tree written by write().
+         *
+         * @param input
+         * @param immutable
+         *            return an immutable tree
+         * @return
+         */
+        public static <T extends Serializable, E extends Exception> TreeNode<T> read(final INodeInput<T, E> input,
+                final boolean immutable) throws E {
+            // Read the nodes in pre-order, until no child is pending
+            final List<T> data = Lists.newArrayList();
+            final List<int[]> nChildren = Lists.newArrayList();
+            int nPending = 1;
+            while (nPending > 0) {
+                data.add(input.readData());
+                final int[] nodeChildren = new int[input.readCount()];
+                for (int i = 0; i < nodeChildren.length; i++) {
+                    nodeChildren[i] = input.readCount();
+                    nPending += nodeChildren[i];
+                }
+                nChildren.add(nodeChildren);
+                nPending--;
+            }
+
+            // Build the tree bottom-up. In reverse pre-order, the children of
+            // a node are on the top of the stack, first child first.
+            final ArrayDeque<TreeNode<T>> built = new ArrayDeque<TreeNode<T>>();
+            for (int nodeIdx = data.size() - 1; nodeIdx >= 0; nodeIdx--) {
+                final int[] nodeChildren = nChildren.get(nodeIdx);
+                final List<List<TreeNode<T>>> children = Lists.newArrayListWithCapacity(nodeChildren.length);
+                for (int i = 0; i < nodeChildren.length; i++) {
+                    final List<TreeNode<T>> childrenForProperty = Lists.newArrayListWithCapacity(nodeChildren[i]);
+                    for (int j = 0; j < nodeChildren[i]; j++) {
+                        childrenForProperty.add(built.pop());
+                    }
+                    children.add(immutable ? ImmutableList.copyOf(childrenForProperty) : childrenForProperty);
+                }
+                if (immutable) {
+                    built.push(new TreeNode<T>(data.get(nodeIdx), children));
+                } else {
+                    final TreeNode<T> node = new TreeNode<T>(data.get(nodeIdx), nodeChildren.length);
+                    for (int i = 0; i < nodeChildren.length; i++) {
+                        node.childrenProperties.get(i).addAll(children.get(i));
+                    }
+                    built.push(node);
+                }
+            }
+            return built.pop();
+        }
+
+        /**
+         * Write the nodes of the tree in pre-order.
+         *
+         * @param tree
+         * @param output
+         */
+        public static <T extends Serializable, E extends Exception> void write(final TreeNode<T> tree,
+                final INodeOutput<T, E> output) throws E {
+            final ArrayDeque<TreeNode<T>> toVisit = new ArrayDeque<TreeNode<T>>();
+            toVisit.push(tree);
+            while (!toVisit.isEmpty()) {
+                final TreeNode<T> current = toVisit.pop();
+                output.writeData(current.nodeData);
+                final List<List<TreeNode<T>>> children = current.childrenProperties;
+                output.writeCount(children.size());
+                for (final List<TreeNode<T>> childrenForProperty : children) {
+                    output.writeCount(childrenForProperty.size());
+                }
+                for (int i = children.size() - 1; i >= 0; i--) {
+                    final List<TreeNode<T>> childrenForProperty = children.get(i);
+                    for (int j = childrenForProperty.size() - 1; j >= 0; j--) {
+                        toVisit.push(childrenForProperty.get(j));
+                    }
+                }
+            }
+        }
+
+        private PreOrderCodec() {
+        }
+    }
+
     /**
      *
      */
@@ -252,6 +411,17 @@ public final class TreeNode<T extends Serializable> implements Serializable {
      */
     private final T nodeData;
 
+    /**
+     * The hash code and the size of an immutable tree, computed once at
+     * construction. cachedTreeSize is zero for mutable trees, that are never
+     * cached. Note that the cached values are a snapshot of the node data at
+     * construction, so the data of immutable trees should not be mutated if
+     * they are hashed or compared.
+     */
+    private transient int cachedHashCode;
+
+    private transient int cachedTreeSize;
+
     /**
      * Construct a Node give its data.
      *
@@ -276,6 +446,7 @@ public final class TreeNode<T extends Serializable> implements Serializable {
     private TreeNode(final T name, final List<List<TreeNode<T>>> children) {
         nodeData = name;
         this.childrenProperties = ImmutableList.copyOf(children);
+        cacheStructure();
     }
 
     /**
@@ -289,6 +460,29 @@ public final class TreeNode<T extends Serializable> implements Serializable {
         childrenPlaceholder.add(child);
     }
 
+    /**
+     * Compute the hash code and size of this immutable node. The children are
+     * immutable and have their values already cached.
+     */
+    private void cacheStructure() {
+        int treeSize = 1;
+        for (final List<TreeNode<T>> childrenForProperty : childrenProperties) {
+            for (final TreeNode<T> child : childrenForProperty) {
+                treeSize += child.getTreeSize();
+            }
+        }
+        cachedHashCode = computeHashCode();
+        cachedTreeSize = treeSize;
+    }
+
+    private int computeHashCode() {
+        if (childrenProperties.size() > 0) {
+            return Objects.hashCode(nodeData, childrenProperties);
+        } else {
+            return Objects.hashCode(nodeData);
+        }
+    }
+
     /**
      * Create a deep copy of the TreeNode structure. Data of each node, still
      * refers to the same element.
@@ -340,6 +534,11 @@ public final class TreeNode<T extends Serializable> implements Serializable {
             final NodePair<T> pair = stack.pop();
             final TreeNode<T> currentThis = pair.fromNode;
             final TreeNode<T> currentOther = pair.toNode;
+            if (currentThis == currentOther) {
+                continue;
+            } else if (haveDifferentCachedStructure(currentThis, currentOther)) {
+                return false;
+            }
 
             final List<List<TreeNode<T>>> thisChildren = currentThis.getChildrenByProperty();
             final List<List<TreeNode<T>>> otherChildren = currentOther.getChildrenByProperty();
@@ -480,6 +679,10 @@ public final class TreeNode<T extends Serializable> implements Serializable {
      * @return
      */
     public int getNumberOfProductions() {
+        if (cachedTreeSize > 0) {
+            // For trees, the number of productions is the same as the size
+            return cachedTreeSize;
+        }
         final ArrayDeque<TreeNode<T>> toLook = new ArrayDeque<TreeNode<T>>();
         int size = 1;
         toLook.push(this);
@@ -544,6 +747,9 @@ public final class TreeNode<T extends Serializable> implements Serializable {
      * @return
      */
     public int getTreeSize() {
+        if (cachedTreeSize > 0) {
+            return cachedTreeSize;
+        }
         final ArrayDeque<TreeNode<T>> toLook = new ArrayDeque<TreeNode<T>>();
         int size = 1;
         toLook.push(this);
@@ -562,11 +768,20 @@ public final class TreeNode<T extends Serializable> implements Serializable {
 
     @Override
     public int hashCode() {
-        if (childrenProperties.size() > 0) {
-            return Objects.hashCode(nodeData, childrenProperties);
-        } else {
-            return Objects.hashCode(nodeData);
+        if (cachedTreeSize > 0) {
+            return cachedHashCode;
         }
+        return computeHashCode();
+    }
+
+    /**
+     * Return true if both nodes are immutable and their cached hash codes or
+     * sizes differ, i.e. they cannot be equal.
+     */
+    private static <T extends Serializable> boolean haveDifferentCachedStructure(final TreeNode<T> node1,
+            final TreeNode<T> node2) {
+        return node1.cachedTreeSize > 0 && node2.cachedTreeSize > 0 && (node1.cachedHashCode != node2.cachedHashCode
+                || node1.cachedTreeSize != node2.cachedTreeSize);
     }
 
     /**
@@ -777,12 +992,22 @@ public final class TreeNode<T extends Serializable> implements Serializable {
         return true;
     }
 
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (childrenProperties instanceof ImmutableList) {
+            cacheStructure();
+        }
+    }
+
     /**
      * Return an immutable copy of this the subtree rooted at this node.
      *
      * @return
      */
     public TreeNode<T> toImmutable() {
+        if (cachedTreeSize > 0) {
+            return this;
+        }
         final List<List<TreeNode<T>>> immutableProperties = Lists.newArrayList();
         for (int i = 0; i < childrenProperties.size(); i++) {
             final List<TreeNode<T>> immutableChildren = Lists.newArrayList();
@@ -4,7 +4,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.function.Function;
 
 import org.eclipse.jdt.core.dom.ASTNode;
@@ -66,19 +65,16 @@ public abstract class AbstractJavaTreeExtractor extends AbstractTreeExtractor {
 
 	@Override
 	public TreeNode<Integer> getKeyForCompilationUnit() {
-		for (final Entry<Integer, AstNodeSymbol> entry : nodeAlphabet.entrySet()) {
-			if (entry.getValue().nodeType == ASTNode.COMPILATION_UNIT) {
-				return TreeNode.create(entry.getKey(), entry.getValue().nChildProperties());
-			}
-		}
-		
+		int key = findSymbolId(symbol -> symbol.nodeType == ASTNode.COMPILATION_UNIT);
+
 		// temp workaround?
-		for (final Entry<Integer, AstNodeSymbol> entry : nodeAlphabet.entrySet()) {
-			if (entry.getValue().nodeType == ASTNode.METHOD_DECLARATION) {
-				return TreeNode.create(entry.getKey(), entry.getValue().nChildProperties());
-			}
+		if (key < 0) {
+			key = findSymbolId(symbol -> symbol.nodeType == ASTNode.METHOD_DECLARATION);
+		}
+		if (key < 0) {
+			throw new IllegalStateException("A compilation unit must have been here...");
 		}
-		throw new IllegalStateException("A compilation unit must have been here...");
+		return TreeNode.create(key, getSymbol(key).nChildProperties());
 	}
 
 	@Override
@@ -6,6 +6,7 @@ package codemining.ast.java;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.Map;
+import java.util.function.Predicate;
 
 import org.eclipse.jdt.core.dom.ASTNode;
 
@@ -60,6 +61,17 @@ public class BinaryJavaAstTreeExtractor extends AbstractJavaTreeExtractor {
 		return binarizer;
 	}
 
+	@Override
+	public String getFormatId() {
+		return super.getFormatId() + "(" + base.getFormatId() + ",annotate="
+				+ binarizer.annotatesMultinodes() + ")";
+	}
+
+	@Override
+	public int findSymbolId(final Predicate<AstNodeSymbol> predicate) {
+		return base.findSymbolId(predicate);
+	}
+
 	@Override
 	public TreeNode<Integer> getKeyForCompilationUnit() {
 		return base.getKeyForCompilationUnit();
@@ -76,7 +88,7 @@ public class BinaryJavaAstTreeExtractor extends AbstractJavaTreeExtractor {
 	}
 
 	@Override
-	public synchronized int getOrAddSymbolId(final AstNodeSymbol symbol) {
+	public int getOrAddSymbolId(final AstNodeSymbol symbol) {
 		return base.getOrAddSymbolId(symbol);
 	}
 
@@ -3,12 +3,16 @@
  */
 package codemining.ast.js;
 
+import java.util.function.Predicate;
+
 import org.eclipse.wst.jsdt.core.dom.ASTNode;
 
 import codemining.ast.AstNodeSymbol;
 import codemining.ast.TreeBinarizer;
 import codemining.ast.TreeNode;
 
+import com.google.common.collect.BiMap;
+
 /**
  * A binary javascript tree extractor.
  *
@@ -51,13 +55,29 @@ public class BinaryJavascriptTreeExtractor extends JavascriptTreeExtractor {
 		return binarizer;
 	}
 
+	@Override
+	public String getFormatId() {
+		return super.getFormatId() + "(" + base.getFormatId() + ",annotate="
+				+ binarizer.annotatesMultinodes() + ")";
+	}
+
+	@Override
+	public int findSymbolId(final Predicate<AstNodeSymbol> predicate) {
+		return base.findSymbolId(predicate);
+	}
+
 	@Override
 	public TreeNode<Integer> getKeyForCompilationUnit() {
 		return base.getKeyForCompilationUnit();
 	}
 
 	@Override
-	public synchronized int getOrAddSymbolId(final AstNodeSymbol symbol) {
+	public BiMap<Integer, AstNodeSymbol> getNodeAlphabet() {
+		return base.getNodeAlphabet();
+	}
+
+	@Override
+	public int getOrAddSymbolId(final AstNodeSymbol symbol) {
 		return base.getOrAddSymbolId(symbol);
 	}
 
@@ -12,7 +12,6 @@ import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.function.Function;
 import java.util.logging.Logger;
 
@@ -586,15 +585,13 @@ public class JavascriptTreeExtractor extends AbstractTreeExtractor {
 	 */
 			@Override
 			public TreeNode<Integer> getKeyForCompilationUnit() {
-				for (final Entry<Integer, AstNodeSymbol> entry : nodeAlphabet
-						.entrySet()) {
-					if (entry.getValue().nodeType == ASTNode.JAVASCRIPT_UNIT) {
-						return TreeNode.create(entry.getKey(), entry.getValue()
-								.nChildProperties());
-					}
+				final int key = findSymbolId(
+						symbol -> symbol.nodeType == ASTNode.JAVASCRIPT_UNIT);
+				if (key < 0) {
+					throw new IllegalStateException(
+							"A compilation unit must have been here...");
 				}
-				throw new IllegalStateException(
-						"A compilation unit must have been here...");
+				return TreeNode.create(key, getSymbol(key).nChildProperties());
 			}
 
 			/*
@@ -95,6 +95,26 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 			nodes = Lists.newArrayListWithCapacity(propertiesSize);
 		}
 
+		/**
+		 * Create a consequent from its int encoding.
+		 *
+		 * @see #toIntArray()
+		 */
+		public static NodeConsequent fromIntArray(final int[] encoded) {
+			final NodeConsequent consequent = new NodeConsequent();
+			int pos = 0;
+			while (pos < encoded.length) {
+				final int nChildren = encoded[pos++];
+				final List<Integer> children = Lists
+						.newArrayListWithCapacity(nChildren);
+				for (int i = 0; i < nChildren; i++) {
+					children.add(encoded[pos++]);
+				}
+				consequent.nodes.add(children);
+			}
+			return consequent;
+		}
+
 		@Override
 		public boolean equals(final Object obj) {
 			if (obj == this) {
@@ -112,6 +132,26 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 			return Objects.hashCode(nodes);
 		}
 
+		/**
+		 * Return the consequent encoded as an int array. Each property is
+		 * encoded as the number of its children followed by the children.
+		 */
+		public int[] toIntArray() {
+			int length = nodes.size();
+			for (final List<Integer> children : nodes) {
+				length += children.size();
+			}
+			final int[] encoded = new int[length];
+			int pos = 0;
+			for (final List<Integer> children : nodes) {
+				encoded[pos++] = children.size();
+				for (final int child : children) {
+					encoded[pos++] = child;
+				}
+			}
+			return encoded;
+		}
+
 		@Override
 		public String toString() {
 			return nodes.toString();
@@ -209,7 +249,7 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 
 		while (!toVisit.isEmpty()) {
 			final TreeNode<Integer> currentNode = toVisit.pop();
-			final Multiset<NodeConsequent> productions = grammar
+			final Multiset<NodeConsequent> productions = getInternalGrammar()
 					.get(currentNode.getData());
 			if (productions != null) {
 				final NodeConsequent selected = SampleUtils
@@ -316,7 +356,7 @@ public abstract class AbstractContextFreeGrammar implements ILanguageModel {
 	 * @param to
 	 * @return
 	 */
-	public final double getMLProbability(final int from, final NodeConsequent to) {
+	public double getMLProbability(final int from, final NodeConsequent to) {
 		final Multiset<NodeConsequent> consequents = grammar.get(from);
 		if (consequents == null) {
 			return 1.;
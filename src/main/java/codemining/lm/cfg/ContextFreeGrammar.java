@@ -10,6 +10,8 @@ import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
@@ -24,7 +26,10 @@ import codemining.util.SettingsLoader;
 import codemining.util.parallel.ParallelThreadPool;
 
 import com.esotericsoftware.kryo.DefaultSerializer;
-import com.esotericsoftware.kryo.serializers.JavaSerializer;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
 import com.google.common.collect.ConcurrentHashMultiset;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multiset;
@@ -35,7 +40,7 @@ import com.google.common.collect.Multiset;
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  *
  */
-@DefaultSerializer(JavaSerializer.class)
+@DefaultSerializer(ContextFreeGrammar.KryoSerializer.class)
 public class ContextFreeGrammar extends AbstractContextFreeGrammar {
 
 	/**
@@ -82,6 +87,56 @@ public class ContextFreeGrammar extends AbstractContextFreeGrammar {
 	public static final int CLEAN_THRESHOLD = (int) SettingsLoader
 			.getNumericSetting("CleanCountThreshold", 1);
 
+	/**
+	 * A Kryo serializer that writes the tree extractor followed by the
+	 * productions of each root, as (consequent, count) pairs.
+	 */
+	public static final class KryoSerializer extends
+			Serializer<ContextFreeGrammar> {
+
+		@Override
+		public ContextFreeGrammar read(final Kryo kryo, final Input input,
+				final Class<ContextFreeGrammar> type) {
+			final ContextFreeGrammar cfg = new ContextFreeGrammar(
+					AbstractTreeExtractor.readWithKryo(kryo, input));
+			final int nRoots = input.readVarInt(true);
+			for (int i = 0; i < nRoots; i++) {
+				final int root = input.readVarInt(false);
+				final int nProductions = input.readVarInt(true);
+				final Multiset<NodeConsequent> productions = ConcurrentHashMultiset
+						.create();
+				for (int j = 0; j < nProductions; j++) {
+					final int[] consequent = input.readInts(
+							input.readVarInt(true), false);
+					productions.add(NodeConsequent.fromIntArray(consequent),
+							input.readVarInt(true));
+				}
+				cfg.grammar.put(root, productions);
+			}
+			return cfg;
+		}
+
+		@Override
+		public void write(final Kryo kryo, final Output output,
+				final ContextFreeGrammar cfg) {
+			AbstractTreeExtractor.writeWithKryo(kryo, output, cfg.treeExtractor);
+			output.writeVarInt(cfg.grammar.size(), true);
+			for (final Entry<Integer, Multiset<NodeConsequent>> production : cfg.grammar
+					.entrySet()) {
+				output.writeVarInt(production.getKey(), false);
+				final Set<Multiset.Entry<NodeConsequent>> rules = production
+						.getValue().entrySet();
+				output.writeVarInt(rules.size(), true);
+				for (final Multiset.Entry<NodeConsequent> rule : rules) {
+					final int[] consequent = rule.getElement().toIntArray();
+					output.writeVarInt(consequent.length, true);
+					output.writeInts(consequent, false);
+					output.writeVarInt(rule.getCount(), true);
+				}
+			}
+		}
+	}
+
 	private static final Logger LOGGER = Logger
 			.getLogger(ContextFreeGrammar.class.getName());
 
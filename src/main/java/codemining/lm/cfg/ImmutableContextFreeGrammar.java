@@ -5,34 +5,217 @@ package codemining.lm.cfg;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import codemining.ast.AbstractTreeExtractor;
 import codemining.ast.TreeNode;
 import codemining.lm.ILanguageModel;
 
 import com.esotericsoftware.kryo.DefaultSerializer;
-import com.esotericsoftware.kryo.serializers.JavaSerializer;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.collect.HashMultiset;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultiset;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multiset;
 
 /**
- * An immutable CFG.
+ * An immutable CFG. The rules are stored in primitive arrays, with the
+ * consequents encoded as int arrays (see NodeConsequent.toIntArray()) and
+ * interned to dense rule ids, so that looking up the probability of a rule
+ * does not need to box or hash nested lists.
  * 
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  * 
  */
-@DefaultSerializer(JavaSerializer.class)
+@DefaultSerializer(ImmutableContextFreeGrammar.KryoSerializer.class)
 public class ImmutableContextFreeGrammar extends AbstractContextFreeGrammar {
 
+	/**
+	 * A Kryo serializer that writes the tree extractor followed by the
+	 * (root, consequent, count) triples of the rules. The hash table is
+	 * rebuilt when reading.
+	 */
+	public static final class KryoSerializer extends
+			Serializer<ImmutableContextFreeGrammar> {
+
+		@Override
+		public ImmutableContextFreeGrammar read(final Kryo kryo,
+				final Input input,
+				final Class<ImmutableContextFreeGrammar> type) {
+			final AbstractTreeExtractor treeExtractor = AbstractTreeExtractor
+					.readWithKryo(kryo, input);
+			final int nRules = input.readVarInt(true);
+			final int[] ruleRoots = new int[nRules];
+			final int[][] ruleConsequents = new int[nRules][];
+			final int[] ruleCounts = new int[nRules];
+			for (int i = 0; i < nRules; i++) {
+				ruleRoots[i] = input.readVarInt(false);
+				ruleConsequents[i] = input.readInts(input.readVarInt(true),
+						false);
+				ruleCounts[i] = input.readVarInt(true);
+			}
+			return new ImmutableContextFreeGrammar(treeExtractor, ruleRoots,
+					ruleConsequents, ruleCounts);
+		}
+
+		@Override
+		public void write(final Kryo kryo, final Output output,
+				final ImmutableContextFreeGrammar cfg) {
+			AbstractTreeExtractor.writeWithKryo(kryo, output, cfg.treeExtractor);
+			output.writeVarInt(cfg.ruleRoots.length, true);
+			for (int i = 0; i < cfg.ruleRoots.length; i++) {
+				output.writeVarInt(cfg.ruleRoots[i], false);
+				output.writeVarInt(cfg.ruleConsequents[i].length, true);
+				output.writeInts(cfg.ruleConsequents[i], false);
+				output.writeVarInt(cfg.ruleCounts[i], true);
+			}
+		}
+	}
+
 	private static final long serialVersionUID = 8744879368299806736L;
 
+	private static int hashRule(final int root, final int[] encodedConsequent) {
+		int hash = root;
+		for (final int value : encodedConsequent) {
+			hash = 31 * hash + value;
+		}
+		return smear(hash);
+	}
+
+	/**
+	 * Return the same hash as hashRule(root, consequent.toIntArray()),
+	 * without encoding the consequent.
+	 */
+	private static int hashRule(final int root, final NodeConsequent consequent) {
+		int hash = root;
+		for (final List<Integer> children : consequent.nodes) {
+			hash = 31 * hash + children.size();
+			for (final int child : children) {
+				hash = 31 * hash + child;
+			}
+		}
+		return smear(hash);
+	}
+
+	/**
+	 * Return true if the encoded consequent is equal to the given one.
+	 */
+	private static boolean matches(final int[] encodedConsequent,
+			final NodeConsequent consequent) {
+		int pos = 0;
+		for (final List<Integer> children : consequent.nodes) {
+			final int nChildren = children.size();
+			if (pos + nChildren >= encodedConsequent.length
+					|| encodedConsequent[pos++] != nChildren) {
+				return false;
+			}
+			for (int i = 0; i < nChildren; i++) {
+				if (encodedConsequent[pos++] != children.get(i)) {
+					return false;
+				}
+			}
+		}
+		return pos == encodedConsequent.length;
+	}
+
+	private static int smear(final int hash) {
+		final int h = hash ^ (hash >>> 20) ^ (hash >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+
+	/**
+	 * The sorted root symbols and the total count of the rules of each.
+	 */
+	private final int[] roots;
+
+	private final int[] rootTotals;
+
+	/**
+	 * The rules, indexed by their id.
+	 */
+	private final int[] ruleRoots;
+
+	private final int[][] ruleConsequents;
+
+	private final int[] ruleCounts;
+
+	/**
+	 * An open addressing hash table of (rule id + 1), 0 marking empty slots.
+	 */
+	private final int[] ruleTable;
+
+	private transient volatile Map<Integer, Multiset<NodeConsequent>> grammarView;
+
 	public ImmutableContextFreeGrammar(final AbstractContextFreeGrammar original) {
 		super(original.treeExtractor, null);
-		grammar = getImmutableCopy(original.grammar);
+		final Map<Integer, Multiset<NodeConsequent>> originalGrammar = original
+				.getInternalGrammar();
+
+		int nRules = 0;
+		roots = new int[originalGrammar.size()];
+		int i = 0;
+		for (final Entry<Integer, Multiset<NodeConsequent>> production : originalGrammar
+				.entrySet()) {
+			roots[i++] = production.getKey();
+			nRules += production.getValue().entrySet().size();
+		}
+		Arrays.sort(roots);
+
+		rootTotals = new int[roots.length];
+		ruleRoots = new int[nRules];
+		ruleConsequents = new int[nRules][];
+		ruleCounts = new int[nRules];
+		ruleTable = new int[Math.max(2, Integer.highestOneBit(nRules) * 4)];
+
+		int ruleId = 0;
+		for (int rootIdx = 0; rootIdx < roots.length; rootIdx++) {
+			for (final Multiset.Entry<NodeConsequent> rule : originalGrammar
+					.get(roots[rootIdx]).entrySet()) {
+				ruleRoots[ruleId] = roots[rootIdx];
+				ruleConsequents[ruleId] = rule.getElement().toIntArray();
+				ruleCounts[ruleId] = rule.getCount();
+				rootTotals[rootIdx] += rule.getCount();
+				addToRuleTable(ruleId);
+				ruleId++;
+			}
+		}
+	}
+
+	/**
+	 * Create a grammar from its rules, as written by the KryoSerializer.
+	 */
+	private ImmutableContextFreeGrammar(
+			final AbstractTreeExtractor treeExtractor, final int[] ruleRoots,
+			final int[][] ruleConsequents, final int[] ruleCounts) {
+		super(treeExtractor, null);
+		this.ruleRoots = ruleRoots;
+		this.ruleConsequents = ruleConsequents;
+		this.ruleCounts = ruleCounts;
+
+		final int[] sortedRoots = ruleRoots.clone();
+		Arrays.sort(sortedRoots);
+		int nRoots = 0;
+		for (int i = 0; i < sortedRoots.length; i++) {
+			if (i == 0 || sortedRoots[i] != sortedRoots[i - 1]) {
+				sortedRoots[nRoots++] = sortedRoots[i];
+			}
+		}
+		roots = Arrays.copyOf(sortedRoots, nRoots);
+		rootTotals = new int[nRoots];
+		ruleTable = new int[Math.max(2,
+				Integer.highestOneBit(ruleRoots.length) * 4)];
+		for (int ruleId = 0; ruleId < ruleRoots.length; ruleId++) {
+			rootTotals[Arrays.binarySearch(roots, ruleRoots[ruleId])] += ruleCounts[ruleId];
+			addToRuleTable(ruleId);
+		}
 	}
 
 	@Override
@@ -50,18 +233,16 @@ public class ImmutableContextFreeGrammar extends AbstractContextFreeGrammar {
 		throw new IllegalArgumentException("Immutable CFG cannot be modified");
 	}
 
-	private Map<Integer, Multiset<NodeConsequent>> getImmutableCopy(
-			final Map<Integer, Multiset<NodeConsequent>> grammar) {
-		final Map<Integer, Multiset<NodeConsequent>> copyGrammar = Maps
-				.newHashMap();
-
-		for (final Entry<Integer, Multiset<NodeConsequent>> production : grammar
-				.entrySet()) {
-			copyGrammar.put(production.getKey(),
-					ImmutableMultiset.copyOf(production.getValue()));
+	/**
+	 * Add the (already stored) rule to the hash table.
+	 */
+	private void addToRuleTable(final int ruleId) {
+		final int mask = ruleTable.length - 1;
+		int slot = hashRule(ruleRoots[ruleId], ruleConsequents[ruleId]) & mask;
+		while (ruleTable[slot] != 0) {
+			slot = (slot + 1) & mask;
 		}
-
-		return ImmutableMap.copyOf(copyGrammar);
+		ruleTable[slot] = ruleId + 1;
 	}
 
 	@Override
@@ -69,6 +250,64 @@ public class ImmutableContextFreeGrammar extends AbstractContextFreeGrammar {
 		return this;
 	}
 
+	/**
+	 * Return an immutable map view of the grammar. The view is created on the
+	 * first call.
+	 */
+	@Override
+	public Map<Integer, Multiset<NodeConsequent>> getInternalGrammar() {
+		Map<Integer, Multiset<NodeConsequent>> view = grammarView;
+		if (view == null) {
+			final Map<Integer, Multiset<NodeConsequent>> copyGrammar = Maps
+					.newHashMap();
+			for (int ruleId = 0; ruleId < ruleRoots.length; ruleId++) {
+				Multiset<NodeConsequent> productions = copyGrammar
+						.get(ruleRoots[ruleId]);
+				if (productions == null) {
+					productions = HashMultiset.create();
+					copyGrammar.put(ruleRoots[ruleId], productions);
+				}
+				productions.add(
+						NodeConsequent.fromIntArray(ruleConsequents[ruleId]),
+						ruleCounts[ruleId]);
+			}
+			for (final Entry<Integer, Multiset<NodeConsequent>> production : copyGrammar
+					.entrySet()) {
+				production.setValue(ImmutableMultiset.copyOf(production
+						.getValue()));
+			}
+			view = ImmutableMap.copyOf(copyGrammar);
+			grammarView = view;
+		}
+		return view;
+	}
+
+	@Override
+	public double getMLProbability(final int from, final NodeConsequent to) {
+		final int rootIdx = Arrays.binarySearch(roots, from);
+		if (rootIdx < 0) {
+			return 1.;
+		}
+		return ((double) getRuleCount(from, to)) / rootTotals[rootIdx];
+	}
+
+	/**
+	 * Return the number of times the given rule was seen.
+	 */
+	private int getRuleCount(final int from, final NodeConsequent to) {
+		final int mask = ruleTable.length - 1;
+		int slot = hashRule(from, to) & mask;
+		while (ruleTable[slot] != 0) {
+			final int ruleId = ruleTable[slot] - 1;
+			if (ruleRoots[ruleId] == from
+					&& matches(ruleConsequents[ruleId], to)) {
+				return ruleCounts[ruleId];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return 0;
+	}
+
 	@Override
 	public void trainIncrementalModel(final Collection<File> files)
 			throws IOException {
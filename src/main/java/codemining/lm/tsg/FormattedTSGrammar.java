@@ -9,8 +9,9 @@ import java.util.Map.Entry;
 import java.util.function.Function;
 
 import com.esotericsoftware.kryo.DefaultSerializer;
-import com.esotericsoftware.kryo.serializers.JavaSerializer;
-import com.google.common.collect.ConcurrentHashMultiset;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
 import com.google.common.collect.Multiset;
 import com.google.common.collect.Multisets;
 
@@ -24,7 +25,7 @@ import codemining.ast.TreeNode;
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  *
  */
-@DefaultSerializer(JavaSerializer.class)
+@DefaultSerializer(FormattedTSGrammar.KryoSerializer.class)
 public class FormattedTSGrammar extends TSGrammar<TSGNode> {
 
 	/**
@@ -45,6 +46,27 @@ public class FormattedTSGrammar extends TSGrammar<TSGNode> {
 		}
 	}
 
+	/**
+	 * A Kryo serializer that writes the tree format before the rules.
+	 */
+	public static final class KryoSerializer extends
+			TSGrammar.KryoSerializer<FormattedTSGrammar> {
+
+		@Override
+		protected FormattedTSGrammar create(final Kryo kryo,
+				final Input input, final Class<FormattedTSGrammar> type) {
+			return new FormattedTSGrammar(AbstractTreeExtractor.readWithKryo(
+					kryo, input));
+		}
+
+		@Override
+		protected void writeHeader(final Kryo kryo, final Output output,
+				final FormattedTSGrammar grammar) {
+			AbstractTreeExtractor.writeWithKryo(kryo, output,
+					grammar.treeFormat);
+		}
+	}
+
 	private static final long serialVersionUID = 155850201795039891L;
 
 	protected final AbstractTreeExtractor treeFormat;
@@ -84,7 +106,7 @@ public class FormattedTSGrammar extends TSGrammar<TSGNode> {
 	@Override
 	public String toString() {
 		final StringBuffer buf = new StringBuffer();
-		for (final Entry<TSGNode, ConcurrentHashMultiset<TreeNode<TSGNode>>> rootEntry : grammar
+		for (final Entry<TSGNode, ? extends Multiset<TreeNode<TSGNode>>> rootEntry : getInternalGrammar()
 				.entrySet()) {
 			if (rootEntry.getValue().entrySet().isEmpty()) {
 				continue;
@@ -0,0 +1,260 @@
+package codemining.lm.tsg;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.List;
+
+import codemining.ast.TreeNode;
+
+/**
+ * Compute 64-bit structural fingerprints of trees and of the rooted fragments
+ * of TSG trees, without copying them.
+ *
+ * The fingerprint of the fragment rooted at a TSG node is equal to the
+ * fingerprint of the tree returned by TSGNode.getSubTreeFromRoot() for that
+ * node. Fingerprints may collide, so users should verify the matches (e.g.
+ * using matchesRootedFragment).
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class FragmentFingerprint {
+
+	private static final long SEED = 0x9E3779B97F4A7C15L;
+
+	private static final long CUT_MARKER = 0xC2B2AE3D27D4EB4FL;
+
+	/**
+	 * Reusable stacks, so that fingerprinting produces no garbage.
+	 */
+	private static final ThreadLocal<ArrayDeque<TreeNode<?>>> STACKS = new ThreadLocal<ArrayDeque<TreeNode<?>>>() {
+		@Override
+		protected ArrayDeque<TreeNode<?>> initialValue() {
+			return new ArrayDeque<TreeNode<?>>();
+		}
+	};
+
+	private static final ThreadLocal<ArrayDeque<TreeNode<?>>> OTHER_STACKS = new ThreadLocal<ArrayDeque<TreeNode<?>>>() {
+		@Override
+		protected ArrayDeque<TreeNode<?>> initialValue() {
+			return new ArrayDeque<TreeNode<?>>();
+		}
+	};
+
+	/**
+	 * Return true if the given (materialized) rule is equal to the fragment
+	 * rooted at topNode, i.e. to TSGNode.getSubTreeFromRoot(topNode).
+	 *
+	 * @param rule
+	 * @param topNode
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static boolean matchesRootedFragment(final TreeNode<TSGNode> rule,
+			final TreeNode<TSGNode> topNode) {
+		if (rule.getData() == null || rule.getData().nodeKey != topNode.getData().nodeKey
+				|| !rule.getData().isRoot) {
+			return false;
+		}
+		final ArrayDeque<TreeNode<?>> ruleStack = STACKS.get();
+		final ArrayDeque<TreeNode<?>> fragmentStack = OTHER_STACKS.get();
+		ruleStack.clear();
+		fragmentStack.clear();
+		ruleStack.push(rule);
+		fragmentStack.push(topNode);
+
+		try {
+			while (!ruleStack.isEmpty()) {
+				final TreeNode<TSGNode> ruleNode = (TreeNode<TSGNode>) ruleStack
+						.pop();
+				final TreeNode<TSGNode> fragmentNode = (TreeNode<TSGNode>) fragmentStack
+						.pop();
+				final List<List<TreeNode<TSGNode>>> ruleChildren = ruleNode
+						.getChildrenByProperty();
+				final List<List<TreeNode<TSGNode>>> fragmentChildren = fragmentNode
+						.getChildrenByProperty();
+				final int nProperties = ruleChildren.size();
+				if (nProperties != fragmentChildren.size()) {
+					return false;
+				}
+
+				for (int i = 0; i < nProperties; i++) {
+					final List<TreeNode<TSGNode>> ruleChildrenForProperty = ruleChildren
+							.get(i);
+					final List<TreeNode<TSGNode>> fragmentChildrenForProperty = fragmentChildren
+							.get(i);
+					final int nChildren = ruleChildrenForProperty.size();
+					if (nChildren != fragmentChildrenForProperty.size()) {
+						return false;
+					}
+					for (int j = 0; j < nChildren; j++) {
+						final TreeNode<TSGNode> ruleChild = ruleChildrenForProperty
+								.get(j);
+						final TreeNode<TSGNode> fragmentChild = fragmentChildrenForProperty
+								.get(j);
+						if (!ruleChild.getData().equals(fragmentChild.getData())) {
+							return false;
+						}
+						if (fragmentChild.getData().isRoot) {
+							// The boundary must not be expanded in the rule
+							if (!ruleChild.isLeaf()
+									|| ruleChild.nProperties() != fragmentChild
+											.nProperties()) {
+								return false;
+							}
+						} else {
+							ruleStack.push(ruleChild);
+							fragmentStack.push(fragmentChild);
+						}
+					}
+				}
+			}
+			return true;
+		} finally {
+			ruleStack.clear();
+			fragmentStack.clear();
+		}
+	}
+
+	/**
+	 * Return the fingerprint of the given tree.
+	 *
+	 * @param tree
+	 * @return
+	 */
+	public static <T extends Serializable> long of(final TreeNode<T> tree) {
+		final ArrayDeque<TreeNode<?>> stack = STACKS.get();
+		stack.clear();
+		stack.push(tree);
+
+		long fingerprint = SEED;
+		while (!stack.isEmpty()) {
+			final TreeNode<?> current = stack.pop();
+			final Object data = current.getData();
+			fingerprint = mix(fingerprint, data == null ? 0 : data.hashCode());
+			fingerprint = mixChildren(fingerprint, current, stack, true);
+		}
+		return fmix64(fingerprint);
+	}
+
+	/**
+	 * Return the fingerprint of the fragment rooted at topNode, stopping at
+	 * the children that are roots. topNode is always treated as a root,
+	 * regardless of its current root flag.
+	 *
+	 * @param topNode
+	 * @return
+	 */
+	public static long ofRootedFragment(final TreeNode<TSGNode> topNode) {
+		final ArrayDeque<TreeNode<?>> stack = STACKS.get();
+		stack.clear();
+
+		long fingerprint = mix(SEED,
+				TSGNode.hashCode(topNode.getData().nodeKey, true));
+		fingerprint = mixChildren(fingerprint, topNode, stack, true);
+		while (!stack.isEmpty()) {
+			final TreeNode<?> current = stack.pop();
+			final TSGNode data = (TSGNode) current.getData();
+			fingerprint = mix(fingerprint,
+					TSGNode.hashCode(data.nodeKey, data.isRoot));
+			fingerprint = mixChildren(fingerprint, current, stack,
+					!data.isRoot);
+		}
+		return fmix64(fingerprint);
+	}
+
+	/**
+	 * Return the fingerprint of the fragment rooted at topNode, treating
+	 * cutNode as a root, regardless of its current root flag. The position of
+	 * cutNode is part of the fingerprint, so that the same fragment cut at
+	 * different leaves has different fingerprints.
+	 *
+	 * @param topNode
+	 * @param cutNode
+	 *            a node in the fragment rooted at topNode (other than
+	 *            topNode)
+	 * @return
+	 */
+	public static long ofUpperFragment(final TreeNode<TSGNode> topNode,
+			final TreeNode<TSGNode> cutNode) {
+		final ArrayDeque<TreeNode<?>> stack = STACKS.get();
+		stack.clear();
+
+		long fingerprint = mix(SEED,
+				TSGNode.hashCode(topNode.getData().nodeKey, true));
+		fingerprint = mixChildren(fingerprint, topNode, stack, true);
+		while (!stack.isEmpty()) {
+			final TreeNode<?> current = stack.pop();
+			final TSGNode data = (TSGNode) current.getData();
+			if (current == cutNode) {
+				fingerprint = mix(fingerprint,
+						TSGNode.hashCode(data.nodeKey, true));
+				fingerprint = mix(fingerprint, CUT_MARKER);
+				fingerprint = mixChildren(fingerprint, current, stack, false);
+				continue;
+			}
+			fingerprint = mix(fingerprint,
+					TSGNode.hashCode(data.nodeKey, data.isRoot));
+			fingerprint = mixChildren(fingerprint, current, stack,
+					!data.isRoot);
+		}
+		return fmix64(fingerprint);
+	}
+
+	/**
+	 * The 64-bit finalizer of MurmurHash3.
+	 */
+	private static long fmix64(final long value) {
+		long k = value;
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	private static long mix(final long fingerprint, final long value) {
+		long h = (fingerprint ^ value) * SEED;
+		h ^= h >>> 29;
+		return h;
+	}
+
+	/**
+	 * Mix the structure of the children of the node and push them in the
+	 * stack (in reverse order, so that they are visited in pre-order). If
+	 * expand is false, the node is treated as if it had no children.
+	 */
+	private static long mixChildren(final long fingerprint,
+			final TreeNode<?> node, final ArrayDeque<TreeNode<?>> stack,
+			final boolean expand) {
+		final List<? extends List<? extends TreeNode<?>>> children = node
+				.getChildrenByProperty();
+		final int nProperties = children.size();
+		long h = mix(fingerprint, nProperties);
+		for (int i = 0; i < nProperties; i++) {
+			final List<? extends TreeNode<?>> childrenForProperty = children
+					.get(i);
+			if (!expand) {
+				h = mix(h, 0);
+				continue;
+			}
+			final int nChildren = childrenForProperty.size();
+			h = mix(h, nChildren);
+		}
+		if (expand) {
+			for (int i = nProperties - 1; i >= 0; i--) {
+				final List<? extends TreeNode<?>> childrenForProperty = children
+						.get(i);
+				for (int j = childrenForProperty.size() - 1; j >= 0; j--) {
+					stack.push(childrenForProperty.get(j));
+				}
+			}
+		}
+		return h;
+	}
+
+	private FragmentFingerprint() {
+		// No instantiations
+	}
+}
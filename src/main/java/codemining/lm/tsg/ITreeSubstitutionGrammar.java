@@ -9,6 +9,14 @@ import codemining.ast.TreeNode;
 public interface ITreeSubstitutionGrammar<T extends Serializable> extends
 		Serializable {
 
+	/**
+	 * Add the given occurrences of the rule with the given id.
+	 * 
+	 * @param ruleId
+	 * @param count
+	 */
+	public void addRule(int ruleId, int count);
+
 	/**
 	 * Add a single tree to the grammar.
 	 * 
@@ -40,6 +48,14 @@ public interface ITreeSubstitutionGrammar<T extends Serializable> extends
 	public double computeRulePosteriorLog2Probability(TreeNode<T> tree,
 			boolean remove);
 
+	/**
+	 * Return the number of occurrences of the rule with the given id.
+	 * 
+	 * @param ruleId
+	 * @return
+	 */
+	public int countRuleOccurences(int ruleId);
+
 	/**
 	 * Return the number of occurrences of the subtree given the root.
 	 * 
@@ -64,6 +80,33 @@ public interface ITreeSubstitutionGrammar<T extends Serializable> extends
 	 */
 	public TreeNode<T> generateRandom(TreeNode<T> root);
 
+	/**
+	 * Return the id of the given rule, assigning a new id if the rule has not
+	 * been seen before.
+	 * 
+	 * @param rule
+	 * @return
+	 */
+	public int getOrAddRuleId(TreeNode<T> rule);
+
+	/**
+	 * Return the rule with the given id.
+	 * 
+	 * @param ruleId
+	 * @return
+	 */
+	public TreeNode<T> getRule(int ruleId);
+
+	/**
+	 * Remove the given occurrences of the rule with the given id.
+	 * 
+	 * @param ruleId
+	 * @param occurences
+	 * @return the previous count minus the occurrences; negative if fewer
+	 *         occurrences were removed
+	 */
+	public int removeRule(int ruleId, int occurences);
+
 	/**
 	 * Remove a tree production.
 	 * 
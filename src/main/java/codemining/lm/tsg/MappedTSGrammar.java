@@ -0,0 +1,598 @@
+/**
+ *
+ */
+package codemining.lm.tsg;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import codemining.ast.AbstractTreeExtractor;
+import codemining.ast.TreeNode;
+import codemining.util.serialization.ISerializationStrategy.SerializationException;
+import codemining.util.serialization.Serializer;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Range;
+
+/**
+ * A read-only TSG backed by a memory-mapped file. Only the header of the file
+ * (the roots and the count and size of each rule) is read when opening the
+ * grammar. Rules are materialized as TreeNodes only when they are accessed,
+ * so opening a grammar is cheap and several processes can share the same
+ * (page-cached) file. Files larger than 2GB are mapped in several segments.
+ *
+ * The file contains (in big endian):
+ * <ul>
+ * <li>the magic number and the version of the format,</li>
+ * <li>the Java-serialized tree extractor, deserialized on first use,</li>
+ * <li>the roots, sorted by their node key, each with the range of the ids of
+ * its rules and the total count of the rules,</li>
+ * <li>the count, the tree size and the (long) offset of each rule. The rules
+ * of each root are sorted by descending count,</li>
+ * <li>the rules, written with the TreeNode.PreOrderCodec. The node keys, the
+ * root flags and the numbers of properties and children are written as
+ * unsigned varints of 7 bits per byte.</li>
+ * </ul>
+ *
+ * UNK rules and rules with zero count are not written.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public final class MappedTSGrammar {
+
+	/**
+	 * Reads consecutive varints of the file, starting at a given position.
+	 */
+	private final class VarIntReader {
+
+		private long position;
+
+		VarIntReader(final long position) {
+			this.position = position;
+		}
+
+		int next() {
+			int value = 0;
+			for (int shift = 0;; shift += 7) {
+				final byte b = getByte(position++);
+				value |= (b & 0x7F) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+		}
+	}
+
+	private static final int MAGIC = 0x54534731;
+
+	private static final int VERSION = 3;
+
+	private static final int ROOT_ENTRY_SIZE = 20;
+
+	private static final int RULE_ENTRY_SIZE = 16;
+
+	/**
+	 * The log2 of the size of the mapped segments of the file.
+	 */
+	private static final int SEGMENT_BITS = 30;
+
+	/**
+	 * Return the number of bytes of the encoding of the given rule.
+	 */
+	private static long encodedSize(final TreeNode<TSGNode> rule) {
+		final long[] size = { 0 };
+		TreeNode.PreOrderCodec.write(rule,
+				new TreeNode.PreOrderCodec.INodeOutput<TSGNode, RuntimeException>() {
+					@Override
+					public void writeCount(final int count) {
+						size[0] += varIntSize(count);
+					}
+
+					@Override
+					public void writeData(final TSGNode data) {
+						size[0] += varIntSize(data.nodeKey) + 1;
+					}
+				});
+		return size[0];
+	}
+
+	/**
+	 * Return true if the given file is a memory-mappable grammar.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isMappedGrammar(final File file) throws IOException {
+		if (file.length() < 8) {
+			return false;
+		}
+		try (final DataInputStream in = new DataInputStream(
+				new FileInputStream(file))) {
+			return in.readInt() == MAGIC;
+		}
+	}
+
+	/**
+	 * Convert a serialized FormattedTSGrammar to a memory-mappable grammar.
+	 *
+	 * @param args
+	 * @throws SerializationException
+	 * @throws IOException
+	 */
+	public static void main(final String[] args)
+			throws SerializationException, IOException {
+		if (args.length != 2) {
+			System.err.println("Usage <tsg.ser> <outputFile>");
+			System.exit(-1);
+		}
+		final FormattedTSGrammar grammar = (FormattedTSGrammar) Serializer
+				.getSerializer().deserializeFrom(args[0]);
+		write(grammar, new File(args[1]));
+	}
+
+	/**
+	 * Map the given grammar file to memory.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static MappedTSGrammar open(final File file) throws IOException {
+		return open(file, SEGMENT_BITS);
+	}
+
+	/**
+	 * Map the given grammar file to memory, in segments of 2^segmentBits
+	 * bytes.
+	 */
+	static MappedTSGrammar open(final File file, final int segmentBits)
+			throws IOException {
+		checkArgument(segmentBits > 0 && segmentBits <= SEGMENT_BITS);
+		try (final RandomAccessFile raf = new RandomAccessFile(file, "r");
+				final FileChannel channel = raf.getChannel()) {
+			final long segmentSize = 1L << segmentBits;
+			final int nSegments = (int) ((channel.size() + segmentSize - 1) >>> segmentBits);
+			final MappedByteBuffer[] segments = new MappedByteBuffer[nSegments];
+			for (int i = 0; i < nSegments; i++) {
+				final long start = i * segmentSize;
+				segments[i] = channel.map(MapMode.READ_ONLY, start,
+						Math.min(segmentSize, channel.size() - start));
+			}
+			return new MappedTSGrammar(segments, segmentBits);
+		}
+	}
+
+	/**
+	 * Return the number of bytes of the varint encoding of the given value.
+	 */
+	private static int varIntSize(final int value) {
+		int size = 1;
+		for (int rest = value >>> 7; rest != 0; rest >>>= 7) {
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Write the rules of the grammar (and its tree extractor) to the given
+	 * file, so that it can be opened as a MappedTSGrammar.
+	 *
+	 * @param grammar
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void write(final FormattedTSGrammar grammar, final File file)
+			throws IOException {
+		final ByteArrayOutputStream extractorBytes = new ByteArrayOutputStream();
+		try (final ObjectOutputStream out = new ObjectOutputStream(
+				extractorBytes)) {
+			out.writeObject(grammar.getTreeExtractor());
+		}
+
+		final List<TSGNode> roots = Lists.newArrayList();
+		final List<List<Multiset.Entry<TreeNode<TSGNode>>>> rulesPerRoot = Lists
+				.newArrayList();
+		int nRules = 0;
+		for (final Map.Entry<TSGNode, ? extends Multiset<TreeNode<TSGNode>>> rootEntry : grammar
+				.getInternalGrammar().entrySet()) {
+			final List<Multiset.Entry<TreeNode<TSGNode>>> rules = Lists
+					.newArrayList();
+			for (final Multiset.Entry<TreeNode<TSGNode>> rule : rootEntry
+					.getValue().entrySet()) {
+				if (rule.getElement().getData() != null && rule.getCount() > 0) {
+					rules.add(rule);
+				}
+			}
+			if (rules.isEmpty()) {
+				continue;
+			}
+			rules.sort(new Comparator<Multiset.Entry<TreeNode<TSGNode>>>() {
+				@Override
+				public int compare(final Multiset.Entry<TreeNode<TSGNode>> a,
+						final Multiset.Entry<TreeNode<TSGNode>> b) {
+					return Integer.compare(b.getCount(), a.getCount());
+				}
+			});
+			roots.add(rootEntry.getKey());
+			rulesPerRoot.add(rules);
+			nRules += rules.size();
+		}
+
+		// Sort the roots by their node key, so that they can be searched.
+		final Integer[] rootOrder = new Integer[roots.size()];
+		for (int i = 0; i < rootOrder.length; i++) {
+			rootOrder[i] = i;
+		}
+		Arrays.sort(rootOrder, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer a, final Integer b) {
+				return Integer.compare(roots.get(a).nodeKey,
+						roots.get(b).nodeKey);
+			}
+		});
+		for (int i = 1; i < rootOrder.length; i++) {
+			checkArgument(roots.get(rootOrder[i - 1]).nodeKey != roots
+					.get(rootOrder[i]).nodeKey,
+					"Grammar contains more than one root with the same key");
+		}
+
+		try (final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(extractorBytes.size());
+			extractorBytes.writeTo(out);
+
+			out.writeInt(roots.size());
+			int firstRule = 0;
+			for (final int root : rootOrder) {
+				long totalCount = 0;
+				for (final Multiset.Entry<TreeNode<TSGNode>> rule : rulesPerRoot
+						.get(root)) {
+					totalCount += rule.getCount();
+				}
+				out.writeInt(roots.get(root).nodeKey);
+				out.writeInt(firstRule);
+				out.writeInt(rulesPerRoot.get(root).size());
+				out.writeLong(totalCount);
+				firstRule += rulesPerRoot.get(root).size();
+			}
+
+			out.writeInt(nRules);
+			long offset = out.size() + ((long) RULE_ENTRY_SIZE) * nRules;
+			for (final int root : rootOrder) {
+				for (final Multiset.Entry<TreeNode<TSGNode>> rule : rulesPerRoot
+						.get(root)) {
+					out.writeInt(rule.getCount());
+					out.writeInt(rule.getElement().getTreeSize());
+					out.writeLong(offset);
+					offset += encodedSize(rule.getElement());
+				}
+			}
+
+			for (final int root : rootOrder) {
+				for (final Multiset.Entry<TreeNode<TSGNode>> rule : rulesPerRoot
+						.get(root)) {
+					writeRule(out, rule.getElement());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the rule with the TreeNode.PreOrderCodec.
+	 */
+	private static void writeRule(final DataOutputStream out,
+			final TreeNode<TSGNode> rule) throws IOException {
+		TreeNode.PreOrderCodec.write(rule,
+				new TreeNode.PreOrderCodec.INodeOutput<TSGNode, IOException>() {
+					@Override
+					public void writeCount(final int count) throws IOException {
+						writeVarInt(out, count);
+					}
+
+					@Override
+					public void writeData(final TSGNode data)
+							throws IOException {
+						writeVarInt(out, data.nodeKey);
+						writeVarInt(out, data.isRoot ? 1 : 0);
+					}
+				});
+	}
+
+	/**
+	 * Write the given value as an unsigned varint of 7 bits per byte.
+	 */
+	private static void writeVarInt(final DataOutputStream out, final int value)
+			throws IOException {
+		int rest = value;
+		while ((rest & ~0x7F) != 0) {
+			out.writeByte(rest & 0x7F | 0x80);
+			rest >>>= 7;
+		}
+		out.writeByte(rest);
+	}
+
+	/**
+	 * The mapped segments of the file, each of 2^segmentBits bytes (except
+	 * the last). Only absolute reads are used, so that the buffers can be
+	 * shared by all threads.
+	 */
+	private final MappedByteBuffer[] segments;
+
+	private final int segmentBits;
+
+	private final long segmentMask;
+
+	private final long extractorOffset;
+
+	private final int extractorLength;
+
+	private final int nRoots;
+
+	private final long rootsOffset;
+
+	private final int nRules;
+
+	private final long rulesOffset;
+
+	private volatile AbstractTreeExtractor treeExtractor;
+
+	private MappedTSGrammar(final MappedByteBuffer[] segments,
+			final int segmentBits) {
+		this.segments = segments;
+		this.segmentBits = segmentBits;
+		segmentMask = (1L << segmentBits) - 1;
+		checkArgument(getInt(0) == MAGIC, "Not a mapped TSG file");
+		checkArgument(getInt(4) == VERSION,
+				"Unsupported mapped TSG version %s", getInt(4));
+		extractorLength = getInt(8);
+		extractorOffset = 12;
+		nRoots = getInt(extractorOffset + extractorLength);
+		rootsOffset = extractorOffset + extractorLength + 4;
+		nRules = getInt(rootsOffset + ((long) nRoots) * ROOT_ENTRY_SIZE);
+		rulesOffset = rootsOffset + ((long) nRoots) * ROOT_ENTRY_SIZE + 4;
+	}
+
+	/**
+	 * Return the number of occurrences of the rule with the given id.
+	 *
+	 * @param ruleId
+	 * @return
+	 */
+	public int countRuleOccurences(final int ruleId) {
+		checkElementIndex(ruleId, nRules);
+		return getInt(getRuleEntryOffset(ruleId));
+	}
+
+	/**
+	 * Return the total count of the rules with the given root node key.
+	 *
+	 * @param rootKey
+	 * @return
+	 */
+	public long countTreesWithRoot(final int rootKey) {
+		final int rootIdx = findRoot(rootKey);
+		if (rootIdx < 0) {
+			return 0;
+		}
+		return getLong(getRootEntryOffset(rootIdx) + 12);
+	}
+
+	/**
+	 * Binary search the root with the given key. Return its index or -1.
+	 */
+	private int findRoot(final int rootKey) {
+		int low = 0;
+		int high = nRoots - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			final int midKey = getRootKey(mid);
+			if (midKey < rootKey) {
+				low = mid + 1;
+			} else if (midKey > rootKey) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	private byte getByte(final long position) {
+		return segments[(int) (position >>> segmentBits)]
+				.get((int) (position & segmentMask));
+	}
+
+	/**
+	 * Return the int at the given position, which may span two segments.
+	 */
+	private int getInt(final long position) {
+		final MappedByteBuffer segment = segments[(int) (position >>> segmentBits)];
+		final int index = (int) (position & segmentMask);
+		if (index + 4 <= segment.limit()) {
+			return segment.getInt(index);
+		}
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			value = value << 8 | getByte(position + i) & 0xFF;
+		}
+		return value;
+	}
+
+	/**
+	 * Return the long at the given position, which may span two segments.
+	 */
+	private long getLong(final long position) {
+		final MappedByteBuffer segment = segments[(int) (position >>> segmentBits)];
+		final int index = (int) (position & segmentMask);
+		if (index + 8 <= segment.limit()) {
+			return segment.getLong(index);
+		}
+		return ((long) getInt(position)) << 32 | getInt(position + 4)
+				& 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Return the number of rules in the grammar.
+	 *
+	 * @return
+	 */
+	public int getNumberOfRules() {
+		return nRules;
+	}
+
+	/**
+	 * Return the number of roots in the grammar.
+	 *
+	 * @return
+	 */
+	public int getNumberOfRoots() {
+		return nRoots;
+	}
+
+	/**
+	 * Materialize the rule with the given id.
+	 *
+	 * @param ruleId
+	 * @return
+	 */
+	public TreeNode<TSGNode> getRule(final int ruleId) {
+		checkElementIndex(ruleId, nRules);
+		final VarIntReader reader = new VarIntReader(
+				getLong(getRuleEntryOffset(ruleId) + 8));
+		return TreeNode.PreOrderCodec.read(
+				new TreeNode.PreOrderCodec.INodeInput<TSGNode, RuntimeException>() {
+					@Override
+					public int readCount() {
+						return reader.next();
+					}
+
+					@Override
+					public TSGNode readData() {
+						final TSGNode data = new TSGNode(reader.next());
+						data.isRoot = reader.next() != 0;
+						return data;
+					}
+				}, true);
+	}
+
+	/**
+	 * Return the range of the ids of the rules with the given root node key.
+	 * The rules in the range are sorted by descending count.
+	 *
+	 * @param rootKey
+	 * @return
+	 */
+	public Range<Integer> getRuleIdsWithRoot(final int rootKey) {
+		final int rootIdx = findRoot(rootKey);
+		if (rootIdx < 0) {
+			return Range.closedOpen(0, 0);
+		}
+		final int firstRule = getInt(getRootEntryOffset(rootIdx) + 4);
+		final int nRootRules = getInt(getRootEntryOffset(rootIdx) + 8);
+		return Range.closedOpen(firstRule, firstRule + nRootRules);
+	}
+
+	/**
+	 * Return the range of the ids of the rules of the i-th root.
+	 *
+	 * @param rootIdx
+	 * @return
+	 */
+	public Range<Integer> getRuleIdsOfRoot(final int rootIdx) {
+		checkElementIndex(rootIdx, nRoots);
+		return getRuleIdsWithRoot(getRootKey(rootIdx));
+	}
+
+	/**
+	 * Return the number of nodes of the rule with the given id.
+	 *
+	 * @param ruleId
+	 * @return
+	 */
+	public int getRuleTreeSize(final int ruleId) {
+		checkElementIndex(ruleId, nRules);
+		return getInt(getRuleEntryOffset(ruleId) + 4);
+	}
+
+	/**
+	 * Return the node key of the i-th root. Roots are sorted by their key.
+	 *
+	 * @param rootIdx
+	 * @return
+	 */
+	public int getRootKey(final int rootIdx) {
+		checkElementIndex(rootIdx, nRoots);
+		return getInt(getRootEntryOffset(rootIdx));
+	}
+
+	private long getRootEntryOffset(final int rootIdx) {
+		return rootsOffset + ((long) rootIdx) * ROOT_ENTRY_SIZE;
+	}
+
+	private long getRuleEntryOffset(final int ruleId) {
+		return rulesOffset + ((long) ruleId) * RULE_ENTRY_SIZE;
+	}
+
+	/**
+	 * Return the tree extractor of the grammar, deserializing it on first
+	 * use.
+	 *
+	 * @return
+	 */
+	public AbstractTreeExtractor getTreeExtractor() {
+		AbstractTreeExtractor extractor = treeExtractor;
+		if (extractor == null) {
+			synchronized (this) {
+				extractor = treeExtractor;
+				if (extractor == null) {
+					extractor = readTreeExtractor();
+					treeExtractor = extractor;
+				}
+			}
+		}
+		return extractor;
+	}
+
+	private AbstractTreeExtractor readTreeExtractor() {
+		final byte[] bytes = new byte[extractorLength];
+		for (int i = 0; i < extractorLength; i++) {
+			bytes[i] = getByte(extractorOffset + i);
+		}
+		try (final ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(bytes))) {
+			return (AbstractTreeExtractor) in.readObject();
+		} catch (final IOException | ClassNotFoundException e) {
+			throw new IllegalStateException(
+					"Failed to read the tree extractor: "
+							+ ExceptionUtils.getFullStackTrace(e));
+		}
+	}
+
+}
@@ -35,6 +35,11 @@ public class SequentialTSGrammar extends FormattedTSGrammar {
 		baseGrammar = base;
 	}
 
+	@Override
+	public void addRule(final int ruleId, final int count) {
+		baseGrammar.addRule(ruleId, count);
+	}
+
 	@Override
 	public void addTree(final TreeNode<TSGNode> root) {
 		for (final TreeNode<TSGNode> tree : convertTreeNode(root, true)) {
@@ -135,6 +140,11 @@ public class SequentialTSGrammar extends FormattedTSGrammar {
 		return convertedTrees;
 	}
 
+	@Override
+	public int countRuleOccurences(final int ruleId) {
+		return baseGrammar.countRuleOccurences(ruleId);
+	}
+
 	@Override
 	public int countTreeOccurences(final TreeNode<TSGNode> root) {
 		// Assumes that the whole tree is in the grammar (i.e. no multinode
@@ -180,6 +190,32 @@ public class SequentialTSGrammar extends FormattedTSGrammar {
 		return baseGrammar.getInternalGrammar();
 	}
 
+	@Override
+	public int getOrAddRuleId(final TreeNode<TSGNode> rule) {
+		// As in countTreeOccurences, assumes no multinode conversion.
+		return baseGrammar.getOrAddRuleId(rule);
+	}
+
+	@Override
+	public int getNumberOfRules() {
+		return baseGrammar.getNumberOfRules();
+	}
+
+	@Override
+	public TreeNode<TSGNode> getRule(final int ruleId) {
+		return baseGrammar.getRule(ruleId);
+	}
+
+	@Override
+	public int getRuleId(final TreeNode<TSGNode> rule) {
+		return baseGrammar.getRuleId(rule);
+	}
+
+	@Override
+	public int getRuleIdsVersion() {
+		return baseGrammar.getRuleIdsVersion();
+	}
+
 	/**
 	 * Return a multinode for a given range.
 	 * 
@@ -267,6 +303,16 @@ public class SequentialTSGrammar extends FormattedTSGrammar {
 		baseGrammar.prune(threshold);
 	}
 
+	@Override
+	public int releaseUnusedRules() {
+		return baseGrammar.releaseUnusedRules();
+	}
+
+	@Override
+	public int removeRule(final int ruleId, final int occurences) {
+		return baseGrammar.removeRule(ruleId, occurences);
+	}
+
 	@Override
 	public boolean removeTree(final TreeNode<TSGNode> root) {
 		boolean result = true;
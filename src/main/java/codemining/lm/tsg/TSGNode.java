@@ -10,8 +10,10 @@ import java.util.Map;
 import org.apache.commons.lang.math.RandomUtils;
 
 import com.esotericsoftware.kryo.DefaultSerializer;
-import com.esotericsoftware.kryo.serializers.JavaSerializer;
-import com.google.common.base.Objects;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
@@ -24,7 +26,7 @@ import codemining.ast.TreeNode;
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  * 
  */
-@DefaultSerializer(JavaSerializer.class)
+@DefaultSerializer(TSGNode.KryoSerializer.class)
 public class TSGNode implements Serializable {
 
 	/**
@@ -42,6 +44,27 @@ public class TSGNode implements Serializable {
 		}
 	}
 
+	/**
+	 * A Kryo serializer that writes only the node key and the root flag.
+	 */
+	public static final class KryoSerializer extends Serializer<TSGNode> {
+
+		@Override
+		public TSGNode read(final Kryo kryo, final Input input,
+				final Class<TSGNode> type) {
+			final TSGNode node = new TSGNode(input.readVarInt(false));
+			node.isRoot = input.readBoolean();
+			return node;
+		}
+
+		@Override
+		public void write(final Kryo kryo, final Output output,
+				final TSGNode node) {
+			output.writeVarInt(node.nodeKey, false);
+			output.writeBoolean(node.isRoot);
+		}
+	}
+
 	private static final long serialVersionUID = -6314484338435759026L;
 
 	/**
@@ -326,6 +349,19 @@ public class TSGNode implements Serializable {
 		return true;
 	}
 
+	/**
+	 * Return the hash code of a TSGNode with the given key and root status,
+	 * without creating one.
+	 * 
+	 * @param nodeKey
+	 * @param isRoot
+	 * @return
+	 */
+	public static int hashCode(final int nodeKey, final boolean isRoot) {
+		// Same as Objects.hashCode(nodeKey, isRoot), without boxing
+		return 31 * (31 + nodeKey) + (isRoot ? 1231 : 1237);
+	}
+
 	/**
 	 * Wrap TreeNode<TSGNode> trees in TreeNode<Integer> trees.
 	 * 
@@ -344,6 +380,13 @@ public class TSGNode implements Serializable {
 
 	public final int nodeKey;
 
+	/**
+	 * The dense id of this node in the corpus index that contains it (see
+	 * NodeTypeInformation) or -1 if it is not part of a corpus. The id is not
+	 * copied and it does not take part in equality.
+	 */
+	public int corpusId = -1;
+
 	public TSGNode(final int key) {
 		nodeKey = key;
 		isRoot = false;
@@ -363,12 +406,12 @@ public class TSGNode implements Serializable {
 			return false;
 		}
 		final TSGNode other = (TSGNode) obj;
-		return other.isRoot == isRoot && Objects.equal(nodeKey, other.nodeKey);
+		return other.isRoot == isRoot && nodeKey == other.nodeKey;
 	}
 
 	@Override
 	public int hashCode() {
-		return Objects.hashCode(nodeKey, isRoot);
+		return hashCode(nodeKey, isRoot);
 	}
 
 	@Override
@@ -4,16 +4,29 @@
 package codemining.lm.tsg;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayDeque;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.commons.lang.NotImplementedException;
 
@@ -22,40 +35,594 @@ import codemining.ast.TreeNode;
 import codemining.math.random.SampleUtils;
 import codemining.util.parallel.ParallelThreadPool;
 
-import com.google.common.collect.ConcurrentHashMultiset;
-import com.google.common.collect.Lists;
+import com.esotericsoftware.kryo.DefaultSerializer;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ForwardingMultiset;
+import com.google.common.collect.ImmutableMultiset;
 import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
 import com.google.common.collect.SortedMultiset;
 import com.google.common.collect.TreeMultiset;
+import com.google.common.primitives.Ints;
 
 /**
  * A thread safe tree substitution grammar with nodes of data-type T.
  *
+ * Each distinct rule is interned once and gets a dense integer id. The counts
+ * of the rules and the total counts of the rule roots are then kept in
+ * primitive arrays, so that all the operations on rule ids are O(1). The
+ * aggregate statistics of the grammar (e.g. the distribution of the rule
+ * sizes) are maintained as the counts change, so that they are also O(1).
+ *
+ * The rules whose count has dropped to zero are kept until
+ * releaseUnusedRules() is called, which frees their ids for new rules.
+ *
+ * Workers may also sample against the grammar with their own CountDelta (see
+ * runWithDelta()). They then see the counts of the grammar plus their own
+ * changes, which are merged in the grammar only when applyDelta() is called.
+ *
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  *
  */
+@DefaultSerializer(TSGrammar.KryoSerializer.class)
 public class TSGrammar<T extends Serializable> implements
 ITreeSubstitutionGrammar<T> {
 
-	private static final long serialVersionUID = 3178243087484789075L;
+	/**
+	 * The changes of the rule counts made by a single worker, kept apart from
+	 * the counts of the grammar until they are applied. This is not thread
+	 * safe, since it is used by a single worker at a time.
+	 */
+	public static final class CountDelta {
+
+		private final TSGrammar<?> grammar;
+
+		/**
+		 * An open addressing table of rule id + 1 (0 for the empty slots) to
+		 * the change of the count of the rule.
+		 */
+		private int[] ruleIds = new int[16];
+
+		private int[] changes = new int[16];
+
+		private int nRules = 0;
+
+		private final IdentityHashMap<RootRules, int[]> rootChanges = new IdentityHashMap<RootRules, int[]>();
+
+		private CountDelta(final TSGrammar<?> grammar) {
+			this.grammar = grammar;
+		}
+
+		private void add(final int ruleId, final RootRules root,
+				final int change) {
+			if (2 * (nRules + 1) > ruleIds.length) {
+				rehash(2 * ruleIds.length);
+			}
+			final int slot = findSlot(ruleId);
+			if (ruleIds[slot] == 0) {
+				ruleIds[slot] = ruleId + 1;
+				nRules++;
+			}
+			changes[slot] += change;
+
+			int[] rootChange = rootChanges.get(root);
+			if (rootChange == null) {
+				rootChange = new int[1];
+				rootChanges.put(root, rootChange);
+			}
+			rootChange[0] += change;
+		}
+
+		private void clear() {
+			Arrays.fill(ruleIds, 0);
+			Arrays.fill(changes, 0);
+			nRules = 0;
+			rootChanges.clear();
+		}
+
+		/**
+		 * Return the slot of the given rule or the empty slot where it
+		 * should be added.
+		 */
+		private int findSlot(final int ruleId) {
+			final int mask = ruleIds.length - 1;
+			final int hash = ruleId * 0x9E3779B9;
+			int slot = (hash ^ (hash >>> 16)) & mask;
+			while (ruleIds[slot] != 0 && ruleIds[slot] != ruleId + 1) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		private int get(final int ruleId) {
+			return changes[findSlot(ruleId)];
+		}
+
+		private int getRootChange(final RootRules root) {
+			final int[] rootChange = rootChanges.get(root);
+			return rootChange == null ? 0 : rootChange[0];
+		}
+
+		/**
+		 * Return true if no rule count has been changed.
+		 */
+		public boolean isEmpty() {
+			return nRules == 0;
+		}
+
+		private void rehash(final int capacity) {
+			final int[] oldIds = ruleIds;
+			final int[] oldChanges = changes;
+			ruleIds = new int[capacity];
+			changes = new int[capacity];
+			for (int i = 0; i < oldIds.length; i++) {
+				if (oldIds[i] != 0) {
+					final int slot = findSlot(oldIds[i] - 1);
+					ruleIds[slot] = oldIds[i];
+					changes[slot] = oldChanges[i];
+				}
+			}
+		}
+	}
 
 	/**
-	 * A Map from a tree root to a multiset of productions.
+	 * A Kryo serializer that writes the rules with a positive count as a
+	 * stream of (rule, count) pairs, followed by the posterior computer. The
+	 * rule ids are reassigned when reading. Subclasses write their own state
+	 * in writeHeader() and read it back in create().
 	 */
-	protected final ConcurrentMap<T, ConcurrentHashMultiset<TreeNode<T>>> grammar;
+	public static class KryoSerializer<G extends TSGrammar<?>> extends
+			Serializer<G> {
+
+		/**
+		 * Create an empty grammar, reading any state written by
+		 * writeHeader().
+		 */
+		protected G create(final Kryo kryo, final Input input,
+				final Class<G> type) {
+			return kryo.newInstance(type);
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		@Override
+		public G read(final Kryo kryo, final Input input, final Class<G> type) {
+			final G grammar = create(kryo, input, type);
+			// The posterior computer may refer back to the grammar
+			kryo.reference(grammar);
+			final TSGrammar<?> tsg = grammar;
+			tsg.readRules(kryo, input);
+			tsg.posteriorComputer = (ITsgPosteriorProbabilityComputer) kryo
+					.readClassAndObject(input);
+			return grammar;
+		}
+
+		@Override
+		public void write(final Kryo kryo, final Output output,
+				final G grammar) {
+			writeHeader(kryo, output, grammar);
+			final TSGrammar<?> tsg = grammar;
+			tsg.writeRules(kryo, output);
+			kryo.writeClassAndObject(output, tsg.posteriorComputer);
+		}
+
+		/**
+		 * Write the state needed to create the grammar.
+		 */
+		protected void writeHeader(final Kryo kryo, final Output output,
+				final G grammar) {
+			// Nothing to write for a plain grammar
+		}
+	}
+
+	/**
+	 * The rules of a single root and their total count.
+	 */
+	private static final class RootRules {
+		final AtomicInteger total = new AtomicInteger();
+
+		/**
+		 * The number of rules of this root with a positive count.
+		 */
+		final AtomicInteger nDistinct = new AtomicInteger();
+
+		/**
+		 * The ids of the rules of this root. Appended only when holding the
+		 * lock of the grammar.
+		 */
+		volatile int[] ruleIds = new int[2];
+
+		volatile int nRuleIds = 0;
+
+		/**
+		 * The number of times the counts of the rules of this root have
+		 * changed, so that snapshots of them can tell when they are stale.
+		 */
+		final AtomicInteger nChanges = new AtomicInteger();
+
+		/**
+		 * The last snapshot of the rules of this root, if any.
+		 */
+		volatile RulesSnapshot snapshot = null;
+
+		void addRuleId(final int ruleId) {
+			final int n = nRuleIds;
+			if (n == ruleIds.length) {
+				ruleIds = Arrays.copyOf(ruleIds, 2 * n);
+			}
+			ruleIds[n] = ruleId;
+			nRuleIds = n + 1;
+		}
+	}
+
+	/**
+	 * A multiset of the rules of a root, taken after their counts had changed
+	 * nChanges times.
+	 */
+	private static final class RulesSnapshot {
+		final int nChanges;
+
+		final ImmutableMultiset<?> rules;
+
+		RulesSnapshot(final int nChanges, final ImmutableMultiset<?> rules) {
+			this.nChanges = nChanges;
+			this.rules = rules;
+		}
+	}
+
+	/**
+	 * A fixed-size block of the interned rules and their counts.
+	 */
+	private static final class RuleChunk<T extends Serializable> {
+		final TreeNode<T>[] rules;
+
+		/**
+		 * The root of each rule. This is the data of the rule's root, except
+		 * for the UNK rules that are added when pruning.
+		 */
+		final T[] roots;
+
+		final RootRules[] rootRules;
+
+		/**
+		 * The tree size of each rule.
+		 */
+		final int[] sizes = new int[CHUNK_SIZE];
+
+		final AtomicIntegerArray counts = new AtomicIntegerArray(CHUNK_SIZE);
+
+		/**
+		 * Non-zero for the rules whose count has changed since the last
+		 * accumulated sample.
+		 */
+		final AtomicIntegerArray changedSinceSample = new AtomicIntegerArray(
+				CHUNK_SIZE);
+
+		@SuppressWarnings("unchecked")
+		RuleChunk() {
+			rules = new TreeNode[CHUNK_SIZE];
+			roots = (T[]) new Serializable[CHUNK_SIZE];
+			rootRules = new RootRules[CHUNK_SIZE];
+		}
+	}
+
+	/**
+	 * The running sums of the rule counts across the accumulated samples.
+	 * The count of each rule has been constant since the sample it was last
+	 * settled at, so that accumulating a sample needs to touch only the rules
+	 * that changed since the previous one. The arrays are chunked as the rules
+	 * and are only accessed between updates of the grammar.
+	 */
+	private static final class SampleSums {
+		/**
+		 * The number of accumulated samples.
+		 */
+		int nSamples = 0;
+
+		/**
+		 * The sum of the counts of each rule up to its settled sample.
+		 */
+		long[][] sums = new long[0][];
+
+		/**
+		 * The count of each rule since its settled sample.
+		 */
+		int[][] counts = new int[0][];
+
+		int[][] settledAt = new int[0][];
+
+		/**
+		 * The ids of the rules that have been marked in changedSinceSample.
+		 */
+		final ConcurrentLinkedQueue<Integer> changedRules = new ConcurrentLinkedQueue<Integer>();
+
+		void ensureCapacity(final int nChunks) {
+			final int n = sums.length;
+			if (n >= nChunks) {
+				return;
+			}
+			sums = Arrays.copyOf(sums, nChunks);
+			counts = Arrays.copyOf(counts, nChunks);
+			settledAt = Arrays.copyOf(settledAt, nChunks);
+			for (int i = n; i < nChunks; i++) {
+				sums[i] = new long[CHUNK_SIZE];
+				counts[i] = new int[CHUNK_SIZE];
+				settledAt[i] = new int[CHUNK_SIZE];
+			}
+		}
+
+		/**
+		 * Return the sum of the counts of the given rule across all
+		 * accumulated samples.
+		 */
+		long sumOf(final int ruleId) {
+			final int chunkIdx = ruleId >>> CHUNK_BITS;
+			final int idx = ruleId & CHUNK_MASK;
+			return sums[chunkIdx][idx] + ((long) counts[chunkIdx][idx])
+					* (nSamples - settledAt[chunkIdx][idx]);
+		}
+	}
+
+	/**
+	 * A live, read-only multiset view of the rules of a single root.
+	 */
+	private final class RulesOfRoot extends ForwardingMultiset<TreeNode<T>> {
+		private final T root;
+		private final RootRules rules;
+
+		RulesOfRoot(final T root, final RootRules rules) {
+			this.root = root;
+			this.rules = rules;
+		}
+
+		@Override
+		public int count(final Object element) {
+			if (!(element instanceof TreeNode)) {
+				return 0;
+			}
+			final Integer ruleId = element == UNK_NODE ? unkRuleIds.get(root)
+					: ruleIds.get(element);
+			if (ruleId == null
+					|| ruleChunks[ruleId >>> CHUNK_BITS].rootRules[ruleId
+							& CHUNK_MASK] != rules) {
+				return 0;
+			}
+			return countRuleOccurences(ruleId);
+		}
+
+		/**
+		 * Return a snapshot of the rules, which is shared until their counts
+		 * change. The snapshots of workers (see runWithDelta()) include their
+		 * own changes and are never shared.
+		 */
+		@SuppressWarnings("unchecked")
+		@Override
+		protected Multiset<TreeNode<T>> delegate() {
+			final boolean isShared = getWorkerDelta() == null;
+			final int nChanges = rules.nChanges.get();
+			final RulesSnapshot cached = rules.snapshot;
+			if (isShared && cached != null && cached.nChanges == nChanges) {
+				return (Multiset<TreeNode<T>>) cached.rules;
+			}
+
+			final ImmutableMultiset.Builder<TreeNode<T>> builder = ImmutableMultiset
+					.builder();
+			final int n = rules.nRuleIds;
+			final int[] ids = rules.ruleIds;
+			for (int i = 0; i < n; i++) {
+				final int count = countRuleOccurences(ids[i]);
+				if (count > 0) {
+					builder.addCopies(getRule(ids[i]), count);
+				}
+			}
+			final ImmutableMultiset<TreeNode<T>> snapshot = builder.build();
+			if (isShared) {
+				// Any change since nChanges was read makes this stale
+				rules.snapshot = new RulesSnapshot(nChanges, snapshot);
+			}
+			return snapshot;
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return size() == 0;
+		}
+
+		@Override
+		public int size() {
+			return rules.total.get();
+		}
+	}
+
+	private static final long serialVersionUID = -7839227819230658931L;
+
+	private static final int CHUNK_BITS = 12;
+
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private static final int SIZE_SEGMENT_BITS = 6;
+
+	private static final int SIZE_SEGMENT_SIZE = 1 << SIZE_SEGMENT_BITS;
+
+	private static final int SIZE_SEGMENT_MASK = SIZE_SEGMENT_SIZE - 1;
+
+	/**
+	 * The delta of the worker running on each thread, if any.
+	 */
+	private static final ThreadLocal<CountDelta> WORKER_DELTA = new ThreadLocal<CountDelta>();
+
+	/**
+	 * The id of each interned rule.
+	 */
+	private transient ConcurrentMap<TreeNode<T>, Integer> ruleIds;
+
+	/**
+	 * The ids of the UNK rules of each root.
+	 */
+	private transient ConcurrentMap<T, Integer> unkRuleIds;
+
+	/**
+	 * The rules of each root.
+	 */
+	private transient ConcurrentMap<T, RootRules> rootRules;
+
+	private transient volatile RuleChunk<T>[] ruleChunks;
+
+	/**
+	 * The number of rule ids in use, including the released ones. Written
+	 * only when holding the lock of this object.
+	 */
+	private transient volatile int nRules;
+
+	/**
+	 * The released rule ids, to be reused before any new ones. Accessed only
+	 * when holding the lock of this object.
+	 */
+	private transient int[] freeRuleIds;
+
+	private transient int nFreeRuleIds;
+
+	/**
+	 * Incremented whenever a rule id is assigned or released. Written only
+	 * when holding the lock of this object.
+	 */
+	private transient volatile int ruleIdsVersion;
+
+	/**
+	 * The total size of the interned rules. Written only when holding the
+	 * lock of this object.
+	 */
+	private transient volatile long internedRuleSizes;
+
+	/**
+	 * The total count of the rules at position size, in segments of
+	 * SIZE_SEGMENT_SIZE sizes. Segments are added when holding the lock of
+	 * this object, so that the counts of the existing ones are never copied.
+	 */
+	private transient volatile AtomicLongArray[] sizeHistogram;
+
+	private transient LongAdder totalCount;
+
+	/**
+	 * The sum of the rule sizes, weighted by their count.
+	 */
+	private transient LongAdder totalSize;
+
+	private transient LongAdder nDistinctRules;
+
+	/**
+	 * The number of workers running with a delta, so that the delta of the
+	 * current thread is only looked up when needed.
+	 */
+	private transient AtomicInteger nWorkers;
 
 	protected ITsgPosteriorProbabilityComputer<T> posteriorComputer = null;
 
+	/**
+	 * An index from the fingerprints of the rules to their ids. This is
+	 * lazily rebuilt and fingerprints may collide, so matches need to be
+	 * verified.
+	 */
+	private transient volatile ConcurrentMap<Long, Integer> rulesByFingerprint;
+
+	/**
+	 * The running sums of the samples of this grammar or null if samples are
+	 * not being accumulated.
+	 */
+	private transient volatile SampleSums sampleSums;
+
 	/**
 	 * UNK node.
 	 */
 	public final TreeNode<T> UNK_NODE;
 
 	public TSGrammar() {
-		grammar = new MapMaker().concurrencyLevel(
-				ParallelThreadPool.NUM_THREADS).makeMap();
 		UNK_NODE = TreeNode.create(null, 0);
+		initializeRuleStore();
+	}
+
+	/**
+	 * Add the current rule counts as a sample to the running sums started by
+	 * startAccumulatingSamples(). Only the rules whose count changed since
+	 * the previous sample are touched. This must not be called concurrently
+	 * with any update of this grammar.
+	 */
+	public void accumulateSample() {
+		final SampleSums samples = checkNotNull(sampleSums,
+				"Samples are not being accumulated");
+		samples.ensureCapacity(ruleChunks.length);
+		Integer ruleId;
+		while ((ruleId = samples.changedRules.poll()) != null) {
+			final int chunkIdx = ruleId >>> CHUNK_BITS;
+			final int idx = ruleId & CHUNK_MASK;
+			samples.sums[chunkIdx][idx] = samples.sumOf(ruleId);
+			samples.settledAt[chunkIdx][idx] = samples.nSamples;
+			samples.counts[chunkIdx][idx] = ruleChunks[chunkIdx].counts
+					.get(idx);
+			ruleChunks[chunkIdx].changedSinceSample.set(idx, 0);
+		}
+		samples.nSamples++;
+	}
+
+	/**
+	 * Add the rule counts summed across the samples accumulated since the
+	 * last call to this grammar and restart the sums from zero. This must
+	 * not be called concurrently with any update of this grammar.
+	 *
+	 * @param target
+	 *            the grammar to add the sums to
+	 */
+	public void addAccumulatedSamplesTo(final TSGrammar<T> target) {
+		checkArgument(target != this);
+		final SampleSums samples = checkNotNull(sampleSums,
+				"Samples are not being accumulated");
+		final int nRulesNow = nRules;
+		samples.ensureCapacity(ruleChunks.length);
+		for (int i = 0; i < nRulesNow; i++) {
+			final int chunkIdx = i >>> CHUNK_BITS;
+			final int idx = i & CHUNK_MASK;
+			final long sum = samples.sumOf(i);
+			samples.sums[chunkIdx][idx] = 0;
+			samples.settledAt[chunkIdx][idx] = samples.nSamples;
+			if (sum == 0) {
+				continue;
+			}
+			final RuleChunk<T> chunk = ruleChunks[chunkIdx];
+			final TreeNode<T> rule = chunk.rules[idx];
+			if (rule == UNK_NODE) {
+				target.addRule(target.getOrAddUnkRuleId(chunk.roots[idx]),
+						Ints.checkedCast(sum));
+			} else {
+				target.addTree(rule, Ints.checkedCast(sum));
+			}
+		}
+	}
+
+	/**
+	 * Add the changes of the given delta to the counts of this grammar and
+	 * clear the delta. This must not be called concurrently with the worker
+	 * of the delta.
+	 */
+	public void applyDelta(final CountDelta delta) {
+		checkArgument(delta.grammar == this);
+		checkArgument(getWorkerDelta() == null);
+		for (int i = 0; i < delta.ruleIds.length; i++) {
+			final int change = delta.changes[i];
+			if (change > 0) {
+				addRule(delta.ruleIds[i] - 1, change);
+			} else if (change < 0) {
+				removeRule(delta.ruleIds[i] - 1, -change);
+			}
+		}
+		delta.clear();
 	}
 
 	/**
@@ -64,14 +631,36 @@ ITreeSubstitutionGrammar<T> {
 	 * @param other
 	 */
 	public void addAll(final TSGrammar<T> other) {
-		for (final ConcurrentHashMultiset<TreeNode<T>> treeSet : other.grammar
-				.values()) {
-			for (final Multiset.Entry<TreeNode<T>> entry : treeSet.entrySet()) {
-				addTree(entry.getElement(), entry.getCount());
+		final int nOtherRules = other.nRules;
+		for (int i = 0; i < nOtherRules; i++) {
+			final RuleChunk<T> chunk = other.ruleChunks[i >>> CHUNK_BITS];
+			final int count = chunk.counts.get(i & CHUNK_MASK);
+			if (count == 0) {
+				continue;
+			}
+			final TreeNode<T> rule = chunk.rules[i & CHUNK_MASK];
+			if (rule == other.UNK_NODE) {
+				addRule(getOrAddUnkRuleId(chunk.roots[i & CHUNK_MASK]), count);
+			} else {
+				addTree(rule, count);
 			}
 		}
 	}
 
+	@Override
+	public void addRule(final int ruleId, final int count) {
+		checkArgument(count > 0);
+		checkElementIndex(ruleId, nRules);
+		final RuleChunk<T> chunk = ruleChunks[ruleId >>> CHUNK_BITS];
+		final CountDelta delta = getWorkerDelta();
+		if (delta != null) {
+			delta.add(ruleId, chunk.rootRules[ruleId & CHUNK_MASK], count);
+			return;
+		}
+		final int newCount = chunk.counts.addAndGet(ruleId & CHUNK_MASK, count);
+		countChanged(chunk, ruleId, newCount - count, newCount);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 *
@@ -92,22 +681,43 @@ ITreeSubstitutionGrammar<T> {
 	 */
 	public void addTree(final TreeNode<T> subTree, final int count) {
 		checkArgument(count > 0);
-		final T rootNodeData = subTree.getData();
+		addRule(getOrAddRuleId(subTree), count);
+	}
 
-		final ConcurrentHashMultiset<TreeNode<T>> tempNew = ConcurrentHashMultiset
-				.create();
-		final ConcurrentHashMultiset<TreeNode<T>> nSet = grammar.putIfAbsent(
-				rootNodeData, tempNew);
+	public synchronized void clear() {
+		initializeRuleStore();
+	}
 
-		if (nSet != null) {
-			nSet.add(subTree, count);
-		} else {
-			tempNew.add(subTree, count);
+	/**
+	 * Update the statistics of the grammar after the count of the given rule
+	 * has changed and mark the rule as changed, if samples are being
+	 * accumulated.
+	 */
+	private void countChanged(final RuleChunk<T> chunk, final int ruleId,
+			final int previousCount, final int newCount) {
+		final int idx = ruleId & CHUNK_MASK;
+		final int change = newCount - previousCount;
+		final RootRules rules = chunk.rootRules[idx];
+		rules.total.addAndGet(change);
+		rules.nChanges.incrementAndGet();
+		if (previousCount == 0) {
+			rules.nDistinct.incrementAndGet();
+			nDistinctRules.increment();
+		} else if (newCount == 0) {
+			rules.nDistinct.decrementAndGet();
+			nDistinctRules.decrement();
 		}
-	}
+		final int size = chunk.sizes[idx];
+		totalCount.add(change);
+		totalSize.add(((long) change) * size);
+		sizeHistogram[size >>> SIZE_SEGMENT_BITS].addAndGet(size
+				& SIZE_SEGMENT_MASK, change);
 
-	public void clear() {
-		grammar.clear();
+		final SampleSums samples = sampleSums;
+		if (samples != null && chunk.changedSinceSample.get(idx) == 0
+				&& chunk.changedSinceSample.compareAndSet(idx, 0, 1)) {
+			samples.changedRules.add(ruleId);
+		}
 	}
 
 	/*
@@ -120,11 +730,10 @@ ITreeSubstitutionGrammar<T> {
 	public SortedMultiset<Integer> computeGrammarTreeSizeStats() {
 		// Get tree size distribution.
 		final SortedMultiset<Integer> treeSizes = TreeMultiset.create();
-		for (final Entry<T, ConcurrentHashMultiset<TreeNode<T>>> entry : grammar
-				.entrySet()) {
-			for (final Multiset.Entry<TreeNode<T>> rule : entry.getValue()
-					.entrySet()) {
-				treeSizes.add(rule.getElement().getTreeSize(), rule.getCount());
+		final long[] histogram = getRuleSizeHistogram();
+		for (int size = 0; size < histogram.length; size++) {
+			if (histogram[size] > 0) {
+				treeSizes.add(size, Ints.saturatedCast(histogram[size]));
 			}
 		}
 		return treeSizes;
@@ -143,6 +752,39 @@ ITreeSubstitutionGrammar<T> {
 				.computeLog2PosteriorProbabilityOfRule(tree, remove);
 	}
 
+	@Override
+	public int countRuleOccurences(final int ruleId) {
+		checkElementIndex(ruleId, nRules);
+		final int count = ruleChunks[ruleId >>> CHUNK_BITS].counts.get(ruleId
+				& CHUNK_MASK);
+		final CountDelta delta = getWorkerDelta();
+		return delta == null ? count : count + delta.get(ruleId);
+	}
+
+	/**
+	 * Return the number of rules of the given root with a positive count.
+	 */
+	public int countDistinctRulesWithRoot(final T root) {
+		final RootRules rules = rootRules.get(root);
+		if (rules == null) {
+			return 0;
+		}
+		return rules.nDistinct.get();
+	}
+
+	/**
+	 * Return the total count of the rules of the given size.
+	 */
+	public long countRulesWithSize(final int size) {
+		checkArgument(size >= 0);
+		final AtomicLongArray[] histogram = sizeHistogram;
+		if (size >>> SIZE_SEGMENT_BITS >= histogram.length) {
+			return 0;
+		}
+		return histogram[size >>> SIZE_SEGMENT_BITS].get(size
+				& SIZE_SEGMENT_MASK);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 *
@@ -152,12 +794,11 @@ ITreeSubstitutionGrammar<T> {
 	 */
 	@Override
 	public int countTreeOccurences(final TreeNode<T> root) {
-		final ConcurrentHashMultiset<TreeNode<T>> productions = grammar
-				.get(root.getData());
-		if (productions == null) {
+		final Integer ruleId = ruleIds.get(root);
+		if (ruleId == null) {
 			return 0;
 		}
-		return productions.count(root);
+		return countRuleOccurences(ruleId);
 	}
 
 	/*
@@ -168,11 +809,20 @@ ITreeSubstitutionGrammar<T> {
 	 */
 	@Override
 	public int countTreesWithRoot(final T root) {
-		final ConcurrentHashMultiset<TreeNode<T>> set = grammar.get(root);
-		if (set == null) {
+		final RootRules rules = rootRules.get(root);
+		if (rules == null) {
 			return 0;
 		}
-		return set.size();
+		final CountDelta delta = getWorkerDelta();
+		return delta == null ? rules.total.get() : rules.total.get()
+				+ delta.getRootChange(rules);
+	}
+
+	/**
+	 * Create an empty delta for a worker of this grammar.
+	 */
+	public CountDelta createDelta() {
+		return new CountDelta(this);
 	}
 
 	/*
@@ -184,6 +834,7 @@ ITreeSubstitutionGrammar<T> {
 	 */
 	@Override
 	public TreeNode<T> generateRandom(final TreeNode<T> root) {
+		final Map<T, ? extends Multiset<TreeNode<T>>> grammar = getInternalGrammar();
 		checkArgument(grammar.get(root.getData()).size() > 0);
 
 		final ArrayDeque<TreeNode<T>> toVisit = new ArrayDeque<TreeNode<T>>();
@@ -231,12 +882,224 @@ ITreeSubstitutionGrammar<T> {
 	}
 
 	/**
-	 * Return an (externally) immutable view of the TSG.
+	 * Return the delta of the worker running on this thread or null if there
+	 * is none.
+	 */
+	private CountDelta getWorkerDelta() {
+		if (nWorkers.get() == 0) {
+			return null;
+		}
+		final CountDelta delta = WORKER_DELTA.get();
+		return delta != null && delta.grammar == this ? delta : null;
+	}
+
+	/**
+	 * Return the fingerprint index, building it if needed.
+	 */
+	private ConcurrentMap<Long, Integer> getFingerprintIndex() {
+		ConcurrentMap<Long, Integer> index = rulesByFingerprint;
+		if (index != null) {
+			return index;
+		}
+		synchronized (this) {
+			if (rulesByFingerprint == null) {
+				index = new MapMaker().concurrencyLevel(
+						ParallelThreadPool.NUM_THREADS).makeMap();
+				for (int i = 0; i < nRules; i++) {
+					final TreeNode<T> rule = getRule(i);
+					if (rule != null && rule != UNK_NODE) {
+						index.putIfAbsent(FragmentFingerprint.of(rule), i);
+					}
+				}
+				rulesByFingerprint = index;
+			}
+			return rulesByFingerprint;
+		}
+	}
+
+	/**
+	 * Return an (externally) immutable view of the TSG, mapping each root to
+	 * the multiset of its rules. Only roots with a positive count are
+	 * included.
 	 *
 	 * @return
 	 */
 	public Map<T, ? extends Multiset<TreeNode<T>>> getInternalGrammar() {
-		return Collections.unmodifiableMap(grammar);
+		final Set<T> roots = Sets.filter(rootRules.keySet(), new Predicate<T>() {
+			@Override
+			public boolean apply(final T root) {
+				return countTreesWithRoot(root) > 0;
+			}
+		});
+		return Collections.unmodifiableMap(Maps.asMap(roots,
+				new Function<T, RulesOfRoot>() {
+					@Override
+					public RulesOfRoot apply(final T root) {
+						return new RulesOfRoot(root, rootRules.get(root));
+					}
+				}));
+	}
+
+	/**
+	 * Return the id of the given rule, interning it if it has not been seen
+	 * before or has been released. The ids of released rules may be reused.
+	 */
+	@Override
+	public int getOrAddRuleId(final TreeNode<T> rule) {
+		final Integer ruleId = ruleIds.get(rule);
+		if (ruleId != null) {
+			return ruleId;
+		}
+		return internRule(rule, rule.getData(), false);
+	}
+
+	/**
+	 * Return the id of the UNK rule of the given root.
+	 */
+	private int getOrAddUnkRuleId(final T root) {
+		final Integer ruleId = unkRuleIds.get(root);
+		if (ruleId != null) {
+			return ruleId;
+		}
+		return internRule(UNK_NODE, root, true);
+	}
+
+	/**
+	 * Return the rule with the given id or null if the id has been released
+	 * and not reused yet.
+	 */
+	@Override
+	public TreeNode<T> getRule(final int ruleId) {
+		checkElementIndex(ruleId, nRules);
+		return ruleChunks[ruleId >>> CHUNK_BITS].rules[ruleId & CHUNK_MASK];
+	}
+
+	/**
+	 * Return the instance of the rule stored in the grammar with the given
+	 * fingerprint (see FragmentFingerprint) or null if no such rule is known.
+	 * Since fingerprints may collide, the returned rule should be verified.
+	 *
+	 * @param fingerprint
+	 * @return
+	 */
+	public TreeNode<T> getRuleByFingerprint(final long fingerprint) {
+		final int ruleId = getRuleIdByFingerprint(fingerprint);
+		if (ruleId == -1) {
+			return null;
+		}
+		return getRule(ruleId);
+	}
+
+	/**
+	 * Return the id of the rule with the given fingerprint (see
+	 * FragmentFingerprint) or -1 if no such rule is known. As in
+	 * getRuleByFingerprint(), the rule should be verified.
+	 *
+	 * @param fingerprint
+	 * @return
+	 */
+	public int getRuleIdByFingerprint(final long fingerprint) {
+		final Integer ruleId = getFingerprintIndex().get(fingerprint);
+		if (ruleId == null) {
+			return -1;
+		}
+		return ruleId;
+	}
+
+	/**
+	 * Return the average size of the rules, weighted by their count, or 0 if
+	 * the grammar is empty.
+	 */
+	public double getMeanRuleSize() {
+		final long count = totalCount.sum();
+		return count == 0 ? 0 : ((double) totalSize.sum()) / count;
+	}
+
+	/**
+	 * Return the number of rules with a positive count.
+	 */
+	public int getNumberOfDistinctRules() {
+		return Ints.checkedCast(nDistinctRules.sum());
+	}
+
+	/**
+	 * Return the number of samples accumulated since
+	 * startAccumulatingSamples() or -1 if samples are not being accumulated.
+	 */
+	public int getNumberOfAccumulatedSamples() {
+		final SampleSums samples = sampleSums;
+		return samples == null ? -1 : samples.nSamples;
+	}
+
+	/**
+	 * Return the number of rule ids in use. All rule ids are smaller than
+	 * this number, which only grows (until the grammar is cleared), since
+	 * releaseUnusedRules() keeps the released ids for reuse.
+	 */
+	public int getNumberOfRules() {
+		return nRules;
+	}
+
+	/**
+	 * Return the total count of the rules at position size, up to the
+	 * largest size with a positive count.
+	 */
+	public long[] getRuleSizeHistogram() {
+		final AtomicLongArray[] histogram = sizeHistogram;
+		int length = histogram.length * SIZE_SEGMENT_SIZE;
+		while (length > 0 && countRulesWithSize(length - 1) == 0) {
+			length--;
+		}
+		final long[] counts = new long[length];
+		for (int size = 0; size < length; size++) {
+			counts[size] = countRulesWithSize(size);
+		}
+		return counts;
+	}
+
+	/**
+	 * Return a number that changes whenever a rule id is assigned or
+	 * released, so that any index of the rule ids can tell when to be
+	 * rebuilt.
+	 */
+	public int getRuleIdsVersion() {
+		return ruleIdsVersion;
+	}
+
+	/**
+	 * Return the total size of the interned rules, whatever their count.
+	 */
+	public long getSizeOfInternedRules() {
+		return internedRuleSizes;
+	}
+
+	/**
+	 * Return the total count of all the rules.
+	 */
+	public long getTotalRuleCount() {
+		return totalCount.sum();
+	}
+
+	/**
+	 * Return the sum of the rule sizes, weighted by their count.
+	 */
+	public long getTotalRuleSize() {
+		return totalSize.sum();
+	}
+
+	/**
+	 * Return the id of the rule or -1 if the rule has never been added to
+	 * this grammar.
+	 *
+	 * @param rule
+	 * @return
+	 */
+	public int getRuleId(final TreeNode<T> rule) {
+		final Integer ruleId = ruleIds.get(rule);
+		if (ruleId == null) {
+			return -1;
+		}
+		return ruleId;
 	}
 
 	/**
@@ -249,43 +1112,228 @@ ITreeSubstitutionGrammar<T> {
 				"A generic TS grammar is not associated with any tree extractor.");
 	}
 
+	@SuppressWarnings("unchecked")
+	private void initializeRuleStore() {
+		ruleIds = new MapMaker().concurrencyLevel(
+				ParallelThreadPool.NUM_THREADS).makeMap();
+		unkRuleIds = new MapMaker().concurrencyLevel(
+				ParallelThreadPool.NUM_THREADS).makeMap();
+		rootRules = new MapMaker().concurrencyLevel(
+				ParallelThreadPool.NUM_THREADS).makeMap();
+		ruleChunks = new RuleChunk[0];
+		nRules = 0;
+		freeRuleIds = new int[0];
+		nFreeRuleIds = 0;
+		ruleIdsVersion++;
+		internedRuleSizes = 0;
+		sizeHistogram = new AtomicLongArray[0];
+		totalCount = new LongAdder();
+		totalSize = new LongAdder();
+		nDistinctRules = new LongAdder();
+		nWorkers = new AtomicInteger();
+		rulesByFingerprint = null;
+		sampleSums = null;
+	}
+
+	/**
+	 * Intern a rule with the given root.
+	 */
+	private synchronized int internRule(final TreeNode<T> rule, final T root,
+			final boolean isUnk) {
+		final Integer existingId = isUnk ? unkRuleIds.get(root) : ruleIds
+				.get(rule);
+		if (existingId != null) {
+			return existingId;
+		}
+
+		final int ruleId = nFreeRuleIds > 0 ? freeRuleIds[--nFreeRuleIds]
+				: nRules;
+		final int chunkIdx = ruleId >>> CHUNK_BITS;
+		if (chunkIdx == ruleChunks.length) {
+			final RuleChunk<T>[] newChunks = Arrays.copyOf(ruleChunks,
+					chunkIdx + 1);
+			newChunks[chunkIdx] = new RuleChunk<T>();
+			ruleChunks = newChunks;
+		}
+
+		RootRules rules = rootRules.get(root);
+		if (rules == null) {
+			rules = new RootRules();
+			rootRules.put(root, rules);
+		}
+
+		final int size = rule.getTreeSize();
+		final int nSegments = (size >>> SIZE_SEGMENT_BITS) + 1;
+		if (nSegments > sizeHistogram.length) {
+			final AtomicLongArray[] newHistogram = Arrays.copyOf(
+					sizeHistogram, nSegments);
+			for (int i = sizeHistogram.length; i < nSegments; i++) {
+				newHistogram[i] = new AtomicLongArray(SIZE_SEGMENT_SIZE);
+			}
+			sizeHistogram = newHistogram;
+		}
+
+		final RuleChunk<T> chunk = ruleChunks[chunkIdx];
+		chunk.rules[ruleId & CHUNK_MASK] = rule;
+		chunk.roots[ruleId & CHUNK_MASK] = root;
+		chunk.rootRules[ruleId & CHUNK_MASK] = rules;
+		chunk.sizes[ruleId & CHUNK_MASK] = size;
+		internedRuleSizes += size;
+		if (ruleId == nRules) {
+			nRules = ruleId + 1;
+		}
+		ruleIdsVersion++;
+		rules.addRuleId(ruleId);
+
+		if (isUnk) {
+			unkRuleIds.put(root, ruleId);
+		} else {
+			ruleIds.put(rule, ruleId);
+			if (rulesByFingerprint != null) {
+				rulesByFingerprint.putIfAbsent(FragmentFingerprint.of(rule),
+						ruleId);
+			}
+		}
+		return ruleId;
+	}
+
 	/**
 	 * Prune the grammar.
 	 *
 	 * @param threshold
 	 */
 	public void prune(final int threshold) {
-		final ArrayList<T> headsToBeRemoved = Lists.newArrayList();
-		for (final Entry<T, ? extends Multiset<TreeNode<T>>> ruleHeadEntry : grammar
-				.entrySet()) {
-			final T ruleHead = ruleHeadEntry.getKey();
-			final Multiset<TreeNode<T>> productions = ruleHeadEntry.getValue();
-			if (productions.size() < threshold) {
-				headsToBeRemoved.add(ruleHead);
+		final int nRulesNow = nRules;
+		final Map<T, Integer> initialRootTotals = Maps.newHashMap();
+		for (final Entry<T, RootRules> rules : rootRules.entrySet()) {
+			initialRootTotals.put(rules.getKey(), rules.getValue().total.get());
+		}
+
+		for (int i = 0; i < nRulesNow; i++) {
+			final RuleChunk<T> chunk = ruleChunks[i >>> CHUNK_BITS];
+			final int count = chunk.counts.get(i & CHUNK_MASK);
+			final T root = chunk.roots[i & CHUNK_MASK];
+			if (count == 0) {
 				continue;
+			} else if (initialRootTotals.get(root) < threshold) {
+				// Remove the whole head.
+				removeRule(i, count);
+			} else if (count < threshold
+					&& chunk.rules[i & CHUNK_MASK] != UNK_NODE) {
+				removeRule(i, count);
+				addRule(getOrAddUnkRuleId(root), count);
 			}
+		}
+	}
 
-			final ArrayList<TreeNode<T>> productionsToBeRemoved = Lists
-					.newArrayList();
-			for (final TreeNode<T> rule : productions.elementSet()) {
-				if (productions.count(rule) < threshold) {
-					productionsToBeRemoved.add(rule);
-				}
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		initializeRuleStore();
+		final int nStoredRules = in.readInt();
+		for (int i = 0; i < nStoredRules; i++) {
+			@SuppressWarnings("unchecked")
+			final T root = (T) in.readObject();
+			@SuppressWarnings("unchecked")
+			final TreeNode<T> rule = (TreeNode<T>) in.readObject();
+			final int count = in.readInt();
+			final boolean isUnk = rule == UNK_NODE;
+			addRule(internRule(rule, root, isUnk), count);
+		}
+	}
+
+	/**
+	 * Read the rules written by writeRules().
+	 */
+	@SuppressWarnings("unchecked")
+	private void readRules(final Kryo kryo, final Input input) {
+		final int nStoredRules = input.readVarInt(true);
+		for (int i = 0; i < nStoredRules; i++) {
+			final int ruleId;
+			if (input.readBoolean()) {
+				ruleId = getOrAddUnkRuleId((T) kryo.readClassAndObject(input));
+			} else {
+				final TreeNode<T> rule = kryo.readObject(input, TreeNode.class);
+				ruleId = internRule(rule, rule.getData(), false);
 			}
+			addRule(ruleId, input.readVarInt(true));
+		}
+	}
 
-			int sum = 0;
-			for (final TreeNode<T> rule : productionsToBeRemoved) {
-				final int cnt = productions.count(rule);
-				sum += cnt;
-				productions.remove(rule, cnt);
+	/**
+	 * Release the rules whose count is zero and that are not part of any
+	 * accumulated sample, so that their ids are reused for new rules. This
+	 * must not be called concurrently with any other use of this grammar,
+	 * nor while a CountDelta has changes that have not been applied. Any
+	 * ids of the released rules that are held elsewhere become invalid.
+	 *
+	 * @return the number of released rules
+	 */
+	public synchronized int releaseUnusedRules() {
+		checkState(nWorkers.get() == 0, "Workers are running with deltas");
+		final SampleSums samples = sampleSums;
+		if (samples != null) {
+			samples.ensureCapacity(ruleChunks.length);
+		}
+		int nReleased = 0;
+		for (int i = 0; i < nRules; i++) {
+			final RuleChunk<T> chunk = ruleChunks[i >>> CHUNK_BITS];
+			final int idx = i & CHUNK_MASK;
+			final TreeNode<T> rule = chunk.rules[idx];
+			if (rule == null || chunk.counts.get(idx) != 0) {
+				continue;
+			}
+			if (samples != null) {
+				if (samples.sumOf(i) != 0) {
+					continue;
+				}
+				// A pending change of the rule is settled with the count of
+				// the rule that reuses the id, which is correct from here on
+				samples.counts[i >>> CHUNK_BITS][idx] = 0;
+				samples.settledAt[i >>> CHUNK_BITS][idx] = samples.nSamples;
 			}
 
-			productions.add(UNK_NODE, sum);
+			if (rule == UNK_NODE) {
+				unkRuleIds.remove(chunk.roots[idx]);
+			} else {
+				ruleIds.remove(rule);
+			}
+			internedRuleSizes -= chunk.sizes[idx];
+			chunk.rules[idx] = null;
+			chunk.roots[idx] = null;
+			chunk.rootRules[idx] = null;
+			chunk.sizes[idx] = 0;
+			if (nFreeRuleIds == freeRuleIds.length) {
+				freeRuleIds = Arrays.copyOf(freeRuleIds,
+						Math.max(16, 2 * nFreeRuleIds));
+			}
+			freeRuleIds[nFreeRuleIds++] = i;
+			nReleased++;
+		}
+		if (nReleased == 0) {
+			return 0;
 		}
 
-		for (final T node : headsToBeRemoved) {
-			grammar.remove(node);
+		// Remove the released ids from their roots
+		final Iterator<RootRules> rootsIterator = rootRules.values()
+				.iterator();
+		while (rootsIterator.hasNext()) {
+			final RootRules rules = rootsIterator.next();
+			int n = 0;
+			for (int i = 0; i < rules.nRuleIds; i++) {
+				final int ruleId = rules.ruleIds[i];
+				if (ruleChunks[ruleId >>> CHUNK_BITS].rules[ruleId & CHUNK_MASK] != null) {
+					rules.ruleIds[n++] = ruleId;
+				}
+			}
+			rules.nRuleIds = n;
+			if (n == 0) {
+				rootsIterator.remove();
+			}
 		}
+		rulesByFingerprint = null;
+		ruleIdsVersion++;
+		return nReleased;
 	}
 
 	/*
@@ -297,25 +1345,72 @@ ITreeSubstitutionGrammar<T> {
 	 */
 	@Override
 	public boolean removeTree(final TreeNode<T> subTree) {
-		final T rootNodeData = subTree.getData();
-		final ConcurrentHashMultiset<TreeNode<T>> productions = grammar
-				.get(rootNodeData);
-		if (productions == null) {
+		final Integer ruleId = ruleIds.get(subTree);
+		if (ruleId == null) {
 			return false;
-		} else {
-			return productions.remove(subTree);
 		}
+		return removeRule(ruleId, 1) >= 0;
 	}
 
 	@Override
 	public int removeTree(final TreeNode<T> subTree, final int occurences) {
-		final T rootNodeData = subTree.getData();
-		final ConcurrentHashMultiset<TreeNode<T>> productions = grammar
-				.get(rootNodeData);
-		if (productions == null) {
+		final Integer ruleId = ruleIds.get(subTree);
+		if (ruleId == null) {
 			return -occurences;
-		} else {
-			return productions.remove(subTree, occurences) - occurences;
+		}
+		return removeRule(ruleId, occurences);
+	}
+
+	/**
+	 * Remove the given occurrences of a rule. If the rule has fewer
+	 * occurrences, its count becomes zero.
+	 *
+	 * @return the count of the rule before the removal minus the given
+	 *         occurrences. A negative value means that fewer occurrences were
+	 *         removed.
+	 */
+	@Override
+	public int removeRule(final int ruleId, final int occurences) {
+		checkArgument(occurences >= 0);
+		checkElementIndex(ruleId, nRules);
+		final RuleChunk<T> chunk = ruleChunks[ruleId >>> CHUNK_BITS];
+		final int idx = ruleId & CHUNK_MASK;
+		final CountDelta delta = getWorkerDelta();
+		if (delta != null) {
+			final int previousCount = chunk.counts.get(idx) + delta.get(ruleId);
+			final int newCount = Math.max(0, previousCount - occurences);
+			delta.add(ruleId, chunk.rootRules[idx], newCount - previousCount);
+			return previousCount - occurences;
+		}
+		while (true) {
+			final int previousCount = chunk.counts.get(idx);
+			final int newCount = Math.max(0, previousCount - occurences);
+			if (chunk.counts.compareAndSet(idx, previousCount, newCount)) {
+				if (newCount != previousCount) {
+					countChanged(chunk, ruleId, previousCount, newCount);
+				}
+				return previousCount - occurences;
+			}
+		}
+	}
+
+	/**
+	 * Run the given task on this thread, as a worker of the given delta: the
+	 * counts read in the task include the changes of the delta and all the
+	 * changes made in the task are added to the delta. A delta may only be
+	 * used by a single worker at a time.
+	 */
+	public void runWithDelta(final CountDelta delta, final Runnable task) {
+		checkArgument(delta.grammar == this);
+		checkArgument(WORKER_DELTA.get() == null,
+				"The thread is already running a worker");
+		WORKER_DELTA.set(delta);
+		nWorkers.incrementAndGet();
+		try {
+			task.run();
+		} finally {
+			nWorkers.decrementAndGet();
+			WORKER_DELTA.remove();
 		}
 	}
 
@@ -323,15 +1418,40 @@ ITreeSubstitutionGrammar<T> {
 			final ITsgPosteriorProbabilityComputer<T> computer) {
 		posteriorComputer = checkNotNull(computer);
 	}
-	
+
 	public final ITsgPosteriorProbabilityComputer<T> getPosteriorComputer() {
 		return posteriorComputer;
 	}
 
+	/**
+	 * Start keeping running sums of the rule counts across samples of this
+	 * grammar, taken by accumulateSample(). Any previous sums are discarded.
+	 * This must not be called concurrently with any update of this grammar.
+	 */
+	public synchronized void startAccumulatingSamples() {
+		final SampleSums samples = new SampleSums();
+		final int nRulesNow = nRules;
+		samples.ensureCapacity(ruleChunks.length);
+		for (int i = 0; i < nRulesNow; i++) {
+			final RuleChunk<T> chunk = ruleChunks[i >>> CHUNK_BITS];
+			samples.counts[i >>> CHUNK_BITS][i & CHUNK_MASK] = chunk.counts
+					.get(i & CHUNK_MASK);
+			chunk.changedSinceSample.set(i & CHUNK_MASK, 0);
+		}
+		sampleSums = samples;
+	}
+
+	/**
+	 * Stop accumulating samples, discarding the running sums.
+	 */
+	public void stopAccumulatingSamples() {
+		sampleSums = null;
+	}
+
 	@Override
 	public String toString() {
 		final StringBuffer buf = new StringBuffer();
-		for (final Entry<T, ? extends Multiset<TreeNode<T>>> rootEntry : grammar
+		for (final Entry<T, ? extends Multiset<TreeNode<T>>> rootEntry : getInternalGrammar()
 				.entrySet()) {
 			final T root = rootEntry.getKey();
 			buf.append("********\n");
@@ -350,4 +1470,63 @@ ITreeSubstitutionGrammar<T> {
 		}
 		return buf.toString();
 	}
+
+	/**
+	 * Write the rules that have a positive count. UNK rules are written as
+	 * their root, all other rules as their tree.
+	 */
+	private void writeRules(final Kryo kryo, final Output output) {
+		final int nRulesNow = nRules;
+		final int[] counts = new int[nRulesNow];
+		int nPositive = 0;
+		for (int i = 0; i < nRulesNow; i++) {
+			counts[i] = countRuleOccurences(i);
+			if (counts[i] > 0) {
+				nPositive++;
+			}
+		}
+		output.writeVarInt(nPositive, true);
+		for (int i = 0; i < nRulesNow; i++) {
+			if (counts[i] == 0) {
+				continue;
+			}
+			final RuleChunk<T> chunk = ruleChunks[i >>> CHUNK_BITS];
+			final TreeNode<T> rule = chunk.rules[i & CHUNK_MASK];
+			final boolean isUnk = rule == UNK_NODE;
+			output.writeBoolean(isUnk);
+			if (isUnk) {
+				kryo.writeClassAndObject(output, chunk.roots[i & CHUNK_MASK]);
+			} else {
+				kryo.writeObject(output, rule);
+			}
+			output.writeVarInt(counts[i], true);
+		}
+	}
+
+	/**
+	 * Serialize only the rules that have a positive count, as (root, rule,
+	 * count) triples. The ids are reassigned when deserializing.
+	 */
+	private void writeObject(final ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		final int nRulesNow = nRules;
+		final int[] counts = new int[nRulesNow];
+		int nPositive = 0;
+		for (int i = 0; i < nRulesNow; i++) {
+			counts[i] = countRuleOccurences(i);
+			if (counts[i] > 0) {
+				nPositive++;
+			}
+		}
+		out.writeInt(nPositive);
+		for (int i = 0; i < nRulesNow; i++) {
+			if (counts[i] == 0) {
+				continue;
+			}
+			final RuleChunk<T> chunk = ruleChunks[i >>> CHUNK_BITS];
+			out.writeObject(chunk.roots[i & CHUNK_MASK]);
+			out.writeObject(chunk.rules[i & CHUNK_MASK]);
+			out.writeInt(counts[i]);
+		}
+	}
 }
@@ -82,6 +82,11 @@ public class TempletizedTSGrammar extends FormattedTSGrammar {
 		}
 	}
 
+	@Override
+	public int getOrAddRuleId(final TreeNode<TSGNode> rule) {
+		return super.getOrAddRuleId(reparametrizeTree(rule));
+	}
+
 	/**
 	 * Generate random tree from templetized TSG. This is harder from the
 	 * general TSG because of the templetization that ties different variable
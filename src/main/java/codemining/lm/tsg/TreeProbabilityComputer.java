@@ -7,10 +7,13 @@ import static com.google.common.base.Preconditions.checkArgument;
 
 import java.io.Serializable;
 import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 import codemining.ast.TreeNode;
 import codemining.ast.TreeNode.NodeDataPair;
@@ -18,23 +21,141 @@ import codemining.util.StatsUtil;
 
 import com.google.common.base.Predicate;
 import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multiset;
-import com.google.common.collect.Multiset.Entry;
 import com.google.common.collect.Sets;
 
 /**
- * Compute the tree probability.
+ * Compute the tree probability. A single instance may be shared among
+ * threads.
  * 
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  * 
  */
 public class TreeProbabilityComputer<T extends Serializable> {
 
+	/**
+	 * The number of children per property of a node.
+	 */
+	private static final class ChildrenSizes {
+		final int[] sizes;
+
+		ChildrenSizes(final int[] sizes) {
+			this.sizes = sizes;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof ChildrenSizes)) {
+				return false;
+			}
+			return Arrays.equals(sizes, ((ChildrenSizes) obj).sizes);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(sizes);
+		}
+
+		/**
+		 * Return true if there are no children in any property.
+		 */
+		boolean isLeaf() {
+			for (final int size : sizes) {
+				if (size > 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Return true if there are at least as many children as in the other
+		 * node, in every property.
+		 */
+		boolean isSupersetOf(final ChildrenSizes other) {
+			if (sizes.length != other.sizes.length) {
+				return false;
+			}
+			for (int i = 0; i < sizes.length; i++) {
+				if (sizes[i] < other.sizes[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		static ChildrenSizes of(final TreeNode<?> node) {
+			final List<? extends List<?>> children = node
+					.getChildrenByProperty();
+			final int[] sizes = new int[children.size()];
+			for (int i = 0; i < sizes.length; i++) {
+				sizes[i] = children.get(i).size();
+			}
+			return new ChildrenSizes(sizes);
+		}
+	}
+
+	/**
+	 * An index of the rules of the grammar, by their root and the number of
+	 * children of the root. This is rebuilt whenever rules are added to or
+	 * released from the grammar. The counts are not part of the index, so it remains valid
+	 * when the counts change.
+	 */
+	private static final class ProductionIndex<T extends Serializable> {
+		/**
+		 * The version of the rule ids of the grammar that were indexed.
+		 */
+		final int ruleIdsVersion;
+
+		/**
+		 * The ids of the rules of each root, by the number of children of the
+		 * rule's root.
+		 */
+		final Map<T, Map<ChildrenSizes, List<Integer>>> productions = Maps
+				.newHashMap();
+
+		/**
+		 * A cache of the roots in the grammar that match each node data.
+		 */
+		final ConcurrentMap<T, List<T>> matchingRoots = new MapMaker()
+				.makeMap();
+
+		ProductionIndex(final TSGrammar<T> grammar) {
+			ruleIdsVersion = grammar.getRuleIdsVersion();
+			final int nRules = grammar.getNumberOfRules();
+			for (int ruleId = 0; ruleId < nRules; ruleId++) {
+				final TreeNode<T> rule = grammar.getRule(ruleId);
+				if (rule == null) {
+					continue; // Released
+				} else if (rule.getData() == null) {
+					continue; // UNK rules never match
+				}
+				Map<ChildrenSizes, List<Integer>> rootProductions = productions
+						.get(rule.getData());
+				if (rootProductions == null) {
+					rootProductions = Maps.newHashMap();
+					productions.put(rule.getData(), rootProductions);
+				}
+				final ChildrenSizes sizes = ChildrenSizes.of(rule);
+				List<Integer> ruleIds = rootProductions.get(sizes);
+				if (ruleIds == null) {
+					ruleIds = Lists.newArrayList();
+					rootProductions.put(sizes, ruleIds);
+				}
+				ruleIds.add(ruleId);
+			}
+		}
+	}
+
 	private final Map<T, ? extends Multiset<TreeNode<T>>> grammar;
 	private final TSGrammar<T> tsGrammar;
 	private final Predicate<NodeDataPair<T>> equalityComparator;
 	private final boolean requireAllChildren;
+
+	private volatile ProductionIndex<T> productionIndex;
+
 	/**
 	 * The default TSGNode matching predicate.
 	 */
@@ -51,46 +172,83 @@ public class TreeProbabilityComputer<T extends Serializable> {
 			final boolean requireAllChildren,
 			final Predicate<NodeDataPair<T>> equalityComparator) {
 		this.tsGrammar = tsGrammar;
-		this.grammar = tsGrammar.grammar;
+		this.grammar = tsGrammar.getInternalGrammar();
 		this.requireAllChildren = requireAllChildren;
 		this.equalityComparator = equalityComparator;
 	}
 
+	/**
+	 * Add the ids of the rules (of the given root) that may match the current
+	 * node, according to the number of children of their root.
+	 */
+	private void addCandidateRules(
+			final Map<ChildrenSizes, List<Integer>> rootProductions,
+			final TreeNode<T> current, final List<Integer> candidates) {
+		final ChildrenSizes currentSizes = ChildrenSizes.of(current);
+		if (requireAllChildren) {
+			// Rules with a leaf root or exactly the same children
+			final List<Integer> sameChildren = rootProductions
+					.get(currentSizes);
+			if (sameChildren != null) {
+				candidates.addAll(sameChildren);
+			}
+			final List<Integer> leafRules = rootProductions
+					.get(new ChildrenSizes(new int[currentSizes.sizes.length]));
+			if (leafRules != null && leafRules != sameChildren) {
+				candidates.addAll(leafRules);
+			}
+		} else {
+			for (final Map.Entry<ChildrenSizes, List<Integer>> entry : rootProductions
+					.entrySet()) {
+				final ChildrenSizes ruleSizes = entry.getKey();
+				if (ruleSizes.sizes.length == currentSizes.sizes.length
+						&& (ruleSizes.isLeaf() || ruleSizes
+								.isSupersetOf(currentSizes))) {
+					candidates.addAll(entry.getValue());
+				}
+			}
+		}
+	}
+
 	/**
 	 * Given a set of possible productions, compute the probability of the
 	 * current node. If none of the productions apply, backoff to a CFG.
 	 * 
 	 * @param nodeProductionProbabilities
 	 * @param current
-	 * @param allRuleLog2Probabilities
+	 * @param candidateRules
+	 *            the ids of the rules that may match the current node
 	 * @param productions
 	 */
 	private void computeNodeProbabilities(
 			final Map<TreeNode<T>, Double> nodeProductionProbabilities,
-			final TreeNode<T> current, final Multiset<TreeNode<T>> productions) {
+			final TreeNode<T> current, final List<Integer> candidateRules,
+			final Multiset<TreeNode<T>> productions) {
 		final List<Double> allRuleLog2Probabilities = Lists.newArrayList();
 
-		for (final Entry<TreeNode<T>> productionEntry : productions.entrySet()) {
+		for (final int ruleId : candidateRules) {
+			if (tsGrammar.countRuleOccurences(ruleId) == 0) {
+				continue;
+			}
+			final TreeNode<T> rule = tsGrammar.getRule(ruleId);
 			// We need to see if it's a partial match, get all it's end
 			// points
 			if (requireAllChildren) {
-				if (!productionEntry.getElement().partialMatch(current,
-						equalityComparator, requireAllChildren)) {
+				if (!rule.partialMatch(current, equalityComparator,
+						requireAllChildren)) {
 					continue;
 				}
 			} else {
-				if (!productionEntry.getElement().isPartialSupertreeOf(current,
-						equalityComparator)) {
+				if (!rule.isPartialSupertreeOf(current, equalityComparator)) {
 					continue;
 				}
 			}
 
-			final Set<TreeNode<T>> endPoints = getRuleEndPointsInTree(
-					productionEntry.getElement(), current);
+			final Set<TreeNode<T>> endPoints = getRuleEndPointsInTree(rule,
+					current);
 
 			double productionLog2Prob = tsGrammar
-					.computeRulePosteriorLog2Probability(productionEntry
-							.getElement());
+					.computeRulePosteriorLog2Probability(rule);
 
 			for (final TreeNode<T> subtree : endPoints) {
 				checkArgument(nodeProductionProbabilities.containsKey(subtree));
@@ -163,6 +321,8 @@ public class TreeProbabilityComputer<T extends Serializable> {
 	 */
 	public double getLog2ProbabilityOf(final TreeNode<T> tree) {
 		final List<TreeNode<T>> ordered = getComputePlan(tree);
+		final ProductionIndex<T> index = getProductionIndex();
+		final List<Integer> candidateRules = Lists.newArrayList();
 
 		final Map<TreeNode<T>, Double> nodeProductionProbabilities = Maps
 				.newIdentityHashMap();
@@ -180,17 +340,9 @@ public class TreeProbabilityComputer<T extends Serializable> {
 			// the
 			// nodes they terminate in (if any)
 			// sum the log probabilities for the rule and the lower nodes
-			Multiset<TreeNode<T>> productions = null;
-			for (final Map.Entry<T, ? extends Multiset<TreeNode<T>>> grammarProduction : grammar
-					.entrySet()) {
-				if (equalityComparator.apply(new NodeDataPair<T>(
-						grammarProduction.getKey(), current.getData()))) {
-					productions = grammarProduction.getValue();
-					break;
-				}
-			}
+			final T root = getRootFor(index, current.getData());
 
-			if (productions == null) {
+			if (root == null) {
 				// We don't know that, so now compute it naively
 				double logProb = 0;
 				final List<List<TreeNode<T>>> childrenProperties = current
@@ -203,8 +355,11 @@ public class TreeProbabilityComputer<T extends Serializable> {
 				}
 				nodeProductionProbabilities.put(current, logProb);
 			} else {
+				candidateRules.clear();
+				addCandidateRules(index.productions.get(root), current,
+						candidateRules);
 				computeNodeProbabilities(nodeProductionProbabilities, current,
-						productions);
+						candidateRules, grammar.get(root));
 				// Since the rule matching may be partial, this may be wrong.
 				// What should we do? TODO
 
@@ -215,6 +370,54 @@ public class TreeProbabilityComputer<T extends Serializable> {
 		return nodeProductionProbabilities.get(tree);
 	}
 
+	/**
+	 * Return the index of the current rules in the grammar.
+	 */
+	private ProductionIndex<T> getProductionIndex() {
+		ProductionIndex<T> index = productionIndex;
+		if (index == null
+				|| index.ruleIdsVersion != tsGrammar.getRuleIdsVersion()) {
+			synchronized (this) {
+				index = productionIndex;
+				if (index == null
+						|| index.ruleIdsVersion != tsGrammar
+								.getRuleIdsVersion()) {
+					index = new ProductionIndex<T>(tsGrammar);
+					productionIndex = index;
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Return the first root in the grammar that has rules and matches the
+	 * given node data or null if there is none.
+	 */
+	private T getRootFor(final ProductionIndex<T> index, final T nodeData) {
+		List<T> roots = nodeData == null ? null : index.matchingRoots
+				.get(nodeData);
+		if (roots == null) {
+			roots = Lists.newArrayList();
+			for (final T root : index.productions.keySet()) {
+				if (equalityComparator
+						.apply(new NodeDataPair<T>(root, nodeData))) {
+					roots.add(root);
+				}
+			}
+			roots = roots.isEmpty() ? Collections.<T> emptyList() : roots;
+			if (nodeData != null) {
+				index.matchingRoots.putIfAbsent(nodeData, roots);
+			}
+		}
+		for (final T root : roots) {
+			if (tsGrammar.countTreesWithRoot(root) > 0) {
+				return root;
+			}
+		}
+		return null;
+	}
+
 	/**
 	 * Returns a set of endpoint of this rule, given the tree.
 	 * 
@@ -17,11 +17,14 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.DirectoryFileFilter;
 import org.apache.commons.lang.exception.ExceptionUtils;
 
+import codemining.ast.AbstractTreeExtractor;
+import codemining.ast.TreeCorpusLoader;
 import codemining.ast.TreeNode;
 import codemining.ast.java.AbstractJavaTreeExtractor;
 import codemining.java.codeutils.JavaASTExtractor;
 import codemining.java.tokenizers.JavaTokenizer;
 import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.MappedTSGrammar;
 import codemining.lm.tsg.TSGNode;
 import codemining.util.CollectionUtil;
 import codemining.util.SettingsLoader;
@@ -29,12 +32,15 @@ import codemining.util.serialization.ISerializationStrategy.SerializationExcepti
 import codemining.util.serialization.Serializer;
 
 import com.esotericsoftware.kryo.DefaultSerializer;
-import com.esotericsoftware.kryo.serializers.JavaSerializer;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
 import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multiset;
 import com.google.common.collect.Multiset.Entry;
+import com.google.common.collect.Range;
 import com.google.common.collect.Sets;
 
 /**
@@ -43,47 +49,65 @@ import com.google.common.collect.Sets;
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  *
  */
-@DefaultSerializer(JavaSerializer.class)
+@DefaultSerializer(PatternCorpus.KryoSerializer.class)
 public class PatternCorpus implements Serializable {
 
 	/**
-	 * Return the list of patterns of a specific tree.
+	 * A Kryo serializer that writes the format followed by the patterns.
 	 */
-	public static Multiset<TreeNode<Integer>> getPatternsForTree(
-			final TreeNode<Integer> tree, final Set<TreeNode<Integer>> patterns) {
-		final Multiset<TreeNode<Integer>> treePatterns = HashMultiset.create();
-		final ArrayDeque<TreeNode<Integer>> toLook = new ArrayDeque<TreeNode<Integer>>();
-		toLook.push(tree);
-
-		// Do a pre-order visit
-		while (!toLook.isEmpty()) {
-			final TreeNode<Integer> currentNode = toLook.pop();
-			// at each node check if we have a partial match with any of the
-			// patterns
-			for (final TreeNode<Integer> pattern : patterns) {
-				if (pattern.partialMatch(currentNode,
-						PatternStatsCalculator.BASE_EQUALITY_COMPARATOR, false)) {
-					treePatterns.add(pattern);
-				}
+	public static final class KryoSerializer extends
+			com.esotericsoftware.kryo.Serializer<PatternCorpus> {
+
+		@Override
+		public PatternCorpus read(final Kryo kryo, final Input input,
+				final Class<PatternCorpus> type) {
+			final PatternCorpus corpus = new PatternCorpus(
+					(AbstractJavaTreeExtractor) AbstractTreeExtractor
+							.readWithKryo(kryo, input));
+			final int nPatterns = input.readVarInt(true);
+			for (int i = 0; i < nPatterns; i++) {
+				@SuppressWarnings("unchecked")
+				final TreeNode<Integer> pattern = kryo.readObject(input,
+						TreeNode.class);
+				corpus.patterns.add(pattern);
 			}
+			return corpus;
+		}
 
-			// Proceed visiting
-			for (final List<TreeNode<Integer>> childProperties : currentNode
-					.getChildrenByProperty()) {
-				for (final TreeNode<Integer> child : childProperties) {
-					toLook.push(child);
-				}
+		@Override
+		public void write(final Kryo kryo, final Output output,
+				final PatternCorpus corpus) {
+			AbstractTreeExtractor.writeWithKryo(kryo, output, corpus.format);
+			output.writeVarInt(corpus.patterns.size(), true);
+			for (final TreeNode<Integer> pattern : corpus.patterns) {
+				kryo.writeObject(output, pattern);
 			}
-
 		}
-		return treePatterns;
+	}
+
+	/**
+	 * Return the list of patterns of a specific tree.
+	 */
+	public static Multiset<TreeNode<Integer>> getPatternsForTree(
+			final TreeNode<Integer> tree,
+			final PatternMatcher<Integer> patternMatcher) {
+		return patternMatcher.getPatternsInTree(tree);
+	}
+
+	/**
+	 * Return the list of patterns of a specific tree. When matching many
+	 * trees, prefer compiling the patterns once in a PatternMatcher.
+	 */
+	public static Multiset<TreeNode<Integer>> getPatternsForTree(
+			final TreeNode<Integer> tree, final Set<TreeNode<Integer>> patterns) {
+		return getPatternsForTree(tree, new PatternMatcher<Integer>(patterns));
 	}
 
 	/**
 	 * Return the list of patterns a specific tree.
 	 */
 	public static double getPatternsForTree(final TreeNode<Integer> tree,
-			final Set<TreeNode<Integer>> patterns,
+			final PatternMatcher<Integer> patternMatcher,
 			final Set<TreeNode<Integer>> patternSeen) {
 		final ArrayDeque<TreeNode<Integer>> toLook = new ArrayDeque<TreeNode<Integer>>();
 		toLook.push(tree);
@@ -92,19 +116,16 @@ public class PatternCorpus implements Serializable {
 		// Do a pre-order visit
 		while (!toLook.isEmpty()) {
 			final TreeNode<Integer> currentNode = toLook.pop();
-			// at each node check if we have a partial match with any of the
-			// patterns
-			for (final TreeNode<Integer> pattern : patterns) {
-				if (pattern.partialMatch(currentNode,
-						PatternStatsCalculator.BASE_EQUALITY_COMPARATOR, false)) {
-					patternSeen.add(pattern);
-					for (final TreeNode<Integer> node : currentNode
-							.getOverlappingNodesWith(pattern)) {
-						if (matches.containsKey(node)) {
-							matches.put(node, matches.get(node) + 1L);
-						} else {
-							matches.put(node, 1L);
-						}
+			// at each node find all the patterns that partially match
+			for (final TreeNode<Integer> pattern : patternMatcher
+					.getMatchingPatterns(currentNode)) {
+				patternSeen.add(pattern);
+				for (final TreeNode<Integer> node : currentNode
+						.getOverlappingNodesWith(pattern)) {
+					if (matches.containsKey(node)) {
+						matches.put(node, matches.get(node) + 1L);
+					} else {
+						matches.put(node, 1L);
 					}
 				}
 			}
@@ -126,6 +147,16 @@ public class PatternCorpus implements Serializable {
 		return ((double) sumOfMatches) / matches.size();
 	}
 
+	/**
+	 * Return the list of patterns a specific tree.
+	 */
+	public static double getPatternsForTree(final TreeNode<Integer> tree,
+			final Set<TreeNode<Integer>> patterns,
+			final Set<TreeNode<Integer>> patternSeen) {
+		return getPatternsForTree(tree, new PatternMatcher<Integer>(patterns),
+				patternSeen);
+	}
+
 	/**
 	 * Get a set of patterns given the default min count and min size.
 	 *
@@ -159,6 +190,32 @@ public class PatternCorpus implements Serializable {
 		return patterns;
 	}
 
+	/**
+	 * Return a list of patterns in the given mapped grammar. Only the rules
+	 * that are patterns are materialized.
+	 *
+	 * @param grammar
+	 * @return
+	 */
+	public static Set<TreeNode<Integer>> getPatternsFrom(
+			final MappedTSGrammar grammar, final int minPatternCount,
+			final int minPatternSize) {
+		final Set<TreeNode<Integer>> patterns = Sets.newHashSet();
+		for (int rootIdx = 0; rootIdx < grammar.getNumberOfRoots(); rootIdx++) {
+			final Range<Integer> ruleIds = grammar.getRuleIdsOfRoot(rootIdx);
+			for (int ruleId = ruleIds.lowerEndpoint(); ruleId < ruleIds
+					.upperEndpoint(); ruleId++) {
+				if (grammar.countRuleOccurences(ruleId) < minPatternCount) {
+					break; // The rules are sorted by descending count
+				}
+				if (grammar.getRuleTreeSize(ruleId) >= minPatternSize) {
+					patterns.add(TSGNode.tsgTreeToInt(grammar.getRule(ruleId)));
+				}
+			}
+		}
+		return patterns;
+	}
+
 	/**
 	 * @param ruleEntry
 	 * @return
@@ -170,22 +227,31 @@ public class PatternCorpus implements Serializable {
 				&& ruleEntry.getElement().getTreeSize() >= minPatternSize;
 	}
 
-	public static void main(final String[] args) throws SerializationException {
+	public static void main(final String[] args)
+			throws SerializationException, IOException {
 		if (args.length < 3) {
 			System.err
 			.println("Usage <tsg.ser> <minPatternCount> <minPatternSize> [<minTimesInFilterDir> <filterDir>...]");
 			System.exit(-1);
 		}
 
-		final FormattedTSGrammar grammar = (FormattedTSGrammar) Serializer
-				.getSerializer().deserializeFrom(args[0]);
-
 		final int minCount = Integer.parseInt(args[1]);
 		final int minSize = Integer.parseInt(args[2]);
 
-		final PatternCorpus corpus = new PatternCorpus(
-				(AbstractJavaTreeExtractor) grammar.getTreeExtractor());
-		corpus.addFromGrammar(grammar, minCount, minSize);
+		final PatternCorpus corpus;
+		final File grammarFile = new File(args[0]);
+		if (MappedTSGrammar.isMappedGrammar(grammarFile)) {
+			final MappedTSGrammar grammar = MappedTSGrammar.open(grammarFile);
+			corpus = new PatternCorpus(
+					(AbstractJavaTreeExtractor) grammar.getTreeExtractor());
+			corpus.patterns.addAll(getPatternsFrom(grammar, minCount, minSize));
+		} else {
+			final FormattedTSGrammar grammar = (FormattedTSGrammar) Serializer
+					.getSerializer().deserializeFrom(args[0]);
+			corpus = new PatternCorpus(
+					(AbstractJavaTreeExtractor) grammar.getTreeExtractor());
+			corpus.addFromGrammar(grammar, minCount, minSize);
+		}
 
 		if (args.length >= 5) {
 			final int nTimesSeen = Integer.parseInt(args[3]);
@@ -213,10 +279,12 @@ public class PatternCorpus implements Serializable {
 						DirectoryFileFilter.DIRECTORY);
 		final Set<TreeNode<Integer>> patternSeenInCorpus = Sets
 				.newIdentityHashSet();
+		final PatternMatcher<Integer> patternMatcher = new PatternMatcher<Integer>(
+				patterns);
 		for (final File f : allFiles) {
 			try {
 				final TreeNode<Integer> fileAst = format.getTree(f);
-				getPatternsForTree(fileAst, patterns, patternSeenInCorpus);
+				getPatternsForTree(fileAst, patternMatcher, patternSeenInCorpus);
 
 			} catch (final IOException e) {
 				PatternInSet.LOGGER
@@ -250,6 +318,11 @@ public class PatternCorpus implements Serializable {
 
 	private final AbstractJavaTreeExtractor format;
 
+	/**
+	 * The compiled patterns, lazily rebuilt when the patterns change.
+	 */
+	private transient volatile PatternMatcher<Integer> patternMatcher;
+
 	public PatternCorpus(final AbstractJavaTreeExtractor format) {
 		this.format = format;
 	}
@@ -263,10 +336,12 @@ public class PatternCorpus implements Serializable {
 			final int minPatternCount, final int minPatternSize) {
 		patterns.addAll(getPatternsFrom(grammar, minPatternCount,
 				minPatternSize));
+		patternMatcher = null;
 	}
 
 	public void addPattern(final TreeNode<Integer> tree) {
 		patterns.add(tree);
+		patternMatcher = null;
 	}
 
 	/**
@@ -284,13 +359,12 @@ public class PatternCorpus implements Serializable {
 			final Collection<File> directoryFiles = FileUtils.listFiles(
 					directory, JavaTokenizer.javaCodeFileFilter,
 					DirectoryFileFilter.DIRECTORY);
-			for (final File f : directoryFiles) {
-				try {
-					// We add the patterns once per file.
-					patternsSeen.addAll(getPatternsFromTree(format.getTree(f))
-							.elementSet());
-				} catch (final IOException e) {
-					LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
+			for (final List<TreeNode<Integer>> fileTrees : TreeCorpusLoader
+					.forCorpus(format, directory).loadTrees(directoryFiles)
+					.values()) {
+				// We add the patterns once per file.
+				for (final TreeNode<Integer> tree : fileTrees) {
+					patternsSeen.addAll(getPatternsFromTree(tree).elementSet());
 				}
 			}
 
@@ -301,6 +375,7 @@ public class PatternCorpus implements Serializable {
 		final Set<TreeNode<Integer>> toKeep = CollectionUtil
 				.getElementsUpToCount(nSeenInFiles, patternsSeen);
 		patterns.retainAll(toKeep);
+		patternMatcher = null;
 	}
 
 	public AbstractJavaTreeExtractor getFormat() {
@@ -334,15 +409,11 @@ public class PatternCorpus implements Serializable {
 		// Do a pre-order visit
 		while (!toLook.isEmpty()) {
 			final TreeNode<Integer> currentNode = toLook.pop();
-			// at each node check if we have a partial match with the
-			// current patterns
-			for (final TreeNode<Integer> pattern : patterns) {
-				if (pattern.partialMatch(currentNode,
-						PatternStatsCalculator.BASE_EQUALITY_COMPARATOR, false)) {
-					overlappingNodes.addAll(currentNode
-							.getOverlappingNodesWith(pattern));
-
-				}
+			// at each node find all the patterns that partially match
+			for (final TreeNode<Integer> pattern : getPatternMatcher()
+					.getMatchingPatterns(currentNode)) {
+				overlappingNodes.addAll(currentNode
+						.getOverlappingNodesWith(pattern));
 			}
 			// Proceed visiting
 			for (final List<TreeNode<Integer>> childProperties : currentNode
@@ -356,6 +427,18 @@ public class PatternCorpus implements Serializable {
 		return overlappingNodes;
 	}
 
+	/**
+	 * Return the compiled matcher of the current patterns.
+	 */
+	public PatternMatcher<Integer> getPatternMatcher() {
+		PatternMatcher<Integer> matcher = patternMatcher;
+		if (matcher == null) {
+			matcher = new PatternMatcher<Integer>(patterns);
+			patternMatcher = matcher;
+		}
+		return matcher;
+	}
+
 	public Set<TreeNode<Integer>> getPatterns() {
 		return patterns;
 	}
@@ -377,7 +460,7 @@ public class PatternCorpus implements Serializable {
 	 */
 	public Multiset<TreeNode<Integer>> getPatternsFromTree(
 			final TreeNode<Integer> tree) {
-		return getPatternsForTree(tree, patterns);
+		return getPatternsForTree(tree, getPatternMatcher());
 	}
 
 }
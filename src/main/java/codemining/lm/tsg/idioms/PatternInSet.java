@@ -70,6 +70,8 @@ public class PatternInSet {
 				.newIdentityHashSet();
 		final JavaASTExtractor astExtractor = new JavaASTExtractor(false);
 
+		final PatternMatcher<Integer> patternMatcher = new PatternMatcher<Integer>(
+				convertedPatterns);
 		int countSnippetsMatchedAtLeastOnce = 0;
 		double sumAvgMatchesPerNode = 0;
 		for (final String snippet : snippets) {
@@ -79,8 +81,8 @@ public class PatternInSet {
 				final TreeNode<Integer> detempletizedTree = typeExtractor
 						.detempletize(snippetTree);
 				final double avgMatchesPerNode = PatternCorpus
-						.getPatternsForTree(detempletizedTree,
-								convertedPatterns, snippetPatterns);
+						.getPatternsForTree(detempletizedTree, patternMatcher,
+								snippetPatterns);
 				if (!Double.isNaN(avgMatchesPerNode)) {
 					countSnippetsMatchedAtLeastOnce++;
 					sumAvgMatchesPerNode += avgMatchesPerNode;
@@ -0,0 +1,241 @@
+/**
+ *
+ */
+package codemining.lm.tsg.idioms;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import codemining.ast.TreeNode;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+
+/**
+ * A matcher that finds all the patterns that match at a tree node at once,
+ * instead of testing each pattern separately. A pattern matches at a node iff
+ * pattern.partialMatch(node, BASE_EQUALITY_COMPARATOR, false) is true, i.e.
+ * the node data are equal, each pattern node has the same number of properties
+ * and at most as many children per property as the tree node, and these
+ * children match the first children of the tree node.
+ *
+ * The patterns are compiled into a trie of their pre-order visits. Each edge
+ * checks the data and the number of children (per property) of the next node
+ * of the pre-order visit. All the patterns reaching a state of the trie have
+ * the same shape so far, so the next tree node to be checked is the same for
+ * all of them and their common prefix is checked only once.
+ *
+ * The matcher is immutable and can be used concurrently.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class PatternMatcher<T extends Serializable> {
+
+	/**
+	 * A state of the trie.
+	 */
+	private static final class State<T extends Serializable> {
+		final Map<T, List<Transition<T>>> transitions = Maps.newHashMap();
+
+		/**
+		 * The patterns that have been fully matched when reaching this state.
+		 */
+		final List<TreeNode<T>> acceptedPatterns = Lists.newArrayList();
+	}
+
+	/**
+	 * A transition from a state to the next, for a given node data.
+	 */
+	private static final class Transition<T extends Serializable> {
+		/**
+		 * The number of children of the pattern node for each property.
+		 */
+		final int[] nChildren;
+
+		final State<T> next = new State<T>();
+
+		Transition(final int[] nChildren) {
+			this.nChildren = nChildren;
+		}
+	}
+
+	/**
+	 * Return the number of children per property of the given node.
+	 */
+	private static <T extends Serializable> int[] getChildrenSizes(
+			final TreeNode<T> node) {
+		final List<List<TreeNode<T>>> children = node.getChildrenByProperty();
+		final int[] nChildren = new int[children.size()];
+		for (int i = 0; i < nChildren.length; i++) {
+			nChildren[i] = children.get(i).size();
+		}
+		return nChildren;
+	}
+
+	/**
+	 * Push the first nChildren[i] children of each property i, so that they
+	 * are popped in pre-order. Return the number of nodes pushed.
+	 */
+	private static <T extends Serializable> int pushChildren(
+			final List<List<TreeNode<T>>> children, final int[] nChildren,
+			final ArrayDeque<TreeNode<T>> stack) {
+		int nPushed = 0;
+		for (int i = nChildren.length - 1; i >= 0; i--) {
+			final List<TreeNode<T>> childrenForProperty = children.get(i);
+			for (int j = nChildren[i] - 1; j >= 0; j--) {
+				stack.push(childrenForProperty.get(j));
+				nPushed++;
+			}
+		}
+		return nPushed;
+	}
+
+	private final State<T> start = new State<T>();
+
+	private int nPatterns = 0;
+
+	public PatternMatcher(final Collection<TreeNode<T>> patterns) {
+		for (final TreeNode<T> pattern : patterns) {
+			addPattern(pattern);
+		}
+	}
+
+	private void addPattern(final TreeNode<T> pattern) {
+		State<T> currentState = start;
+		final ArrayDeque<TreeNode<T>> toVisit = new ArrayDeque<TreeNode<T>>();
+		toVisit.push(pattern);
+		while (!toVisit.isEmpty()) {
+			final TreeNode<T> currentNode = toVisit.pop();
+			final int[] nChildren = getChildrenSizes(currentNode);
+			currentState = getOrCreateTransition(currentState,
+					currentNode.getData(), nChildren).next;
+			pushChildren(currentNode.getChildrenByProperty(), nChildren,
+					toVisit);
+		}
+		currentState.acceptedPatterns.add(pattern);
+		nPatterns++;
+	}
+
+	/**
+	 * Return true if a pattern node with the given number of children can
+	 * match a tree node with the given children.
+	 */
+	private boolean childrenFit(final int[] nChildren,
+			final List<List<TreeNode<T>>> children) {
+		if (nChildren.length != children.size()) {
+			return false;
+		}
+		for (int i = 0; i < nChildren.length; i++) {
+			if (nChildren[i] > children.get(i).size()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Return the patterns that match at the given node. If the same pattern
+	 * was given more than once, it is returned as many times.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public List<TreeNode<T>> getMatchingPatterns(final TreeNode<T> node) {
+		final List<TreeNode<T>> matches = Lists.newArrayList();
+		final ArrayDeque<TreeNode<T>> pending = new ArrayDeque<TreeNode<T>>();
+		pending.push(node);
+		match(start, pending, matches);
+		return matches;
+	}
+
+	private Transition<T> getOrCreateTransition(final State<T> state,
+			final T data, final int[] nChildren) {
+		List<Transition<T>> transitions = state.transitions.get(data);
+		if (transitions == null) {
+			transitions = Lists.newArrayListWithCapacity(1);
+			state.transitions.put(data, transitions);
+		}
+		for (final Transition<T> transition : transitions) {
+			if (Arrays.equals(transition.nChildren, nChildren)) {
+				return transition;
+			}
+		}
+		final Transition<T> transition = new Transition<T>(nChildren);
+		transitions.add(transition);
+		return transition;
+	}
+
+	/**
+	 * Return all the pattern occurrences in the given tree, i.e. each pattern
+	 * is counted once for every node it matches at.
+	 *
+	 * @param tree
+	 * @return
+	 */
+	public Multiset<TreeNode<T>> getPatternsInTree(final TreeNode<T> tree) {
+		final Multiset<TreeNode<T>> treePatterns = HashMultiset.create();
+		final ArrayDeque<TreeNode<T>> toLook = new ArrayDeque<TreeNode<T>>();
+		toLook.push(tree);
+
+		while (!toLook.isEmpty()) {
+			final TreeNode<T> currentNode = toLook.pop();
+			treePatterns.addAll(getMatchingPatterns(currentNode));
+			for (final List<TreeNode<T>> childProperties : currentNode
+					.getChildrenByProperty()) {
+				for (final TreeNode<T> child : childProperties) {
+					toLook.push(child);
+				}
+			}
+		}
+		return treePatterns;
+	}
+
+	/**
+	 * Match the pending tree nodes (top of the stack first), starting from
+	 * the given state. The stack is restored before returning.
+	 */
+	private void match(final State<T> state,
+			final ArrayDeque<TreeNode<T>> pending,
+			final List<TreeNode<T>> matches) {
+		if (pending.isEmpty()) {
+			// All the patterns reaching here have been fully visited
+			matches.addAll(state.acceptedPatterns);
+			return;
+		}
+
+		final TreeNode<T> currentNode = pending.pop();
+		final List<Transition<T>> transitions = state.transitions
+				.get(currentNode.getData());
+		if (transitions != null) {
+			final List<List<TreeNode<T>>> children = currentNode
+					.getChildrenByProperty();
+			for (final Transition<T> transition : transitions) {
+				if (!childrenFit(transition.nChildren, children)) {
+					continue;
+				}
+				final int nPushed = pushChildren(children,
+						transition.nChildren, pending);
+				match(transition.next, pending, matches);
+				for (int i = 0; i < nPushed; i++) {
+					pending.pop();
+				}
+			}
+		}
+		pending.push(currentNode);
+	}
+
+	/**
+	 * Return the number of patterns in this matcher.
+	 */
+	public int size() {
+		return nPatterns;
+	}
+
+}
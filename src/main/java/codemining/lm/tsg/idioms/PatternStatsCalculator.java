@@ -126,6 +126,11 @@ public class PatternStatsCalculator {
 	private final BiMap<TreeNode<Integer>, Integer> patternDictionary = HashBiMap
 			.create();
 
+	/**
+	 * The compiled patterns.
+	 */
+	private final PatternMatcher<Integer> patternMatcher;
+
 	public PatternStatsCalculator(final AbstractJavaTreeExtractor treeFormat,
 			final FormattedTSGrammar grammar, final File directory) {
 		this.treeFormat = treeFormat;
@@ -153,6 +158,8 @@ public class PatternStatsCalculator {
 				patterns.size() / 10);
 		filePatternsCount = HashBasedTable.create(allFiles.size(),
 				patterns.size() / 1);
+		patternMatcher = new PatternMatcher<Integer>(
+				this.patterns.elementSet());
 	}
 
 	public PatternStatsCalculator(final AbstractJavaTreeExtractor treeFormat,
@@ -178,6 +185,8 @@ public class PatternStatsCalculator {
 				patterns.size() / 10);
 		filePatternsCount = HashBasedTable.create(allFiles.size(),
 				patterns.size() / 1);
+		patternMatcher = new PatternMatcher<Integer>(
+				this.patterns.elementSet());
 	}
 
 	/**
@@ -185,46 +194,53 @@ public class PatternStatsCalculator {
 	 */
 	private void completePatternsTable(final File f,
 			final TreeNode<Integer> fileTree) {
-		for (final TreeNode<Integer> pattern : patterns.elementSet()) {
-			final int patternId = patternDictionary.get(pattern);
-			final Set<TreeNode<Integer>> overlappingNodes = Sets
-					.newIdentityHashSet();
-			int count = 0;
-
-			final ArrayDeque<TreeNode<Integer>> toLook = new ArrayDeque<TreeNode<Integer>>();
-			toLook.push(fileTree);
-
-			// Do a pre-order visit
-			while (!toLook.isEmpty()) {
-				final TreeNode<Integer> currentNode = toLook.pop();
-				// at each node check if we have a partial match with the
-				// current patterns
-
-				if (pattern.partialMatch(currentNode, BASE_EQUALITY_COMPARATOR,
-						false)) {
-					overlappingNodes.addAll(currentNode
-							.getOverlappingNodesWith(pattern));
-					count++;
+		final Map<Integer, Set<TreeNode<Integer>>> overlappingNodes = Maps
+				.newHashMap();
+		final Multiset<Integer> counts = HashMultiset.create();
+
+		final ArrayDeque<TreeNode<Integer>> toLook = new ArrayDeque<TreeNode<Integer>>();
+		toLook.push(fileTree);
+
+		// Do a pre-order visit
+		while (!toLook.isEmpty()) {
+			final TreeNode<Integer> currentNode = toLook.pop();
+			// at each node find all the patterns that partially match
+			for (final TreeNode<Integer> pattern : patternMatcher
+					.getMatchingPatterns(currentNode)) {
+				final int patternId = patternDictionary.get(pattern);
+				Set<TreeNode<Integer>> nodes = overlappingNodes.get(patternId);
+				if (nodes == null) {
+					nodes = Sets.newIdentityHashSet();
+					overlappingNodes.put(patternId, nodes);
 				}
-				// Proceed visiting
-				for (final List<TreeNode<Integer>> childProperties : currentNode
-						.getChildrenByProperty()) {
-					for (final TreeNode<Integer> child : childProperties) {
-						toLook.push(child);
-					}
+				nodes.addAll(currentNode.getOverlappingNodesWith(pattern));
+				counts.add(patternId);
+			}
+			// Proceed visiting
+			for (final List<TreeNode<Integer>> childProperties : currentNode
+					.getChildrenByProperty()) {
+				for (final TreeNode<Integer> child : childProperties) {
+					toLook.push(child);
 				}
 			}
+		}
+
+		for (final TreeNode<Integer> pattern : patterns.elementSet()) {
+			final int patternId = patternDictionary.get(pattern);
+			final Set<TreeNode<Integer>> nodes = overlappingNodes
+					.get(patternId);
+			final int nNodes = nodes == null ? 0 : nodes.size();
 
 			filePatternsCountLock.lock();
 			try {
-				filePatternsCount.put(f, patternId, count);
+				filePatternsCount.put(f, patternId, counts.count(patternId));
 			} finally {
 				filePatternsCountLock.unlock();
 			}
 
 			filePatternsLock.lock();
 			try {
-				filePatterns.put(f, patternId, overlappingNodes.size());
+				filePatterns.put(f, patternId, nNodes);
 			} finally {
 				filePatternsLock.unlock();
 			}
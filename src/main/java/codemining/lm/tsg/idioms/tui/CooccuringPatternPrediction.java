@@ -16,10 +16,12 @@ import org.apache.commons.lang.exception.ExceptionUtils;
 
 import codemining.ast.AbstractTreeExtractor;
 import codemining.ast.NodeSetTreeDistance;
+import codemining.ast.TreeCorpusLoader;
 import codemining.ast.TreeNode;
 import codemining.java.tokenizers.JavaTokenizer;
 import codemining.lm.tsg.FormattedTSGrammar;
 import codemining.lm.tsg.idioms.PatternCorpus;
+import codemining.lm.tsg.idioms.PatternMatcher;
 import codemining.lm.tsg.idioms.tui.PatternCooccurence.LikelihoodRatio;
 import codemining.util.data.UnorderedPair;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
@@ -127,6 +129,11 @@ public class CooccuringPatternPrediction {
 	private final BiMap<Integer, TreeNode<Integer>> patternDictionary = HashBiMap
 			.create();
 
+	/**
+	 * The compiled patterns of the dictionary, rebuilt when it changes.
+	 */
+	private PatternMatcher<Integer> patternMatcher;
+
 	public CooccuringPatternPrediction(final Set<TreeNode<Integer>> patterns) {
 		int i = 0;
 		for (final TreeNode<Integer> pattern : patterns) {
@@ -173,15 +180,9 @@ public class CooccuringPatternPrediction {
 		final Collection<File> trainFiles = FileUtils
 				.listFiles(trainDirectory, JavaTokenizer.javaCodeFileFilter,
 						DirectoryFileFilter.DIRECTORY);
-		for (final File f : trainFiles) {
-			try {
-				final TreeNode<Integer> fileAst = format.getTree(f);
-				final Set<Integer> patternsIdsInFile = patternInFileId(fileAst);
-				cooccurenceData.add(patternsIdsInFile);
-			} catch (final Exception e) {
-				LOGGER.warning("Error in file " + f + " "
-						+ ExceptionUtils.getFullStackTrace(e));
-			}
+		for (final TreeNode<Integer> fileAst : TreeCorpusLoader.forCorpus(
+				format, trainDirectory).loadAllTrees(trainFiles)) {
+			cooccurenceData.add(patternInFileId(fileAst));
 		}
 
 		LOGGER.info("Patterns Loaded, building co-appearing sets...");
@@ -198,9 +199,12 @@ public class CooccuringPatternPrediction {
 	 * @return
 	 */
 	private Set<Integer> patternInFileId(final TreeNode<Integer> fileAst) {
+		if (patternMatcher == null) {
+			patternMatcher = new PatternMatcher<Integer>(
+					patternDictionary.values());
+		}
 		final Set<TreeNode<Integer>> patternsInFile = PatternCorpus
-				.getPatternsForTree(fileAst, patternDictionary.values())
-				.elementSet();
+				.getPatternsForTree(fileAst, patternMatcher).elementSet();
 
 		final Set<Integer> patternsIdsInFile = Sets.newHashSet();
 		for (final TreeNode<Integer> pattern : patternsInFile) {
@@ -261,6 +265,7 @@ public class CooccuringPatternPrediction {
 		for (final int keyToRemove : toRemove) {
 			patternDictionary.remove(keyToRemove);
 		}
+		patternMatcher = null;
 	}
 
 	private void test(
@@ -7,14 +7,11 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayDeque;
-import java.util.Iterator;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
-import java.util.logging.Logger;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.DirectoryFileFilter;
@@ -28,12 +25,14 @@ import com.google.common.collect.Sets;
 
 import codemining.ast.AbstractTreeExtractor;
 import codemining.ast.AstNodeSymbol;
+import codemining.ast.TreeCorpusLoader;
 import codemining.ast.TreeNode;
 import codemining.ast.TreeNode.NodeDataPair;
 import codemining.lm.cfg.AbstractContextFreeGrammar.CFGRule;
 import codemining.lm.tsg.FormattedTSGrammar;
 import codemining.lm.tsg.TSGNode;
 import codemining.lm.tsg.TreeProbabilityComputer;
+import codemining.lm.tsg.idioms.PatternMatcher;
 import codemining.lm.tsg.samplers.CFGPrior;
 import codemining.lm.tsg.samplers.CFGPrior.IRuleCreator;
 import codemining.lm.tsg.samplers.blocked.BlockCollapsedGibbsSampler;
@@ -88,8 +87,6 @@ public class IdiomRanking {
 
     }
 
-    private static final Logger LOGGER = Logger.getLogger(IdiomRanking.class.getName());
-
     /**
      * A predicate for comparing integer tree nodes.
      */
@@ -133,6 +130,8 @@ public class IdiomRanking {
     // For each idiom, it contains the nodes that match the idiom.
     private final Map<TreeNode<Integer>, Set<TreeNode<Integer>>> matchedNodesPerIdiom = Maps.newHashMap();
 
+    private final PatternMatcher<Integer> idiomMatcher;
+
     public IdiomRanking(final FormattedTSGrammar grammar) {
         this.grammar = grammar;
         final IRuleCreator cfRuleCreator = new IRuleCreator() {
@@ -149,6 +148,7 @@ public class IdiomRanking {
                 matchedNodesPerIdiom.put(TSGNode.tsgTreeToInt(rule.getElement()), Sets.newIdentityHashSet());
             }
         }
+        idiomMatcher = new PatternMatcher<Integer>(matchedNodesPerIdiom.keySet());
     }
 
     /**
@@ -157,18 +157,13 @@ public class IdiomRanking {
      * @param corpusDirectory
      */
     public void addCorpus(final String corpusDirectory) {
-        final Iterator<File> allFiles = FileUtils.iterateFiles(new File(corpusDirectory),
+        final File directory = new File(corpusDirectory);
+        final Collection<File> allFiles = FileUtils.listFiles(directory,
                 grammar.getTreeExtractor().getTokenizer().getFileFilter(), DirectoryFileFilter.DIRECTORY);
-        while (allFiles.hasNext()) {
-            final File currentSource = allFiles.next();
-            try {
-                final TreeNode<Integer> tree = grammar.getTreeExtractor().getTree(currentSource);
-                cfgPrior.addCFGRulesFrom(TSGNode.convertTree(tree, 0));
-                addMatchingNodesToIdioms(tree);
-
-            } catch (final IOException e) {
-                LOGGER.warning("Failed to load " + currentSource + " because " + ExceptionUtils.getFullStackTrace(e));
-            }
+        for (final TreeNode<Integer> tree : TreeCorpusLoader.forCorpus(grammar.getTreeExtractor(), directory)
+                .loadAllTrees(allFiles)) {
+            cfgPrior.addCFGRulesFrom(TSGNode.convertTree(tree, 0));
+            addMatchingNodesToIdioms(tree);
         }
     }
 
@@ -181,10 +176,8 @@ public class IdiomRanking {
             // at each node check if we have a partial match with the
             // current patterns
 
-            for (final Entry<TreeNode<Integer>, Set<TreeNode<Integer>>> idiom : matchedNodesPerIdiom.entrySet()) {
-                if (idiom.getKey().partialMatch(currentNode, BASE_EQUALITY_COMPARATOR, false)) {
-                    idiom.getValue().addAll(currentNode.getOverlappingNodesWith(idiom.getKey()));
-                }
+            for (final TreeNode<Integer> idiom : idiomMatcher.getMatchingPatterns(currentNode)) {
+                matchedNodesPerIdiom.get(idiom).addAll(currentNode.getOverlappingNodesWith(idiom));
             }
 
             // Keep visiting
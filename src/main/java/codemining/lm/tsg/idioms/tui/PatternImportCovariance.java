@@ -17,6 +17,7 @@ import org.apache.commons.io.filefilter.DirectoryFileFilter;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.eclipse.jdt.core.dom.CompilationUnit;
 
+import codemining.ast.TreeCorpusLoader;
 import codemining.ast.TreeNode;
 import codemining.ast.java.AbstractJavaTreeExtractor;
 import codemining.java.codedata.PackageInfoExtractor;
@@ -24,6 +25,7 @@ import codemining.java.codeutils.JavaASTExtractor;
 import codemining.java.tokenizers.JavaTokenizer;
 import codemining.lm.tsg.FormattedTSGrammar;
 import codemining.lm.tsg.idioms.PatternCorpus;
+import codemining.lm.tsg.idioms.PatternMatcher;
 import codemining.util.SettingsLoader;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
 import codemining.util.serialization.Serializer;
@@ -116,6 +118,11 @@ public class PatternImportCovariance implements Serializable {
 	private final BiMap<Integer, TreeNode<Integer>> patternDictionary = HashBiMap
 			.create();
 
+	/**
+	 * The compiled patterns of the dictionary, rebuilt when it changes.
+	 */
+	private transient PatternMatcher<Integer> patternMatcher;
+
 	private final AbstractJavaTreeExtractor format;
 
 	private final ElementCooccurence<String, Integer> patternImportCooccurence = new ElementCooccurence<String, Integer>();
@@ -149,9 +156,12 @@ public class PatternImportCovariance implements Serializable {
 	 * @return
 	 */
 	public Set<Integer> patternInFileId(final TreeNode<Integer> fileAst) {
+		if (patternMatcher == null) {
+			patternMatcher = new PatternMatcher<Integer>(
+					patternDictionary.values());
+		}
 		final Set<TreeNode<Integer>> patternsInFile = PatternCorpus
-				.getPatternsForTree(fileAst, patternDictionary.values())
-				.elementSet();
+				.getPatternsForTree(fileAst, patternMatcher).elementSet();
 
 		final Set<Integer> patternsIdsInFile = Sets.newHashSet();
 		for (final TreeNode<Integer> pattern : patternsInFile) {
@@ -171,21 +181,16 @@ public class PatternImportCovariance implements Serializable {
 				filterDirectory, JavaTokenizer.javaCodeFileFilter,
 				DirectoryFileFilter.DIRECTORY);
 		final Set<Integer> seen = Sets.newHashSet();
-		for (final File f : filterFiles) {
-			try {
-				final TreeNode<Integer> fileAst = format.getTree(f);
-				final Set<Integer> patternsIdsInFile = patternInFileId(fileAst);
-				seen.addAll(patternsIdsInFile);
-			} catch (final Exception e) {
-				LOGGER.warning("Error cleaning up in file " + f + " "
-						+ ExceptionUtils.getFullStackTrace(e));
-			}
+		for (final TreeNode<Integer> fileAst : TreeCorpusLoader.forCorpus(
+				format, filterDirectory).loadAllTrees(filterFiles)) {
+			seen.addAll(patternInFileId(fileAst));
 		}
 		final Set<Integer> toRemove = Sets.difference(
 				patternDictionary.keySet(), seen).immutableCopy();
 		for (final int keyToRemove : toRemove) {
 			patternDictionary.remove(keyToRemove);
 		}
+		patternMatcher = null;
 	}
 
 	/**
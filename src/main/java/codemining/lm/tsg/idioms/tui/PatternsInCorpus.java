@@ -4,6 +4,7 @@
 package codemining.lm.tsg.idioms.tui;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Set;
 import java.util.logging.Logger;
@@ -16,7 +17,9 @@ import codemining.ast.TreeNode;
 import codemining.ast.java.AbstractJavaTreeExtractor;
 import codemining.java.tokenizers.JavaTokenizer;
 import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.MappedTSGrammar;
 import codemining.lm.tsg.idioms.PatternCorpus;
+import codemining.lm.tsg.idioms.PatternMatcher;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
 import codemining.util.serialization.Serializer;
 
@@ -35,23 +38,33 @@ public class PatternsInCorpus {
 	 * @param args
 	 * @throws SerializationException
 	 */
-	public static void main(final String[] args) throws SerializationException {
+	public static void main(final String[] args)
+			throws SerializationException, IOException {
 		if (args.length != 4) {
 			System.err
 					.println("Usage <tsg> <minPatternCount> <minPatternSize> <corpusDir>");
 			System.exit(-1);
 		}
 
-		FormattedTSGrammar grammar = (FormattedTSGrammar) Serializer
-				.getSerializer().deserializeFrom(args[0]);
 		final int minPatternCount = Integer.parseInt(args[1]);
 		final int minPatternSize = Integer.parseInt(args[2]);
-		final AbstractJavaTreeExtractor format = (AbstractJavaTreeExtractor) grammar
-				.getTreeExtractor();
-		final Set<TreeNode<Integer>> patterns = PatternCorpus.getPatternsFrom(
-				grammar, minPatternCount, minPatternSize);
-
-		grammar = null; // Tell the GC that we don't need the grammar anymore.
+		final AbstractJavaTreeExtractor format;
+		final Set<TreeNode<Integer>> patterns;
+		final File grammarFile = new File(args[0]);
+		if (MappedTSGrammar.isMappedGrammar(grammarFile)) {
+			final MappedTSGrammar grammar = MappedTSGrammar.open(grammarFile);
+			format = (AbstractJavaTreeExtractor) grammar.getTreeExtractor();
+			patterns = PatternCorpus.getPatternsFrom(grammar, minPatternCount,
+					minPatternSize);
+		} else {
+			// The grammar is not referenced after this block, so it can be
+			// collected.
+			final FormattedTSGrammar grammar = (FormattedTSGrammar) Serializer
+					.getSerializer().deserializeFrom(args[0]);
+			format = (AbstractJavaTreeExtractor) grammar.getTreeExtractor();
+			patterns = PatternCorpus.getPatternsFrom(grammar, minPatternCount,
+					minPatternSize);
+		}
 
 		final File directory = new File(args[3]);
 		final Collection<File> allFiles = FileUtils
@@ -59,11 +72,13 @@ public class PatternsInCorpus {
 						DirectoryFileFilter.DIRECTORY);
 		final Multimap<File, TreeNode<Integer>> filePatterns = ArrayListMultimap
 				.create();
+		final PatternMatcher<Integer> patternMatcher = new PatternMatcher<Integer>(
+				patterns);
 		for (final File f : allFiles) {
 			try {
 				final TreeNode<Integer> fileAst = format.getTree(f);
 				filePatterns.putAll(f,
-						PatternCorpus.getPatternsForTree(fileAst, patterns));
+						PatternCorpus.getPatternsForTree(fileAst, patternMatcher));
 			} catch (final Exception e) {
 				LOGGER.warning("Error in file " + f + " "
 						+ ExceptionUtils.getFullStackTrace(e));
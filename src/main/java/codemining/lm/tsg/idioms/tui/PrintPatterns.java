@@ -3,15 +3,20 @@
  */
 package codemining.lm.tsg.idioms.tui;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
 import codemining.ast.AbstractTreeExtractor;
 import codemining.ast.AstNodeSymbol;
 import codemining.ast.TreeNode;
+import codemining.lm.tsg.MappedTSGrammar;
 import codemining.lm.tsg.idioms.PatternCorpus;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
 import codemining.util.serialization.Serializer;
 
 /**
- * Print TSG patterns given a TSG.
+ * Print TSG patterns given a pattern corpus or a mapped TSG.
  *
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  *
@@ -22,20 +27,34 @@ public class PrintPatterns {
 	 * @param args
 	 * @throws SerializationException
 	 */
-	public static void main(final String[] args) throws SerializationException {
+	public static void main(final String[] args)
+			throws SerializationException, IOException {
 		if (args.length != 1) {
-			System.err.println("Usage <patternCorpus.ser>");
+			System.err.println("Usage <patternCorpus.ser|mappedTsg>");
 			System.exit(-1);
 		}
 
-		final PatternCorpus patterns = (PatternCorpus) Serializer
-				.getSerializer().deserializeFrom(args[0]);
+		final AbstractTreeExtractor format;
+		final Set<TreeNode<Integer>> patterns;
+		final File inputFile = new File(args[0]);
+		if (MappedTSGrammar.isMappedGrammar(inputFile)) {
+			final MappedTSGrammar grammar = MappedTSGrammar.open(inputFile);
+			format = grammar.getTreeExtractor();
+			patterns = PatternCorpus.getPatternsFrom(grammar,
+					PatternCorpus.MIN_PATTERN_COUNT,
+					PatternCorpus.MIN_PATTERN_SIZE);
+		} else {
+			final PatternCorpus corpus = (PatternCorpus) Serializer
+					.getSerializer().deserializeFrom(args[0]);
+			format = corpus.getFormat();
+			patterns = corpus.getPatterns();
+		}
 
-		for (final TreeNode<Integer> pattern : patterns.getPatterns()) {
+		for (final TreeNode<Integer> pattern : patterns) {
 			try {
 				System.out
 						.println("------------------------------------------------------");
-				printPattern(patterns.getFormat(), pattern);
+				printPattern(format, pattern);
 			} catch (final Throwable e) {
 				System.out.println("Error printing.");
 			}
@@ -4,9 +4,9 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
@@ -15,11 +15,12 @@ import org.apache.commons.lang.math.RandomUtils;
 import codemining.ast.TreeNode;
 import codemining.lm.tsg.TSGNode;
 import codemining.lm.tsg.TSGrammar;
+import codemining.lm.tsg.TSGrammar.CountDelta;
+import codemining.util.SettingsLoader;
 import codemining.util.StatsUtil;
 import codemining.util.parallel.ParallelThreadPool;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 
 public abstract class AbstractCollapsedGibbsSampler extends AbstractTSGSampler {
 
@@ -28,6 +29,23 @@ public abstract class AbstractCollapsedGibbsSampler extends AbstractTSGSampler {
 
 	private static final long serialVersionUID = 1787249023145790854L;
 
+	/**
+	 * Sample in the approximate distributed mode (as in AD-LDA): the corpus
+	 * is split in one shard per thread and each shard is sampled against the
+	 * sample grammar as of the last sync point plus its own changes. The
+	 * changes of all shards are merged at the next sync point. Otherwise, all
+	 * trees are sampled directly against the shared sample grammar.
+	 */
+	public static final boolean DISTRIBUTED_SAMPLING = SettingsLoader
+			.getBooleanSetting("DistributedSampling", false);
+
+	/**
+	 * The number of trees that each shard samples between sync points in
+	 * the distributed mode, or 0 to sync only at the end of each iteration.
+	 */
+	public static final int DISTRIBUTED_SYNC_INTERVAL = (int) SettingsLoader
+			.getNumericSetting("DistributedSyncInterval", 0);
+
 	/**
 	 * Constructor parameters
 	 *
@@ -58,15 +76,15 @@ public abstract class AbstractCollapsedGibbsSampler extends AbstractTSGSampler {
 
 		final boolean previousRootStatus = node.getData().isRoot;
 		node.getData().isRoot = false;
-		final TreeNode<TSGNode> joinedTree = TSGNode.getSubTreeFromRoot(root);
+		final TreeNode<TSGNode> joinedTree = getRootedFragment(root);
 		pss.joinCount = sampleGrammar.countTreeOccurences(joinedTree);
 		pss.thisNodeCount = sampleGrammar.countTreesWithRoot(node.getData());
 		pss.thisRootCount = sampleGrammar.countTreesWithRoot(root.getData());
 
 		node.getData().isRoot = true;
-		final TreeNode<TSGNode> splitTree1 = TSGNode.getSubTreeFromRoot(root);
+		final TreeNode<TSGNode> splitTree1 = getRootedFragment(root);
 		pss.splitUpCount = sampleGrammar.countTreeOccurences(splitTree1);
-		final TreeNode<TSGNode> splitTree2 = TSGNode.getSubTreeFromRoot(node);
+		final TreeNode<TSGNode> splitTree2 = getRootedFragment(node);
 		pss.splitDownCount = sampleGrammar.countTreeOccurences(splitTree2);
 
 		final double log2ProbJoined = sampleGrammar
@@ -104,6 +122,11 @@ public abstract class AbstractCollapsedGibbsSampler extends AbstractTSGSampler {
 	@Override
 	public void sampleAllTreesOnce(final int currentIteration,
 			final int totalIterations, final AtomicBoolean stop) {
+		if (DISTRIBUTED_SAMPLING) {
+			sampleAllTreesDistributed(ParallelThreadPool.NUM_THREADS,
+					DISTRIBUTED_SYNC_INTERVAL, stop);
+			return;
+		}
 		final ParallelThreadPool ptp = new ParallelThreadPool();
 		final Thread termSignalHandler = new Thread() {
 			@Override
@@ -136,6 +159,86 @@ public abstract class AbstractCollapsedGibbsSampler extends AbstractTSGSampler {
 		}
 	}
 
+	/**
+	 * Sample all the trees once in the distributed mode (see
+	 * DISTRIBUTED_SAMPLING). Each shard is sampled by a single worker with
+	 * its own CountDelta, so the workers never contend on the counts of the
+	 * sample grammar and each sees a consistent view of them.
+	 *
+	 * @param nShards
+	 * @param syncInterval
+	 *            the number of trees each shard samples between sync points
+	 *            or 0 to sync only at the end
+	 * @param stop
+	 */
+	protected void sampleAllTreesDistributed(final int nShards,
+			final int syncInterval, final AtomicBoolean stop) {
+		checkArgument(nShards > 0);
+		checkArgument(syncInterval >= 0);
+		final List<TreeNode<TSGNode>> trees = Lists.newArrayList(treeCorpus);
+		Collections.shuffle(trees);
+		final List<List<TreeNode<TSGNode>>> shards = Lists
+				.newArrayListWithCapacity(nShards);
+		final List<CountDelta> deltas = Lists.newArrayListWithCapacity(nShards);
+		for (int i = 0; i < nShards; i++) {
+			shards.add(Lists.<TreeNode<TSGNode>> newArrayList());
+			deltas.add(sampleGrammar.createDelta());
+		}
+		for (int i = 0; i < trees.size(); i++) {
+			shards.get(i % nShards).add(trees.get(i));
+		}
+
+		final Thread termSignalHandler = new Thread() {
+			@Override
+			public void run() {
+				stop.set(true);
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(termSignalHandler);
+
+		final int shardSize = shards.get(0).size();
+		final int roundSize = syncInterval > 0 ? syncInterval : Math.max(1,
+				shardSize);
+		for (int from = 0; from < shardSize && !stop.get(); from += roundSize) {
+			final ParallelThreadPool ptp = new ParallelThreadPool();
+			for (int i = 0; i < nShards; i++) {
+				final List<TreeNode<TSGNode>> shard = shards.get(i);
+				final List<TreeNode<TSGNode>> round = shard.subList(
+						Math.min(from, shard.size()),
+						Math.min(from + roundSize, shard.size()));
+				final CountDelta delta = deltas.get(i);
+				ptp.pushTask(new Runnable() {
+					@Override
+					public void run() {
+						sampleGrammar.runWithDelta(delta, new Runnable() {
+							@Override
+							public void run() {
+								for (final TreeNode<TSGNode> tree : round) {
+									if (stop.get()) {
+										return;
+									}
+									sampleSubTree(tree);
+								}
+							}
+						});
+					}
+				});
+			}
+			ptp.waitForTermination();
+
+			// Sync point
+			for (final CountDelta delta : deltas) {
+				sampleGrammar.applyDelta(delta);
+			}
+		}
+
+		try {
+			Runtime.getRuntime().removeShutdownHook(termSignalHandler);
+		} catch (final Throwable e) {
+			// Nothing here. It happens almost surely on interruption.
+		}
+	}
+
 	/**
 	 * Sample the given node and change status if needed.
 	 *
@@ -151,14 +254,16 @@ public abstract class AbstractCollapsedGibbsSampler extends AbstractTSGSampler {
 		checkNotNull(root);
 		checkArgument(node != root,
 				"The given node should not be the root but its parent root");
+		final long startTime = System.nanoTime();
 
 		final boolean wasRootBefore = node.getData().isRoot;
 		node.getData().isRoot = false;
-		final TreeNode<TSGNode> joinedTree = TSGNode.getSubTreeFromRoot(root);
+		final TreeNode<TSGNode> joinedTree = getRootedFragment(root);
 
 		node.getData().isRoot = true;
-		final TreeNode<TSGNode> splitTree1 = TSGNode.getSubTreeFromRoot(root);
-		final TreeNode<TSGNode> splitTree2 = TSGNode.getSubTreeFromRoot(node);
+		final TreeNode<TSGNode> splitTree1 = getRootedFragment(root);
+		final TreeNode<TSGNode> splitTree2 = getRootedFragment(node);
+		final long extractionEndTime = System.nanoTime();
 
 		final double log2ProbJoined = sampleGrammar
 				.computeRulePosteriorLog2Probability(joinedTree, !wasRootBefore);
@@ -179,9 +284,11 @@ public abstract class AbstractCollapsedGibbsSampler extends AbstractTSGSampler {
 			joinTheshold = 0;
 			node.getData().isRoot = true;
 		}
+		final long posteriorEndTime = System.nanoTime();
 
 		// Add/remove trees from grammar
-		if (wasRootBefore != node.getData().isRoot) {
+		final boolean rootFlipped = wasRootBefore != node.getData().isRoot;
+		if (rootFlipped) {
 			if (wasRootBefore) {
 				checkArgument(sampleGrammar.removeTree(splitTree1));
 				checkArgument(sampleGrammar.removeTree(splitTree2));
@@ -192,6 +299,9 @@ public abstract class AbstractCollapsedGibbsSampler extends AbstractTSGSampler {
 				sampleGrammar.addTree(splitTree2);
 			}
 		}
+		metrics.recordSite(extractionEndTime - startTime, posteriorEndTime
+				- extractionEndTime, System.nanoTime() - posteriorEndTime, 1,
+				rootFlipped ? 1 : 0);
 		return joinTheshold;
 	}
 
@@ -203,22 +313,20 @@ public abstract class AbstractCollapsedGibbsSampler extends AbstractTSGSampler {
 	 * @return the log-prob of the sampling of the subtree.
 	 */
 	protected void sampleSubTree(final TreeNode<TSGNode> tree) {
-		// A list of all the nodes.
-		final List<TreeNode<TSGNode>> allNodes = Lists.newArrayList();
-
-		// Maps nodes to their parent. Why an identity map? Because the objects
-		// actually change during their lifetime in this map and their hash
-		// also changes (when a node is resampled), but here we don't care about
-		// these changes!
-		final Map<TreeNode<TSGNode>, TreeNode<TSGNode>> parentMap = Maps
-				.newIdentityHashMap();
+		// All the nodes and the position of their parent in the list. The tree
+		// root is at position 0 and it is not sampled.
+		final List<TreeNode<TSGNode>> allNodes = Lists
+				.newArrayListWithCapacity(tree.getTreeSize());
+		int[] parents = new int[Math.max(1, tree.getTreeSize())];
 
-		// Collect all nodes and build their parent map
-		final ArrayDeque<TreeNode<TSGNode>> toVisit = new ArrayDeque<TreeNode<TSGNode>>();
-		toVisit.push(tree);
+		// Collect all nodes and their parents
+		final ArrayDeque<Integer> toVisit = new ArrayDeque<Integer>();
+		allNodes.add(tree);
+		toVisit.push(0);
 
 		while (!toVisit.isEmpty()) {
-			final TreeNode<TSGNode> currentNode = toVisit.pollFirst();
+			final int currentIdx = toVisit.pollFirst();
+			final TreeNode<TSGNode> currentNode = allNodes.get(currentIdx);
 
 			for (final List<TreeNode<TSGNode>> childProperty : currentNode
 					.getChildrenByProperty()) {
@@ -226,22 +334,34 @@ public abstract class AbstractCollapsedGibbsSampler extends AbstractTSGSampler {
 					if (child.isLeaf()) {
 						continue;
 					}
-					toVisit.push(child);
-					parentMap.put(child, currentNode);
+					final int childIdx = allNodes.size();
+					if (childIdx == parents.length) {
+						parents = Arrays.copyOf(parents, 2 * childIdx);
+					}
 					allNodes.add(child);
+					parents[childIdx] = currentIdx;
+					toVisit.push(childIdx);
 				}
 			}
 
 		}
 
 		// Start the sampling
-		Collections.shuffle(allNodes);
-		for (final TreeNode<TSGNode> node : allNodes) {
+		final List<Integer> order = Lists.newArrayListWithCapacity(allNodes
+				.size() - 1);
+		for (int i = 1; i < allNodes.size(); i++) {
+			order.add(i);
+		}
+		Collections.shuffle(order);
+		for (final int nodeIdx : order) {
+			final TreeNode<TSGNode> node = allNodes.get(nodeIdx);
 			// Find this node's next root...
-			TreeNode<TSGNode> nodeRoot = checkNotNull(parentMap.get(node));
-			while (!nodeRoot.getData().isRoot) {
-				nodeRoot = checkNotNull(parentMap.get(nodeRoot));
+			int rootIdx = parents[nodeIdx];
+			while (!allNodes.get(rootIdx).getData().isRoot) {
+				checkArgument(rootIdx != 0, "The tree has no root");
+				rootIdx = parents[rootIdx];
 			}
+			final TreeNode<TSGNode> nodeRoot = allNodes.get(rootIdx);
 
 			// ...and do the sampling
 			sampleAt(node, nodeRoot);
@@ -2,6 +2,9 @@ package codemining.lm.tsg.samplers;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.text.DateFormat;
 import java.util.ArrayList;
@@ -9,16 +12,18 @@ import java.util.Date;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
 import java.util.logging.Logger;
 
+import org.apache.commons.lang.exception.ExceptionUtils;
+
 import codemining.ast.TreeNode;
+import codemining.lm.tsg.FragmentFingerprint;
 import codemining.lm.tsg.TSGNode;
 import codemining.lm.tsg.TSGrammar;
 import codemining.util.SettingsLoader;
 import codemining.util.parallel.ParallelThreadPool;
 
-import com.google.common.collect.BoundType;
-import com.google.common.collect.SortedMultiset;
 import com.google.common.util.concurrent.AtomicDouble;
 
 public abstract class AbstractTSGSampler implements Serializable {
@@ -94,6 +99,36 @@ public abstract class AbstractTSGSampler implements Serializable {
 			"CalculateStats", true);
 	public static final double BURN_IN_PCT = SettingsLoader.getNumericSetting(
 			"BurninPct", .75);
+
+	/**
+	 * Every how many iterations after burn-in the sample grammar is added to
+	 * the burn-in grammar.
+	 */
+	public static final int BURN_IN_SAMPLE_INTERVAL = (int) SettingsLoader
+			.getNumericSetting("BurninSampleInterval", 1);
+
+	/**
+	 * Every how many iterations the rules of the sample grammar that are no
+	 * longer used are released (see TSGrammar.releaseUnusedRules()), or 0 to
+	 * never release them. When synchronizing with other processes, they are
+	 * released right after each synchronization instead.
+	 */
+	public static final int RULE_RELEASE_INTERVAL = (int) SettingsLoader
+			.getNumericSetting("RuleReleaseInterval", 10);
+
+	/**
+	 * For samplers that maintain the joint log-probability incrementally, is
+	 * it verified against a full recomputation every CALC_INTERVAL
+	 * iterations?
+	 */
+	public static final boolean VERIFY_JOINT_LOGPROB = SettingsLoader
+			.getBooleanSetting("VerifyJointLogProb", false);
+
+	/**
+	 * The relative difference of the incremental and the recomputed joint
+	 * log-probability above which a warning is logged.
+	 */
+	private static final double JOINT_LOGPROB_TOLERANCE = 1E-6;
 	/**
 	 * The grammar being mined. This represents the current sample of the
 	 * grammar.
@@ -108,6 +143,25 @@ public abstract class AbstractTSGSampler implements Serializable {
 	 */
 	protected List<TreeNode<TSGNode>> treeCorpus = new ArrayList<TreeNode<TSGNode>>();
 
+	/**
+	 * The instrumentation of the sampling. This is not serialized.
+	 */
+	protected transient SamplerMetrics metrics = new SamplerMetrics();
+
+	/**
+	 * The changes to the joint log2-probability of the sample grammar since
+	 * it was last computed in full (see computeJointLog2Probability()).
+	 */
+	protected transient DoubleAdder jointLog2ProbChange = new DoubleAdder();
+
+	private transient volatile double lastComputedJointLog2Prob = Double.NaN;
+
+	/**
+	 * The exchange with the other sampler processes, when this sampler only
+	 * samples a shard of the corpus, or null.
+	 */
+	private transient GrammarCountExchange countExchange = null;
+
 	public AbstractTSGSampler(final TSGrammar<TSGNode> sampleGrammar,
 			final TSGrammar<TSGNode> allSamplesGrammar) {
 		checkArgument(sampleGrammar.getTreeExtractor() == allSamplesGrammar
@@ -162,6 +216,16 @@ public abstract class AbstractTSGSampler implements Serializable {
 		return new SampleStats(logProbSum.get(), nNodes.get());
 	}
 
+	/**
+	 * Compute the joint log2-probability of the rules of the sample grammar
+	 * from scratch, or return NaN if the sampler does not maintain it
+	 * incrementally. Samplers that do, add the change of each update of the
+	 * sample grammar to jointLog2ProbChange.
+	 */
+	protected double computeJointLog2Probability() {
+		return Double.NaN;
+	}
+
 	public double computePosteriorLog2ProbabilityForTree(
 			final TreeNode<TSGNode> tree) {
 		double log2Prob = 0;
@@ -173,7 +237,9 @@ public abstract class AbstractTSGSampler implements Serializable {
 	}
 
 	/**
-	 * Get the grammar from all samples after burn-in.
+	 * Get the grammar from all samples after burn-in. While sampling, the
+	 * samples are summed in the sample grammar and added to this grammar only
+	 * at checkpoints and when sampling stops.
 	 *
 	 * @return
 	 */
@@ -190,10 +256,110 @@ public abstract class AbstractTSGSampler implements Serializable {
 		return sampleGrammar;
 	}
 
+	/**
+	 * Return the joint log2-probability of the rules of the sample grammar,
+	 * as maintained incrementally since the last call to
+	 * recomputeJointLog2Probability(), or NaN if the sampler does not
+	 * maintain it.
+	 */
+	public final double getJointLog2Probability() {
+		return lastComputedJointLog2Prob + jointLog2ProbChange.sum();
+	}
+
+	/**
+	 * Return true if the joint log2-probability is being maintained, i.e. it
+	 * has been computed by recomputeJointLog2Probability(). Samplers only
+	 * compute the changes of the joint when this is true.
+	 */
+	protected final boolean tracksJointLog2Probability() {
+		return !Double.isNaN(lastComputedJointLog2Prob);
+	}
+
 	public final List<TreeNode<TSGNode>> getTreeCorpus() {
 		return treeCorpus;
 	}
 
+	public final SamplerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Return the file where the checkpoints of this sampler are written. Each
+	 * sampler process has its own checkpoint.
+	 */
+	public File getCheckpointFile() {
+		if (countExchange == null) {
+			return new File(SamplerCheckpoint.CHECKPOINT_FILE);
+		}
+		return new File(SamplerCheckpoint.CHECKPOINT_FILE + "."
+				+ countExchange.getWorkerId());
+	}
+
+	/**
+	 * Return the fragment rooted at the given (root) node, as in
+	 * TSGNode.getSubTreeFromRoot(). If the fragment is already a rule of the
+	 * sample grammar, the instance of the grammar is returned and no copy is
+	 * made. The returned tree must not be modified.
+	 *
+	 * @param topNode
+	 * @return
+	 */
+	protected TreeNode<TSGNode> getRootedFragment(
+			final TreeNode<TSGNode> topNode) {
+		final int ruleId = findRootedFragmentId(topNode);
+		if (ruleId != -1) {
+			return sampleGrammar.getRule(ruleId);
+		}
+		return TSGNode.getSubTreeFromRoot(topNode);
+	}
+
+	/**
+	 * Return the id in the sample grammar of the fragment rooted at the given
+	 * (root) node, as in TSGNode.getSubTreeFromRoot(), interning the fragment
+	 * if it is not a rule of the grammar yet. The fragment is only copied
+	 * (and hashed) when it is interned, so the counts of the rule should then
+	 * be read and changed through its id.
+	 *
+	 * @param topNode
+	 * @return
+	 */
+	protected int getRootedFragmentId(final TreeNode<TSGNode> topNode) {
+		final int ruleId = findRootedFragmentId(topNode);
+		if (ruleId != -1) {
+			return ruleId;
+		}
+		return sampleGrammar.getOrAddRuleId(TSGNode
+				.getSubTreeFromRoot(topNode));
+	}
+
+	/**
+	 * Return the id of the rule of the sample grammar that matches the
+	 * fragment rooted at the given node, looking it up by its fingerprint,
+	 * or -1 if there is none.
+	 */
+	private int findRootedFragmentId(final TreeNode<TSGNode> topNode) {
+		final int ruleId = sampleGrammar
+				.getRuleIdByFingerprint(FragmentFingerprint
+						.ofRootedFragment(topNode));
+		if (ruleId == -1) {
+			return -1;
+		}
+		final TreeNode<TSGNode> rule = sampleGrammar.getRule(ruleId);
+		if (rule != null
+				&& FragmentFingerprint.matchesRootedFragment(rule, topNode)) {
+			return ruleId;
+		}
+		return -1;
+	}
+
+	/**
+	 * Return the seed of the random generators of the sampler, or -1 if they
+	 * are not seeded.
+	 */
+	public long getRandomSeed() {
+		return -1;
+	}
+
 	/**
 	 * Gibbs sampling the TSG n times. This function registers an
 	 *
@@ -202,6 +368,22 @@ public abstract class AbstractTSGSampler implements Serializable {
 	 *         all iterations have been performed.
 	 */
 	public int performSampling(final int iterations) {
+		return performSampling(0, iterations);
+	}
+
+	/**
+	 * Gibbs sampling the TSG, starting from the given iteration (e.g. when
+	 * resuming from a SamplerCheckpoint). Every
+	 * SamplerCheckpoint.CHECKPOINT_INTERVAL iterations and when sampling is
+	 * interrupted, a checkpoint is written to getCheckpointFile() in the
+	 * background. The checkpoint is deleted when all iterations complete.
+	 *
+	 * @param startIteration
+	 * @param iterations
+	 * @return the iteration that the sampling has stopped at or iterations+1 if
+	 *         all iterations have been performed.
+	 */
+	public int performSampling(final int startIteration, final int iterations) {
 		final AtomicBoolean stop = new AtomicBoolean(false);
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			@Override
@@ -210,65 +392,284 @@ public abstract class AbstractTSGSampler implements Serializable {
 			}
 
 		});
-		burninGrammar.clear();
+		checkArgument(BURN_IN_SAMPLE_INTERVAL > 0);
+		if (startIteration == 0) {
+			burninGrammar.clear();
+		}
+		// The first iteration after burn-in
+		final int burninIteration = (int) Math.floor(BURN_IN_PCT * iterations) + 1;
+		if (countExchange != null && startCountExchange(startIteration)) {
+			return startIteration;
+		}
+		sampleGrammar.startAccumulatingSamples();
+		final SamplerCheckpoint.AsyncWriter checkpointWriter = new SamplerCheckpoint.AsyncWriter(
+				getCheckpointFile());
+		final List<SamplerMetrics.IMetricsListener> metricsListeners = metrics
+				.addListenersFromSettings();
+		metrics.logGrammarStatsEvery(SamplerMetrics.STATS_SITE_INTERVAL,
+				sampleGrammar);
+		final boolean tracksJointLog2Prob = CALC_LOGPROB
+				&& !Double.isNaN(recomputeJointLog2Probability());
+		int nCorpusNodes = 0;
+		for (final TreeNode<TSGNode> tree : treeCorpus) {
+			nCorpusNodes += tree.getTreeSize();
+		}
 
 		int currentIteration = 0;
-		for (currentIteration = 0; currentIteration < iterations; currentIteration++) {
+		for (currentIteration = startIteration; currentIteration < iterations; currentIteration++) {
 			System.out.printf(
 				"======= Iteration %d: %s =======\n",
 				currentIteration,
 				DateFormat.getDateTimeInstance().format( new Date() )
 			);
+			metrics.startIteration(currentIteration);
 			sampleAllTreesOnce(currentIteration, iterations, stop);
-			if (CALC_LOGPROB && currentIteration % CALC_INTERVAL == 0) {
-				System.out.println(calculateCorpusLogProb());
+
+			final boolean addsSample = currentIteration >= burninIteration
+					&& (currentIteration - burninIteration)
+							% BURN_IN_SAMPLE_INTERVAL == 0;
+			boolean stopSampling = stop.get();
+			boolean releasesRules = RULE_RELEASE_INTERVAL > 0
+					&& (currentIteration + 1) % RULE_RELEASE_INTERVAL == 0;
+			if (countExchange != null) {
+				// The other processes are only waited for at sync points, so
+				// a stop is deferred until the next one.
+				stopSampling = false;
+				releasesRules = false;
+				if (addsSample
+						|| currentIteration + 1 == iterations
+						|| (currentIteration + 1 - startIteration)
+								% GrammarCountExchange.SYNC_INTERVAL == 0) {
+					stopSampling = synchronizeCounts(currentIteration + 1,
+							stop.get());
+					// The exchange tracks the changes by rule id, so the ids
+					// may only change right after a synchronization
+					releasesRules = RULE_RELEASE_INTERVAL > 0;
+					if (tracksJointLog2Prob) {
+						recomputeJointLog2Probability();
+					}
+				}
+			}
+			SampleStats corpusStats = null;
+			if (tracksJointLog2Prob) {
+				if (VERIFY_JOINT_LOGPROB
+						&& currentIteration % CALC_INTERVAL == 0) {
+					verifyJointLog2Probability();
+				}
+				// The metrics get the tracked log-prob at every iteration,
+				// but it is only printed every CALC_INTERVAL iterations
+				corpusStats = new SampleStats(getJointLog2Probability(),
+						nCorpusNodes);
+				if (currentIteration % CALC_INTERVAL == 0) {
+					System.out.println(corpusStats);
+				}
+			} else if (CALC_LOGPROB && currentIteration % CALC_INTERVAL == 0) {
+				corpusStats = calculateCorpusLogProb();
+				System.out.println(corpusStats);
 			}
 			if (CALC_STATS && currentIteration % CALC_INTERVAL == 0) {
 				printStats();
 			}
+			if (metrics.hasListeners()) {
+				metrics.completeIteration(sampleGrammar, corpusStats);
+			}
 
-			// Now add everything to sample, if burn-in has passed
-			if (currentIteration > BURN_IN_PCT * iterations) {
-				burninGrammar.addAll(sampleGrammar);
+			// Now add the sample to the running sums, if burn-in has passed.
+			// An interrupted iteration is sampled again on resume, so it is
+			// only counted then.
+			if (addsSample && !stopSampling) {
+				sampleGrammar.accumulateSample();
+			}
+			if (releasesRules) {
+				sampleGrammar.releaseUnusedRules();
 			}
-			if (stop.get()) {
+			if (stopSampling) {
 				LOGGER.info("Sampling interrupted.");
+				sampleGrammar.addAccumulatedSamplesTo(burninGrammar);
+				checkpointWriter.checkpoint(this, currentIteration);
 				break;
 			}
+			if (SamplerCheckpoint.CHECKPOINT_INTERVAL > 0
+					&& (currentIteration + 1)
+							% SamplerCheckpoint.CHECKPOINT_INTERVAL == 0) {
+				sampleGrammar.addAccumulatedSamplesTo(burninGrammar);
+				checkpointWriter.checkpoint(this, currentIteration + 1);
+			}
+		}
+		sampleGrammar.addAccumulatedSamplesTo(burninGrammar);
+		sampleGrammar.stopAccumulatingSamples();
+		checkpointWriter.close();
+		if (countExchange != null) {
+			finishCountExchange();
 		}
+		if (currentIteration >= iterations) {
+			// A completed run must not be resumed
+			final File checkpointFile = getCheckpointFile();
+			if (checkpointFile.exists() && !checkpointFile.delete()) {
+				LOGGER.warning("Failed to delete " + checkpointFile);
+			}
+		}
+		for (final SamplerMetrics.IMetricsListener listener : metricsListeners) {
+			metrics.removeListener(listener);
+		}
+		metrics.logGrammarStatsEvery(0, null);
 
 		return currentIteration;
 	}
 
 	/**
-	 * Print statistics on stdout.
+	 * Print statistics on stdout. The statistics are maintained by the
+	 * grammar, so this is cheap enough to call at any time.
 	 */
 	protected void printStats() {
-		final SortedMultiset<Integer> sizeDistribution = sampleGrammar
-				.computeGrammarTreeSizeStats();
-		System.out.println("Size Stats: 1-5:"
-				+ sizeDistribution.subMultiset(0, BoundType.CLOSED, 5,
-						BoundType.CLOSED).size()
-						+ " 6-15:"
-						+ sizeDistribution.subMultiset(6, BoundType.CLOSED, 15,
-								BoundType.CLOSED).size()
-								+ " 16-30:"
-								+ sizeDistribution.subMultiset(16, BoundType.CLOSED, 30,
-										BoundType.CLOSED).size()
-										+ " >30:"
-										+ sizeDistribution.subMultiset(31, BoundType.CLOSED,
-												Integer.MAX_VALUE, BoundType.CLOSED).size());
-
-		int sumOfSizes = 0;
-		for (final com.google.common.collect.Multiset.Entry<Integer> sizeEntry : sizeDistribution
-				.entrySet()) {
-			sumOfSizes += sizeEntry.getCount() * sizeEntry.getElement();
+		final long[] sizeDistribution = sampleGrammar.getRuleSizeHistogram();
+		final long[] bucketCounts = new long[4];
+		for (int size = 0; size < sizeDistribution.length; size++) {
+			if (size <= 5) {
+				bucketCounts[0] += sizeDistribution[size];
+			} else if (size <= 15) {
+				bucketCounts[1] += sizeDistribution[size];
+			} else if (size <= 30) {
+				bucketCounts[2] += sizeDistribution[size];
+			} else {
+				bucketCounts[3] += sizeDistribution[size];
+			}
 		}
+		System.out.println("Size Stats: 1-5:" + bucketCounts[0] + " 6-15:"
+				+ bucketCounts[1] + " 16-30:" + bucketCounts[2] + " >30:"
+				+ bucketCounts[3]);
 
-		final double avgSize = (((double) sumOfSizes) / sizeDistribution.size());
+		final double avgSize = sampleGrammar.getTotalRuleCount() == 0 ? Double.NaN
+				: sampleGrammar.getMeanRuleSize();
 		System.out.println("Avg Tree Size: " + String.format("%.2f", avgSize));
 	}
 
+	private void readObject(final ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		metrics = new SamplerMetrics();
+		jointLog2ProbChange = new DoubleAdder();
+		lastComputedJointLog2Prob = Double.NaN;
+	}
+
+	/**
+	 * Compute the joint log2-probability of the sample grammar from scratch
+	 * and continue maintaining it incrementally from that value. This must
+	 * be called between iterations.
+	 *
+	 * @return the joint log2-probability or NaN if the sampler does not
+	 *         maintain it
+	 */
+	public double recomputeJointLog2Probability() {
+		final double log2Prob = computeJointLog2Probability();
+		jointLog2ProbChange.reset();
+		lastComputedJointLog2Prob = log2Prob;
+		return log2Prob;
+	}
+
+	/**
+	 * Rebuild the state derived from the root flags of the corpus trees,
+	 * after they have been changed externally (e.g. when restoring a
+	 * SamplerCheckpoint). By default, this rebuilds the sample grammar from
+	 * the rooted fragments of the corpus.
+	 */
+	protected void rootFlagsRestored() {
+		rebuildSampleGrammar();
+	}
+
+	/**
+	 * Rebuild the sample grammar from the rooted fragments of the corpus.
+	 */
+	private void rebuildSampleGrammar() {
+		sampleGrammar.clear();
+		for (final TreeNode<TSGNode> tree : treeCorpus) {
+			for (final TreeNode<TSGNode> rule : TSGNode.getAllRootsOf(tree)) {
+				sampleGrammar.addTree(rule);
+			}
+		}
+	}
+
+	/**
+	 * Compare the incrementally maintained joint log2-probability with a
+	 * full recomputation, logging a warning if they differ, and continue from
+	 * the recomputed value. This must be called between iterations.
+	 *
+	 * @return the difference of the incremental from the recomputed value
+	 */
+	public double verifyJointLog2Probability() {
+		final double incremental = getJointLog2Probability();
+		final double recomputed = recomputeJointLog2Probability();
+		final double difference = incremental - recomputed;
+		if (Math.abs(difference) > JOINT_LOGPROB_TOLERANCE
+				* Math.max(1, Math.abs(recomputed))) {
+			LOGGER.warning("Incremental joint log-prob " + incremental
+					+ " differs from the recomputed " + recomputed);
+		}
+		return difference;
+	}
+
+	/**
+	 * Sample only the corpus of this sampler (a shard of the whole corpus),
+	 * synchronizing the counts of the sample grammar with the samplers of the
+	 * other shards through the given exchange. The exchange must be of the
+	 * sample grammar. At the start of performSampling(), the sample grammar is
+	 * rebuilt from the corpus of this sampler (since it holds the counts of
+	 * all the samplers after a previous run) and synchronized. It is then
+	 * synchronized every GrammarCountExchange.SYNC_INTERVAL iterations
+	 * and at all the iterations where the burn-in grammar is sampled, so that
+	 * the burn-in grammars of all the samplers are equal.
+	 *
+	 * @param exchange
+	 *            the exchange or null to sample the corpus alone
+	 */
+	public void setCountExchange(final GrammarCountExchange exchange) {
+		countExchange = exchange;
+	}
+
+	/**
+	 * End the count exchange of the current run, removing its files.
+	 */
+	private void finishCountExchange() {
+		try {
+			countExchange.finish();
+		} catch (final IOException e) {
+			LOGGER.warning("Failed to finish synchronizing with the other samplers "
+					+ ExceptionUtils.getFullStackTrace(e));
+		}
+	}
+
+	/**
+	 * Start the count exchange of a run from the given iteration.
+	 *
+	 * @return true if sampling should stop
+	 */
+	private boolean startCountExchange(final int startIteration) {
+		// Each sampler sends only the counts of its own corpus
+		rebuildSampleGrammar();
+		try {
+			return countExchange.start(startIteration);
+		} catch (final IOException e) {
+			LOGGER.warning("Failed to start synchronizing with the other samplers "
+					+ ExceptionUtils.getFullStackTrace(e));
+			return true;
+		}
+	}
+
+	/**
+	 * Synchronize the sample grammar with the other sampler processes.
+	 *
+	 * @return true if sampling should stop
+	 */
+	private boolean synchronizeCounts(final int round, final boolean stop) {
+		try {
+			return countExchange.synchronize(round, stop);
+		} catch (final IOException e) {
+			LOGGER.warning("Failed to synchronize with the other samplers "
+					+ ExceptionUtils.getFullStackTrace(e));
+			return true;
+		}
+	}
+
 	public abstract void sampleAllTreesOnce(final int currentIteration,
 			final int totalIterations, final AtomicBoolean stop);
 
@@ -8,6 +8,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.Serializable;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.List;
 
 import codemining.ast.AbstractTreeExtractor;
@@ -19,6 +20,11 @@ import codemining.lm.cfg.AbstractContextFreeGrammar.CFGRule;
 import codemining.lm.cfg.AbstractContextFreeGrammar.NodeConsequent;
 import codemining.lm.tsg.TSGNode;
 
+import com.esotericsoftware.kryo.DefaultSerializer;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
 import com.google.common.math.DoubleMath;
 
 /**
@@ -28,6 +34,7 @@ import com.google.common.math.DoubleMath;
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  *
  */
+@DefaultSerializer(CFGPrior.KryoSerializer.class)
 public class CFGPrior implements Serializable {
 
 	/**
@@ -38,6 +45,68 @@ public class CFGPrior implements Serializable {
 		CFGRule createRuleForNode(final TreeNode<TSGNode> node);
 	}
 
+	/**
+	 * The log2 probabilities of the CFG rules of the corpus nodes, for a
+	 * locked (immutable) CFG, indexed by the corpusId of the nodes. NaN marks
+	 * the nodes that have not been computed yet. Concurrent writes of an entry
+	 * always store the same value, so the entries need no locking.
+	 */
+	private static final class NodeLog2ProbCache {
+		final AbstractContextFreeGrammar cfg;
+
+		volatile double[] log2Probs = new double[0];
+
+		NodeLog2ProbCache(final AbstractContextFreeGrammar cfg) {
+			this.cfg = cfg;
+		}
+
+		double get(final int corpusId) {
+			final double[] probs = log2Probs;
+			return corpusId < probs.length ? probs[corpusId] : Double.NaN;
+		}
+
+		void put(final int corpusId, final double log2Prob) {
+			double[] probs = log2Probs;
+			if (corpusId >= probs.length) {
+				synchronized (this) {
+					probs = log2Probs;
+					if (corpusId >= probs.length) {
+						final int oldLength = probs.length;
+						probs = Arrays.copyOf(probs,
+								Math.max(corpusId + 1, 2 * oldLength));
+						Arrays.fill(probs, oldLength, probs.length, Double.NaN);
+						log2Probs = probs;
+					}
+				}
+			}
+			// A write to a replaced array is lost, which is harmless
+			probs[corpusId] = log2Prob;
+		}
+	}
+
+	/**
+	 * A Kryo serializer that writes the CFG and the rule creator. The cache
+	 * is not written.
+	 */
+	public static final class KryoSerializer extends Serializer<CFGPrior> {
+
+		@Override
+		public CFGPrior read(final Kryo kryo, final Input input,
+				final Class<CFGPrior> type) {
+			final AbstractContextFreeGrammar cfg = (AbstractContextFreeGrammar) kryo
+					.readClassAndObject(input);
+			return new CFGPrior(cfg,
+					(IRuleCreator) kryo.readClassAndObject(input));
+		}
+
+		@Override
+		public void write(final Kryo kryo, final Output output,
+				final CFGPrior prior) {
+			kryo.writeClassAndObject(output, prior.cfg);
+			kryo.writeClassAndObject(output, prior.nodeCreator);
+		}
+	}
+
 	private static final long serialVersionUID = -3738832029559271836L;
 
 	/**
@@ -47,12 +116,20 @@ public class CFGPrior implements Serializable {
 
 	private final IRuleCreator nodeCreator;
 
+	private transient volatile NodeLog2ProbCache nodeLog2ProbCache;
+
 	public CFGPrior(final AbstractTreeExtractor treeExtractor,
 			final IRuleCreator nodeCreator) {
 		cfg = new ContextFreeGrammar(treeExtractor);
 		this.nodeCreator = nodeCreator;
 	}
 
+	private CFGPrior(final AbstractContextFreeGrammar cfg,
+			final IRuleCreator nodeCreator) {
+		this.cfg = cfg;
+		this.nodeCreator = nodeCreator;
+	}
+
 	/**
 	 * Add a single rule to the prior CFG.
 	 *
@@ -120,6 +197,82 @@ public class CFGPrior implements Serializable {
 		return logProb;
 	}
 
+	/**
+	 * Return the cache of the node probabilities for the current CFG or null
+	 * if the CFG may still change.
+	 */
+	private NodeLog2ProbCache getNodeLog2ProbCache() {
+		final AbstractContextFreeGrammar currentCfg = cfg;
+		if (!(currentCfg instanceof ImmutableContextFreeGrammar)) {
+			return null;
+		}
+		NodeLog2ProbCache cache = nodeLog2ProbCache;
+		if (cache == null || cache.cfg != currentCfg) {
+			cache = new NodeLog2ProbCache(currentCfg);
+			nodeLog2ProbCache = cache;
+		}
+		return cache;
+	}
+
+	/**
+	 * Return the log probability of the PCFG rule of the given node. Once the
+	 * prior is locked, the probabilities of the corpus nodes are cached by
+	 * their corpusId, so the nodes should all belong to the same corpus
+	 * index and their children should not change. Nodes that are not part of
+	 * a corpus are not cached.
+	 *
+	 * @param node
+	 * @return
+	 */
+	public double getNodeCFLog2Probability(final TreeNode<TSGNode> node) {
+		final NodeLog2ProbCache cache = getNodeLog2ProbCache();
+		final int corpusId = node.getData().corpusId;
+		if (cache == null || corpusId < 0) {
+			return getLog2ProbForCFG(nodeCreator.createRuleForNode(node));
+		}
+		double log2Prob = cache.get(corpusId);
+		if (Double.isNaN(log2Prob)) {
+			log2Prob = getLog2ProbForCFG(nodeCreator.createRuleForNode(node));
+			cache.put(corpusId, log2Prob);
+		}
+		return log2Prob;
+	}
+
+	/**
+	 * Get the probability of the fragment rooted at topNode, i.e. of
+	 * TSGNode.getSubTreeFromRoot(topNode), as seen from the PCFG without
+	 * copying the fragment. topNode is always treated as a root.
+	 *
+	 * @param topNode
+	 * @return
+	 */
+	public double getRootedFragmentCFLog2Probability(
+			final TreeNode<TSGNode> topNode) {
+		checkNotNull(topNode);
+
+		final ArrayDeque<TreeNode<TSGNode>> toSee = new ArrayDeque<TreeNode<TSGNode>>();
+		toSee.push(topNode);
+
+		double logProbability = 0;
+		while (!toSee.isEmpty()) {
+			final TreeNode<TSGNode> currentNode = toSee.pop();
+
+			for (final List<TreeNode<TSGNode>> childProperties : currentNode
+					.getChildrenByProperty()) {
+				for (final TreeNode<TSGNode> child : childProperties) {
+					// Children that are roots are leaves of the fragment
+					if (!child.isLeaf() && !child.getData().isRoot) {
+						toSee.push(child);
+					}
+				}
+			}
+			logProbability += getNodeCFLog2Probability(currentNode);
+		}
+
+		checkArgument(!Double.isNaN(logProbability));
+		return logProbability;
+	}
+
 	/**
 	 * Get the probability of the given subtree as seen from the PCFG.
 	 *
@@ -23,6 +23,11 @@ import codemining.util.SettingsLoader;
 import codemining.util.StatsUtil;
 import codemining.util.parallel.ParallelThreadPool;
 
+import com.esotericsoftware.kryo.DefaultSerializer;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
 import com.google.common.collect.Lists;
 import com.google.common.math.DoubleMath;
 import com.google.common.util.concurrent.AtomicDouble;
@@ -34,6 +39,7 @@ import com.google.common.util.concurrent.AtomicDouble;
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  *
  */
+@DefaultSerializer(ClassicTsgPosteriorComputer.KryoSerializer.class)
 public class ClassicTsgPosteriorComputer implements
 		ITsgPosteriorProbabilityComputer<TSGNode>, IRuleCreator {
 
@@ -188,6 +194,41 @@ public class ClassicTsgPosteriorComputer implements
 		}
 	}
 
+	/**
+	 * A Kryo serializer that writes the grammar, the hyperparameters and the
+	 * CFG of the prior. The prior itself is recreated, since it refers back to
+	 * the computer.
+	 */
+	public static final class KryoSerializer extends
+			Serializer<ClassicTsgPosteriorComputer> {
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public ClassicTsgPosteriorComputer read(final Kryo kryo,
+				final Input input,
+				final Class<ClassicTsgPosteriorComputer> type) {
+			final TSGrammar<TSGNode> grammar = (TSGrammar<TSGNode>) kryo
+					.readClassAndObject(input);
+			final double concentrationParameter = input.readDouble();
+			final double geometricProbability = input.readDouble();
+			final ClassicTsgPosteriorComputer computer = new ClassicTsgPosteriorComputer(
+					grammar, 1. / geometricProbability, concentrationParameter);
+			kryo.reference(computer);
+			computer.prior.cfg = (AbstractContextFreeGrammar) kryo
+					.readClassAndObject(input);
+			return computer;
+		}
+
+		@Override
+		public void write(final Kryo kryo, final Output output,
+				final ClassicTsgPosteriorComputer computer) {
+			kryo.writeClassAndObject(output, computer.grammar);
+			output.writeDouble(computer.concentrationParameter);
+			output.writeDouble(computer.geometricProbability);
+			kryo.writeClassAndObject(output, computer.prior.cfg);
+		}
+	}
+
 	private static final long serialVersionUID = -874360828121014055L;
 
 	static final Logger LOGGER = Logger
@@ -149,20 +149,19 @@ public class CollapsedGibbsSampler extends AbstractCollapsedGibbsSampler
 
 		final boolean wasRootBefore = node.getData().isRoot;
 		node.getData().isRoot = false;
-		final TreeNode<TSGNode> joinedTree = TSGNode.getSubTreeFromRoot(root);
+		final TreeNode<TSGNode> joinedTree = getRootedFragment(root);
 		pss.joinCount = sampleGrammar.countTreeOccurences(joinedTree);
 		pss.thisRootCount = sampleGrammar.countTreesWithRoot(root.getData());
 		pss.cfgPriorProbJoin = Math.pow(2,
 				posteriorComputer.getLog2PriorForTree(joinedTree));
 
 		node.getData().isRoot = true;
-		final TreeNode<TSGNode> splitTreeUp = TSGNode.getSubTreeFromRoot(root);
+		final TreeNode<TSGNode> splitTreeUp = getRootedFragment(root);
 		pss.splitUpCount = sampleGrammar.countTreeOccurences(splitTreeUp);
 		pss.cfgPriorProbSplitUp = Math.pow(2,
 				posteriorComputer.getLog2PriorForTree(splitTreeUp));
 		pss.thisNodeCount = sampleGrammar.countTreesWithRoot(node.getData());
-		final TreeNode<TSGNode> splitTreeDown = TSGNode
-				.getSubTreeFromRoot(node);
+		final TreeNode<TSGNode> splitTreeDown = getRootedFragment(node);
 		pss.splitDownCount = sampleGrammar.countTreeOccurences(splitTreeDown);
 		pss.cfgPriorProbSplitDown = Math.pow(2,
 				posteriorComputer.getLog2PriorForTree(splitTreeDown));
@@ -0,0 +1,459 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import codemining.ast.AbstractTreeExtractor;
+import codemining.ast.AstNodeSymbol;
+import codemining.ast.TreeNode;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
+import codemining.util.SettingsLoader;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.JavaSerializer;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Synchronizes the sample grammars of N sampler processes (workers), each
+ * sampling its own shard of the corpus. At every round, each worker writes
+ * the changes of the rule counts it made since the previous round to a file
+ * in a shared directory, waits for the files of all other workers and adds
+ * their changes to its grammar, so that after each round all workers have
+ * the same counts. The first round of a run sends the whole grammar of each
+ * worker.
+ *
+ * The rules are written with their symbols rather than the symbol ids, since
+ * the ids may differ across processes. The files of a run are removed when it
+ * finishes. Since the files of a failed run cannot be told apart from the ones
+ * of a worker that started earlier, a worker refuses to start if it finds any
+ * file other than the first round of the other workers, and the directory
+ * must then be cleared.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class GrammarCountExchange {
+
+	/**
+	 * Writes the symbol of each node, the first time it is seen in a file,
+	 * and its index in the file afterwards. Reading maps the symbols to the
+	 * ids of the format of the reading process.
+	 */
+	private static final class SymbolMappingSerializer extends
+			Serializer<TSGNode> {
+
+		private final AbstractTreeExtractor format;
+
+		private final Map<Integer, Integer> writtenSymbols = Maps.newHashMap();
+
+		private final List<Integer> readSymbols = Lists.newArrayList();
+
+		SymbolMappingSerializer(final AbstractTreeExtractor format) {
+			this.format = format;
+		}
+
+		@Override
+		public TSGNode read(final Kryo kryo, final Input input,
+				final Class<TSGNode> type) {
+			final int idx = input.readVarInt(true);
+			if (idx == readSymbols.size()) {
+				final AstNodeSymbol symbol = kryo.readObject(input,
+						AstNodeSymbol.class, JAVA_SERIALIZER);
+				readSymbols.add(format.getOrAddSymbolId(symbol));
+			}
+			final TSGNode node = new TSGNode(readSymbols.get(idx));
+			node.isRoot = input.readBoolean();
+			return node;
+		}
+
+		@Override
+		public void write(final Kryo kryo, final Output output,
+				final TSGNode node) {
+			final Integer idx = writtenSymbols.get(node.nodeKey);
+			if (idx != null) {
+				output.writeVarInt(idx, true);
+			} else {
+				output.writeVarInt(writtenSymbols.size(), true);
+				writtenSymbols.put(node.nodeKey, writtenSymbols.size());
+				kryo.writeObject(output,
+						checkNotNull(format.getSymbol(node.nodeKey)),
+						JAVA_SERIALIZER);
+			}
+			output.writeBoolean(node.isRoot);
+		}
+	}
+
+	private static final Logger LOGGER = Logger
+			.getLogger(GrammarCountExchange.class.getName());
+
+	/**
+	 * The number of iterations between synchronizations. The workers are
+	 * also synchronized at the iterations where the burn-in grammar is
+	 * sampled and at the last iteration.
+	 */
+	public static final int SYNC_INTERVAL = (int) SettingsLoader
+			.getNumericSetting("multiprocessSyncInterval", 1);
+
+	/**
+	 * The time (in seconds) to wait for the other workers at each round.
+	 */
+	public static final long SYNC_TIMEOUT_SECS = (long) SettingsLoader
+			.getNumericSetting("multiprocessSyncTimeout", 3600);
+
+	private static final JavaSerializer JAVA_SERIALIZER = new JavaSerializer();
+
+	private static final int MAGIC = 0x54534758;
+
+	private static final int VERSION = 1;
+
+	private static final long MAX_POLL_MILLIS = 100;
+
+	private static final Pattern COUNTS_FILE = Pattern
+			.compile("counts-(\\d+)-(\\d+)-(\\d+)(\\.tmp)?");
+
+	private final File directory;
+
+	private final int workerId;
+
+	private final int nWorkers;
+
+	private final TSGrammar<TSGNode> grammar;
+
+	/**
+	 * The iteration that the current run started from. This distinguishes
+	 * the files of a resumed run.
+	 */
+	private int epoch;
+
+	/**
+	 * The counts of the rules (by id) after the last round, or null if no
+	 * run has started.
+	 */
+	private int[] syncedCounts = null;
+
+	/**
+	 * The previous round of the current run, or -1 if there is none.
+	 */
+	private int previousRound = -1;
+
+	public GrammarCountExchange(final File directory, final int workerId,
+			final int nWorkers, final TSGrammar<TSGNode> grammar) {
+		checkArgument(nWorkers > 0);
+		checkArgument(workerId >= 0 && workerId < nWorkers);
+		checkArgument(SYNC_INTERVAL > 0);
+		this.directory = directory;
+		this.workerId = workerId;
+		this.nWorkers = nWorkers;
+		this.grammar = grammar;
+	}
+
+	/**
+	 * Add the changes written by a worker to the grammar.
+	 *
+	 * @return true if the worker has requested to stop
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean applyChangesFrom(final File file, final int round)
+			throws IOException {
+		final Kryo kryo = createKryo();
+		try (final Input input = new Input(new BufferedInputStream(
+				new FileInputStream(file)))) {
+			if (input.readInt() != MAGIC || input.readInt() != VERSION
+					|| input.readVarInt(true) != epoch
+					|| input.readVarInt(true) != round) {
+				throw new IOException("Unexpected contents in " + file);
+			}
+			final boolean stop = input.readBoolean();
+			final int nChanges = input.readVarInt(true);
+			for (int i = 0; i < nChanges; i++) {
+				final TreeNode<TSGNode> rule = kryo.readObject(input,
+						TreeNode.class);
+				final int change = input.readVarInt(false);
+				if (change > 0) {
+					grammar.addTree(rule, change);
+				} else {
+					grammar.removeTree(rule, -change);
+				}
+			}
+			return stop;
+		} catch (final KryoException e) {
+			throw new IOException("Failed to read " + file, e);
+		}
+	}
+
+	private Kryo createKryo() {
+		final Kryo kryo = new Kryo();
+		kryo.register(TSGNode.class,
+				new SymbolMappingSerializer(grammar.getTreeExtractor()));
+		return kryo;
+	}
+
+	/**
+	 * Before starting, check that the directory only contains the first round
+	 * of the other workers. Otherwise, check that it does not contain the
+	 * first round of a worker that started from another iteration.
+	 */
+	private void checkForOtherRuns(final boolean beforeStarting)
+			throws IOException {
+		final String[] fileNames = directory.list();
+		if (fileNames == null) {
+			throw new IOException("Failed to list " + directory);
+		}
+		for (final String fileName : fileNames) {
+			final Matcher matcher = COUNTS_FILE.matcher(fileName);
+			final boolean isFirstRound = matcher.matches()
+					&& matcher.group(1).equals(matcher.group(2));
+			if (beforeStarting
+					&& (!isFirstRound || Integer.parseInt(matcher.group(3)) == workerId)) {
+				throw new IOException("Found " + fileName
+						+ " of a previous run, the directory " + directory
+						+ " must be cleared");
+			} else if (!beforeStarting && isFirstRound
+					&& Integer.parseInt(matcher.group(1)) != epoch) {
+				// Each worker writes its first round before checking, so
+				// that all of them fail
+				throw new IOException("Found the first round of worker "
+						+ matcher.group(3) + " from iteration "
+						+ matcher.group(1) + " but worker " + workerId
+						+ " started from " + epoch);
+			}
+		}
+	}
+
+	private File getDoneFile(final int worker) {
+		return new File(directory, "done-" + epoch + "-" + worker);
+	}
+
+	private File getFile(final int round, final int worker) {
+		return new File(directory, "counts-" + epoch + "-" + round + "-"
+				+ worker);
+	}
+
+	/**
+	 * End the current run, if it has not failed, and remove its files. Each
+	 * worker marks that it has read all the files of the last round and
+	 * worker 0 removes them once all workers have done so.
+	 */
+	public void finish() throws IOException {
+		if (syncedCounts == null) {
+			return;
+		}
+		syncedCounts = null;
+		if (workerId != 0) {
+			if (!getDoneFile(workerId).createNewFile()) {
+				throw new IOException("Failed to create "
+						+ getDoneFile(workerId));
+			}
+			return;
+		}
+		final long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_SECS
+				* 1000;
+		for (int worker = 1; worker < nWorkers; worker++) {
+			waitFor(getDoneFile(worker), deadline, false);
+		}
+		for (int worker = 0; worker < nWorkers; worker++) {
+			final File file = getFile(previousRound, worker);
+			if (!file.delete()) {
+				LOGGER.warning("Failed to delete " + file);
+			}
+			if (worker != 0 && !getDoneFile(worker).delete()) {
+				LOGGER.warning("Failed to delete " + getDoneFile(worker));
+			}
+		}
+	}
+
+	public int getNumberOfWorkers() {
+		return nWorkers;
+	}
+
+	public int getWorkerId() {
+		return workerId;
+	}
+
+	/**
+	 * Start a new run from the given iteration, sending the whole grammar to
+	 * the other workers and adding theirs to it. The grammar must therefore
+	 * only contain the counts of this worker. A run must be ended with
+	 * finish().
+	 *
+	 * @return true if any worker has requested to stop
+	 * @throws IOException
+	 *             if the directory contains the files of a previous run or
+	 *             any worker started from another iteration
+	 */
+	public boolean start(final int startIteration) throws IOException {
+		checkArgument(startIteration >= 0);
+		epoch = startIteration;
+		previousRound = -1;
+		syncedCounts = null;
+		if (!directory.isDirectory() && !directory.mkdirs()
+				&& !directory.isDirectory()) {
+			throw new IOException("Failed to create " + directory);
+		}
+		checkForOtherRuns(true);
+		syncedCounts = new int[0];
+		return synchronize(startIteration, false);
+	}
+
+	/**
+	 * Exchange the changes of the counts since the previous round with the
+	 * other workers. This blocks until all the workers have reached the same
+	 * round and must be called between iterations. Since the changes are
+	 * found by rule id, any unused rules of the grammar may only be released
+	 * (see TSGrammar.releaseUnusedRules()) right after this returns.
+	 *
+	 * @param round
+	 *            the round, greater than the previous one
+	 * @param stop
+	 *            request all workers to stop after this round
+	 * @return true if any worker has requested to stop
+	 * @throws IOException
+	 *             if the round failed, which ends the run
+	 */
+	public boolean synchronize(final int round, final boolean stop)
+			throws IOException {
+		checkState(syncedCounts != null, "No run has been started");
+		checkArgument(round > previousRound);
+		try {
+			return synchronizeRound(round, stop);
+		} catch (final IOException | RuntimeException e) {
+			// The files are left for inspection
+			syncedCounts = null;
+			throw e;
+		}
+	}
+
+	private boolean synchronizeRound(final int round, final boolean stop)
+			throws IOException {
+		writeChanges(round, stop);
+
+		final long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_SECS
+				* 1000;
+		boolean anyStopped = stop;
+		for (int worker = 0; worker < nWorkers; worker++) {
+			final File file = getFile(round, worker);
+			// A worker started from another iteration would never write the
+			// files of this run
+			waitFor(file, deadline, previousRound < 0);
+			if (worker != workerId) {
+				anyStopped |= applyChangesFrom(file, round);
+			}
+		}
+
+		// All workers have written this round, so they have read the files
+		// of the previous one.
+		if (previousRound >= 0) {
+			final File previousFile = getFile(previousRound, workerId);
+			if (!previousFile.delete()) {
+				LOGGER.warning("Failed to delete " + previousFile);
+			}
+		}
+		previousRound = round;
+
+		final int nRules = grammar.getNumberOfRules();
+		syncedCounts = new int[nRules];
+		for (int i = 0; i < nRules; i++) {
+			syncedCounts[i] = grammar.countRuleOccurences(i);
+		}
+		return anyStopped;
+	}
+
+	/**
+	 * Wait until the given file exists.
+	 *
+	 * @param checksOtherRuns
+	 *            fail if a worker has started from another iteration
+	 */
+	private void waitFor(final File file, final long deadline,
+			final boolean checksOtherRuns) throws IOException {
+		long pollMillis = 1;
+		while (!file.exists()) {
+			if (checksOtherRuns) {
+				checkForOtherRuns(false);
+			}
+			if (System.currentTimeMillis() > deadline) {
+				throw new IOException("Timed out waiting for " + file);
+			}
+			try {
+				Thread.sleep(pollMillis);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for " + file);
+			}
+			pollMillis = Math.min(2 * pollMillis, MAX_POLL_MILLIS);
+		}
+	}
+
+	/**
+	 * Write the changes of the counts since the previous round. The file is
+	 * renamed to its final name only after it has been fully written.
+	 */
+	private void writeChanges(final int round, final boolean stop)
+			throws IOException {
+		final int nRules = grammar.getNumberOfRules();
+		final int[] changes = new int[nRules];
+		int nChanges = 0;
+		for (int i = 0; i < nRules; i++) {
+			// UNK rules are only changed when pruning
+			if (grammar.getRule(i) == grammar.UNK_NODE) {
+				continue;
+			}
+			final int syncedCount = i < syncedCounts.length ? syncedCounts[i]
+					: 0;
+			changes[i] = grammar.countRuleOccurences(i) - syncedCount;
+			if (changes[i] != 0) {
+				nChanges++;
+			}
+		}
+
+		final File file = getFile(round, workerId);
+		final File tmpFile = new File(file.getPath() + ".tmp");
+		final Kryo kryo = createKryo();
+		try (final Output output = new Output(new BufferedOutputStream(
+				new FileOutputStream(tmpFile)))) {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeVarInt(epoch, true);
+			output.writeVarInt(round, true);
+			output.writeBoolean(stop);
+			output.writeVarInt(nChanges, true);
+			for (int i = 0; i < nRules; i++) {
+				if (changes[i] != 0) {
+					kryo.writeObject(output, grammar.getRule(i));
+					output.writeVarInt(changes[i], false);
+				}
+			}
+		} catch (final KryoException e) {
+			throw new IOException("Failed to write " + tmpFile, e);
+		}
+		if (!tmpFile.renameTo(file)) {
+			throw new IOException("Failed to rename " + tmpFile + " to "
+					+ file);
+		}
+		LOGGER.fine("Worker " + workerId + " wrote " + nChanges
+				+ " changes for round " + round);
+	}
+
+}
@@ -0,0 +1,197 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import codemining.lm.tsg.samplers.SamplerMetrics.IMetricsListener;
+import codemining.lm.tsg.samplers.SamplerMetrics.IterationStats;
+
+/**
+ * Expose the metrics of a sampler as a JMX bean, registered while the
+ * listener is open. Along with the statistics of the last iteration, the
+ * bean exposes the progress of the current iteration, so that a stalled
+ * sampler can be detected before the iteration completes.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class JmxMetricsListener implements IMetricsListener {
+
+	/**
+	 * The attributes of the sampler bean. Times are in seconds.
+	 */
+	public static interface SamplerMXBean {
+
+		double getAvgRuleSize();
+
+		long[] getBlockSizeHistogram();
+
+		double getCorpusLog2Prob();
+
+		int getCurrentIteration();
+
+		long getGrammarNodes();
+
+		double getLastIterationExtractionSeconds();
+
+		double getLastIterationPosteriorSeconds();
+
+		double getLastIterationSeconds();
+
+		double getLastIterationSitesPerSecond();
+
+		double getLastIterationUpdateSeconds();
+
+		int getNumberOfRules();
+
+		double getRootFlipRate();
+
+		double getSecondsSinceLastIteration();
+
+		long getSitesSampledInIteration();
+
+		long getUsedHeapBytes();
+	}
+
+	private static final class SamplerBean implements SamplerMXBean {
+
+		private final SamplerMetrics metrics;
+
+		SamplerBean(final SamplerMetrics metrics) {
+			this.metrics = metrics;
+		}
+
+		@Override
+		public double getAvgRuleSize() {
+			final IterationStats stats = metrics.getLastIterationStats();
+			return stats == null ? Double.NaN : stats.avgRuleSize;
+		}
+
+		@Override
+		public long[] getBlockSizeHistogram() {
+			final IterationStats stats = metrics.getLastIterationStats();
+			return stats == null ? new long[0] : stats.blockSizeHistogram
+					.clone();
+		}
+
+		@Override
+		public double getCorpusLog2Prob() {
+			final IterationStats stats = metrics.getLastIterationStats();
+			return stats == null ? Double.NaN : stats.corpusLog2Prob;
+		}
+
+		@Override
+		public int getCurrentIteration() {
+			return metrics.getCurrentIteration();
+		}
+
+		@Override
+		public long getGrammarNodes() {
+			final IterationStats stats = metrics.getLastIterationStats();
+			return stats == null ? 0 : stats.grammarNodes;
+		}
+
+		@Override
+		public double getLastIterationExtractionSeconds() {
+			final IterationStats stats = metrics.getLastIterationStats();
+			return stats == null ? Double.NaN : stats.extractionNanos / 1E9;
+		}
+
+		@Override
+		public double getLastIterationPosteriorSeconds() {
+			final IterationStats stats = metrics.getLastIterationStats();
+			return stats == null ? Double.NaN : stats.posteriorNanos / 1E9;
+		}
+
+		@Override
+		public double getLastIterationSeconds() {
+			final IterationStats stats = metrics.getLastIterationStats();
+			return stats == null ? Double.NaN : stats.wallNanos / 1E9;
+		}
+
+		@Override
+		public double getLastIterationSitesPerSecond() {
+			final IterationStats stats = metrics.getLastIterationStats();
+			return stats == null ? Double.NaN : stats.getSitesPerSecond();
+		}
+
+		@Override
+		public double getLastIterationUpdateSeconds() {
+			final IterationStats stats = metrics.getLastIterationStats();
+			return stats == null ? Double.NaN : stats.updateNanos / 1E9;
+		}
+
+		@Override
+		public int getNumberOfRules() {
+			final IterationStats stats = metrics.getLastIterationStats();
+			return stats == null ? 0 : stats.nRules;
+		}
+
+		@Override
+		public double getRootFlipRate() {
+			final IterationStats stats = metrics.getLastIterationStats();
+			return stats == null ? Double.NaN : stats.getRootFlipRate();
+		}
+
+		@Override
+		public double getSecondsSinceLastIteration() {
+			return metrics.getMillisSinceLastIteration() / 1000.;
+		}
+
+		@Override
+		public long getSitesSampledInIteration() {
+			return metrics.getSitesSampledInIteration();
+		}
+
+		@Override
+		public long getUsedHeapBytes() {
+			final Runtime runtime = Runtime.getRuntime();
+			return runtime.totalMemory() - runtime.freeMemory();
+		}
+	}
+
+	/**
+	 * Distinguishes the beans of the samplers of the same JVM.
+	 */
+	private static final AtomicInteger NEXT_BEAN_ID = new AtomicInteger();
+
+	private final MBeanServer server;
+
+	private final ObjectName name;
+
+	public JmxMetricsListener(final SamplerMetrics metrics,
+			final MBeanServer server) throws JMException {
+		this.server = server;
+		name = new ObjectName("codemining.lm.tsg:type=Sampler,id="
+				+ NEXT_BEAN_ID.getAndIncrement());
+		server.registerMBean(new StandardMBean(new SamplerBean(metrics),
+				SamplerMXBean.class, true), name);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			server.unregisterMBean(name);
+		} catch (final JMException e) {
+			throw new IOException(e);
+		}
+	}
+
+	public ObjectName getName() {
+		return name;
+	}
+
+	@Override
+	public void iterationCompleted(final IterationStats stats) {
+		// The bean reads the latest statistics from the metrics
+	}
+
+}
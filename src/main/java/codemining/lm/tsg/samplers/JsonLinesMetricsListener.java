@@ -0,0 +1,61 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import codemining.lm.tsg.samplers.SamplerMetrics.IMetricsListener;
+import codemining.lm.tsg.samplers.SamplerMetrics.IterationStats;
+
+/**
+ * Append the statistics of each iteration to a file, one JSON object per
+ * line. Each line is flushed, so that the file can be followed while
+ * sampling. Resumed runs append to the same file.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class JsonLinesMetricsListener implements IMetricsListener {
+
+	private static final Logger LOGGER = Logger
+			.getLogger(JsonLinesMetricsListener.class.getName());
+
+	private final Writer writer;
+
+	public JsonLinesMetricsListener(final File file) throws IOException {
+		final File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file, true), StandardCharsets.UTF_8));
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		writer.close();
+	}
+
+	@Override
+	public synchronized void iterationCompleted(final IterationStats stats) {
+		try {
+			writer.write(stats.toJson());
+			writer.write('\n');
+			writer.flush();
+		} catch (final IOException e) {
+			LOGGER.warning("Failed to write metrics "
+					+ ExceptionUtils.getFullStackTrace(e));
+		}
+	}
+
+}
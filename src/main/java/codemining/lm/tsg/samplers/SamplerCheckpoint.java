@@ -0,0 +1,553 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.SerializationException;
+import org.apache.commons.lang.SerializationUtils;
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import codemining.ast.AbstractTreeExtractor;
+import codemining.ast.AstNodeSymbol;
+import codemining.ast.TreeNode;
+import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
+import codemining.util.SettingsLoader;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A checkpoint of the mutable state of a sampler: the root flags of the
+ * corpus trees, the burn-in grammar and the number of completed iterations.
+ * The sample grammar (and any other derived state) is rebuilt from the root
+ * flags when the checkpoint is restored. The corpus itself and the CFG prior
+ * are not part of the checkpoint; the sampler must be recreated from the same
+ * data (in the same order) before restoring.
+ *
+ * The burn-in rules are stored with the symbol ids of the sampler, along with
+ * the symbols of these ids, and are mapped to the ids of the sampler they are
+ * restored to. The ids depend on the order that the corpus was parsed in (see
+ * TreeCorpusLoader), so they may differ across runs. The ids are stored as
+ * they are only if the grammar has no symbols.
+ *
+ * The random generators of the blocked sampler depend only on the seed and
+ * the iteration, so the iteration number is all the random state needed.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class SamplerCheckpoint {
+
+	/**
+	 * Writes checkpoints in a background thread. At most one checkpoint is
+	 * being written at any time.
+	 */
+	public static final class AsyncWriter {
+
+		private final File checkpointFile;
+
+		private final ExecutorService executor = Executors
+				.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread thread = new Thread(r,
+								"SamplerCheckpointWriter");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+		private Future<?> pendingWrite;
+
+		public AsyncWriter(final File checkpointFile) {
+			this.checkpointFile = checkpointFile;
+		}
+
+		/**
+		 * Wait for the checkpoint being written (if any).
+		 */
+		public synchronized void awaitPendingWrite() {
+			if (pendingWrite == null) {
+				return;
+			}
+			try {
+				pendingWrite.get();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (final ExecutionException e) {
+				LOGGER.warning("Failed to write checkpoint "
+						+ ExceptionUtils.getFullStackTrace(e));
+			}
+			pendingWrite = null;
+		}
+
+		/**
+		 * Take a snapshot of the sampler and write it in the background. This
+		 * must be called between iterations.
+		 */
+		public synchronized void checkpoint(final AbstractTSGSampler sampler,
+				final int nCompletedIterations) {
+			awaitPendingWrite();
+			final SamplerCheckpoint checkpoint = SamplerCheckpoint.of(sampler,
+					nCompletedIterations);
+			pendingWrite = executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						checkpoint.writeTo(checkpointFile);
+						LOGGER.info("Checkpoint after iteration "
+								+ nCompletedIterations + " written to "
+								+ checkpointFile);
+					} catch (final IOException e) {
+						LOGGER.warning("Failed to write checkpoint "
+								+ ExceptionUtils.getFullStackTrace(e));
+					}
+				}
+			});
+		}
+
+		/**
+		 * Wait for the pending checkpoint and stop the writer thread.
+		 */
+		public void close() {
+			awaitPendingWrite();
+			executor.shutdown();
+		}
+	}
+
+	private static final Logger LOGGER = Logger
+			.getLogger(SamplerCheckpoint.class.getName());
+
+	/**
+	 * The number of iterations between checkpoints. 0 disables checkpoints.
+	 */
+	public static final int CHECKPOINT_INTERVAL = (int) SettingsLoader
+			.getNumericSetting("checkpointInterval", 10);
+
+	public static final String CHECKPOINT_FILE = SettingsLoader
+			.getStringSetting("checkpointFile", "tsgSampler.ckpt");
+
+	private static final int MAGIC = 0x54534743;
+
+	private static final int VERSION = 3;
+
+	/**
+	 * Return the symbols of the node keys used in the given rules, as mapped
+	 * by the format of the grammar, or null if the grammar has no symbols for
+	 * them.
+	 */
+	private static SortedMap<Integer, AstNodeSymbol> getSymbols(
+			final TSGrammar<TSGNode> grammar,
+			final List<TreeNode<TSGNode>> rules) {
+		if (!(grammar instanceof FormattedTSGrammar)) {
+			return null;
+		}
+		final AbstractTreeExtractor format = grammar.getTreeExtractor();
+		final SortedMap<Integer, AstNodeSymbol> symbols = Maps.newTreeMap();
+		final ArrayDeque<TreeNode<TSGNode>> toVisit = new ArrayDeque<TreeNode<TSGNode>>();
+		for (final TreeNode<TSGNode> rule : rules) {
+			toVisit.push(rule);
+			while (!toVisit.isEmpty()) {
+				final TreeNode<TSGNode> current = toVisit.pop();
+				final int nodeKey = current.getData().nodeKey;
+				if (!symbols.containsKey(nodeKey)) {
+					final AstNodeSymbol symbol = format.getSymbol(nodeKey);
+					if (symbol == null) {
+						return null;
+					}
+					symbols.put(nodeKey, symbol);
+				}
+				pushChildren(current, toVisit);
+			}
+		}
+		return symbols;
+	}
+
+	/**
+	 * Return the root flags of the given tree in pre-order.
+	 */
+	private static BitSet getRootFlags(final TreeNode<TSGNode> tree) {
+		final BitSet flags = new BitSet();
+		int nodeIdx = 0;
+		final ArrayDeque<TreeNode<TSGNode>> toVisit = new ArrayDeque<TreeNode<TSGNode>>();
+		toVisit.push(tree);
+		while (!toVisit.isEmpty()) {
+			final TreeNode<TSGNode> current = toVisit.pop();
+			flags.set(nodeIdx++, current.getData().isRoot);
+			pushChildren(current, toVisit);
+		}
+		return flags;
+	}
+
+	/**
+	 * Take a snapshot of the mutable state of the sampler.
+	 *
+	 * @param sampler
+	 * @param nCompletedIterations
+	 * @return
+	 */
+	public static SamplerCheckpoint of(final AbstractTSGSampler sampler,
+			final int nCompletedIterations) {
+		final List<TreeNode<TSGNode>> corpus = sampler.getTreeCorpus();
+		final int[] treeSizes = new int[corpus.size()];
+		final long[][] rootFlags = new long[corpus.size()][];
+		for (int i = 0; i < treeSizes.length; i++) {
+			treeSizes[i] = corpus.get(i).getTreeSize();
+			rootFlags[i] = getRootFlags(corpus.get(i)).toLongArray();
+		}
+
+		// Rules are immutable, so only their counts need to be copied
+		final TSGrammar<TSGNode> burnin = sampler.getBurnInGrammar();
+		final List<TreeNode<TSGNode>> burninRules = Lists.newArrayList();
+		final int nRules = burnin.getNumberOfRules();
+		final int[] counts = new int[nRules];
+		for (int ruleId = 0; ruleId < nRules; ruleId++) {
+			final int count = burnin.countRuleOccurences(ruleId);
+			if (count > 0 && burnin.getRule(ruleId).getData() != null) {
+				counts[burninRules.size()] = count;
+				burninRules.add(burnin.getRule(ruleId));
+			}
+		}
+
+		return new SamplerCheckpoint(nCompletedIterations,
+				sampler.getRandomSeed(), treeSizes, rootFlags, getSymbols(
+						burnin, burninRules), burninRules, counts);
+	}
+
+	/**
+	 * Push the children of the node so that they are popped in order.
+	 */
+	private static void pushChildren(final TreeNode<TSGNode> node,
+			final ArrayDeque<TreeNode<TSGNode>> toVisit) {
+		final List<List<TreeNode<TSGNode>>> children = node
+				.getChildrenByProperty();
+		for (int i = children.size() - 1; i >= 0; i--) {
+			final List<TreeNode<TSGNode>> childrenForProperty = children.get(i);
+			for (int j = childrenForProperty.size() - 1; j >= 0; j--) {
+				toVisit.push(childrenForProperty.get(j));
+			}
+		}
+	}
+
+	/**
+	 * Read a checkpoint from the given file.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static SamplerCheckpoint readFrom(final File file)
+			throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException(file + " is not a sampler checkpoint");
+			}
+			final int nCompletedIterations = in.readInt();
+			final long randomSeed = in.readLong();
+
+			final int nTrees = in.readInt();
+			final int[] treeSizes = new int[nTrees];
+			final long[][] rootFlags = new long[nTrees][];
+			for (int i = 0; i < nTrees; i++) {
+				treeSizes[i] = in.readInt();
+				rootFlags[i] = new long[in.readInt()];
+				for (int j = 0; j < rootFlags[i].length; j++) {
+					rootFlags[i][j] = in.readLong();
+				}
+			}
+
+			SortedMap<Integer, AstNodeSymbol> symbols = null;
+			if (in.readBoolean()) {
+				symbols = Maps.newTreeMap();
+				final int nSymbols = in.readInt();
+				for (int i = 0; i < nSymbols; i++) {
+					final int nodeKey = in.readInt();
+					final byte[] symbol = new byte[in.readInt()];
+					in.readFully(symbol);
+					symbols.put(nodeKey,
+							(AstNodeSymbol) SerializationUtils
+									.deserialize(symbol));
+				}
+			}
+			final int nRules = in.readInt();
+			final List<TreeNode<TSGNode>> burninRules = Lists
+					.newArrayListWithCapacity(nRules);
+			final int[] counts = new int[nRules];
+			for (int i = 0; i < nRules; i++) {
+				counts[i] = in.readInt();
+				burninRules.add(readRule(in));
+			}
+			return new SamplerCheckpoint(nCompletedIterations, randomSeed,
+					treeSizes, rootFlags, symbols, burninRules, counts);
+		} catch (final SerializationException e) {
+			throw new IOException("Failed to read a symbol of " + file, e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read a rule written by writeRule().
+	 */
+	private static TreeNode<TSGNode> readRule(final DataInputStream in)
+			throws IOException {
+		return TreeNode.PreOrderCodec.read(
+				new TreeNode.PreOrderCodec.INodeInput<TSGNode, IOException>() {
+					@Override
+					public int readCount() throws IOException {
+						return in.readInt();
+					}
+
+					@Override
+					public TSGNode readData() throws IOException {
+						final TSGNode data = new TSGNode(in.readInt());
+						data.isRoot = in.readBoolean();
+						return data;
+					}
+				}, true);
+	}
+
+	/**
+	 * Return an immutable copy of the rule, with its node keys mapped to the
+	 * given ones.
+	 */
+	private static TreeNode<TSGNode> mapNodeKeys(final TreeNode<TSGNode> rule,
+			final Map<Integer, Integer> nodeKeys) {
+		final TreeNode<TSGNode> mapped = TreeNode.create(
+				mapNodeKey(rule.getData(), nodeKeys), rule.nProperties());
+		final ArrayDeque<TreeNode<TSGNode>> toVisit = new ArrayDeque<TreeNode<TSGNode>>();
+		final ArrayDeque<TreeNode<TSGNode>> toVisitMapped = new ArrayDeque<TreeNode<TSGNode>>();
+		toVisit.push(rule);
+		toVisitMapped.push(mapped);
+		while (!toVisit.isEmpty()) {
+			final TreeNode<TSGNode> current = toVisit.pop();
+			final TreeNode<TSGNode> currentMapped = toVisitMapped.pop();
+			final List<List<TreeNode<TSGNode>>> children = current
+					.getChildrenByProperty();
+			for (int i = 0; i < children.size(); i++) {
+				for (final TreeNode<TSGNode> child : children.get(i)) {
+					final TreeNode<TSGNode> childMapped = TreeNode.create(
+							mapNodeKey(child.getData(), nodeKeys),
+							child.nProperties());
+					currentMapped.addChildNode(childMapped, i);
+					toVisit.push(child);
+					toVisitMapped.push(childMapped);
+				}
+			}
+		}
+		return mapped.toImmutable();
+	}
+
+	private static TSGNode mapNodeKey(final TSGNode node,
+			final Map<Integer, Integer> nodeKeys) {
+		final TSGNode mapped = new TSGNode(nodeKeys.get(node.nodeKey));
+		mapped.isRoot = node.isRoot;
+		return mapped;
+	}
+
+	/**
+	 * Write the rule with the TreeNode.PreOrderCodec.
+	 */
+	private static void writeRule(final TreeNode<TSGNode> rule,
+			final DataOutputStream out) throws IOException {
+		TreeNode.PreOrderCodec.write(rule,
+				new TreeNode.PreOrderCodec.INodeOutput<TSGNode, IOException>() {
+					@Override
+					public void writeCount(final int count) throws IOException {
+						out.writeInt(count);
+					}
+
+					@Override
+					public void writeData(final TSGNode data)
+							throws IOException {
+						out.writeInt(data.nodeKey);
+						out.writeBoolean(data.isRoot);
+					}
+				});
+	}
+
+	private final int nCompletedIterations;
+
+	private final long randomSeed;
+
+	private final int[] treeSizes;
+
+	private final long[][] rootFlags;
+
+	/**
+	 * The symbols of the node keys of the burn-in rules, or null if the
+	 * grammar has no symbols.
+	 */
+	private final SortedMap<Integer, AstNodeSymbol> symbols;
+
+	private final List<TreeNode<TSGNode>> burninRules;
+
+	private final int[] burninCounts;
+
+	private SamplerCheckpoint(final int nCompletedIterations,
+			final long randomSeed, final int[] treeSizes,
+			final long[][] rootFlags,
+			final SortedMap<Integer, AstNodeSymbol> symbols,
+			final List<TreeNode<TSGNode>> burninRules, final int[] burninCounts) {
+		this.nCompletedIterations = nCompletedIterations;
+		this.randomSeed = randomSeed;
+		this.treeSizes = treeSizes;
+		this.rootFlags = rootFlags;
+		this.symbols = symbols;
+		this.burninRules = burninRules;
+		this.burninCounts = burninCounts;
+	}
+
+	/**
+	 * Return the number of iterations that had been completed when the
+	 * checkpoint was taken, i.e. the iteration from which to resume.
+	 */
+	public int getNumberOfCompletedIterations() {
+		return nCompletedIterations;
+	}
+
+	/**
+	 * Restore the state of the checkpoint to the given sampler, whose corpus
+	 * must be the same as the one of the checkpointed sampler.
+	 *
+	 * @param sampler
+	 * @throws IOException
+	 *             if the checkpoint does not match the corpus or the symbols
+	 *             of the sampler. The sampler is then left unchanged.
+	 */
+	public void restoreTo(final AbstractTSGSampler sampler) throws IOException {
+		final List<TreeNode<TSGNode>> corpus = sampler.getTreeCorpus();
+		if (corpus.size() != treeSizes.length) {
+			throw new IOException("The checkpoint has " + treeSizes.length
+					+ " trees but the corpus has " + corpus.size());
+		}
+		for (int i = 0; i < treeSizes.length; i++) {
+			if (corpus.get(i).getTreeSize() != treeSizes[i]) {
+				throw new IOException("Tree " + i
+						+ " has a different size in the checkpoint");
+			}
+		}
+		final TSGrammar<TSGNode> burnin = sampler.getBurnInGrammar();
+		final List<TreeNode<TSGNode>> rules;
+		if (symbols == null) {
+			rules = burninRules;
+		} else if (!(burnin instanceof FormattedTSGrammar)) {
+			throw new IOException(
+					"The checkpoint has symbols but the grammar of the sampler has none");
+		} else {
+			final AbstractTreeExtractor format = burnin.getTreeExtractor();
+			final Map<Integer, Integer> nodeKeys = Maps.newHashMap();
+			for (final Map.Entry<Integer, AstNodeSymbol> symbol : symbols
+					.entrySet()) {
+				nodeKeys.put(symbol.getKey(),
+						format.getOrAddSymbolId(symbol.getValue()));
+			}
+			rules = Lists.newArrayListWithCapacity(burninRules.size());
+			for (final TreeNode<TSGNode> rule : burninRules) {
+				rules.add(mapNodeKeys(rule, nodeKeys));
+			}
+		}
+		if (randomSeed != sampler.getRandomSeed()) {
+			LOGGER.warning("The checkpoint was taken with random seed "
+					+ randomSeed + " but the sampler uses "
+					+ sampler.getRandomSeed());
+		}
+
+		for (int i = 0; i < treeSizes.length; i++) {
+			final TreeNode<TSGNode> tree = corpus.get(i);
+			final BitSet flags = BitSet.valueOf(rootFlags[i]);
+			int nodeIdx = 0;
+			final ArrayDeque<TreeNode<TSGNode>> toVisit = new ArrayDeque<TreeNode<TSGNode>>();
+			toVisit.push(tree);
+			while (!toVisit.isEmpty()) {
+				final TreeNode<TSGNode> current = toVisit.pop();
+				current.getData().isRoot = flags.get(nodeIdx++);
+				pushChildren(current, toVisit);
+			}
+		}
+		sampler.rootFlagsRestored();
+
+		burnin.clear();
+		for (int i = 0; i < rules.size(); i++) {
+			burnin.addTree(rules.get(i), burninCounts[i]);
+		}
+	}
+
+	/**
+	 * Write the checkpoint to the given file. The file is atomically replaced
+	 * only after the checkpoint has been fully written, so a crash always
+	 * leaves either the old or the new checkpoint.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void writeTo(final File file) throws IOException {
+		final File tmpFile = new File(file.getPath() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmpFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(nCompletedIterations);
+			out.writeLong(randomSeed);
+
+			out.writeInt(treeSizes.length);
+			for (int i = 0; i < treeSizes.length; i++) {
+				out.writeInt(treeSizes[i]);
+				out.writeInt(rootFlags[i].length);
+				for (final long word : rootFlags[i]) {
+					out.writeLong(word);
+				}
+			}
+
+			out.writeBoolean(symbols != null);
+			if (symbols != null) {
+				out.writeInt(symbols.size());
+				for (final Map.Entry<Integer, AstNodeSymbol> symbol : symbols
+						.entrySet()) {
+					final byte[] bytes = SerializationUtils.serialize(symbol
+							.getValue());
+					out.writeInt(symbol.getKey());
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
+			}
+			out.writeInt(burninRules.size());
+			for (int i = 0; i < burninRules.size(); i++) {
+				out.writeInt(burninCounts[i]);
+				writeRule(burninRules.get(i), out);
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmpFile.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,475 @@
+/**
+ *
+ */
+package codemining.lm.tsg.samplers;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.exception.ExceptionUtils;
+
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
+import codemining.util.SettingsLoader;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Instrumentation of a sampler. The samplers record each sampled site (the
+ * time spent in extracting the fragments, computing the posterior and
+ * updating the grammar, the size of the sampled block and the number of root
+ * flags changed) from any thread. At the end of every iteration a snapshot of
+ * the iteration, the grammar and the corpus log-probability is passed to the
+ * registered listeners. Optionally, the statistics of the grammar are also
+ * logged every few sampled sites.
+ *
+ * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
+ *
+ */
+public class SamplerMetrics {
+
+	/**
+	 * A listener of the iteration statistics of a sampler.
+	 */
+	public static interface IMetricsListener extends Closeable {
+
+		@Override
+		default void close() throws IOException {
+			// Nothing to release by default
+		}
+
+		void iterationCompleted(IterationStats stats);
+	}
+
+	/**
+	 * The statistics of a single sampling iteration.
+	 */
+	public static final class IterationStats {
+
+		public final int iteration;
+
+		/**
+		 * The wall clock time the iteration ended at, in ms since the epoch.
+		 */
+		public final long endTimeMillis;
+
+		public final long wallNanos;
+
+		/**
+		 * The number of sampled sites (for the blocked sampler, blocks).
+		 */
+		public final long sitesSampled;
+
+		/**
+		 * The number of nodes in the sampled blocks and how many of them had
+		 * their root flag changed.
+		 */
+		public final long nodesInBlocks;
+		public final long rootFlips;
+
+		/**
+		 * The time spent in each phase of sampling the sites, summed over the
+		 * sampling threads.
+		 */
+		public final long extractionNanos;
+		public final long posteriorNanos;
+		public final long updateNanos;
+
+		/**
+		 * The number of blocks whose size is in [2^i, 2^(i+1)) at position
+		 * i. Trailing empty buckets are omitted.
+		 */
+		public final long[] blockSizeHistogram;
+
+		/**
+		 * The number of rules with non-zero count, the total count of the
+		 * rules and their average size (weighted by count).
+		 */
+		public final int nRules;
+		public final long nRuleOccurences;
+		public final double avgRuleSize;
+
+		/**
+		 * The number of interned rules and their total number of nodes, as
+		 * an estimate of the grammar's memory footprint.
+		 */
+		public final int nInternedRules;
+		public final long grammarNodes;
+
+		public final long usedHeapBytes;
+
+		/**
+		 * The log-probability of the corpus or NaN if it was not computed in
+		 * this iteration.
+		 */
+		public final double corpusLog2Prob;
+		public final int corpusNodes;
+
+		IterationStats(final int iteration, final long endTimeMillis,
+				final long wallNanos, final long sitesSampled,
+				final long nodesInBlocks, final long rootFlips,
+				final long extractionNanos, final long posteriorNanos,
+				final long updateNanos, final long[] blockSizeHistogram,
+				final int nRules, final long nRuleOccurences,
+				final double avgRuleSize, final int nInternedRules,
+				final long grammarNodes, final long usedHeapBytes,
+				final double corpusLog2Prob, final int corpusNodes) {
+			this.iteration = iteration;
+			this.endTimeMillis = endTimeMillis;
+			this.wallNanos = wallNanos;
+			this.sitesSampled = sitesSampled;
+			this.nodesInBlocks = nodesInBlocks;
+			this.rootFlips = rootFlips;
+			this.extractionNanos = extractionNanos;
+			this.posteriorNanos = posteriorNanos;
+			this.updateNanos = updateNanos;
+			this.blockSizeHistogram = blockSizeHistogram;
+			this.nRules = nRules;
+			this.nRuleOccurences = nRuleOccurences;
+			this.avgRuleSize = avgRuleSize;
+			this.nInternedRules = nInternedRules;
+			this.grammarNodes = grammarNodes;
+			this.usedHeapBytes = usedHeapBytes;
+			this.corpusLog2Prob = corpusLog2Prob;
+			this.corpusNodes = corpusNodes;
+		}
+
+		/**
+		 * Return the fraction of the nodes in the sampled blocks whose root
+		 * flag changed. This goes down as the sampler converges.
+		 */
+		public double getRootFlipRate() {
+			return nodesInBlocks == 0 ? 0 : ((double) rootFlips)
+					/ nodesInBlocks;
+		}
+
+		public double getSitesPerSecond() {
+			return wallNanos == 0 ? 0 : sitesSampled * 1E9 / wallNanos;
+		}
+
+		/**
+		 * Return the statistics as a single line JSON object.
+		 */
+		public String toJson() {
+			final StringBuilder sb = new StringBuilder();
+			sb.append("{\"iteration\":").append(iteration);
+			sb.append(",\"endTimeMillis\":").append(endTimeMillis);
+			sb.append(",\"wallSeconds\":").append(toJson(wallNanos / 1E9));
+			sb.append(",\"sitesSampled\":").append(sitesSampled);
+			sb.append(",\"sitesPerSecond\":").append(
+					toJson(getSitesPerSecond()));
+			sb.append(",\"nodesInBlocks\":").append(nodesInBlocks);
+			sb.append(",\"rootFlips\":").append(rootFlips);
+			sb.append(",\"rootFlipRate\":").append(toJson(getRootFlipRate()));
+			sb.append(",\"extractionSeconds\":").append(
+					toJson(extractionNanos / 1E9));
+			sb.append(",\"posteriorSeconds\":").append(
+					toJson(posteriorNanos / 1E9));
+			sb.append(",\"updateSeconds\":")
+					.append(toJson(updateNanos / 1E9));
+			sb.append(",\"blockSizeHistogram\":[");
+			for (int i = 0; i < blockSizeHistogram.length; i++) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				sb.append(blockSizeHistogram[i]);
+			}
+			sb.append("],\"nRules\":").append(nRules);
+			sb.append(",\"nRuleOccurences\":").append(nRuleOccurences);
+			sb.append(",\"avgRuleSize\":").append(toJson(avgRuleSize));
+			sb.append(",\"nInternedRules\":").append(nInternedRules);
+			sb.append(",\"grammarNodes\":").append(grammarNodes);
+			sb.append(",\"usedHeapBytes\":").append(usedHeapBytes);
+			sb.append(",\"corpusLog2Prob\":").append(toJson(corpusLog2Prob));
+			sb.append(",\"corpusNodes\":").append(corpusNodes);
+			sb.append('}');
+			return sb.toString();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Iteration %d: %.1f sites/s, %.4f root flip"
+					+ " rate, %d rules (avg size %.2f)", iteration,
+					getSitesPerSecond(), getRootFlipRate(), nRules,
+					avgRuleSize);
+		}
+
+		private static String toJson(final double value) {
+			if (Double.isNaN(value) || Double.isInfinite(value)) {
+				return "null";
+			}
+			return String.format(Locale.ROOT, "%.6g", value);
+		}
+	}
+
+	private static final Logger LOGGER = Logger.getLogger(SamplerMetrics.class
+			.getName());
+
+	/**
+	 * The file where the statistics of each iteration are appended to as JSON
+	 * lines, if not empty.
+	 */
+	public static final String METRICS_FILE = SettingsLoader.getStringSetting(
+			"samplerMetricsFile", "");
+
+	/**
+	 * Are the metrics exposed as JMX beans?
+	 */
+	public static final boolean METRICS_JMX = SettingsLoader
+			.getBooleanSetting("samplerMetricsJmx", false);
+
+	/**
+	 * Every how many sampled sites the statistics of the sample grammar are
+	 * logged, if positive.
+	 */
+	public static final long STATS_SITE_INTERVAL = (long) SettingsLoader
+			.getNumericSetting("samplerStatsSiteInterval", 0);
+
+	static final int N_BLOCK_SIZE_BUCKETS = 32;
+
+	/**
+	 * Return the histogram bucket of the given block size.
+	 */
+	static int getBlockSizeBucket(final int blockSize) {
+		return 31 - Integer.numberOfLeadingZeros(blockSize);
+	}
+
+	private final List<IMetricsListener> listeners = new CopyOnWriteArrayList<IMetricsListener>();
+
+	private final LongAdder sitesSampled = new LongAdder();
+	private final LongAdder nodesInBlocks = new LongAdder();
+	private final LongAdder rootFlips = new LongAdder();
+	private final LongAdder extractionNanos = new LongAdder();
+	private final LongAdder posteriorNanos = new LongAdder();
+	private final LongAdder updateNanos = new LongAdder();
+	private final AtomicLongArray blockSizes = new AtomicLongArray(
+			N_BLOCK_SIZE_BUCKETS);
+
+	/**
+	 * The sites sampled since logGrammarStatsEvery() was called.
+	 */
+	private final AtomicLong totalSitesSampled = new AtomicLong();
+
+	private volatile long statsSiteInterval = 0;
+
+	private volatile TSGrammar<TSGNode> statsGrammar;
+
+	private volatile int currentIteration = -1;
+
+	private volatile long iterationStartNanos = System.nanoTime();
+
+	private volatile long lastIterationEndMillis = System.currentTimeMillis();
+
+	private volatile IterationStats lastIterationStats;
+
+	public void addListener(final IMetricsListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Register the listeners configured in the settings (see METRICS_FILE
+	 * and METRICS_JMX) and return them, so that they can be removed when
+	 * sampling ends.
+	 */
+	public List<IMetricsListener> addListenersFromSettings() {
+		final List<IMetricsListener> added = Lists.newArrayList();
+		if (!METRICS_FILE.isEmpty()) {
+			try {
+				added.add(new JsonLinesMetricsListener(new File(METRICS_FILE)));
+			} catch (final IOException e) {
+				LOGGER.warning("Failed to open metrics file " + METRICS_FILE
+						+ " " + ExceptionUtils.getFullStackTrace(e));
+			}
+		}
+		if (METRICS_JMX) {
+			try {
+				added.add(new JmxMetricsListener(this, ManagementFactory
+						.getPlatformMBeanServer()));
+			} catch (final Exception e) {
+				LOGGER.warning("Failed to register the sampler metrics bean "
+						+ ExceptionUtils.getFullStackTrace(e));
+			}
+		}
+		listeners.addAll(added);
+		return added;
+	}
+
+	/**
+	 * Compute the statistics of the iteration that has just completed, given
+	 * the current sample grammar and (optionally) the corpus log-probability,
+	 * and pass them to the listeners.
+	 *
+	 * @param sampleGrammar
+	 * @param corpusStats
+	 *            the corpus log-probability or null if it was not computed
+	 * @return the statistics
+	 */
+	public IterationStats completeIteration(
+			final TSGrammar<TSGNode> sampleGrammar,
+			final AbstractTSGSampler.SampleStats corpusStats) {
+		final long wallNanos = System.nanoTime() - iterationStartNanos;
+
+		int nBuckets = N_BLOCK_SIZE_BUCKETS;
+		while (nBuckets > 0 && blockSizes.get(nBuckets - 1) == 0) {
+			nBuckets--;
+		}
+		final long[] histogram = new long[nBuckets];
+		for (int i = 0; i < nBuckets; i++) {
+			histogram[i] = blockSizes.get(i);
+		}
+
+		final Runtime runtime = Runtime.getRuntime();
+		final IterationStats stats = new IterationStats(currentIteration,
+				System.currentTimeMillis(), wallNanos, sitesSampled.sum(),
+				nodesInBlocks.sum(), rootFlips.sum(), extractionNanos.sum(),
+				posteriorNanos.sum(), updateNanos.sum(), histogram,
+				sampleGrammar.getNumberOfDistinctRules(),
+				sampleGrammar.getTotalRuleCount(),
+				sampleGrammar.getMeanRuleSize(),
+				sampleGrammar.getNumberOfRules(),
+				sampleGrammar.getSizeOfInternedRules(), runtime.totalMemory()
+						- runtime.freeMemory(),
+				corpusStats == null ? Double.NaN : corpusStats.log2Prob,
+				corpusStats == null ? 0 : corpusStats.totalNodes);
+		lastIterationStats = stats;
+		lastIterationEndMillis = stats.endTimeMillis;
+
+		for (final IMetricsListener listener : listeners) {
+			try {
+				listener.iterationCompleted(stats);
+			} catch (final Throwable e) {
+				LOGGER.warning("Metrics listener failed "
+						+ ExceptionUtils.getFullStackTrace(e));
+			}
+		}
+		return stats;
+	}
+
+	public int getCurrentIteration() {
+		return currentIteration;
+	}
+
+	/**
+	 * Return the statistics of the last completed iteration or null if no
+	 * iteration has completed.
+	 */
+	public IterationStats getLastIterationStats() {
+		return lastIterationStats;
+	}
+
+	/**
+	 * Return the time since the last iteration was completed (or since the
+	 * metrics were created).
+	 */
+	public long getMillisSinceLastIteration() {
+		return System.currentTimeMillis() - lastIterationEndMillis;
+	}
+
+	/**
+	 * Return the number of sites sampled so far in the current iteration.
+	 */
+	public long getSitesSampledInIteration() {
+		return sitesSampled.sum();
+	}
+
+	public boolean hasListeners() {
+		return !listeners.isEmpty();
+	}
+
+	/**
+	 * Log the statistics of the given grammar every siteInterval sampled
+	 * sites, across iterations. A non-positive interval stops the logging.
+	 */
+	public void logGrammarStatsEvery(final long siteInterval,
+			final TSGrammar<TSGNode> grammar) {
+		checkArgument(siteInterval <= 0 || grammar != null);
+		statsGrammar = grammar;
+		totalSitesSampled.set(0);
+		statsSiteInterval = siteInterval;
+	}
+
+	/**
+	 * Record a sampled site (or block of sites).
+	 *
+	 * @param extractionNanos
+	 *            the time spent extracting the fragments
+	 * @param posteriorNanos
+	 *            the time spent computing the posterior and sampling
+	 * @param updateNanos
+	 *            the time spent updating the grammar and root flags
+	 * @param blockSize
+	 *            the number of nodes sampled jointly
+	 * @param nRootFlips
+	 *            the number of nodes whose root flag was changed
+	 */
+	public void recordSite(final long extractionNanos,
+			final long posteriorNanos, final long updateNanos,
+			final int blockSize, final int nRootFlips) {
+		checkArgument(blockSize >= nRootFlips && nRootFlips >= 0);
+		sitesSampled.increment();
+		nodesInBlocks.add(blockSize);
+		rootFlips.add(nRootFlips);
+		this.extractionNanos.add(extractionNanos);
+		this.posteriorNanos.add(posteriorNanos);
+		this.updateNanos.add(updateNanos);
+		if (blockSize > 0) {
+			blockSizes.incrementAndGet(getBlockSizeBucket(blockSize));
+		}
+
+		final long interval = statsSiteInterval;
+		if (interval > 0) {
+			final long nSites = totalSitesSampled.incrementAndGet();
+			final TSGrammar<TSGNode> grammar = statsGrammar;
+			if (nSites % interval == 0 && grammar != null) {
+				LOGGER.info(String.format("%d sites sampled: %d rules (%d"
+						+ " distinct), avg size %.2f", nSites,
+						grammar.getTotalRuleCount(),
+						grammar.getNumberOfDistinctRules(),
+						grammar.getMeanRuleSize()));
+			}
+		}
+	}
+
+	/**
+	 * Remove the given listener and close it.
+	 */
+	public void removeListener(final IMetricsListener listener) {
+		listeners.remove(listener);
+		try {
+			listener.close();
+		} catch (final IOException e) {
+			LOGGER.warning("Failed to close metrics listener "
+					+ ExceptionUtils.getFullStackTrace(e));
+		}
+	}
+
+	/**
+	 * Reset the per-iteration counters. This must be called between
+	 * iterations.
+	 */
+	public void startIteration(final int iteration) {
+		sitesSampled.reset();
+		nodesInBlocks.reset();
+		rootFlips.reset();
+		extractionNanos.reset();
+		posteriorNanos.reset();
+		updateNanos.reset();
+		for (int i = 0; i < N_BLOCK_SIZE_BUCKETS; i++) {
+			blockSizes.set(i, 0);
+		}
+		iterationStartNanos = System.nanoTime();
+		currentIteration = iteration;
+	}
+
+}
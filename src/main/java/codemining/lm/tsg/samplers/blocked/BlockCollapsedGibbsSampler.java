@@ -6,26 +6,33 @@ package codemining.lm.tsg.samplers.blocked;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.io.Serializable;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Logger;
 
 import org.apache.commons.lang.exception.ExceptionUtils;
-import org.apache.commons.math3.util.ArithmeticUtils;
+import org.apache.commons.math3.special.Gamma;
 
 import com.esotericsoftware.kryo.DefaultSerializer;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.kryo.serializers.JavaSerializer;
-import com.google.common.base.Objects;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.common.math.DoubleMath;
+import com.google.common.util.concurrent.Striped;
 
 import codemining.ast.TreeNode;
 import codemining.lm.cfg.AbstractContextFreeGrammar.CFGRule;
@@ -36,8 +43,9 @@ import codemining.lm.tsg.TSGrammar;
 import codemining.lm.tsg.samplers.AbstractTSGSampler;
 import codemining.lm.tsg.samplers.CFGPrior;
 import codemining.lm.tsg.samplers.CFGPrior.IRuleCreator;
-import codemining.math.random.SampleUtils;
+import codemining.util.SettingsLoader;
 import codemining.util.StatsUtil;
+import codemining.util.parallel.ParallelThreadPool;
 
 /**
  * A block collapsed gibbs sampler based on Type-based MCMC.
@@ -45,48 +53,37 @@ import codemining.util.StatsUtil;
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  *
  */
-@DefaultSerializer(JavaSerializer.class)
+@DefaultSerializer(BlockCollapsedGibbsSampler.KryoSerializer.class)
 public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IRuleCreator {
 
-    public static final class BinomialCoefficientsParameters {
-        public final int k;
-        public final int n;
+    @DefaultSerializer(BlockedPosteriorComputer.KryoSerializer.class)
+    public static class BlockedPosteriorComputer implements ITsgPosteriorProbabilityComputer<TSGNode> {
 
-        public BinomialCoefficientsParameters(final int n, final int k) {
-            this.n = n;
-            this.k = k;
-        }
+        /**
+         * A Kryo serializer that writes the prior, the grammar and the
+         * parameters of the computer.
+         */
+        public static final class KryoSerializer extends Serializer<BlockedPosteriorComputer> {
 
-        @Override
-        public boolean equals(final Object obj) {
-            if (this == obj) {
-                return true;
-            }
-            if (obj == null) {
-                return false;
-            }
-            if (getClass() != obj.getClass()) {
-                return false;
-            }
-            final BinomialCoefficientsParameters other = (BinomialCoefficientsParameters) obj;
-            if (k != other.k) {
-                return false;
-            }
-            if (n != other.n) {
-                return false;
+            @Override
+            @SuppressWarnings("unchecked")
+            public BlockedPosteriorComputer read(final Kryo kryo, final Input input,
+                    final Class<BlockedPosteriorComputer> type) {
+                final CFGPrior prior = (CFGPrior) kryo.readClassAndObject(input);
+                final TSGrammar<TSGNode> grammar = (TSGrammar<TSGNode>) kryo.readClassAndObject(input);
+                final double avgTreeSize = 1. / input.readDouble();
+                return new BlockedPosteriorComputer(prior, grammar, avgTreeSize, input.readDouble());
             }
-            return true;
-        }
 
-        @Override
-        public int hashCode() {
-            return Objects.hashCode(k, n);
+            @Override
+            public void write(final Kryo kryo, final Output output, final BlockedPosteriorComputer computer) {
+                kryo.writeClassAndObject(output, computer.prior);
+                kryo.writeClassAndObject(output, computer.grammar);
+                output.writeDouble(computer.geometricProbability);
+                output.writeDouble(computer.concentrationParameter);
+            }
         }
 
-    }
-
-    public static class BlockedPosteriorComputer implements ITsgPosteriorProbabilityComputer<TSGNode> {
-
         private static final long serialVersionUID = -3517001399701308015L;
         final CFGPrior prior;
         final TSGrammar<TSGNode> grammar;
@@ -158,25 +155,219 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
             return logRuleMLE;
         }
 
+        /**
+         * Get the prior probability of the fragment rooted at the given corpus
+         * node, without copying the fragment.
+         *
+         * @param topNode
+         * @return
+         */
+        public double getLog2PriorForRootedFragment(final TreeNode<TSGNode> topNode) {
+            return prior.getRootedFragmentCFLog2Probability(topNode);
+        }
+
         public CFGPrior getPrior() {
             return prior;
         }
+
+        /**
+         * Return the change in the log2 joint probability of the rules of a
+         * root (i.e. the product of the predictive probabilities, in any
+         * order) when the count of that root changes from rootCount to
+         * rootCount + delta. This is the denominator of the closed form:
+         * -log2(a (a+1) ... (a + rootCount - 1)).
+         */
+        public double log2JointChangeOfRoot(final long rootCount, final int delta) {
+            checkArgument(rootCount + delta >= 0);
+            final double a = concentrationParameter;
+            return -(Gamma.logGamma(rootCount + delta + a) - Gamma.logGamma(rootCount + a)) / LN_2;
+        }
+
+        /**
+         * Return the change in the log2 joint probability when the count of
+         * a rule with the given prior changes from count to count + delta.
+         * This is the numerator of the closed form: log2(aP (aP+1) ... (aP +
+         * count - 1)), where aP is the concentration times the prior.
+         */
+        public double log2JointChangeOfRule(final long count, final int delta, final double log2Prior) {
+            checkArgument(count + delta >= 0);
+            return log2RuleNumerator(count + delta, log2Prior) - log2RuleNumerator(count, log2Prior);
+        }
+
+        /**
+         * Return log2(aP (aP+1) ... (aP + count - 1)). The first factor is
+         * computed in the log space, since the prior may underflow.
+         */
+        private double log2RuleNumerator(final long count, final double log2Prior) {
+            if (count == 0) {
+                return 0;
+            }
+            final double log2aP = DoubleMath.log2(concentrationParameter) + log2Prior;
+            final double aP = Math.pow(2, log2aP);
+            return log2aP + (Gamma.logGamma(count + aP) - Gamma.logGamma(1 + aP)) / LN_2;
+        }
     }
 
-    private static LoadingCache<BinomialCoefficientsParameters, Double> combinationCache = CacheBuilder.newBuilder()
-            .maximumSize(5000).build(new CacheLoader<BinomialCoefficientsParameters, Double>() {
-                @Override
-                public Double load(final BinomialCoefficientsParameters coeff) {
-                    return ArithmeticUtils.binomialCoefficientLog(coeff.n, coeff.k) / LN_2;
-                }
-            });
+    /**
+     * A Kryo serializer that writes the grammars and the tree corpus. The
+     * prior is written as part of the posterior computers of the grammars and
+     * the node type index is rebuilt from the corpus when reading.
+     */
+    public static final class KryoSerializer extends Serializer<BlockCollapsedGibbsSampler> {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public BlockCollapsedGibbsSampler read(final Kryo kryo, final Input input,
+                final Class<BlockCollapsedGibbsSampler> type) {
+            final TSGrammar<TSGNode> sampleGrammar = (TSGrammar<TSGNode>) kryo.readClassAndObject(input);
+            final TSGrammar<TSGNode> burninGrammar = (TSGrammar<TSGNode>) kryo.readClassAndObject(input);
+            final BlockCollapsedGibbsSampler sampler = new BlockCollapsedGibbsSampler(
+                    (BlockedPosteriorComputer) sampleGrammar.getPosteriorComputer(),
+                    (BlockedPosteriorComputer) burninGrammar.getPosteriorComputer());
+            kryo.reference(sampler);
+
+            final int nTrees = input.readVarInt(true);
+            for (int i = 0; i < nTrees; i++) {
+                final TreeNode<TSGNode> tree = kryo.readObject(input, TreeNode.class);
+                sampler.treeCorpus.add(tree);
+                sampler.nodeType.updateCorpusStructures(tree);
+            }
+            return sampler;
+        }
+
+        @Override
+        public void write(final Kryo kryo, final Output output, final BlockCollapsedGibbsSampler sampler) {
+            kryo.writeClassAndObject(output, sampler.sampleGrammar);
+            kryo.writeClassAndObject(output, sampler.burninGrammar);
+            output.writeVarInt(sampler.treeCorpus.size(), true);
+            for (final TreeNode<TSGNode> tree : sampler.treeCorpus) {
+                kryo.writeObject(output, tree);
+            }
+        }
+    }
+
+    /**
+     * The rule creator of the prior. Unlike the sampler, it can be serialized
+     * (as part of the posterior computers of the grammars) without the
+     * corpus.
+     */
+    @DefaultSerializer(JavaSerializer.class)
+    static final class NodeRuleCreator implements IRuleCreator, Serializable {
+
+        private static final long serialVersionUID = 2407469434474622493L;
+
+        @Override
+        public CFGRule createRuleForNode(final TreeNode<TSGNode> node) {
+            return createCFGRuleForNode(node);
+        }
+    }
+
+    /**
+     * The table of log2(k!), grown on demand. It is replaced (never modified)
+     * when it grows, so it can be read without locking.
+     */
+    private static volatile double[] log2Factorials = new double[] { 0 };
+
+    /**
+     * Scratch space for the prefix sums of sampleM.
+     */
+    private static final ThreadLocal<double[]> SAMPLE_M_BUFFERS = new ThreadLocal<double[]>() {
+        @Override
+        protected double[] initialValue() {
+            return new double[0];
+        }
+    };
 
     private static final double LN_2 = Math.log(2);
 
+    /**
+     * Sample the trees of the corpus in parallel. Sampling a block locks the
+     * symbols of all the nodes of the joined fragment at the sampled site.
+     * Since all the sites of a block have the same fragments, two blocks that
+     * share any node (or any rule) are never sampled concurrently. Blocks
+     * with disjoint symbols only contend on the site index when they update
+     * sites of the same node type, and on the grammar when they add new rules.
+     */
+    public static final boolean PARALLEL_SAMPLING = SettingsLoader.getBooleanSetting("ParallelBlockSampling", false);
+
+    /**
+     * The seed from which the random generators of each iteration and tree
+     * are derived. A negative value means that a random seed will be used.
+     * Sampling is fully reproducible only when ParallelBlockSampling is off.
+     */
+    public static final long RANDOM_SEED = (long) SettingsLoader.getNumericSetting("SamplerRandomSeed", -1);
+
+    /**
+     * The number of lock stripes used for the node symbols in parallel
+     * sampling. Each block locks many symbols, so there are many more stripes
+     * than threads.
+     */
+    private static final int N_SYMBOL_LOCKS = 64 * ParallelThreadPool.NUM_THREADS;
+
     private static final long serialVersionUID = 8363745874521428863L;
 
     static final Logger LOGGER = Logger.getLogger(BlockCollapsedGibbsSampler.class.getName());
 
+    /**
+     * Create the random generator for a single tree at a single iteration. If
+     * a seed has been set, the generator depends only on the seed, the
+     * iteration and the position of the tree in the corpus.
+     */
+    private static Random createRandom(final int iteration, final int treeIdx) {
+        if (RANDOM_SEED < 0) {
+            return new Random();
+        }
+        long seed = RANDOM_SEED * 0x9E3779B97F4A7C15L + iteration;
+        seed = seed * 0x9E3779B97F4A7C15L + treeIdx;
+        return new Random(seed);
+    }
+
+    /**
+     * Return a table containing log2(k!) for (at least) all k up to n.
+     */
+    static double[] getLog2Factorials(final int n) {
+        final double[] table = log2Factorials;
+        if (table.length > n) {
+            return table;
+        }
+        synchronized (BlockCollapsedGibbsSampler.class) {
+            final double[] current = log2Factorials;
+            if (current.length > n) {
+                return current;
+            }
+            final double[] grown = Arrays.copyOf(current, Math.max(n + 1, 2 * current.length));
+            for (int k = current.length; k < grown.length; k++) {
+                grown[k] = grown[k - 1] + Math.log(k) / LN_2;
+            }
+            log2Factorials = grown;
+            return grown;
+        }
+    }
+
+    /**
+     * Return a scratch buffer of at least the given size for this thread.
+     */
+    private static double[] getSampleMBuffer(final int size) {
+        double[] buffer = SAMPLE_M_BUFFERS.get();
+        if (buffer.length < size) {
+            buffer = new double[Math.max(size, 2 * buffer.length)];
+            SAMPLE_M_BUFFERS.set(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Return log2(count + 2^log2Prior), without going through the log space
+     * when the prior is not negligible.
+     */
+    private static double log2SumOfCountAndPrior(final long count, final double log2Prior) {
+        final double prior = Math.pow(2, log2Prior);
+        if (prior == 0 || count == 0) {
+            return count == 0 ? log2Prior : Math.log(count) / LN_2;
+        }
+        return Math.log(count + prior) / LN_2;
+    }
+
     public static CFGRule createCFGRuleForNode(final TreeNode<TSGNode> node) {
         final int rootId = node.getData().nodeKey;
 
@@ -209,12 +400,26 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
     public BlockCollapsedGibbsSampler(final double avgTreeSize, final double DPconcentration,
             final TSGrammar<TSGNode> sampleGrammar, final TSGrammar<TSGNode> allSamplesGrammar) {
         super(sampleGrammar, allSamplesGrammar);
-        prior = new CFGPrior(sampleGrammar.getTreeExtractor(), this);
+        prior = new CFGPrior(sampleGrammar.getTreeExtractor(), new NodeRuleCreator());
         nodeType = new NodeTypeInformation();
         samplePosteriorComputer = new BlockedPosteriorComputer(prior, sampleGrammar, avgTreeSize, DPconcentration);
         burninPosteriorComputer = new BlockedPosteriorComputer(prior, burninGrammar, avgTreeSize, DPconcentration);
     }
 
+    /**
+     * Create a sampler (with an empty corpus) around existing posterior
+     * computers, that share the same prior.
+     */
+    private BlockCollapsedGibbsSampler(final BlockedPosteriorComputer samplePosteriorComputer,
+            final BlockedPosteriorComputer burninPosteriorComputer) {
+        super(samplePosteriorComputer.grammar, burninPosteriorComputer.grammar);
+        checkArgument(samplePosteriorComputer.prior == burninPosteriorComputer.prior);
+        prior = samplePosteriorComputer.prior;
+        nodeType = new NodeTypeInformation();
+        this.samplePosteriorComputer = samplePosteriorComputer;
+        this.burninPosteriorComputer = burninPosteriorComputer;
+    }
+
     /**
      * Allows extra data to be added to the prior (i.e. the CFG)
      */
@@ -222,6 +427,30 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
         prior.addCFGRulesFrom(tree);
     }
 
+    /**
+     * Add the change of the joint log2-probability of the sample grammar
+     * when the number of split sites of a block changes by nSplitChange,
+     * given the counts before the change. The closed form telescopes, so
+     * only the net change of each count matters: the upper and lower rules
+     * change by nSplitChange (twice, if they are the same rule), the joined
+     * rule by -nSplitChange and the root of the lower rule by nSplitChange.
+     * The root of the upper rule is the root of the joined rule, so its
+     * total does not change, unless it is also the root of the lower rule.
+     */
+    private void addJointLog2ProbChange(final int nSplitChange, final boolean upperIsSameAsLower,
+            final long upperCount, final long lowerCount, final long joinedCount, final long lowerRootCount,
+            final double upperPriorLog2Prob, final double lowerPriorLog2Prob, final double joinedPriorLog2Prob) {
+        double change = samplePosteriorComputer.log2JointChangeOfRule(joinedCount, -nSplitChange,
+                joinedPriorLog2Prob) + samplePosteriorComputer.log2JointChangeOfRoot(lowerRootCount, nSplitChange);
+        if (upperIsSameAsLower) {
+            change += samplePosteriorComputer.log2JointChangeOfRule(upperCount, 2 * nSplitChange, upperPriorLog2Prob);
+        } else {
+            change += samplePosteriorComputer.log2JointChangeOfRule(upperCount, nSplitChange, upperPriorLog2Prob)
+                    + samplePosteriorComputer.log2JointChangeOfRule(lowerCount, nSplitChange, lowerPriorLog2Prob);
+        }
+        jointLog2ProbChange.add(change);
+    }
+
     /**
      * Add all the rules in the current tree to the grammar.
      *
@@ -245,6 +474,35 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
         return immutableTree;
     }
 
+    /**
+     * Compute the joint log2-probability of the rules of the sample grammar,
+     * in closed form. Since the predictive distribution of the rules of each
+     * root is a Dirichlet process with the CFG prior as base distribution, the
+     * joint is the product over the roots X and their rules r of
+     *
+     * (aP(r) (aP(r)+1) ... (aP(r) + n_r - 1)) / (a (a+1) ... (a + n_X - 1))
+     *
+     * where a is the concentration, P(r) the prior and n the counts.
+     */
+    @Override
+    protected double computeJointLog2Probability() {
+        double log2Prob = 0;
+        final int nRules = sampleGrammar.getNumberOfRules();
+        for (int ruleId = 0; ruleId < nRules; ruleId++) {
+            final int count = sampleGrammar.countRuleOccurences(ruleId);
+            final TreeNode<TSGNode> rule = sampleGrammar.getRule(ruleId);
+            if (count == 0 || rule == sampleGrammar.UNK_NODE) {
+                continue; // The sampler never prunes
+            }
+            log2Prob += samplePosteriorComputer.log2JointChangeOfRule(0, count,
+                    samplePosteriorComputer.getLog2PriorForTree(rule));
+        }
+        for (final TSGNode root : sampleGrammar.getInternalGrammar().keySet()) {
+            log2Prob += samplePosteriorComputer.log2JointChangeOfRoot(0, sampleGrammar.countTreesWithRoot(root));
+        }
+        return log2Prob;
+    }
+
     /**
      * Create a single CFG rule for the given node.
      *
@@ -282,6 +540,11 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
         return prior;
     }
 
+    @Override
+    public long getRandomSeed() {
+        return RANDOM_SEED;
+    }
+
     public void lockSamplerData() {
         prior.lockPrior();
         burninPosteriorComputer.getPrior().cfg = samplePosteriorComputer.getPrior().cfg;
@@ -289,6 +552,18 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
 
     @Override
     public void sampleAllTreesOnce(final int currentIteration, final int totalIterations, final AtomicBoolean stop) {
+        // The tree order is a deterministic function of the seed (if any)
+        final List<Integer> treeOrder = Lists.newArrayListWithCapacity(treeCorpus.size());
+        for (int i = 0; i < treeCorpus.size(); i++) {
+            treeOrder.add(i);
+        }
+        Collections.shuffle(treeOrder, createRandom(currentIteration, -1));
+
+        if (PARALLEL_SAMPLING) {
+            sampleAllTreesInParallel(currentIteration, treeOrder, stop);
+            return;
+        }
+
         final Thread termSignalHandler = new Thread() {
             @Override
             public void run() {
@@ -296,13 +571,11 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
             }
         };
 
-        final List<TreeNode<TSGNode>> allTrees = Lists.newArrayList(treeCorpus);
-        Collections.shuffle(allTrees);
-        for (final TreeNode<TSGNode> tree : allTrees) {
+        for (final int treeIdx : treeOrder) {
             if (stop.get()) {
                 break;
             }
-            sampleSubTree(tree);
+            sampleSubTree(treeCorpus.get(treeIdx), createRandom(currentIteration, treeIdx), null);
         }
 
         try {
@@ -312,17 +585,82 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
         }
     }
 
+    /**
+     * Sample all the trees, in the given order, using all threads. Each tree
+     * is sampled by a single thread, while each type block is sampled holding
+     * the locks of the symbols of its fragments (see lockFragmentSymbols()).
+     */
+    void sampleAllTreesInParallel(final int currentIteration, final List<Integer> treeOrder,
+            final AtomicBoolean stop) {
+        final Striped<Lock> symbolLocks = Striped.lock(N_SYMBOL_LOCKS);
+        final ParallelThreadPool ptp = new ParallelThreadPool();
+        final Thread termSignalHandler = new Thread() {
+            @Override
+            public void run() {
+                stop.set(true);
+                ptp.interrupt();
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(termSignalHandler);
+
+        for (final int treeIdx : treeOrder) {
+            ptp.pushTask(new Runnable() {
+                @Override
+                public void run() {
+                    if (stop.get()) {
+                        return;
+                    }
+                    sampleSubTree(treeCorpus.get(treeIdx), createRandom(currentIteration, treeIdx), symbolLocks);
+                }
+            });
+        }
+        ptp.waitForTermination();
+
+        try {
+            Runtime.getRuntime().removeShutdownHook(termSignalHandler);
+        } catch (final Throwable e) {
+            // Nothing here. It happens almost surely on interruption.
+        }
+    }
+
     public void sampleAt(final TreeNode<TSGNode> node) {
+        sampleAt(node, ThreadLocalRandom.current());
+    }
+
+    /**
+     * Sample the type block of the given node, using the given random
+     * generator.
+     *
+     * @param node
+     * @param random
+     */
+    public void sampleAt(final TreeNode<TSGNode> node, final Random random) {
         checkNotNull(node);
+        final long startTime = System.nanoTime();
         final TreeNode<TSGNode> root = checkNotNull(nodeType.getRootForNode(node));
 
+        // The rules are resolved to their ids once, so that their counts are
+        // never looked up by tree below.
         final boolean wasRootBefore = node.getData().isRoot;
         node.getData().isRoot = false;
-        final TreeNode<TSGNode> joinedTree = TSGNode.getSubTreeFromRoot(root);
+        final int joinedId = getRootedFragmentId(root);
 
         node.getData().isRoot = true;
-        final TreeNode<TSGNode> upperTree = TSGNode.getSubTreeFromRoot(root);
-        final TreeNode<TSGNode> lowerTree = TSGNode.getSubTreeFromRoot(node);
+        final int upperId = getRootedFragmentId(root);
+        final int lowerId = getRootedFragmentId(node);
+        final long extractionEndTime = System.nanoTime();
+        final double upperPriorLog2Prob = samplePosteriorComputer.getLog2PriorForRootedFragment(root);
+        final double lowerPriorLog2Prob = samplePosteriorComputer.getLog2PriorForRootedFragment(node);
+
+        // The CFG prior is a sum over the nodes, so for inner nodes the
+        // joined prior is the sum of the upper and lower priors.
+        final double joinedPriorLog2Prob;
+        if (node.isLeaf()) {
+            node.getData().isRoot = false;
+            joinedPriorLog2Prob = samplePosteriorComputer.getLog2PriorForRootedFragment(root);
+        } else {
+            joinedPriorLog2Prob = upperPriorLog2Prob + lowerPriorLog2Prob;
+        }
 
         node.getData().isRoot = wasRootBefore; // Restore
 
@@ -337,31 +675,89 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
             }
         }
 
-        final double[] mProbs = sampleM(upperTree, lowerTree, joinedTree, sameTypeNodes.size(), nSplit);
-        final int m = SampleUtils.getRandomIndex(mProbs);
+        // The counts are read once, for both sampling m and the joint
+        final TSGNode upperRoot = sampleGrammar.getRule(upperId).getData();
+        final TSGNode lowerRoot = sampleGrammar.getRule(lowerId).getData();
+        final boolean upperIsSameAsLower = upperId == lowerId;
+        final int upperCount = sampleGrammar.countRuleOccurences(upperId);
+        final int lowerCount = sampleGrammar.countRuleOccurences(lowerId);
+        final int joinedCount = sampleGrammar.countRuleOccurences(joinedId);
+        final int lowerRootCount = sampleGrammar.countTreesWithRoot(lowerRoot);
+        final double[] mProbs = sampleM(upperIsSameAsLower, upperRoot.nodeKey == lowerRoot.nodeKey,
+                upperPriorLog2Prob, lowerPriorLog2Prob, joinedPriorLog2Prob, upperCount, lowerCount, joinedCount,
+                sampleGrammar.countTreesWithRoot(upperRoot), lowerRootCount, sameTypeNodes.size(), nSplit);
+        final int m = sampleLog2Index(mProbs, random);
+        final long posteriorEndTime = System.nanoTime();
 
         // change root bit in those sites
         final ArrayList<TreeNode<TSGNode>> allNodes = Lists.newArrayList(sameTypeNodes);
-        Collections.shuffle(allNodes);
-        for (int i = 0; i < m; i++) {
-            allNodes.get(i).getData().isRoot = true;
-        }
-        for (int i = m; i < allNodes.size(); i++) {
-            allNodes.get(i).getData().isRoot = false;
+        Collections.shuffle(allNodes, random);
+        int nRootFlips = 0;
+        for (int i = 0; i < allNodes.size(); i++) {
+            final TreeNode<TSGNode> site = allNodes.get(i);
+            final boolean isRoot = i < m;
+            if (site.getData().isRoot != isRoot) {
+                nRootFlips++;
+            }
+            nodeType.setRoot(site, isRoot);
         }
 
-        // Add/remove rules as needed
+        // Add/remove rules as needed, tracking the joint probability
+        if (m != nSplit && tracksJointLog2Probability()) {
+            addJointLog2ProbChange(m - nSplit, upperIsSameAsLower, upperCount, lowerCount, joinedCount,
+                    lowerRootCount, upperPriorLog2Prob, lowerPriorLog2Prob, joinedPriorLog2Prob);
+        }
         if (m > nSplit) { // we split more than before
             final int diff = m - nSplit;
-            sampleGrammar.addTree(upperTree, diff);
-            sampleGrammar.addTree(lowerTree, diff);
-            checkArgument(sampleGrammar.removeTree(joinedTree, diff) >= 0);
+            sampleGrammar.addRule(upperId, diff);
+            sampleGrammar.addRule(lowerId, diff);
+            checkArgument(sampleGrammar.removeRule(joinedId, diff) >= 0);
         } else if (m < nSplit) { // we split less than before
             final int diff = nSplit - m;
-            sampleGrammar.addTree(joinedTree, diff);
-            checkArgument(sampleGrammar.removeTree(upperTree, diff) >= 0);
-            checkArgument(sampleGrammar.removeTree(lowerTree, diff) >= 0);
+            sampleGrammar.addRule(joinedId, diff);
+            checkArgument(sampleGrammar.removeRule(upperId, diff) >= 0);
+            checkArgument(sampleGrammar.removeRule(lowerId, diff) >= 0);
         }
+        metrics.recordSite(extractionEndTime - startTime, posteriorEndTime - extractionEndTime,
+                System.nanoTime() - posteriorEndTime, allNodes.size(), nRootFlips);
+    }
+
+    @Override
+    protected void rootFlagsRestored() {
+        nodeType.rebuildIndex();
+        super.rootFlagsRestored();
+    }
+
+    /**
+     * Sample an index given a vector of unnormalized log2 probabilities.
+     *
+     * @param log2Probs
+     * @param random
+     * @return
+     */
+    static int sampleLog2Index(final double[] log2Probs, final Random random) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (final double log2Prob : log2Probs) {
+            if (log2Prob > max) {
+                max = log2Prob;
+            }
+        }
+        checkArgument(!Double.isInfinite(max) && !Double.isNaN(max), "No valid probability in %s", max);
+
+        double sum = 0;
+        for (final double log2Prob : log2Probs) {
+            sum += Math.pow(2, log2Prob - max);
+        }
+
+        final double target = random.nextDouble() * sum;
+        double cumulative = 0;
+        for (int i = 0; i < log2Probs.length; i++) {
+            cumulative += Math.pow(2, log2Probs[i] - max);
+            if (cumulative > target) {
+                return i;
+            }
+        }
+        return log2Probs.length - 1;
     }
 
     /**
@@ -384,10 +780,8 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
      */
     public double[] sampleM(final TreeNode<TSGNode> upper, final TreeNode<TSGNode> lower,
             final TreeNode<TSGNode> joined, final int numOfSameTypeSites, final int nSplit) {
-        final int nJoined = numOfSameTypeSites - nSplit;
-        final boolean upperIsSameTypeAsLower = upper.getData().nodeKey == lower.getData().nodeKey;
-        final boolean upperIsSameAsLower = upperIsSameTypeAsLower && TSGNode.treesMatchToRoot(upper, lower);
-        checkArgument(nJoined >= 0);
+        final boolean upperIsSameAsLower = upper.getData().nodeKey == lower.getData().nodeKey
+                && TSGNode.treesMatchToRoot(upper, lower);
         final double upperPriorLog2Prob = samplePosteriorComputer.getLog2PriorForTree(upper);
 
         // Speedup
@@ -399,15 +793,34 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
         }
 
         final double joinedPriorLog2Prob = samplePosteriorComputer.getLog2PriorForTree(joined);
+        return sampleM(upperIsSameAsLower, upper.getData().nodeKey == lower.getData().nodeKey, upperPriorLog2Prob,
+                lowerPriorLog2Prob, joinedPriorLog2Prob, sampleGrammar.countTreeOccurences(upper),
+                sampleGrammar.countTreeOccurences(lower), sampleGrammar.countTreeOccurences(joined),
+                sampleGrammar.countTreesWithRoot(upper.getData()), sampleGrammar.countTreesWithRoot(lower.getData()),
+                numOfSameTypeSites, nSplit);
+    }
+
+    /**
+     * Compute the unnormalized log2 probabilities for each value of m, as
+     * above, given whether the upper and lower trees are the same rule (or
+     * have the same root), the prior log2 probabilities of the three trees
+     * and their current counts (including the sites of the block) and the
+     * current counts of the roots of the upper and lower trees.
+     */
+    double[] sampleM(final boolean upperIsSameAsLower, final boolean upperIsSameTypeAsLower,
+            final double upperPriorLog2Prob, final double lowerPriorLog2Prob, final double joinedPriorLog2Prob,
+            final long upperTreeCount, final long lowerTreeCount, final long joinedTreeCount,
+            final long upperRootTreeCount, final long lowerRootTreeCount, final int numOfSameTypeSites,
+            final int nSplit) {
+        final int nJoined = numOfSameTypeSites - nSplit;
+        checkArgument(nJoined >= 0);
 
         // The counts of the TSG rules after removing these trees.
-        final long upperCount = sampleGrammar.countTreeOccurences(upper) - nSplit - (upperIsSameAsLower ? nSplit : 0L);
-        final long lowerCount = sampleGrammar.countTreeOccurences(lower) - nSplit - (upperIsSameAsLower ? nSplit : 0L);
-        final long lowerRootCount = sampleGrammar.countTreesWithRoot(lower.getData()) - nSplit
-                - (upperIsSameTypeAsLower ? numOfSameTypeSites : 0L);
-        final long jointCount = sampleGrammar.countTreeOccurences(joined) - nJoined;
-        final long topRootCount = sampleGrammar.countTreesWithRoot(upper.getData()) - numOfSameTypeSites
-                - (upperIsSameTypeAsLower ? nSplit : 0L);
+        final long upperCount = upperTreeCount - nSplit - (upperIsSameAsLower ? nSplit : 0L);
+        final long lowerCount = lowerTreeCount - nSplit - (upperIsSameAsLower ? nSplit : 0L);
+        final long lowerRootCount = lowerRootTreeCount - nSplit - (upperIsSameTypeAsLower ? numOfSameTypeSites : 0L);
+        final long jointCount = joinedTreeCount - nJoined;
+        final long topRootCount = upperRootTreeCount - numOfSameTypeSites - (upperIsSameTypeAsLower ? nSplit : 0L);
 
         checkArgument(lowerRootCount >= 0);
         checkArgument(topRootCount >= 0);
@@ -415,54 +828,112 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
         checkArgument(upperCount >= 0);
         checkArgument(jointCount >= 0);
 
-        final double log2a = DoubleMath.log2(samplePosteriorComputer.concentrationParameter);
-
-        // Precompute split tree,first
-        final double[] splitLog2Probs = new double[numOfSameTypeSites];
-
-        for (int i = 0; i < numOfSameTypeSites; i++) {
-            final int toAddNominator = i + (upperIsSameAsLower ? i : 0);
-            final int toAddDenominator = i + (upperIsSameTypeAsLower ? i : 0);
-            final double upperLog2prob = StatsUtil.log2SumOfExponentials(DoubleMath.log2(upperCount + toAddNominator),
-                    log2a + upperPriorLog2Prob)
-                    - StatsUtil.log2SumOfExponentials(DoubleMath.log2(topRootCount + toAddDenominator), log2a);
-
-            final double lowerLog2prob = StatsUtil.log2SumOfExponentials(DoubleMath.log2(lowerCount + toAddNominator),
-                    log2a + lowerPriorLog2Prob)
-                    - StatsUtil.log2SumOfExponentials(DoubleMath.log2(lowerRootCount + toAddDenominator), log2a);
+        final double a = samplePosteriorComputer.concentrationParameter;
+        final double log2a = DoubleMath.log2(a);
+        final int n = numOfSameTypeSites;
+        final int denominatorStep = upperIsSameTypeAsLower ? 2 : 1;
+
+        // Prefix sums, in log2 space, of the joined tree numerators and of
+        // the denominators, so that each m is computed in constant time.
+        final double[] buffer = getSampleMBuffer(3 * n + 2);
+        final int jointOffset = 0;
+        final int denominatorOffset = n + 1;
+        buffer[jointOffset] = 0;
+        for (int i = 0; i < n; i++) {
+            buffer[jointOffset + i + 1] = buffer[jointOffset + i]
+                    + log2SumOfCountAndPrior(jointCount + i, log2a + joinedPriorLog2Prob);
+        }
+        buffer[denominatorOffset] = 0;
+        for (int i = 0; i < denominatorStep * n; i++) {
+            buffer[denominatorOffset + i + 1] = buffer[denominatorOffset + i]
+                    + Math.log(topRootCount + i + a) / LN_2;
+        }
 
-            splitLog2Probs[i] = upperLog2prob + lowerLog2prob;
+        final double[] log2Factorials = getLog2Factorials(n);
+        final double[] mLogProbs = new double[n + 1];
+        double splitLog2Prob = 0; // The sum of the log probs of the m split trees
+        for (int m = 0; m <= n; m++) {
+            final int nJoinedTrees = n - m;
+            final int firstJoinedDenominator = denominatorStep * m;
+            mLogProbs[m] = log2Factorials[n] - log2Factorials[m] - log2Factorials[nJoinedTrees] + splitLog2Prob
+                    + buffer[jointOffset + nJoinedTrees]
+                    - (buffer[denominatorOffset + firstJoinedDenominator + nJoinedTrees]
+                            - buffer[denominatorOffset + firstJoinedDenominator]);
+
+            if (m < n) {
+                final int toAddNominator = m + (upperIsSameAsLower ? m : 0);
+                final int toAddDenominator = m + (upperIsSameTypeAsLower ? m : 0);
+                splitLog2Prob += log2SumOfCountAndPrior(upperCount + toAddNominator, log2a + upperPriorLog2Prob)
+                        - Math.log(topRootCount + toAddDenominator + a) / LN_2
+                        + log2SumOfCountAndPrior(lowerCount + toAddNominator, log2a + lowerPriorLog2Prob)
+                        - Math.log(lowerRootCount + toAddDenominator + a) / LN_2;
+            }
         }
 
-        final double[] mLogProbs = new double[numOfSameTypeSites + 1];
-        for (int m = 0; m <= numOfSameTypeSites; m++) {
+        return mLogProbs;
+    }
 
-            double log2Prob;
-            try {
-                log2Prob = combinationCache.get(new BinomialCoefficientsParameters(numOfSameTypeSites, m));
-            } catch (final ExecutionException e) {
-                LOGGER.warning("Binomial Coefficient Cache failed " + ExceptionUtils.getFullStackTrace(e));
-                log2Prob = ArithmeticUtils.binomialCoefficientLog(numOfSameTypeSites, m) / LN_2;
+    /**
+     * Collect the symbols of the nodes of the joined fragment at the given
+     * site, i.e. of the fragment containing the site as if it was not a root,
+     * including its frontier nodes.
+     */
+    private void collectFragmentSymbols(final TreeNode<TSGNode> site, final Set<Integer> symbols) {
+        final TreeNode<TSGNode> root = nodeType.getRootForNode(site);
+        final ArrayDeque<TreeNode<TSGNode>> toVisit = new ArrayDeque<TreeNode<TSGNode>>();
+        toVisit.push(root == null ? site : root);
+        while (!toVisit.isEmpty()) {
+            final TreeNode<TSGNode> current = toVisit.pop();
+            symbols.add(current.getData().nodeKey);
+            for (final List<TreeNode<TSGNode>> childProperty : current.getChildrenByProperty()) {
+                for (final TreeNode<TSGNode> child : childProperty) {
+                    if (!child.getData().isRoot || child == site) {
+                        toVisit.push(child);
+                    } else {
+                        symbols.add(child.getData().nodeKey);
+                    }
+                }
             }
+        }
+    }
 
-            // m split trees
-            for (int i = 0; i < m; i++) {
-                log2Prob += splitLog2Probs[i];
+    /**
+     * Lock the symbols of the joined fragment at the given site, in the
+     * (fixed) order of the stripes. All the sites of its block have the same
+     * fragments, so any block that shares a node with this one, or that
+     * flips the root flag of one of its nodes, needs one of these locks. This
+     * is the condition under which NodeTypeInformation.setRoot() may be called
+     * concurrently, since the locked nodes are the fragment that contains the
+     * site (as if it was not a root) and the roots on its boundary. The
+     * fragment may change until its locks are held, so it is collected again
+     * after locking, until all its symbols are locked.
+     *
+     * @return the locks held
+     */
+    private List<Lock> lockFragmentSymbols(final TreeNode<TSGNode> site, final Striped<Lock> symbolLocks) {
+        final Set<Integer> symbols = Sets.newHashSet();
+        collectFragmentSymbols(site, symbols);
+        while (true) {
+            final List<Lock> locks = Lists.newArrayList(symbolLocks.bulkGet(symbols));
+            for (final Lock lock : locks) {
+                lock.lock();
             }
-
-            // Pick n-m joined
-            final int jointTreesToAdd = numOfSameTypeSites - m;
-            for (int i = 0; i < jointTreesToAdd; i++) {
-                log2Prob += StatsUtil.log2SumOfExponentials(DoubleMath.log2(jointCount + i),
-                        log2a + joinedPriorLog2Prob)
-                        - StatsUtil.log2SumOfExponentials(
-                                DoubleMath.log2(topRootCount + i + m + (upperIsSameTypeAsLower ? m : 0)), log2a);
+            final int nLockedSymbols = symbols.size();
+            collectFragmentSymbols(site, symbols);
+            if (symbols.size() == nLockedSymbols) {
+                return locks;
             }
-
-            mLogProbs[m] = log2Prob;
+            unlockAll(locks);
         }
+    }
 
-        return mLogProbs;
+    /**
+     * Unlock the given locks, in reverse order.
+     */
+    private static void unlockAll(final List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
     }
 
     /**
@@ -470,8 +941,13 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
      * tree one-by-one at random order
      *
      * @param tree
+     * @param random
+     *            the random generator for this tree
+     * @param symbolLocks
+     *            the locks of the node symbols, or null if sampling is
+     *            sequential
      */
-    private void sampleSubTree(final TreeNode<TSGNode> tree) {
+    private void sampleSubTree(final TreeNode<TSGNode> tree, final Random random, final Striped<Lock> symbolLocks) {
         // A list of all the nodes.
         final List<TreeNode<TSGNode>> allNodes = Lists.newArrayList();
 
@@ -495,13 +971,18 @@ public class BlockCollapsedGibbsSampler extends AbstractTSGSampler implements IR
         }
 
         // Start the sampling
-        Collections.shuffle(allNodes);
+        Collections.shuffle(allNodes, random);
         for (final TreeNode<TSGNode> node : allNodes) {
             // ...and do the sampling
+            final List<Lock> locks = symbolLocks == null ? null : lockFragmentSymbols(node, symbolLocks);
             try {
-                sampleAt(node);
+                sampleAt(node, random);
             } catch (final Throwable e) {
                 LOGGER.severe("Failed at point sampling: " + ExceptionUtils.getFullStackTrace(e));
+            } finally {
+                if (locks != null) {
+                    unlockAll(locks);
+                }
             }
         }
     }
@@ -6,6 +6,7 @@ package codemining.lm.tsg.samplers.blocked;
 import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import org.eclipse.jdt.core.dom.ASTNode;
@@ -141,9 +142,9 @@ public class JavaFilteredBlockCollapsedGibbsSampler extends
 	}
 
 	@Override
-	public void sampleAt(final TreeNode<TSGNode> node) {
+	public void sampleAt(final TreeNode<TSGNode> node, final Random random) {
 		if (!unbreakableNodes.contains(node)) {
-			super.sampleAt(node);
+			super.sampleAt(node, random);
 		}
 	}
 
@@ -10,16 +10,18 @@ import java.io.Serializable;
 import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 import codemining.ast.TreeNode;
+import codemining.lm.tsg.FragmentFingerprint;
 import codemining.lm.tsg.TSGNode;
 
 import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -28,6 +30,15 @@ import com.google.common.collect.Sets;
  * A helper class that can retrieve all the subtrees in a TSG tree with the same
  * type.
  * 
+ * The root flags may be changed concurrently through setRoot(), as long as the
+ * fragments touched by concurrent changes are disjoint: the fragment that
+ * contains a changed node (as if it was not a root), along with the roots on
+ * its boundary, must not share a node with the one of a node that another
+ * thread is changing. The blocks of the sites of each node type are guarded
+ * by the (shared) node type, so threads that update sites of different types
+ * do not contend. The corpus must not be changed (updateCorpusStructures(),
+ * rebuildIndex()) while the root flags are being changed.
+ * 
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  * 
  */
@@ -106,7 +117,82 @@ public class NodeTypeInformation implements Serializable {
 		}
 	}
 
-	private static final long serialVersionUID = -1917715699790189774L;
+	/**
+	 * The key of a block of sampling sites. Two sites that have the same type
+	 * and whose upper (cut at the site) and lower fragments match, i.e. that
+	 * can be jointly split or joined, have the same key. Since fingerprints
+	 * may collide, sites with the same key may still not match.
+	 */
+	private static final class BlockKey implements Serializable {
+
+		private static final long serialVersionUID = 2851180368215702346L;
+
+		final int typeId;
+
+		final long upperFingerprint;
+
+		final long lowerFingerprint;
+
+		BlockKey(final int typeId, final long upperFingerprint,
+				final long lowerFingerprint) {
+			this.typeId = typeId;
+			this.upperFingerprint = upperFingerprint;
+			this.lowerFingerprint = lowerFingerprint;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof BlockKey)) {
+				return false;
+			}
+			final BlockKey other = (BlockKey) obj;
+			return typeId == other.typeId
+					&& upperFingerprint == other.upperFingerprint
+					&& lowerFingerprint == other.lowerFingerprint;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(typeId, upperFingerprint,
+					lowerFingerprint);
+		}
+	}
+
+	/**
+	 * A block of matching sites, shared by all its sites. The ids of the
+	 * sites are kept in the first size elements of an array, so that a site
+	 * can be removed in constant time given its position.
+	 */
+	private static final class Block implements Serializable {
+
+		private static final long serialVersionUID = -3400846366212985817L;
+
+		final BlockKey key;
+
+		int[] sites = new int[1];
+
+		int size = 0;
+
+		Block(final BlockKey key) {
+			this.key = key;
+		}
+
+		/**
+		 * Add the site and return its position in the block.
+		 */
+		int add(final int siteId) {
+			if (size == sites.length) {
+				sites = Arrays.copyOf(sites, 2 * size);
+			}
+			sites[size] = siteId;
+			return size++;
+		}
+	}
+
+	private static final long serialVersionUID = -1867541328930575104L;
 
 	static final Logger LOGGER = Logger.getLogger(NodeTypeInformation.class
 			.getName());
@@ -148,94 +234,172 @@ public class NodeTypeInformation implements Serializable {
 	}
 
 	/**
-	 * A map containing the parents of all nodes.
+	 * The nodes of the corpus, indexed by their corpus id.
 	 */
-	private final Map<TreeNode<TSGNode>, TreeNode<TSGNode>> parentMap = Maps
-			.newIdentityHashMap();
+	private final List<TreeNode<TSGNode>> nodes = Lists.newArrayList();
 
-	private final Map<NodeType, Set<TreeNode<TSGNode>>> nodeTypes = Maps
-			.newHashMap();
+	/**
+	 * The id of the parent of each node, or -1 for the roots of the trees.
+	 */
+	private int[] parents = new int[0];
 
 	/**
-	 * Add a single node to it's type.
-	 * 
-	 * @param current
-	 * @param type
+	 * The id of the nearest root above each node, or -1 if there is none.
+	 * This is kept up to date by setRoot() and rootChanged().
 	 */
-	private void addNodeToTypeMap(final TreeNode<TSGNode> current,
-			final NodeTypeInformation.NodeType type) {
-		Set<TreeNode<TSGNode>> nodesForType = nodeTypes.get(type);
-		if (nodesForType == null) {
-			nodesForType = Sets.newIdentityHashSet();
-			nodeTypes.put(type, nodesForType);
-		}
-		nodesForType.add(current);
-	}
+	private int[] upperRoots = new int[0];
 
 	/**
-	 * Returns true if the roots are of the same type (i.e. have the same number
-	 * of children, properties and type) and the child1,child2 are at the same
-	 * position as children.
+	 * The id of the type of each site (i.e. each node that has a parent), or
+	 * -1 for the roots of the trees. The types do not depend on the root
+	 * flags, so they are computed once, when the node is added.
 	 */
-	private boolean areIsomorphicNodes(final TreeNode<TSGNode> child1,
-			final TreeNode<TSGNode> root1, final TreeNode<TSGNode> child2,
-			final TreeNode<TSGNode> root2) {
-		if (!root1.getData().equals(root2.getData())) {
-			return false; // Root nodes do not match.
+	private int[] siteTypes = new int[0];
+
+	/**
+	 * The current block of each site, or null if the site is not indexed.
+	 */
+	private Block[] siteBlocks = new Block[0];
+
+	/**
+	 * The position of each site in its block.
+	 */
+	private int[] sitePositions = new int[0];
+
+	/**
+	 * The distinct node types, indexed by their id. Each type is also the
+	 * monitor that guards the blocks of its sites.
+	 */
+	private final List<NodeType> types = Lists.newArrayList();
+
+	/**
+	 * The ids of the node types.
+	 */
+	private final Map<NodeType, Integer> typeIds = Maps.newHashMap();
+
+	/**
+	 * The blocks of each key. All the sites of a block have been confirmed to
+	 * match (see sitesMatch()), so there is more than one block per key only
+	 * when the fingerprints collide. The list of a key is guarded by the
+	 * monitor of its type.
+	 */
+	private final ConcurrentMap<BlockKey, List<Block>> blocks = Maps
+			.newConcurrentMap();
+
+	/**
+	 * Add the node with the given parent to the corpus and return its id.
+	 */
+	private int addNode(final TreeNode<TSGNode> node, final int parentId) {
+		final int id = nodes.size();
+		if (id == parents.length) {
+			final int newLength = Math.max(16, 2 * parents.length);
+			parents = Arrays.copyOf(parents, newLength);
+			upperRoots = Arrays.copyOf(upperRoots, newLength);
+			siteTypes = Arrays.copyOf(siteTypes, newLength);
+			siteBlocks = Arrays.copyOf(siteBlocks, newLength);
+			sitePositions = Arrays.copyOf(sitePositions, newLength);
 		}
-		final List<List<TreeNode<TSGNode>>> children1 = root1
-				.getChildrenByProperty();
-		final List<List<TreeNode<TSGNode>>> children2 = root2
-				.getChildrenByProperty();
+		nodes.add(node);
+		parents[id] = parentId;
+		upperRoots[id] = getUpperRootOfChildren(parentId);
+		siteTypes[id] = parentId == -1 ? -1 : getTypeId(new NodeType(node,
+				nodes.get(parentId)));
+		node.getData().corpusId = id;
+		return id;
+	}
 
-		final int childrenSize = children1.size();
-		if (childrenSize != children2.size()) {
-			return false; // Sizes do not match
+	/**
+	 * Add the site to the block of the sites that match it, among the ones
+	 * with the same key.
+	 */
+	private void addSite(final int siteId) {
+		final TreeNode<TSGNode> site = nodes.get(siteId);
+		final BlockKey key = new BlockKey(siteTypes[siteId],
+				fingerprintUpperFragment(getRootForNode(site), site),
+				fingerprintLowerFragment(site));
+		final NodeType type = types.get(key.typeId);
+		synchronized (type) {
+			List<Block> keyBlocks = blocks.get(key);
+			if (keyBlocks == null) {
+				keyBlocks = Lists.newArrayListWithCapacity(1);
+				blocks.put(key, keyBlocks);
+			}
+			Block block = null;
+			for (final Block candidate : keyBlocks) {
+				if (sitesMatch(nodes.get(candidate.sites[0]), site)) {
+					block = candidate;
+					break;
+				}
+			}
+			if (block == null) {
+				if (!keyBlocks.isEmpty()) {
+					LOGGER.fine("Fingerprint collision for " + type);
+				}
+				block = new Block(key);
+				keyBlocks.add(block);
+			}
+			sitePositions[siteId] = block.add(siteId);
+			siteBlocks[siteId] = block;
 		}
+	}
 
-		// Speed-up things using
-		boolean found = false;
-		for (int i = 0; i < childrenSize; i++) {
-			final List<TreeNode<TSGNode>> childrenForProperty1 = children1
-					.get(i);
-			final List<TreeNode<TSGNode>> childrenForProperty2 = children2
-					.get(i);
+	/**
+	 * Return the fingerprint of the upper fragment of a site (see
+	 * FragmentFingerprint.ofUpperFragment()).
+	 */
+	long fingerprintUpperFragment(final TreeNode<TSGNode> upperRoot,
+			final TreeNode<TSGNode> site) {
+		return FragmentFingerprint.ofUpperFragment(upperRoot, site);
+	}
 
-			final int childrenForPropertySize = childrenForProperty1.size();
-			if (childrenForPropertySize != childrenForProperty2.size()) {
-				return false; // Sizes do not match
-			}
+	/**
+	 * Return the fingerprint of the lower fragment of a site (see
+	 * FragmentFingerprint.ofRootedFragment()).
+	 */
+	long fingerprintLowerFragment(final TreeNode<TSGNode> site) {
+		return FragmentFingerprint.ofRootedFragment(site);
+	}
 
-			if (!found) {
-				for (int j = 0; j < childrenForPropertySize; j++) {
-					if (child1 == childrenForProperty1.get(j)) {
-						if (child2 != childrenForProperty2.get(j)) {
-							// The children are not coming from the same path
-							return false;
-						} else {
-							found = true;
-							break;
-						}
+	/**
+	 * Return the sites whose keys may change when the root flag of the given
+	 * node changes, i.e. the sites in the fragment containing the node (as if
+	 * it was not a root) and its boundary. The sites do not depend on the
+	 * root flag of the node itself.
+	 */
+	private List<TreeNode<TSGNode>> getAffectedSites(
+			final TreeNode<TSGNode> node) {
+		final List<TreeNode<TSGNode>> affectedSites = Lists.newArrayList();
+		final TreeNode<TSGNode> fragmentRoot = getRootForNode(node);
+		if (fragmentRoot == null) {
+			return affectedSites; // This is the root of a tree.
+		}
+		final ArrayDeque<TreeNode<TSGNode>> toVisit = new ArrayDeque<TreeNode<TSGNode>>();
+		affectedSites.add(fragmentRoot);
+		toVisit.push(fragmentRoot);
+		while (!toVisit.isEmpty()) {
+			final TreeNode<TSGNode> current = toVisit.pop();
+			for (final List<TreeNode<TSGNode>> childrenForProperty : current
+					.getChildrenByProperty()) {
+				for (final TreeNode<TSGNode> child : childrenForProperty) {
+					affectedSites.add(child);
+					if (!child.getData().isRoot || child == node) {
+						toVisit.push(child);
 					}
 				}
 			}
 		}
-		return found;
+		return affectedSites;
 	}
 
 	/**
-	 * Return a set of candidate nodes for the type of this node, including this
-	 * node itself.
+	 * Return the id of the given node or -1 if it is not in this corpus.
 	 */
-	private Collection<TreeNode<TSGNode>> getCandidateSameTypeNodes(
-			final TreeNode<TSGNode> node) {
-		checkNotNull(node);
-		final NodeType type = new NodeType(node, parentMap.get(node));
-		final Set<TreeNode<TSGNode>> sameParentChildrenNodes = nodeTypes
-				.get(type);
-		checkArgument(sameParentChildrenNodes.size() >= 1,
-				"The node itself should be included here");
-		return Collections.unmodifiableCollection(sameParentChildrenNodes);
+	private int getId(final TreeNode<TSGNode> node) {
+		final int id = node.getData().corpusId;
+		if (id < 0 || id >= nodes.size() || nodes.get(id) != node) {
+			return -1;
+		}
+		return id;
 	}
 
 	/**
@@ -245,7 +409,11 @@ public class NodeTypeInformation implements Serializable {
 	 * @return
 	 */
 	public TreeNode<TSGNode> getParentOf(final TreeNode<TSGNode> node) {
-		return parentMap.get(node);
+		final int id = getId(node);
+		if (id == -1 || parents[id] == -1) {
+			return null;
+		}
+		return nodes.get(parents[id]);
 	}
 
 	/**
@@ -256,124 +424,290 @@ public class NodeTypeInformation implements Serializable {
 	 * @return
 	 */
 	public TreeNode<TSGNode> getRootForNode(final TreeNode<TSGNode> node) {
-		TreeNode<TSGNode> nextNode = parentMap.get(node);
-		while (nextNode != null && !nextNode.getData().isRoot) {
-			nextNode = parentMap.get(nextNode);
+		final int id = getId(node);
+		if (id == -1 || upperRoots[id] == -1) {
+			return null;
 		}
-		return nextNode;
+		return nodes.get(upperRoots[id]);
 	}
 
 	/**
-	 * Return the references to the nodes that are of exactly the same type.
+	 * Return the references to the nodes that are of exactly the same type,
+	 * i.e. the sites whose upper and lower fragments (when split at the site)
+	 * are the same as the ones of baseNode. The sites are read from an index
+	 * that is kept up to date by setRoot(), so any other change of the root
+	 * flags of the corpus nodes must be followed by a call to rootChanged().
 	 * 
 	 * @param baseNode
 	 * @return
 	 */
 	public Collection<TreeNode<TSGNode>> getSameTypeNodes(
 			final TreeNode<TSGNode> baseNode) {
-		final TreeNode<TSGNode> nodeRoot = getRootForNode(baseNode);
-		final Collection<TreeNode<TSGNode>> candidateNodes = getCandidateSameTypeNodes(baseNode);
-
-		// Get initial state, to be restored at the end and set as roots
-		final Map<TreeNode<TSGNode>, Boolean> initialState = Maps
-				.newIdentityHashMap();
-		for (final TreeNode<TSGNode> candidateNode : candidateNodes) {
-			initialState.put(candidateNode, candidateNode.getData().isRoot);
-		}
-
-		baseNode.getData().isRoot = false;
-		final Set<TreeNode<TSGNode>> illegalNodes = getNodesInSelf(baseNode,
-				nodeRoot);
-
-		// First check that the candidates match the upper path
-		final Set<TreeNode<TSGNode>> sameTypeNodes = Sets.newIdentityHashSet();
-		for (final TreeNode<TSGNode> candidateNode : candidateNodes) {
-			if (!illegalNodes.contains(candidateNode)
-					&& haveSamePathToUpperRoot(baseNode, nodeRoot,
-							candidateNode)) {
-				sameTypeNodes.add(candidateNode);
-				candidateNode.getData().isRoot = false;
-				illegalNodes.addAll(getNodesInSelf(candidateNode,
-						getRootForNode(candidateNode)));
+		final int id = getId(baseNode);
+		checkArgument(id != -1 && siteTypes[id] != -1,
+				"%s is not a site of the corpus", baseNode);
+		synchronized (types.get(siteTypes[id])) {
+			final Block block = siteBlocks[id];
+			checkArgument(block != null && block.sites[sitePositions[id]] == id,
+					"%s is not indexed", baseNode);
+			final ImmutableList.Builder<TreeNode<TSGNode>> sameTypeNodes = ImmutableList
+					.builder();
+			for (int i = 0; i < block.size; i++) {
+				sameTypeNodes.add(nodes.get(block.sites[i]));
 			}
+			return sameTypeNodes.build();
 		}
+	}
 
-		// Check that the candidates match the joined tree
-		final List<TreeNode<TSGNode>> toBeRemoved = Lists.newArrayList();
+	/**
+	 * Return the id of the given type, adding it if it is new.
+	 */
+	private int getTypeId(final NodeType type) {
+		final Integer typeId = typeIds.get(type);
+		if (typeId != null) {
+			return typeId;
+		}
+		types.add(type);
+		typeIds.put(type, types.size() - 1);
+		return types.size() - 1;
+	}
+
+	/**
+	 * Return the nearest root above the children of the given node.
+	 */
+	private int getUpperRootOfChildren(final int nodeId) {
+		if (nodeId == -1) {
+			return -1;
+		}
+		return nodes.get(nodeId).getData().isRoot ? nodeId
+				: upperRoots[nodeId];
+	}
+
+	/**
+	 * Update the index after the root flag of the given node has changed.
+	 * 
+	 * @param node
+	 */
+	public void rootChanged(final TreeNode<TSGNode> node) {
+		checkNotNull(node);
+		final int nodeId = getId(node);
+		checkArgument(nodeId != -1, "%s is not a node of the corpus", node);
+		updateUpperRootsBelow(nodeId);
+		// All the affected sites are removed before any is added again, so
+		// that the sites are only matched against up to date blocks.
+		for (final int siteId : removeSites(getAffectedSites(node))) {
+			addSite(siteId);
+		}
+	}
 
-		for (final TreeNode<TSGNode> candidateTree : sameTypeNodes) {
-			final TreeNode<TSGNode> candidateTreeRoot = getRootForNode(candidateTree);
-			if (!TSGNode.treesMatchToRoot(nodeRoot, candidateTreeRoot)) {
-				toBeRemoved.add(candidateTree);
+	/**
+	 * Remove the site from its block.
+	 * 
+	 * @return false if the node is not a site (i.e. it is the root of a tree)
+	 *         or it has already been removed
+	 */
+	private boolean removeSite(final int siteId) {
+		final int typeId = siteTypes[siteId];
+		if (typeId == -1) {
+			return false;
+		}
+		synchronized (types.get(typeId)) {
+			final Block block = siteBlocks[siteId];
+			if (block == null) {
+				return false;
 			}
+			final int lastSite = block.sites[--block.size];
+			block.sites[sitePositions[siteId]] = lastSite;
+			sitePositions[lastSite] = sitePositions[siteId];
+			if (block.size == 0) {
+				final List<Block> keyBlocks = blocks.get(block.key);
+				for (int i = 0; i < keyBlocks.size(); i++) {
+					if (keyBlocks.get(i) == block) {
+						keyBlocks.remove(i);
+						break;
+					}
+				}
+				if (keyBlocks.isEmpty()) {
+					blocks.remove(block.key);
+				}
+			}
+			siteBlocks[siteId] = null;
+			return true;
 		}
-		for (final TreeNode<TSGNode> node : toBeRemoved) {
-			sameTypeNodes.remove(node);
+	}
+
+	/**
+	 * Remove the given sites from their blocks and return the ids of the
+	 * removed ones.
+	 */
+	private List<Integer> removeSites(final List<TreeNode<TSGNode>> sites) {
+		final List<Integer> removedSites = Lists.newArrayList();
+		for (final TreeNode<TSGNode> site : sites) {
+			final int siteId = site.getData().corpusId;
+			if (removeSite(siteId)) {
+				removedSites.add(siteId);
+			}
 		}
+		return removedSites;
+	}
 
-		// Restore root states
-		for (final TreeNode<TSGNode> candidateNode : candidateNodes) {
-			candidateNode.getData().isRoot = initialState.get(candidateNode);
+	/**
+	 * Rebuild the whole index from the current root flags, e.g. after the
+	 * flags of many nodes have been changed at once.
+	 */
+	public synchronized void rebuildIndex() {
+		blocks.clear();
+		Arrays.fill(siteBlocks, null);
+		// Parents always have smaller ids than their children
+		for (int id = 0; id < nodes.size(); id++) {
+			upperRoots[id] = getUpperRootOfChildren(parents[id]);
 		}
+		for (int id = 0; id < nodes.size(); id++) {
+			if (parents[id] != -1) {
+				addSite(id);
+			}
+		}
+	}
 
-		checkArgument(sameTypeNodes.contains(baseNode));
-		return sameTypeNodes;
+	/**
+	 * Return true if the two sites can be jointly split or joined, i.e. if
+	 * their lower fragments and their upper fragments (cut at the sites)
+	 * match. The sites should have the same type.
+	 */
+	private boolean sitesMatch(final TreeNode<TSGNode> site1,
+			final TreeNode<TSGNode> site2) {
+		return TSGNode.treesMatchToRoot(site1, site2)
+				&& upperFragmentsMatch(getRootForNode(site1), site1,
+						getRootForNode(site2), site2);
 	}
 
 	/**
-	 * Returns true iff the starting from fromNode1 to reach rootNode1, the
-	 * exactly same path is followed (type-wise) and root-wise. This is
-	 * necessary, since the upper trees may match type-wise but not the same
-	 * path is followed.
-	 */
-	private boolean haveSamePathToUpperRoot(final TreeNode<TSGNode> fromNode1,
-			final TreeNode<TSGNode> rootNode1, final TreeNode<TSGNode> fromNode2) {
-		checkNotNull(rootNode1);
-		// Start following both nodes to rootNode1 checking that they are
-		// isomorphic
-		TreeNode<TSGNode> from1 = fromNode1;
-		TreeNode<TSGNode> from2 = fromNode2;
-		TreeNode<TSGNode> parentNode1 = parentMap.get(from1);
-		TreeNode<TSGNode> parentNode2 = parentMap.get(from2);
-		while (parentNode1 != rootNode1) {
-			if (areIsomorphicNodes(from1, parentNode1, from2, parentNode2)) {
-				from1 = parentNode1;
-				from2 = parentNode2;
-				parentNode1 = parentMap.get(parentNode1);
-				parentNode2 = parentMap.get(parentNode2);
-			} else {
+	 * Return true if the fragments rooted at the two top nodes match, when
+	 * each is cut at the given node (regardless of its root flag) and the cut
+	 * nodes are at the same position.
+	 */
+	private static boolean upperFragmentsMatch(final TreeNode<TSGNode> top1,
+			final TreeNode<TSGNode> cut1, final TreeNode<TSGNode> top2,
+			final TreeNode<TSGNode> cut2) {
+		if (top1.getData().nodeKey != top2.getData().nodeKey) {
+			return false;
+		}
+		final ArrayDeque<TreeNode<TSGNode>> toVisit1 = new ArrayDeque<TreeNode<TSGNode>>();
+		final ArrayDeque<TreeNode<TSGNode>> toVisit2 = new ArrayDeque<TreeNode<TSGNode>>();
+		toVisit1.push(top1);
+		toVisit2.push(top2);
+		while (!toVisit1.isEmpty()) {
+			final List<List<TreeNode<TSGNode>>> children1 = toVisit1.pop()
+					.getChildrenByProperty();
+			final List<List<TreeNode<TSGNode>>> children2 = toVisit2.pop()
+					.getChildrenByProperty();
+			if (children1.size() != children2.size()) {
 				return false;
 			}
+			for (int i = 0; i < children1.size(); i++) {
+				final List<TreeNode<TSGNode>> childrenForProperty1 = children1
+						.get(i);
+				final List<TreeNode<TSGNode>> childrenForProperty2 = children2
+						.get(i);
+				if (childrenForProperty1.size() != childrenForProperty2.size()) {
+					return false;
+				}
+				for (int j = 0; j < childrenForProperty1.size(); j++) {
+					final TreeNode<TSGNode> child1 = childrenForProperty1.get(j);
+					final TreeNode<TSGNode> child2 = childrenForProperty2.get(j);
+					final boolean isCut = child1 == cut1;
+					if (isCut != (child2 == cut2)
+							|| child1.getData().nodeKey != child2.getData().nodeKey) {
+						return false;
+					} else if (isCut) {
+						continue;
+					} else if (child1.getData().isRoot != child2.getData().isRoot) {
+						return false;
+					} else if (!child1.getData().isRoot) {
+						toVisit1.push(child1);
+						toVisit2.push(child2);
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Set the root flag of the given node and update the index. The affected
+	 * sites are removed from their blocks before the flag changes, so the
+	 * indexed sites always match the keys of their blocks.
+	 * 
+	 * @param node
+	 * @param isRoot
+	 */
+	public void setRoot(final TreeNode<TSGNode> node, final boolean isRoot) {
+		if (node.getData().isRoot == isRoot) {
+			return;
+		}
+		final int nodeId = getId(node);
+		checkArgument(nodeId != -1, "%s is not a node of the corpus", node);
+		final List<Integer> removedSites = removeSites(getAffectedSites(node));
+		node.getData().isRoot = isRoot;
+		updateUpperRootsBelow(nodeId);
+		for (final int siteId : removedSites) {
+			addSite(siteId);
 		}
-		return areIsomorphicNodes(from1, parentNode1, from2, parentNode2);
 	}
 
 	/**
-	 * Adds nodes to parent map and to type map. The root will return null.
+	 * Adds the nodes of the tree to the corpus and to the site index. The
+	 * root will return null.
 	 * 
 	 * @param root
 	 */
-	public void updateCorpusStructures(final TreeNode<TSGNode> root) {
+	public synchronized void updateCorpusStructures(
+			final TreeNode<TSGNode> root) {
 		final ArrayDeque<TreeNode<TSGNode>> stack = new ArrayDeque<TreeNode<TSGNode>>();
-		stack.add(root);
+		final int firstSiteId = nodes.size() + 1;
+		stack.push(root);
+		addNode(root, -1);
 
 		while (!stack.isEmpty()) {
 			final TreeNode<TSGNode> current = stack.pop();
-			final NodeTypeInformation.NodeType type = new NodeTypeInformation.NodeType(
-					current, parentMap.get(current));
-			addNodeToTypeMap(current, type);
+			final int currentId = current.getData().corpusId;
 
 			final List<List<TreeNode<TSGNode>>> children = current
 					.getChildrenByProperty();
 			for (int i = 0; i < children.size(); i++) {
 				for (final TreeNode<TSGNode> child : children.get(i)) {
-					// add to parent map
-					parentMap.put(child, current);
+					addNode(child, currentId);
 					// push next
 					stack.push(child);
 				}
 			}
 		}
+
+		for (int siteId = firstSiteId; siteId < nodes.size(); siteId++) {
+			addSite(siteId);
+		}
+	}
+
+	/**
+	 * Update the nearest root of the nodes below the given node, down to the
+	 * next roots.
+	 */
+	private void updateUpperRootsBelow(final int nodeId) {
+		final int upperRoot = getUpperRootOfChildren(nodeId);
+		final ArrayDeque<TreeNode<TSGNode>> toVisit = new ArrayDeque<TreeNode<TSGNode>>();
+		toVisit.push(nodes.get(nodeId));
+		while (!toVisit.isEmpty()) {
+			final TreeNode<TSGNode> current = toVisit.pop();
+			for (final List<TreeNode<TSGNode>> childrenForProperty : current
+					.getChildrenByProperty()) {
+				for (final TreeNode<TSGNode> child : childrenForProperty) {
+					upperRoots[child.getData().corpusId] = upperRoot;
+					if (!child.getData().isRoot) {
+						toVisit.push(child);
+					}
+				}
+			}
+		}
 	}
 
 }
@@ -4,6 +4,8 @@
 package codemining.lm.tsg.samplers.blocked;
 
 import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
@@ -67,27 +69,25 @@ public final class TreeCorpusFilter {
     }
 
     public void addTree(final TreeNode<TSGNode> tree) {
-        final TreeNode<TSGNode> currentTree;
-        boolean isCompilationUnitNode = false;
-        try {
-            isCompilationUnitNode = treeExtractor.getSymbol(tree.getData().nodeKey).nodeType == treeExtractor
-                    .getKeyForCompilationUnit().getData();
-        } catch (final Throwable t) {
-            // ignore
-        }
-        if (isCompilationUnitNode) {
-            // Ignore imports and package declaration
-            if (tree.getChildrenByProperty().get(2).isEmpty()) {
-                return;
-            }
-            currentTree = tree.getChild(0, 2);
-            currentTree.getData().isRoot = true;
-        } else {
-            currentTree = tree;
+        final TreeNode<TSGNode> currentTree = getTreeToFilter(tree);
+        if (currentTree != null) {
+            trees.add(currentTree);
+            addAllNodes(currentTree);
         }
+    }
 
-        trees.add(currentTree);
-        addAllNodes(currentTree);
+    /**
+     * Add the CFG rules of the tree to the counts, without keeping the tree.
+     * This allows counting the rules of trees that are not filtered by this
+     * filter (see filter()).
+     *
+     * @param tree
+     */
+    public void addToCounts(final TreeNode<TSGNode> tree) {
+        final TreeNode<TSGNode> currentTree = getTreeToFilter(tree);
+        if (currentTree != null) {
+            addAllNodes(currentTree);
+        }
     }
 
     private CFGRule createRuleForNode(final TreeNode<TSGNode> node) {
@@ -147,6 +147,21 @@ public final class TreeCorpusFilter {
         return Sets.filter(filteredRoots, input -> !input.isLeaf());
     }
 
+    /**
+     * Filter a tree that has not been added to this filter, using the
+     * current counts.
+     *
+     * @param tree
+     * @return the filtered trees
+     */
+    public Collection<TreeNode<TSGNode>> filter(final TreeNode<TSGNode> tree) {
+        final TreeNode<TSGNode> currentTree = getTreeToFilter(tree);
+        if (currentTree == null) {
+            return Collections.emptySet();
+        }
+        return filterTree(currentTree);
+    }
+
     public List<TreeNode<TSGNode>> getFilteredTrees() {
         final List<TreeNode<TSGNode>> filteredTrees = Lists.newArrayList();
         for (final TreeNode<TSGNode> tree : trees) {
@@ -156,6 +171,31 @@ public final class TreeCorpusFilter {
         return filteredTrees;
     }
 
+    /**
+     * Return the part of the tree that is filtered, i.e. the body of a
+     * compilation unit, ignoring the imports and the package declaration, or
+     * the whole tree otherwise. Return null if there is nothing to filter.
+     */
+    private TreeNode<TSGNode> getTreeToFilter(final TreeNode<TSGNode> tree) {
+        boolean isCompilationUnitNode = false;
+        try {
+            isCompilationUnitNode = treeExtractor.getSymbol(tree.getData().nodeKey).nodeType == treeExtractor
+                    .getKeyForCompilationUnit().getData();
+        } catch (final Throwable t) {
+            // ignore
+        }
+        if (!isCompilationUnitNode) {
+            return tree;
+        }
+        // Ignore imports and package declaration
+        if (tree.getChildrenByProperty().get(2).isEmpty()) {
+            return null;
+        }
+        final TreeNode<TSGNode> currentTree = tree.getChild(0, 2);
+        currentTree.getData().isRoot = true;
+        return currentTree;
+    }
+
     /**
      * @param currentNode
      * @return
@@ -2,8 +2,9 @@ package codemining.lm.tsg.tui;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.FileUtils;
@@ -17,6 +18,8 @@ import codemining.languagetools.ITokenizer;
 import codemining.lm.tsg.TSGNode;
 import codemining.lm.tsg.TSGrammar;
 import codemining.lm.tsg.TreeProbabilityComputer;
+import codemining.util.SettingsLoader;
+import codemining.util.parallel.ParallelThreadPool;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
 import codemining.util.serialization.Serializer;
 
@@ -40,7 +43,7 @@ public class TsgEntropy {
 
 		final File directory = new File(args[1]);
 
-		final Collection<File> allFiles = FileUtils.listFiles(directory,
+		final Iterator<File> allFiles = FileUtils.iterateFiles(directory,
 				new RegexFileFilter(".*\\.java$"),
 				DirectoryFileFilter.DIRECTORY);
 
@@ -48,37 +51,73 @@ public class TsgEntropy {
 				.getSerializer().deserializeFrom(args[0]);
 
 		final AbstractTreeExtractor treeFormat = grammar.getTreeExtractor();
+		final TreeProbabilityComputer<TSGNode> probabilityComputer = new TreeProbabilityComputer<TSGNode>(
+				grammar, false, TreeProbabilityComputer.TSGNODE_MATCHER);
+
+		// Bound the number of files waiting to be scored, so that we do not
+		// hold the whole corpus in the queue.
+		final Semaphore queueSlots = new Semaphore(MAX_QUEUED_FILES);
+		final ParallelThreadPool ptp = new ParallelThreadPool();
 
 		System.out.println("filename,entropy,cross-entropy");
-		for (final File f : allFiles) {
-			try {
-				final TreeNode<Integer> intTree = treeFormat.getTree(f);
-				final TreeNode<TSGNode> tsgTree = TSGNode.convertTree(intTree,
-						0);
-
-				final ITokenizer tokenizer = treeFormat.getTokenizer();
-				final List<String> fileTokens = tokenizer
-						.tokenListFromCode(FileUtils.readFileToString(f)
-								.toCharArray());
-
-				final TreeProbabilityComputer<TSGNode> probabilityComputer = new TreeProbabilityComputer<TSGNode>(
-						grammar, false, TreeProbabilityComputer.TSGNODE_MATCHER);
-				final double probability = probabilityComputer
-						.getLog2ProbabilityOf(tsgTree);
-
-				final double crossEntropy = probability / fileTokens.size();
-				System.out.println(f.toString() + "," + probability + ","
-						+ crossEntropy);
-			} catch (final IOException e) {
-				LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
-			}
+		while (allFiles.hasNext()) {
+			final File f = allFiles.next();
+			queueSlots.acquireUninterruptibly();
+			ptp.pushTask(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						final String result = scoreFile(f, treeFormat,
+								probabilityComputer);
+						System.out.println(result);
+					} catch (final IOException e) {
+						LOGGER.warning(ExceptionUtils.getFullStackTrace(e));
+					} finally {
+						queueSlots.release();
+					}
+				}
+			});
 		}
+		ptp.waitForTermination();
+	}
 
+	/**
+	 * Score a single file, returning the CSV line of the results.
+	 *
+	 * @param f
+	 * @param treeFormat
+	 * @param probabilityComputer
+	 * @return
+	 * @throws IOException
+	 */
+	private static String scoreFile(final File f,
+			final AbstractTreeExtractor treeFormat,
+			final TreeProbabilityComputer<TSGNode> probabilityComputer)
+			throws IOException {
+		final TreeNode<Integer> intTree = treeFormat.getTree(f);
+		final TreeNode<TSGNode> tsgTree = TSGNode.convertTree(intTree, 0);
+
+		final ITokenizer tokenizer = treeFormat.getTokenizer();
+		final List<String> fileTokens = tokenizer
+				.tokenListFromCode(FileUtils.readFileToString(f).toCharArray());
+
+		final double probability = probabilityComputer
+				.getLog2ProbabilityOf(tsgTree);
+
+		final double crossEntropy = probability / fileTokens.size();
+		return f.toString() + "," + probability + "," + crossEntropy;
 	}
 
 	private static final Logger LOGGER = Logger.getLogger(TsgEntropy.class
 			.getName());
 
+	/**
+	 * The maximum number of files that are waiting to be scored.
+	 */
+	private static final int MAX_QUEUED_FILES = (int) SettingsLoader
+			.getNumericSetting("maxQueuedFiles",
+					4 * ParallelThreadPool.NUM_THREADS);
+
 	private TsgEntropy() {
 	}
 
@@ -4,6 +4,11 @@
 package codemining.lm.tsg.tui.java;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
@@ -13,6 +18,7 @@ import org.apache.commons.io.filefilter.RegexFileFilter;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.eclipse.jdt.core.dom.MethodDeclaration;
 
+import codemining.ast.TreeCorpusLoader;
 import codemining.ast.TreeNode;
 import codemining.ast.java.AbstractJavaTreeExtractor;
 import codemining.ast.java.BinaryJavaAstTreeExtractor;
@@ -24,6 +30,8 @@ import codemining.java.tokenizers.JavaTokenizer;
 import codemining.lm.tsg.FormattedTSGrammar;
 import codemining.lm.tsg.TSGNode;
 import codemining.lm.tsg.samplers.AbstractTSGSampler;
+import codemining.lm.tsg.samplers.GrammarCountExchange;
+import codemining.lm.tsg.samplers.SamplerCheckpoint;
 import codemining.lm.tsg.samplers.blocked.BlockCollapsedGibbsSampler;
 import codemining.lm.tsg.samplers.blocked.JavaFilteredBlockCollapsedGibbsSampler;
 import codemining.lm.tsg.samplers.blocked.TreeCorpusFilter;
@@ -31,8 +39,15 @@ import codemining.util.SettingsLoader;
 import codemining.util.serialization.ISerializationStrategy.SerializationException;
 import codemining.util.serialization.Serializer;
 
+import com.google.common.collect.Lists;
+
 /**
- * Sample a TSG using a blocked sampler.
+ * Sample a TSG using a blocked sampler. With -worker, this process is one of
+ * nWorkers sampler processes that share a sync directory: each samples only
+ * the trees of the files whose index (in the sorted file list) modulo nWorkers
+ * is its id (the other trees are only used for the CFG prior) and the counts
+ * of the sample grammars are synchronized through the directory. Worker 0
+ * outputs the grammar.
  *
  * @author Miltos Allamanis <m.allamanis@ed.ac.uk>
  *
@@ -51,20 +66,42 @@ public class SampleBlockedTSG {
      * @param args
      * @throws SerializationException
      */
-    public static void main(final String[] args) throws SerializationException {
+    public static void main(final String[] allArgs) throws SerializationException {
+        final String[] args;
+        final int workerId;
+        final int nWorkers;
+        final File syncDirectory;
+        if (allArgs.length >= 4 && allArgs[0].equals("-worker")) {
+            workerId = Integer.parseInt(allArgs[1]);
+            nWorkers = Integer.parseInt(allArgs[2]);
+            syncDirectory = new File(allArgs[3]);
+            args = Arrays.copyOfRange(allArgs, 4, allArgs.length);
+        } else {
+            workerId = 0;
+            nWorkers = 1;
+            syncDirectory = null;
+            args = allArgs;
+        }
         if (args.length < 5) {
             System.err.println(
-                    "Usage <TsgTrainingDir> normal|binary|binaryvariables|variables|binaryvariablesNoAnnotate|delegatedVariableNoAnnotate block|filterblock|icm <alpha> <#iterations> [<CfgExtraTraining>]");
+                    "Usage [-worker <workerId> <nWorkers> <syncDir>] <TsgTrainingDir> normal|binary|binaryvariables|variables|binaryvariablesNoAnnotate|delegatedVariableNoAnnotate block|filterblock|icm <alpha> <#iterations> [<CfgExtraTraining>]");
             System.exit(-1);
         }
+        final String workerSuffix = syncDirectory == null ? "" : "." + workerId;
 
         final int nIterations = Integer.parseInt(args[4]);
         final double concentrationParameter = Double.parseDouble(args[3]);
-        final File samplerCheckpoint = new File("tsgSampler.ser");
+        final File samplerCheckpoint = new File("tsgSampler.ser" + workerSuffix);
         final BlockCollapsedGibbsSampler sampler;
+        int startIteration = 0;
 
         if (samplerCheckpoint.exists()) {
-            sampler = (BlockCollapsedGibbsSampler) Serializer.getSerializer().deserializeFrom("tsgSampler.ser");
+            sampler = (BlockCollapsedGibbsSampler) Serializer.getSerializer()
+                    .deserializeFrom(samplerCheckpoint.getPath());
+            if (syncDirectory != null) {
+                sampler.setCountExchange(new GrammarCountExchange(syncDirectory, workerId, nWorkers,
+                        sampler.getSampleGrammar()));
+            }
             LOGGER.info("Resuming sampling");
 
         } else {
@@ -98,15 +135,11 @@ public class SampleBlockedTSG {
 
             if (args.length > 5) {
                 LOGGER.info("Loading additional CFG prior information from " + args[5]);
-                for (final File fi : FileUtils.listFiles(new File(args[5]), new RegexFileFilter(".*\\.java$"),
-                        DirectoryFileFilter.DIRECTORY)) {
-                    try {
-                        final TreeNode<TSGNode> ast = TSGNode.convertTree(format.getTree(fi), 0);
-                        sampler.addDataToPrior(ast);
-                    } catch (final Exception e) {
-                        LOGGER.warning("Failed to get AST for Cfg Prior " + fi.getAbsolutePath() + " "
-                                + ExceptionUtils.getFullStackTrace(e));
-                    }
+                final File priorDirectory = new File(args[5]);
+                for (final TreeNode<Integer> tree : TreeCorpusLoader.forCorpus(format, priorDirectory).loadAllTrees(
+                        FileUtils.listFiles(priorDirectory, new RegexFileFilter(".*\\.java$"),
+                                DirectoryFileFilter.DIRECTORY))) {
+                    sampler.addDataToPrior(TSGNode.convertTree(tree, 0));
                 }
             }
 
@@ -115,35 +148,77 @@ public class SampleBlockedTSG {
             int nNodes = 0;
             LOGGER.info("Loading sample trees from  " + args[0]);
             final TreeCorpusFilter filter = new TreeCorpusFilter(format, TREE_SPLIT_CFG_COUNT);
-            for (final File fi : FileUtils.listFiles(new File(args[0]), JavaTokenizer.javaCodeFileFilter,
-                    DirectoryFileFilter.DIRECTORY)) {
-                try {
-                    if (!USE_METHOD_BODY_ONLY) {
-                        final TreeNode<TSGNode> ast = TSGNode.convertTree(format.getTree(fi), percentRootsInit);
+            final File trainingDirectory = new File(args[0]);
+            final TreeCorpusLoader loader;
+            if (!USE_METHOD_BODY_ONLY) {
+                loader = TreeCorpusLoader.forCorpus(format, trainingDirectory);
+            } else {
+                loader = TreeCorpusLoader.forCorpus(format, "methodBodies", fi -> {
+                    final List<TreeNode<Integer>> bodies = Lists.newArrayList();
+                    for (final MethodDeclaration method : MethodRetriever.getMethodNodes(fi).values()) {
+                        if (method.getBody() != null) {
+                            bodies.add(format.getTree(method.getBody()));
+                        }
+                    }
+                    return bodies;
+                }, trainingDirectory);
+            }
+            // The workers shard the files, in the same order
+            final List<File> trainingFiles = Lists.newArrayList(FileUtils.listFiles(trainingDirectory,
+                    JavaTokenizer.javaCodeFileFilter, DirectoryFileFilter.DIRECTORY));
+            Collections.sort(trainingFiles);
+            final Map<File, List<TreeNode<Integer>>> corpus = loader.loadTrees(trainingFiles);
+            // Only the trees of this shard are converted and kept. The trees of
+            // the other shards are counted by the filter and, once all the
+            // counts are known, filtered into the CFG prior.
+            final List<TreeNode<Integer>> otherShardTrees = Lists.newArrayList();
+            for (int fileIdx = 0; fileIdx < trainingFiles.size(); fileIdx++) {
+                final List<TreeNode<Integer>> fileTrees = corpus.remove(trainingFiles.get(fileIdx));
+                if (fileTrees == null) {
+                    continue;
+                }
+                for (final TreeNode<Integer> tree : fileTrees) {
+                    if (fileIdx % nWorkers == workerId) {
+                        final TreeNode<TSGNode> ast = TSGNode.convertTree(tree, percentRootsInit);
                         nNodes += ast.getTreeSize();
                         filter.addTree(ast);
                     } else {
-                        for (final MethodDeclaration method : MethodRetriever.getMethodNodes(fi).values()) {
-                            if (method.getBody() == null) {
-                                continue;
-                            }
-                            final TreeNode<TSGNode> ast = TSGNode.convertTree(format.getTree(method.getBody()),
-                                    percentRootsInit);
-                            nNodes += ast.getTreeSize();
-                            filter.addTree(ast);
-                        }
+                        filter.addToCounts(TSGNode.convertTree(tree, 0));
+                        otherShardTrees.add(tree);
                     }
-                    nFiles++;
-                } catch (final Exception e) {
-                    LOGGER.warning("Failed to get AST for " + fi.getAbsolutePath() + " "
-                            + ExceptionUtils.getFullStackTrace(e));
                 }
+                nFiles++;
             }
-            LOGGER.info("Loaded " + nFiles + " files containing " + nNodes + " nodes");
+            LOGGER.info("Loaded " + nFiles + " files, sampling " + nNodes + " nodes");
             for (final TreeNode<TSGNode> filteredTree : filter.getFilteredTrees()) {
                 sampler.addTree(filteredTree);
             }
+            for (int i = 0; i < otherShardTrees.size(); i++) {
+                // Release each tree once it is in the prior
+                final TreeNode<TSGNode> ast = TSGNode.convertTree(otherShardTrees.set(i, null), 0);
+                for (final TreeNode<TSGNode> filteredTree : filter.filter(ast)) {
+                    sampler.addDataToPrior(filteredTree);
+                }
+            }
             sampler.lockSamplerData();
+            if (syncDirectory != null) {
+                LOGGER.info("Worker " + workerId + " sampling " + sampler.getTreeCorpus().size() + " trees");
+                sampler.setCountExchange(new GrammarCountExchange(syncDirectory, workerId, nWorkers,
+                        sampler.getSampleGrammar()));
+            }
+
+            final File incrementalCheckpoint = sampler.getCheckpointFile();
+            if (incrementalCheckpoint.exists()) {
+                try {
+                    final SamplerCheckpoint checkpoint = SamplerCheckpoint.readFrom(incrementalCheckpoint);
+                    checkpoint.restoreTo(sampler);
+                    startIteration = checkpoint.getNumberOfCompletedIterations();
+                    LOGGER.info("Resuming sampling from iteration " + startIteration);
+                } catch (final IOException e) {
+                    LOGGER.warning("Failed to read checkpoint " + incrementalCheckpoint + ", starting from scratch "
+                            + ExceptionUtils.getFullStackTrace(e));
+                }
+            }
         }
 
         final AtomicBoolean finished = new AtomicBoolean(false);
@@ -162,7 +237,7 @@ public class SampleBlockedTSG {
             }
         });
 
-        final int nItererationCompleted = sampler.performSampling(nIterations);
+        final int nItererationCompleted = sampler.performSampling(startIteration, nIterations);
 
         final FormattedTSGrammar grammarToUse;
         if (nItererationCompleted >= nIterations) {
@@ -172,21 +247,27 @@ public class SampleBlockedTSG {
             LOGGER.warning("Sampling not complete. Outputing sample grammar...");
             grammarToUse = (FormattedTSGrammar) sampler.getSampleGrammar();
         }
-        try {
-            Serializer.getSerializer().serialize(grammarToUse, "tsg.ser");
-        } catch (final Throwable e) {
-            LOGGER.severe("Failed to serialize grammar: " + ExceptionUtils.getFullStackTrace(e));
+        // All workers have the same grammars, so only worker 0 outputs them
+        if (workerId == 0) {
+            try {
+                Serializer.getSerializer().serialize(grammarToUse, "tsg.ser");
+            } catch (final Throwable e) {
+                LOGGER.severe("Failed to serialize grammar: " + ExceptionUtils.getFullStackTrace(e));
+            }
         }
 
         try {
-            Serializer.getSerializer().serialize(sampler, "tsgSamplerCheckpoint.ser");
+            Serializer.getSerializer().serialize(sampler, "tsgSamplerCheckpoint.ser" + workerSuffix);
         } catch (final Throwable e) {
             LOGGER.severe("Failed to checkpoint sampler: " + ExceptionUtils.getFullStackTrace(e));
         }
 
-        // sampler.pruneNonSurprisingRules(1);
-        grammarToUse.prune((int) (AbstractTSGSampler.BURN_IN_PCT * nIterations) - 10);
-        System.out.println(grammarToUse.toString());
+        if (workerId == 0) {
+            // sampler.pruneNonSurprisingRules(1);
+            grammarToUse.prune(((int) (AbstractTSGSampler.BURN_IN_PCT * nIterations) - 10)
+                    / AbstractTSGSampler.BURN_IN_SAMPLE_INTERVAL);
+            System.out.println(grammarToUse.toString());
+        }
         finished.set(true); // we have finished and thus the shutdown hook can
         // now stop waiting for us.
 
@@ -155,7 +155,8 @@ public class SampleTSG {
 		}
 
 		// sampler.pruneNonSurprisingRules(1);
-		sampler.pruneRareTrees((int) (AbstractTSGSampler.BURN_IN_PCT * nIterations) - 10);
+		sampler.pruneRareTrees(((int) (AbstractTSGSampler.BURN_IN_PCT * nIterations) - 10)
+				/ AbstractTSGSampler.BURN_IN_SAMPLE_INTERVAL);
 		System.out.println(grammarToUse.toString());
 		finished.set(true); // we have finished and thus the shutdown hook can
 		// now stop waiting for us.
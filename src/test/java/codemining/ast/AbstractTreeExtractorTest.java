@@ -0,0 +1,109 @@
+package codemining.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import codemining.ast.java.JavaAstTreeExtractor;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.Lists;
+
+public class AbstractTreeExtractorTest {
+
+	private static AstNodeSymbol createSymbol(final int i) {
+		final AstNodeSymbol symbol = new AstNodeSymbol(i % 7);
+		symbol.addSimpleProperty("name", "symbol" + i);
+		symbol.addChildProperty("children");
+		return symbol;
+	}
+
+	@Test
+	public void testConcurrentAlphabet() throws Exception {
+		final AbstractTreeExtractor extractor = new JavaAstTreeExtractor();
+		final int nSymbols = 5000;
+		final int nThreads = 8;
+		final ExecutorService executor = Executors
+				.newFixedThreadPool(nThreads);
+		final List<Future<int[]>> results = Lists.newArrayList();
+		for (int t = 0; t < nThreads; t++) {
+			results.add(executor.submit(() -> {
+				final int[] ids = new int[nSymbols];
+				for (int i = 0; i < nSymbols; i++) {
+					ids[i] = extractor.getOrAddSymbolId(createSymbol(i));
+				}
+				return ids;
+			}));
+		}
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+		// All threads get the same, dense ids
+		final int[] ids = results.get(0).get();
+		for (final Future<int[]> result : results) {
+			final int[] threadIds = result.get();
+			for (int i = 0; i < nSymbols; i++) {
+				assertEquals(ids[i], threadIds[i]);
+			}
+		}
+		final BiMap<Integer, AstNodeSymbol> alphabet = extractor
+				.getNodeAlphabet();
+		assertEquals(nSymbols, alphabet.size());
+		for (int i = 0; i < nSymbols; i++) {
+			assertTrue(ids[i] >= 0 && ids[i] < nSymbols);
+			assertEquals(createSymbol(i), extractor.getSymbol(ids[i]));
+			assertEquals(createSymbol(i), alphabet.get(ids[i]));
+		}
+		assertNull(extractor.getSymbol(nSymbols));
+		assertNull(extractor.getSymbol(-1));
+	}
+
+	@Test
+	public void testFindSymbolId() {
+		final AbstractTreeExtractor extractor = new JavaAstTreeExtractor();
+		for (int i = 0; i < 20; i++) {
+			extractor.getOrAddSymbolId(createSymbol(i));
+		}
+		assertEquals(3, extractor.findSymbolId(symbol -> symbol.nodeType == 3));
+		assertEquals(-1, extractor.findSymbolId(symbol -> symbol.nodeType == 7));
+	}
+
+	@Test
+	public void testSerialization() throws IOException, ClassNotFoundException {
+		final AbstractTreeExtractor extractor = new JavaAstTreeExtractor();
+		for (int i = 0; i < 2000; i++) {
+			extractor.getOrAddSymbolId(createSymbol(i));
+		}
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (final ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(extractor);
+		}
+		final AbstractTreeExtractor copy;
+		try (final ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray()))) {
+			copy = (AbstractTreeExtractor) in.readObject();
+		}
+
+		assertEquals(extractor.getNodeAlphabet(), copy.getNodeAlphabet());
+		for (int i = 0; i < 2000; i++) {
+			assertEquals(extractor.getOrAddSymbolId(createSymbol(i)),
+					copy.getOrAddSymbolId(createSymbol(i)));
+		}
+		assertEquals(2000, copy.getOrAddSymbolId(createSymbol(2000)));
+	}
+
+}
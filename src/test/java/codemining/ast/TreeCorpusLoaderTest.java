@@ -0,0 +1,163 @@
+package codemining.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import codemining.ast.TreeCorpusLoader.ITreeExtraction;
+import codemining.ast.java.BinaryJavaAstTreeExtractor;
+import codemining.ast.java.JavaAstTreeExtractor;
+
+import com.google.common.collect.Lists;
+
+public class TreeCorpusLoaderTest {
+
+	/**
+	 * An extraction that creates a tree with a child for each word of the
+	 * file.
+	 */
+	private static ITreeExtraction createExtraction(
+			final AbstractTreeExtractor format, final AtomicInteger nCalls) {
+		return f -> {
+			nCalls.incrementAndGet();
+			final AstNodeSymbol rootSymbol = new AstNodeSymbol(1);
+			rootSymbol.addChildProperty("words");
+			final TreeNode<Integer> root = TreeNode.create(
+					format.getOrAddSymbolId(rootSymbol), 1);
+			for (final String word : FileUtils.readFileToString(f).split(" ")) {
+				final AstNodeSymbol wordSymbol = new AstNodeSymbol(2);
+				wordSymbol.addSimpleProperty("word", word);
+				root.addChildNode(
+						TreeNode.create(format.getOrAddSymbolId(wordSymbol), 0),
+						0);
+			}
+			return Collections.singletonList(root);
+		};
+	}
+
+	/**
+	 * Return the symbols of the tree in pre-order.
+	 */
+	private static List<AstNodeSymbol> toSymbols(
+			final AbstractTreeExtractor format, final TreeNode<Integer> tree) {
+		final List<AstNodeSymbol> symbols = Lists.newArrayList();
+		final ArrayDeque<TreeNode<Integer>> toVisit = new ArrayDeque<TreeNode<Integer>>();
+		toVisit.push(tree);
+		while (!toVisit.isEmpty()) {
+			final TreeNode<Integer> current = toVisit.pop();
+			symbols.add(format.getSymbol(current.getData()));
+			for (final List<TreeNode<Integer>> childrenForProperty : current
+					.getChildrenByProperty()) {
+				for (final TreeNode<Integer> child : childrenForProperty) {
+					toVisit.push(child);
+				}
+			}
+		}
+		return symbols;
+	}
+
+	@Test
+	public void testCachedLoad() throws IOException {
+		final File directory = File.createTempFile("corpus", "");
+		directory.delete();
+		directory.mkdirs();
+		final File file1 = new File(directory, "a.java");
+		final File file2 = new File(directory, "b.java");
+		final File file3 = new File(directory, "c.java");
+		FileUtils.writeStringToFile(file1, "a b c");
+		FileUtils.writeStringToFile(file2, "b d");
+		FileUtils.writeStringToFile(file3, "a b c");
+		final List<File> files = Lists.newArrayList(file1, file2, file3);
+		final File cacheFile = new File(directory, "cache/trees");
+
+		final AbstractTreeExtractor format1 = new JavaAstTreeExtractor();
+		final AtomicInteger nCalls1 = new AtomicInteger();
+		final Map<File, List<TreeNode<Integer>>> trees1 = new TreeCorpusLoader(
+				format1, "words", createExtraction(format1, nCalls1), cacheFile)
+				.loadTrees(files);
+		assertEquals(3, nCalls1.get());
+		assertEquals(files, Lists.newArrayList(trees1.keySet()));
+
+		// A new format, where the ids of the symbols differ
+		final AbstractTreeExtractor format2 = new JavaAstTreeExtractor();
+		format2.getOrAddSymbolId(new AstNodeSymbol(3));
+		final AtomicInteger nCalls2 = new AtomicInteger();
+		final Map<File, List<TreeNode<Integer>>> trees2 = new TreeCorpusLoader(
+				format2, "words", createExtraction(format2, nCalls2), cacheFile)
+				.loadTrees(files);
+		assertEquals(0, nCalls2.get());
+		assertEquals(files, Lists.newArrayList(trees2.keySet()));
+		for (final File f : files) {
+			assertEquals(1, trees2.get(f).size());
+			assertEquals(toSymbols(format1, trees1.get(f).get(0)),
+					toSymbols(format2, trees2.get(f).get(0)));
+		}
+		assertNotSame(trees2.get(file1).get(0), trees2.get(file3).get(0));
+
+		// Only the changed file is parsed again
+		FileUtils.writeStringToFile(file2, "e");
+		final AtomicInteger nCalls3 = new AtomicInteger();
+		final Map<File, List<TreeNode<Integer>>> trees3 = new TreeCorpusLoader(
+				format2, "words", createExtraction(format2, nCalls3), cacheFile)
+				.loadTrees(files);
+		assertEquals(1, nCalls3.get());
+		assertEquals(2, toSymbols(format2, trees3.get(file2).get(0)).size());
+
+		// A cache of a different extraction is ignored
+		final AtomicInteger nCalls4 = new AtomicInteger();
+		new TreeCorpusLoader(format2, "other", createExtraction(format2,
+				nCalls4), cacheFile).loadTrees(files);
+		assertEquals(3, nCalls4.get());
+
+		FileUtils.deleteDirectory(directory);
+	}
+
+	@Test
+	public void testFormatConfigurationsShareCacheDirectory()
+			throws IOException {
+		final File directory = File.createTempFile("corpus", "");
+		directory.delete();
+		directory.mkdirs();
+		final File file = new File(directory, "a.java");
+		FileUtils.writeStringToFile(file, "a b");
+		final List<File> files = Collections.singletonList(file);
+		final File cacheDirectory = new File(directory, "cache");
+
+		// Two formats of the same class that differ in their configuration
+		final AbstractTreeExtractor annotated = new BinaryJavaAstTreeExtractor(
+				new JavaAstTreeExtractor(), true);
+		final AbstractTreeExtractor notAnnotated = new BinaryJavaAstTreeExtractor(
+				new JavaAstTreeExtractor(), false);
+		assertFalse(annotated.getFormatId().equals(notAnnotated.getFormatId()));
+
+		final AtomicInteger nCalls = new AtomicInteger();
+		TreeCorpusLoader.forCorpus(annotated, "words",
+				createExtraction(annotated, nCalls), directory, cacheDirectory)
+				.loadTrees(files);
+		TreeCorpusLoader.forCorpus(notAnnotated, "words",
+				createExtraction(notAnnotated, nCalls), directory,
+				cacheDirectory).loadTrees(files);
+		assertEquals(2, nCalls.get());
+		assertEquals(2, cacheDirectory.list().length);
+
+		// Each format still reads its own cache
+		TreeCorpusLoader.forCorpus(annotated, "words",
+				createExtraction(annotated, nCalls), directory, cacheDirectory)
+				.loadTrees(files);
+		assertEquals(2, nCalls.get());
+
+		FileUtils.deleteDirectory(directory);
+	}
+
+}
@@ -7,12 +7,17 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
 import java.util.Collections;
 import java.util.List;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
 import com.google.common.collect.Lists;
 
 import codemining.ast.TreeNode;
@@ -47,6 +52,79 @@ public class TreeNodeTest {
 		assertEquals(node.getTreeSize(), 4);
 	}
 
+	@Test
+	public void testImmutable() {
+		final TreeNode<Integer> node = TreeNode.create(1, 2);
+		final TreeNode<Integer> child = TreeNode.create(2, 1);
+		child.addChildNode(TreeNode.create(3, 0), 0);
+		node.addChildNode(child, 0);
+		node.addChildNode(TreeNode.create(4, 0), 1);
+
+		final TreeNode<Integer> immutable = node.toImmutable();
+		assertEquals(node.hashCode(), immutable.hashCode());
+		assertEquals(node, immutable);
+		assertEquals(immutable, node);
+		assertEquals(4, immutable.getTreeSize());
+		assertEquals(node.getNumberOfProductions(),
+				immutable.getNumberOfProductions());
+		assertTrue(immutable.toImmutable() == immutable);
+
+		node.addChildNode(TreeNode.create(5, 0), 1);
+		final TreeNode<Integer> immutable2 = node.toImmutable();
+		assertFalse(immutable.equals(immutable2));
+		assertFalse(immutable2.equals(immutable));
+		assertEquals(5, immutable2.getTreeSize());
+		assertEquals(node.hashCode(), immutable2.hashCode());
+		assertEquals(immutable.getChild(0, 0), immutable2.getChild(0, 0));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T extends Serializable> TreeNode<T> kryoCopy(
+			final TreeNode<T> tree) {
+		final Kryo kryo = new Kryo();
+		final Output output = new Output(new ByteArrayOutputStream());
+		kryo.writeClassAndObject(output, tree);
+		output.close();
+		return (TreeNode<T>) kryo.readClassAndObject(new Input(
+				((ByteArrayOutputStream) output.getOutputStream())
+						.toByteArray()));
+	}
+
+	@Test
+	public void testKryoSerialization() {
+		final TreeNode<Integer> node = TreeNode.create(1, 3);
+		final TreeNode<Integer> child = TreeNode.create(2, 1);
+		child.addChildNode(TreeNode.create(3, 0), 0);
+		node.addChildNode(child, 0);
+		node.addChildNode(TreeNode.create(4, 0), 2);
+		node.addChildNode(TreeNode.create(5, 2), 2);
+
+		final TreeNode<Integer> copy = kryoCopy(node);
+		assertEquals(node, copy);
+		assertFalse(copy.toImmutable() == copy);
+		copy.addChildNode(TreeNode.create(6, 0), 1);
+
+		final TreeNode<Integer> immutableCopy = kryoCopy(node.toImmutable());
+		assertEquals(node, immutableCopy);
+		assertEquals(node.hashCode(), immutableCopy.hashCode());
+		assertTrue(immutableCopy.toImmutable() == immutableCopy);
+
+		// Deep trees are written and read without recursion
+		final TreeNode<Integer> deepTree = TreeNode.create(0, 1);
+		TreeNode<Integer> current = deepTree;
+		for (int i = 1; i < 100000; i++) {
+			final TreeNode<Integer> next = TreeNode.create(i, 1);
+			current.addChildNode(next, 0);
+			current = next;
+		}
+		current = kryoCopy(deepTree);
+		for (int i = 0; i < 100000; i++) {
+			assertEquals(i, (int) current.getData());
+			current = current.isLeaf() ? null : current.getChild(0, 0);
+		}
+		assertTrue(current == null);
+	}
+
 	@Test
 	public void testIsLeaf() {
 		final TreeNode<Integer> node = TreeNode.create(1, 10);
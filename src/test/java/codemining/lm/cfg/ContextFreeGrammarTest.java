@@ -110,6 +110,34 @@ public class ContextFreeGrammarTest {
 
 	}
 
+	@Test
+	public void testImmutable() {
+		final ContextFreeGrammar cfg = new ContextFreeGrammar(
+				mock(AbstractTreeExtractor.class));
+		cfg.addRulesFrom(generateSampleTree1());
+		cfg.addRulesFrom(generateSampleTree2());
+		cfg.addRulesFrom(generateSampleTree2());
+
+		final ImmutableContextFreeGrammar immutableCfg = new ImmutableContextFreeGrammar(
+				cfg);
+		assertEquals(cfg.getInternalGrammar(),
+				immutableCfg.getInternalGrammar());
+		assertEquals(immutableCfg.getMLProbability(1, getConsequent1()),
+				1. / 3., 10E-10);
+		assertEquals(immutableCfg.getMLProbability(3, getConsequent1()), 0,
+				10E-10);
+		assertEquals(immutableCfg.getMLProbability(7, getConsequent1()), 1,
+				10E-10);
+
+		final ContextFreeGrammar.NodeConsequent csq = getConsequent1();
+		assertEquals(csq,
+				ContextFreeGrammar.NodeConsequent.fromIntArray(csq.toIntArray()));
+		csq.nodes.get(2).add(3);
+		assertEquals(immutableCfg.getMLProbability(1, csq), 0, 10E-10);
+		csq.nodes.add(new ArrayList<Integer>());
+		assertEquals(immutableCfg.getMLProbability(1, csq), 0, 10E-10);
+	}
+
 	@Test
 	public void testRuleExtraction() {
 		final ContextFreeGrammar cfg = new ContextFreeGrammar(
@@ -0,0 +1,84 @@
+package codemining.lm.tsg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import codemining.ast.TreeNode;
+import codemining.lm.tsg.samplers.blocked.TreeWithNodeIndex;
+
+public class FragmentFingerprintTest {
+
+	private void assertFragmentMatches(final TreeNode<TSGNode> topNode) {
+		final boolean wasRoot = topNode.getData().isRoot;
+		topNode.getData().isRoot = true;
+		final TreeNode<TSGNode> fragment = TSGNode.getSubTreeFromRoot(topNode);
+		topNode.getData().isRoot = wasRoot;
+
+		assertEquals(FragmentFingerprint.of(fragment),
+				FragmentFingerprint.ofRootedFragment(topNode));
+		assertTrue(FragmentFingerprint.matchesRootedFragment(fragment,
+				topNode));
+	}
+
+	@Test
+	public void testFragmentsMatch() {
+		final TreeWithNodeIndex tree = TreeWithNodeIndex.generateTree2();
+		assertFragmentMatches(tree.tree);
+
+		tree.nodeIndex.get(4).getData().isRoot = true;
+		tree.nodeIndex.get(13).getData().isRoot = true;
+		assertFragmentMatches(tree.tree);
+		assertFragmentMatches(tree.nodeIndex.get(4));
+		assertFragmentMatches(tree.nodeIndex.get(13));
+		assertFragmentMatches(tree.nodeIndex.get(5));
+	}
+
+	@Test
+	public void testFragmentsDiffer() {
+		final TreeWithNodeIndex tree = TreeWithNodeIndex.generateTree2();
+		final TreeNode<TSGNode> joined = TSGNode.getSubTreeFromRoot(tree.tree);
+		final long joinedFingerprint = FragmentFingerprint
+				.ofRootedFragment(tree.tree);
+
+		tree.nodeIndex.get(4).getData().isRoot = true;
+		final long upperFingerprint = FragmentFingerprint
+				.ofRootedFragment(tree.tree);
+		assertFalse(joinedFingerprint == upperFingerprint);
+		assertFalse(FragmentFingerprint.matchesRootedFragment(joined,
+				tree.tree));
+
+		// Nodes 4 and 13 are the roots of identical subtrees
+		assertEquals(
+				FragmentFingerprint.ofRootedFragment(tree.nodeIndex.get(4)),
+				FragmentFingerprint.ofRootedFragment(tree.nodeIndex.get(13)));
+		assertFalse(FragmentFingerprint.ofRootedFragment(tree.nodeIndex
+				.get(4)) == FragmentFingerprint.ofRootedFragment(tree.nodeIndex
+				.get(5)));
+	}
+
+	@Test
+	public void testGrammarLookup() {
+		final TreeWithNodeIndex tree = TreeWithNodeIndex.generateTree1();
+		tree.nodeIndex.get(4).getData().isRoot = true;
+		final TSGrammar<TSGNode> grammar = new TSGrammar<TSGNode>();
+		final TreeNode<TSGNode> upper = TSGNode.getSubTreeFromRoot(tree.tree);
+		grammar.addTree(upper, 2);
+
+		final long fingerprint = FragmentFingerprint
+				.ofRootedFragment(tree.tree);
+		assertTrue(grammar.getRuleByFingerprint(fingerprint) == upper);
+		assertTrue(grammar.getRuleByFingerprint(FragmentFingerprint
+				.ofRootedFragment(tree.nodeIndex.get(4))) == null);
+
+		grammar.removeTree(upper, 1);
+		assertTrue(grammar.getRuleByFingerprint(fingerprint) == upper);
+		grammar.removeTree(TSGNode.getSubTreeFromRoot(tree.tree), 1);
+		// Rules remain interned, even with a zero count
+		assertTrue(grammar.getRuleByFingerprint(fingerprint) == upper);
+		assertEquals(0, grammar.countTreeOccurences(upper));
+	}
+
+}
@@ -0,0 +1,139 @@
+package codemining.lm.tsg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.google.common.collect.Range;
+
+import codemining.ast.TreeNode;
+import codemining.ast.java.JavaAstTreeExtractor;
+import codemining.lm.tsg.samplers.blocked.TreeWithNodeIndex;
+
+public class MappedTSGrammarTest {
+
+	private static FormattedTSGrammar createGrammar() {
+		final FormattedTSGrammar grammar = new FormattedTSGrammar(
+				new JavaAstTreeExtractor());
+		final TreeWithNodeIndex tree1 = TreeWithNodeIndex.generateTree1();
+		tree1.nodeIndex.get(4).getData().isRoot = true;
+		tree1.nodeIndex.get(8).getData().isRoot = true;
+		final TreeWithNodeIndex tree2 = TreeWithNodeIndex.generateTree2();
+		tree2.nodeIndex.get(2).getData().isRoot = true;
+
+		for (int i = 0; i < 3; i++) {
+			for (final TreeNode<TSGNode> rule : TSGNode
+					.getAllRootsOf(tree1.tree)) {
+				grammar.addTree(rule);
+			}
+		}
+		for (final TreeNode<TSGNode> rule : TSGNode.getAllRootsOf(tree2.tree)) {
+			grammar.addTree(rule);
+		}
+		// Keys and counts that need several bytes
+		final TreeNode<TSGNode> large = TreeNode.create(new TSGNode(300000), 1);
+		large.getData().isRoot = true;
+		large.addChildNode(TreeNode.create(new TSGNode(200), 0), 0);
+		grammar.addTree(large, 1000);
+		// A rule whose count drops to zero is not written
+		final TreeNode<TSGNode> removed = TreeNode.create(new TSGNode(100), 0);
+		removed.getData().isRoot = true;
+		grammar.addTree(removed);
+		grammar.removeTree(removed);
+		return grammar;
+	}
+
+	@Test
+	public void testWriteAndOpen() throws IOException {
+		final FormattedTSGrammar grammar = createGrammar();
+		final File file = File.createTempFile("tsg", ".mapped");
+		file.deleteOnExit();
+		MappedTSGrammar.write(grammar, file);
+		assertTrue(MappedTSGrammar.isMappedGrammar(file));
+
+		final MappedTSGrammar mapped = MappedTSGrammar.open(file);
+		assertEquals(grammar.getTreeExtractor().getClass(), mapped
+				.getTreeExtractor().getClass());
+
+		int nRules = 0;
+		int nRoots = 0;
+		for (final TSGNode root : grammar.getInternalGrammar().keySet()) {
+			nRules += grammar.getInternalGrammar().get(root).elementSet()
+					.size();
+			nRoots++;
+			assertEquals(grammar.countTreesWithRoot(root),
+					mapped.countTreesWithRoot(root.nodeKey));
+		}
+		assertEquals(nRoots, mapped.getNumberOfRoots());
+		assertEquals(nRules, mapped.getNumberOfRules());
+		assertEquals(0, mapped.countTreesWithRoot(100));
+		assertTrue(mapped.getRuleIdsWithRoot(100).isEmpty());
+
+		for (int rootIdx = 0; rootIdx < mapped.getNumberOfRoots(); rootIdx++) {
+			final Range<Integer> ruleIds = mapped.getRuleIdsOfRoot(rootIdx);
+			if (rootIdx > 0) {
+				assertTrue(mapped.getRootKey(rootIdx - 1) < mapped
+						.getRootKey(rootIdx));
+			}
+			for (int ruleId = ruleIds.lowerEndpoint(); ruleId < ruleIds
+					.upperEndpoint(); ruleId++) {
+				final TreeNode<TSGNode> rule = mapped.getRule(ruleId);
+				assertEquals(mapped.getRootKey(rootIdx),
+						rule.getData().nodeKey);
+				assertEquals(grammar.countTreeOccurences(rule),
+						mapped.countRuleOccurences(ruleId));
+				assertEquals(rule.getTreeSize(),
+						mapped.getRuleTreeSize(ruleId));
+				if (ruleId > ruleIds.lowerEndpoint()) {
+					assertTrue(mapped.countRuleOccurences(ruleId - 1) >= mapped
+							.countRuleOccurences(ruleId));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSegments() throws IOException {
+		final FormattedTSGrammar grammar = createGrammar();
+		final File file = File.createTempFile("tsg", ".mapped");
+		file.deleteOnExit();
+		MappedTSGrammar.write(grammar, file);
+
+		// The values and rules span the segment boundaries
+		final MappedTSGrammar mapped = MappedTSGrammar.open(file);
+		final MappedTSGrammar segmented = MappedTSGrammar.open(file, 3);
+		assertEquals(mapped.getNumberOfRoots(), segmented.getNumberOfRoots());
+		assertEquals(mapped.getNumberOfRules(), segmented.getNumberOfRules());
+		assertEquals(grammar.getTreeExtractor().getClass(), segmented
+				.getTreeExtractor().getClass());
+		for (int rootIdx = 0; rootIdx < mapped.getNumberOfRoots(); rootIdx++) {
+			final int rootKey = mapped.getRootKey(rootIdx);
+			assertEquals(rootKey, segmented.getRootKey(rootIdx));
+			assertEquals(mapped.countTreesWithRoot(rootKey),
+					segmented.countTreesWithRoot(rootKey));
+			assertEquals(mapped.getRuleIdsOfRoot(rootIdx),
+					segmented.getRuleIdsOfRoot(rootIdx));
+		}
+		for (int ruleId = 0; ruleId < mapped.getNumberOfRules(); ruleId++) {
+			assertEquals(mapped.getRule(ruleId), segmented.getRule(ruleId));
+			assertEquals(mapped.countRuleOccurences(ruleId),
+					segmented.countRuleOccurences(ruleId));
+			assertEquals(mapped.getRuleTreeSize(ruleId),
+					segmented.getRuleTreeSize(ruleId));
+		}
+		assertEquals(1000, segmented.countTreesWithRoot(300000));
+	}
+
+	@Test
+	public void testNotMapped() throws IOException {
+		final File file = File.createTempFile("tsg", ".ser");
+		file.deleteOnExit();
+		assertFalse(MappedTSGrammar.isMappedGrammar(file));
+	}
+
+}
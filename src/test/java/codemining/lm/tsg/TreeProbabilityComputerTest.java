@@ -167,6 +167,9 @@ public class TreeProbabilityComputerTest {
 		grammar.addTree(generateRule4());
 		assertEquals(computer2.getLog2ProbabilityOf(fullTree),
 				Double.NEGATIVE_INFINITY, 10E-10);
+		// The first computer must also see the new rule
+		assertEquals(computer.getLog2ProbabilityOf(fullTree),
+				Double.NEGATIVE_INFINITY, 10E-10);
 
 	}
 }
@@ -0,0 +1,138 @@
+package codemining.lm.tsg.idioms;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import codemining.ast.TreeNode;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
+
+public class PatternMatcherTest {
+
+	/**
+	 * Return all the patterns that match at the node, one by one.
+	 */
+	private static Multiset<TreeNode<Integer>> bruteForceMatch(
+			final TreeNode<Integer> node, final Set<TreeNode<Integer>> patterns) {
+		final Multiset<TreeNode<Integer>> matches = HashMultiset.create();
+		for (final TreeNode<Integer> pattern : patterns) {
+			if (pattern.partialMatch(node, false)) {
+				matches.add(pattern);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Generate a random tree with small alphabet, so that patterns are
+	 * frequently matched.
+	 */
+	private static TreeNode<Integer> generateRandomTree(final Random random,
+			final int maxDepth) {
+		final int nProperties = maxDepth == 0 ? 0 : random.nextInt(3);
+		final TreeNode<Integer> node = TreeNode.create(random.nextInt(3),
+				nProperties);
+		for (int i = 0; i < nProperties; i++) {
+			final int nChildren = random.nextInt(3);
+			for (int j = 0; j < nChildren; j++) {
+				node.addChildNode(generateRandomTree(random, maxDepth - 1), i);
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * Return a random pattern that is the prefix of the given tree.
+	 */
+	private static TreeNode<Integer> generateRandomPrefix(
+			final TreeNode<Integer> tree, final Random random,
+			final int maxDepth) {
+		final TreeNode<Integer> node = TreeNode.create(tree.getData(),
+				tree.nProperties());
+		if (maxDepth == 0) {
+			return node;
+		}
+		for (int i = 0; i < tree.nProperties(); i++) {
+			final List<TreeNode<Integer>> children = tree
+					.getChildrenByProperty().get(i);
+			final int nChildren = random.nextInt(children.size() + 1);
+			for (int j = 0; j < nChildren; j++) {
+				node.addChildNode(
+						generateRandomPrefix(children.get(j), random,
+								maxDepth - 1), i);
+			}
+		}
+		return node;
+	}
+
+	@Test
+	public void testAgainstPartialMatch() {
+		final Random random = new Random(42);
+		final Set<TreeNode<Integer>> patterns = Sets.newHashSet();
+		for (int i = 0; i < 200; i++) {
+			patterns.add(generateRandomPrefix(generateRandomTree(random, 4),
+					random, 3));
+		}
+		final PatternMatcher<Integer> matcher = new PatternMatcher<Integer>(
+				patterns);
+		assertEquals(patterns.size(), matcher.size());
+
+		int nMatches = 0;
+		for (int i = 0; i < 20; i++) {
+			final TreeNode<Integer> tree = generateRandomTree(random, 6);
+			final Multiset<TreeNode<Integer>> allMatches = HashMultiset
+					.create();
+			final ArrayDeque<TreeNode<Integer>> toLook = new ArrayDeque<TreeNode<Integer>>();
+			toLook.push(tree);
+			while (!toLook.isEmpty()) {
+				final TreeNode<Integer> current = toLook.pop();
+				final Multiset<TreeNode<Integer>> expected = bruteForceMatch(
+						current, patterns);
+				assertEquals(expected, HashMultiset.create(matcher
+						.getMatchingPatterns(current)));
+				allMatches.addAll(expected);
+				for (final List<TreeNode<Integer>> children : current
+						.getChildrenByProperty()) {
+					toLook.addAll(children);
+				}
+			}
+			assertEquals(allMatches, matcher.getPatternsInTree(tree));
+			nMatches += allMatches.size();
+		}
+		assertTrue(nMatches > 0);
+	}
+
+	@Test
+	public void testPrefixMatch() {
+		final TreeNode<Integer> tree = TreeNode.create(1, 2);
+		tree.addChildNode(TreeNode.create(2, 0), 0);
+		tree.addChildNode(TreeNode.create(3, 0), 0);
+		tree.addChildNode(TreeNode.create(4, 0), 1);
+
+		final TreeNode<Integer> pattern1 = TreeNode.create(1, 2);
+		pattern1.addChildNode(TreeNode.create(2, 0), 0);
+		final TreeNode<Integer> pattern2 = TreeNode.create(1, 2);
+		pattern2.addChildNode(TreeNode.create(3, 0), 0);
+		final TreeNode<Integer> pattern3 = TreeNode.create(1, 2);
+		final TreeNode<Integer> pattern4 = TreeNode.create(1, 1);
+		final TreeNode<Integer> pattern5 = TreeNode.create(4, 0);
+
+		final PatternMatcher<Integer> matcher = new PatternMatcher<Integer>(
+				Sets.newHashSet(pattern1, pattern2, pattern3, pattern4,
+						pattern5));
+		assertEquals(HashMultiset.create(Sets.newHashSet(pattern1, pattern3)),
+				HashMultiset.create(matcher.getMatchingPatterns(tree)));
+		assertEquals(HashMultiset.create(Sets.newHashSet(pattern1, pattern3,
+				pattern5)), matcher.getPatternsInTree(tree));
+	}
+
+}
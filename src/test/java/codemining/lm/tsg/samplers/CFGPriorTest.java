@@ -0,0 +1,67 @@
+package codemining.lm.tsg.samplers;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import java.util.Map.Entry;
+
+import org.junit.Test;
+
+import codemining.ast.AbstractTreeExtractor;
+import codemining.ast.TreeNode;
+import codemining.lm.cfg.AbstractContextFreeGrammar.CFGRule;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.samplers.CFGPrior.IRuleCreator;
+import codemining.lm.tsg.samplers.blocked.BlockCollapsedGibbsSampler;
+import codemining.lm.tsg.samplers.blocked.TreeWithNodeIndex;
+
+public class CFGPriorTest {
+
+	private static void assertFragmentPriorsMatch(final CFGPrior prior,
+			final TreeWithNodeIndex tree) {
+		for (final TreeNode<TSGNode> node : tree.nodeIndex.values()) {
+			final boolean wasRoot = node.getData().isRoot;
+			node.getData().isRoot = true;
+			final TreeNode<TSGNode> fragment = TSGNode
+					.getSubTreeFromRoot(node);
+			node.getData().isRoot = wasRoot;
+			assertEquals(prior.getTreeCFLog2Probability(fragment),
+					prior.getRootedFragmentCFLog2Probability(node), 1E-10);
+		}
+	}
+
+	private static CFGPrior createPrior() {
+		return new CFGPrior(mock(AbstractTreeExtractor.class),
+				new IRuleCreator() {
+			@Override
+			public CFGRule createRuleForNode(final TreeNode<TSGNode> node) {
+				return BlockCollapsedGibbsSampler.createCFGRuleForNode(node);
+			}
+		});
+	}
+
+	@Test
+	public void testRootedFragmentPrior() {
+		final TreeWithNodeIndex tree = TreeWithNodeIndex.generateTree2();
+		final CFGPrior prior = createPrior();
+		prior.addCFGRulesFrom(tree.tree);
+		prior.addCFGRulesFrom(TreeWithNodeIndex.generateTree1().tree);
+
+		assertFragmentPriorsMatch(prior, tree);
+		tree.nodeIndex.get(4).getData().isRoot = true;
+		tree.nodeIndex.get(5).getData().isRoot = true;
+		assertFragmentPriorsMatch(prior, tree);
+
+		// The locked prior caches the nodes of a corpus by their id
+		for (final Entry<Integer, TreeNode<TSGNode>> node : tree.nodeIndex
+				.entrySet()) {
+			node.getValue().getData().corpusId = node.getKey();
+		}
+		prior.lockPrior();
+		assertFragmentPriorsMatch(prior, tree);
+		tree.nodeIndex.get(4).getData().isRoot = false;
+		assertFragmentPriorsMatch(prior, tree);
+		assertFragmentPriorsMatch(prior, tree);
+	}
+
+}
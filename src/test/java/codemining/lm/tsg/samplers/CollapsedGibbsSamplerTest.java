@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.mock;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Test;
 
@@ -13,6 +14,7 @@ import codemining.lm.cfg.AbstractContextFreeGrammar;
 import codemining.lm.cfg.AbstractContextFreeGrammar.NodeConsequent;
 import codemining.lm.tsg.FormattedTSGrammar;
 import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
 import codemining.lm.tsg.samplers.AbstractCollapsedGibbsSampler;
 import codemining.lm.tsg.samplers.CollapsedGibbsSampler;
 
@@ -82,6 +84,35 @@ public class CollapsedGibbsSamplerTest {
 				DoubleMath.log2((1. + 10 * prior) / 11), 10E-10);
 	}
 
+	@Test
+	public void testDistributedSampling() {
+		final AbstractJavaTreeExtractor format = mock(AbstractJavaTreeExtractor.class);
+		final CollapsedGibbsSampler sampler = new CollapsedGibbsSampler(10, 10,
+				new FormattedTSGrammar(format), new FormattedTSGrammar(format));
+		for (int i = 0; i < 10; i++) {
+			sampler.addTree(generateSampleTree(), true);
+		}
+		sampler.lockSamplerData();
+
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		for (int i = 0; i < 20; i++) {
+			sampler.sampleAllTreesDistributed(3, i % 3, stop);
+
+			// All the changes of the shards have been merged
+			final TSGrammar<TSGNode> expected = new TSGrammar<TSGNode>();
+			for (final TreeNode<TSGNode> tree : sampler.getTreeCorpus()) {
+				for (final TreeNode<TSGNode> rule : TSGNode
+						.getAllRootsOf(tree)) {
+					expected.addTree(rule);
+				}
+			}
+			assertEquals(expected.getInternalGrammar(), sampler
+					.getSampleGrammar().getInternalGrammar());
+			assertEquals(expected.getTotalRuleCount(), sampler
+					.getSampleGrammar().getTotalRuleCount());
+		}
+	}
+
 	@Test
 	public void testGetPosteriorProbabilityForTree() {
 		final FormattedTSGrammar mockGrammar = new FormattedTSGrammar(
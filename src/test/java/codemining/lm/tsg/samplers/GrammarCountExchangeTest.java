@@ -0,0 +1,260 @@
+package codemining.lm.tsg.samplers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import codemining.ast.AbstractTreeExtractor;
+import codemining.ast.AstNodeSymbol;
+import codemining.ast.TreeNode;
+import codemining.ast.java.JavaAstTreeExtractor;
+import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
+
+import com.google.common.collect.Lists;
+
+public class GrammarCountExchangeTest {
+
+	/**
+	 * A worker process of testSynchronizeProcesses. Worker i adds i + 1
+	 * unsplit trees, and after the first round replaces one of them by a
+	 * split one. It fails (with a non-zero exit code) if its counts are not
+	 * the ones of all the workers.
+	 */
+	public static final class ExchangeWorker {
+
+		public static void main(final String[] args) throws IOException {
+			final File directory = new File(args[0]);
+			final int workerId = Integer.parseInt(args[1]);
+			final int nWorkers = Integer.parseInt(args[2]);
+
+			// The symbols have different ids in each worker
+			final AbstractTreeExtractor format = new JavaAstTreeExtractor();
+			for (int i = 0; i <= workerId; i++) {
+				format.getOrAddSymbolId(new AstNodeSymbol(10 + i));
+			}
+			final FormattedTSGrammar grammar = new FormattedTSGrammar(format);
+			grammar.addTree(createTree(format, false), workerId + 1);
+
+			final GrammarCountExchange exchange = new GrammarCountExchange(
+					directory, workerId, nWorkers, grammar);
+			exchange.start(0);
+			assertCounts(grammar, nWorkers * (nWorkers + 1) / 2, 0);
+
+			grammar.removeTree(createTree(format, false));
+			for (final TreeNode<TSGNode> rule : TSGNode
+					.getAllRootsOf(createTree(format, true))) {
+				grammar.addTree(rule);
+			}
+			exchange.synchronize(1, false);
+			assertCounts(grammar, nWorkers * (nWorkers - 1) / 2, nWorkers);
+			exchange.finish();
+		}
+	}
+
+	private static TSGNode createNode(final AbstractTreeExtractor format,
+			final int type, final boolean isRoot) {
+		final TSGNode node = new TSGNode(
+				format.getOrAddSymbolId(new AstNodeSymbol(type)));
+		node.isRoot = isRoot;
+		return node;
+	}
+
+	/**
+	 * Create a tree of three nodes, split at its last leaf if split is true.
+	 */
+	private static TreeNode<TSGNode> createTree(
+			final AbstractTreeExtractor format, final boolean split) {
+		final TreeNode<TSGNode> root = TreeNode.create(
+				createNode(format, 1, true), 1);
+		root.addChildNode(TreeNode.create(createNode(format, 2, false), 0), 0);
+		root.addChildNode(TreeNode.create(createNode(format, 3, split), 0), 0);
+		return root;
+	}
+
+	private static void assertCounts(final TSGrammar<TSGNode> grammar,
+			final int unsplitCount, final int splitCount) {
+		final AbstractTreeExtractor format = grammar.getTreeExtractor();
+		assertEquals(unsplitCount,
+				grammar.countTreeOccurences(createTree(format, false)));
+		final List<TreeNode<TSGNode>> splitRules = TSGNode
+				.getAllRootsOf(createTree(format, true));
+		for (final TreeNode<TSGNode> rule : splitRules) {
+			assertEquals(splitCount, grammar.countTreeOccurences(rule));
+		}
+		assertEquals(unsplitCount + splitRules.size() * splitCount,
+				grammar.getTotalRuleCount());
+	}
+
+	@Test
+	public void testSynchronize() throws Exception {
+		final File directory = File.createTempFile("exchange", "");
+		directory.delete();
+
+		// The symbols have different ids in each worker
+		final AbstractTreeExtractor format0 = new JavaAstTreeExtractor();
+		final AbstractTreeExtractor format1 = new JavaAstTreeExtractor();
+		format1.getOrAddSymbolId(new AstNodeSymbol(4));
+		format1.getOrAddSymbolId(new AstNodeSymbol(3));
+		final FormattedTSGrammar grammar0 = new FormattedTSGrammar(format0);
+		final FormattedTSGrammar grammar1 = new FormattedTSGrammar(format1);
+		for (final TreeNode<TSGNode> rule : TSGNode.getAllRootsOf(createTree(
+				format0, true))) {
+			grammar0.addTree(rule);
+		}
+		grammar1.addTree(createTree(format1, false), 2);
+
+		final GrammarCountExchange exchange0 = new GrammarCountExchange(
+				directory, 0, 2, grammar0);
+		final GrammarCountExchange exchange1 = new GrammarCountExchange(
+				directory, 1, 2, grammar1);
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			final Future<Boolean> started0 = executor
+					.submit(() -> exchange0.start(5));
+			final Future<Boolean> started1 = executor
+					.submit(() -> exchange1.start(5));
+			assertFalse(started0.get());
+			assertFalse(started1.get());
+			assertCounts(grammar0, 2, 1);
+			assertCounts(grammar1, 2, 1);
+
+			// Worker 0 joins its tree and removes one of the other worker
+			for (final TreeNode<TSGNode> rule : TSGNode
+					.getAllRootsOf(createTree(format0, true))) {
+				grammar0.removeTree(rule);
+			}
+			grammar0.addTree(createTree(format0, false));
+			grammar1.removeTree(createTree(format1, false));
+			final Future<Boolean> synced0 = executor.submit(() -> exchange0
+					.synchronize(6, false));
+			final Future<Boolean> synced1 = executor.submit(() -> exchange1
+					.synchronize(6, true));
+			assertTrue(synced0.get());
+			assertTrue(synced1.get());
+			assertCounts(grammar0, 2, 0);
+			assertCounts(grammar1, 2, 0);
+
+			// Only the files of the last round are kept until the end
+			final String[] files = directory.list();
+			Arrays.sort(files);
+			assertEquals(Arrays.asList("counts-5-6-0", "counts-5-6-1"),
+					Arrays.asList(files));
+			final Future<?> finished0 = executor.submit(() -> {
+				exchange0.finish();
+				return null;
+			});
+			exchange1.finish();
+			finished0.get();
+			assertEquals(0, directory.list().length);
+		} finally {
+			executor.shutdown();
+			FileUtils.deleteDirectory(directory);
+		}
+	}
+
+	@Test
+	public void testSynchronizeProcesses() throws Exception {
+		final File directory = File.createTempFile("exchange", "");
+		directory.delete();
+		final int nWorkers = 3;
+		final List<Process> workers = Lists.newArrayList();
+		try {
+			for (int i = 0; i < nWorkers; i++) {
+				workers.add(new ProcessBuilder(new File(
+						System.getProperty("java.home"), "bin/java").getPath(),
+						"-cp", System.getProperty("java.class.path"),
+						ExchangeWorker.class.getName(), directory.getPath(),
+						Integer.toString(i), Integer.toString(nWorkers))
+						.inheritIO().start());
+			}
+			for (final Process worker : workers) {
+				assertTrue(worker.waitFor(60, TimeUnit.SECONDS));
+				assertEquals(0, worker.exitValue());
+			}
+			assertEquals(0, directory.list().length);
+		} finally {
+			for (final Process worker : workers) {
+				worker.destroy();
+			}
+			FileUtils.deleteDirectory(directory);
+		}
+	}
+
+	@Test
+	public void testOtherStartIteration() throws Exception {
+		final File directory = File.createTempFile("exchange", "");
+		directory.delete();
+		final GrammarCountExchange exchange0 = new GrammarCountExchange(
+				directory, 0, 2, new FormattedTSGrammar(
+						new JavaAstTreeExtractor()));
+		final GrammarCountExchange exchange1 = new GrammarCountExchange(
+				directory, 1, 2, new FormattedTSGrammar(
+						new JavaAstTreeExtractor()));
+		final ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			// Both workers fail rather than wait for each other
+			final Future<Boolean> started0 = executor
+					.submit(() -> exchange0.start(5));
+			final Future<Boolean> started1 = executor
+					.submit(() -> exchange1.start(3));
+			for (final Future<Boolean> started : Arrays.asList(started0,
+					started1)) {
+				try {
+					started.get();
+					fail("Started from different iterations");
+				} catch (final ExecutionException e) {
+					assertTrue(e.getCause() instanceof IOException);
+				}
+			}
+		} finally {
+			executor.shutdown();
+			FileUtils.deleteDirectory(directory);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testStaleFile() throws IOException {
+		final File directory = File.createTempFile("exchange", "");
+		directory.delete();
+		directory.mkdirs();
+		// A later round of another worker cannot have been written yet
+		FileUtils.writeStringToFile(new File(directory, "counts-0-1-1"), "");
+		try {
+			new GrammarCountExchange(directory, 0, 2, new FormattedTSGrammar(
+					new JavaAstTreeExtractor())).start(0);
+		} finally {
+			FileUtils.deleteDirectory(directory);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnexpectedFile() throws IOException {
+		final File directory = File.createTempFile("exchange", "");
+		directory.delete();
+		directory.mkdirs();
+		FileUtils.writeStringToFile(new File(directory, "counts-0-0-1"), "");
+		try {
+			new GrammarCountExchange(directory, 0, 2, new FormattedTSGrammar(
+					new JavaAstTreeExtractor())).start(0);
+		} finally {
+			FileUtils.deleteDirectory(directory);
+		}
+	}
+
+}
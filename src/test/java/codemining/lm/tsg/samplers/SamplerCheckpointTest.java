@@ -0,0 +1,185 @@
+package codemining.lm.tsg.samplers;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import codemining.ast.AstNodeSymbol;
+import codemining.ast.TreeNode;
+import codemining.ast.java.AbstractJavaTreeExtractor;
+import codemining.ast.java.JavaAstTreeExtractor;
+import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
+import codemining.lm.tsg.samplers.blocked.BlockCollapsedGibbsSampler;
+import codemining.lm.tsg.samplers.blocked.TreeWithNodeIndex;
+
+public class SamplerCheckpointTest {
+
+	private static void assertSameCounts(final TSGrammar<TSGNode> expected,
+			final TSGrammar<TSGNode> actual) {
+		int nExpected = 0;
+		for (int ruleId = 0; ruleId < expected.getNumberOfRules(); ruleId++) {
+			final int count = expected.countRuleOccurences(ruleId);
+			assertEquals(count,
+					actual.countTreeOccurences(expected.getRule(ruleId)));
+			nExpected += count;
+		}
+		int nActual = 0;
+		for (int ruleId = 0; ruleId < actual.getNumberOfRules(); ruleId++) {
+			nActual += actual.countRuleOccurences(ruleId);
+		}
+		assertEquals(nExpected, nActual);
+	}
+
+	private static void assertSameRoots(final List<TreeNode<TSGNode>> expected,
+			final List<TreeNode<TSGNode>> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(TSGNode.getAllRootsOf(expected.get(i)),
+					TSGNode.getAllRootsOf(actual.get(i)));
+		}
+	}
+
+	private static BlockCollapsedGibbsSampler createSampler() {
+		return createSampler(mock(AbstractJavaTreeExtractor.class), 5);
+	}
+
+	private static BlockCollapsedGibbsSampler createSampler(
+			final AbstractJavaTreeExtractor format, final int nTreePairs) {
+		final BlockCollapsedGibbsSampler sampler = new BlockCollapsedGibbsSampler(
+				10, 10, new FormattedTSGrammar(format), new FormattedTSGrammar(
+						format));
+		for (int i = 0; i < nTreePairs; i++) {
+			sampler.addTree(TreeWithNodeIndex.generateTree1().tree, true);
+			sampler.addTree(TreeWithNodeIndex.generateTree2().tree, true);
+		}
+		sampler.lockSamplerData();
+		return sampler;
+	}
+
+	/**
+	 * Return a format whose ids from firstId map to the symbols of the types
+	 * 0 to 19.
+	 */
+	private static AbstractJavaTreeExtractor createFormat(final int firstId) {
+		final AbstractJavaTreeExtractor format = new JavaAstTreeExtractor();
+		for (int i = 0; i < firstId; i++) {
+			format.getOrAddSymbolId(new AstNodeSymbol(100 + i));
+		}
+		for (int i = 0; i < 20; i++) {
+			format.getOrAddSymbolId(new AstNodeSymbol(i));
+		}
+		return format;
+	}
+
+	private static TreeNode<TSGNode> shiftNodeKeys(
+			final TreeNode<TSGNode> tree, final int offset) {
+		final TSGNode data = new TSGNode(tree.getData().nodeKey + offset);
+		data.isRoot = tree.getData().isRoot;
+		final TreeNode<TSGNode> shifted = TreeNode.create(data,
+				tree.nProperties());
+		for (int i = 0; i < tree.nProperties(); i++) {
+			for (final TreeNode<TSGNode> child : tree.getChildrenByProperty()
+					.get(i)) {
+				shifted.addChildNode(shiftNodeKeys(child, offset), i);
+			}
+		}
+		return shifted;
+	}
+
+	/**
+	 * Sample the given sampler and write a checkpoint of it to a temporary
+	 * file.
+	 */
+	private static File writeCheckpoint(
+			final BlockCollapsedGibbsSampler sampler) throws IOException {
+		sampler.sampleAllTreesOnce(0, 10, new AtomicBoolean(false));
+		for (final TreeNode<TSGNode> tree : sampler.getTreeCorpus()) {
+			for (final TreeNode<TSGNode> rule : TSGNode.getAllRootsOf(tree)) {
+				sampler.getBurnInGrammar().addTree(rule);
+			}
+		}
+		final File checkpointFile = File.createTempFile("tsgSampler", ".ckpt");
+		checkpointFile.deleteOnExit();
+		SamplerCheckpoint.of(sampler, 1).writeTo(checkpointFile);
+		return checkpointFile;
+	}
+
+	@Test(expected = IOException.class)
+	public void testRestoreOtherCorpus() throws IOException {
+		final File checkpointFile = writeCheckpoint(createSampler());
+		SamplerCheckpoint.readFrom(checkpointFile).restoreTo(
+				createSampler(mock(AbstractJavaTreeExtractor.class), 4));
+	}
+
+	@Test
+	public void testRestoreMapsSymbols() throws IOException {
+		final BlockCollapsedGibbsSampler sampler = createSampler(
+				createFormat(0), 5);
+		final File checkpointFile = writeCheckpoint(sampler);
+
+		// The symbols have other ids in the restored sampler
+		final BlockCollapsedGibbsSampler restored = createSampler(
+				createFormat(3), 5);
+		SamplerCheckpoint.readFrom(checkpointFile).restoreTo(restored);
+		final TSGrammar<TSGNode> burnin = sampler.getBurnInGrammar();
+		final TSGrammar<TSGNode> restoredBurnin = restored.getBurnInGrammar();
+		assertEquals(burnin.getTotalRuleCount(),
+				restoredBurnin.getTotalRuleCount());
+		for (int ruleId = 0; ruleId < burnin.getNumberOfRules(); ruleId++) {
+			final int count = burnin.countRuleOccurences(ruleId);
+			if (count > 0) {
+				assertEquals(count, restoredBurnin
+						.countTreeOccurences(shiftNodeKeys(
+								burnin.getRule(ruleId), 3)));
+			}
+		}
+	}
+
+	@Test
+	public void testRestore() throws IOException {
+		final BlockCollapsedGibbsSampler sampler = createSampler();
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		for (int i = 0; i < 3; i++) {
+			sampler.sampleAllTreesOnce(i, 10, stop);
+		}
+		for (final TreeNode<TSGNode> tree : sampler.getTreeCorpus()) {
+			for (final TreeNode<TSGNode> rule : TSGNode.getAllRootsOf(tree)) {
+				sampler.getBurnInGrammar().addTree(rule);
+			}
+		}
+
+		final File checkpointFile = File.createTempFile("tsgSampler", ".ckpt");
+		checkpointFile.deleteOnExit();
+		SamplerCheckpoint.of(sampler, 3).writeTo(checkpointFile);
+		final SamplerCheckpoint checkpoint = SamplerCheckpoint
+				.readFrom(checkpointFile);
+		assertEquals(3, checkpoint.getNumberOfCompletedIterations());
+
+		final BlockCollapsedGibbsSampler restored = createSampler();
+		checkpoint.restoreTo(restored);
+		assertSameRoots(sampler.getTreeCorpus(), restored.getTreeCorpus());
+		assertSameCounts(sampler.getSampleGrammar(),
+				restored.getSampleGrammar());
+		assertSameCounts(sampler.getBurnInGrammar(),
+				restored.getBurnInGrammar());
+
+		// The sample grammar and the index are still consistent with the flags
+		restored.sampleAllTreesOnce(3, 10, stop);
+		final TSGrammar<TSGNode> rebuilt = new TSGrammar<TSGNode>();
+		for (final TreeNode<TSGNode> tree : restored.getTreeCorpus()) {
+			for (final TreeNode<TSGNode> rule : TSGNode.getAllRootsOf(tree)) {
+				rebuilt.addTree(rule);
+			}
+		}
+		assertSameCounts(rebuilt, restored.getSampleGrammar());
+	}
+
+}
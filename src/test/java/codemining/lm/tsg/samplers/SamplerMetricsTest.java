@@ -0,0 +1,155 @@
+package codemining.lm.tsg.samplers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.MBeanServer;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import codemining.ast.TreeNode;
+import codemining.ast.java.JavaAstTreeExtractor;
+import codemining.lm.tsg.FormattedTSGrammar;
+import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.samplers.SamplerMetrics.IterationStats;
+import codemining.lm.tsg.samplers.blocked.TreeWithNodeIndex;
+
+import com.google.common.collect.Lists;
+
+public class SamplerMetricsTest {
+
+	private static FormattedTSGrammar createGrammar() {
+		final FormattedTSGrammar grammar = new FormattedTSGrammar(
+				new JavaAstTreeExtractor());
+		final TreeWithNodeIndex tree = TreeWithNodeIndex.generateTree1();
+		tree.nodeIndex.get(4).getData().isRoot = true;
+		for (int i = 0; i < 2; i++) {
+			for (final TreeNode<TSGNode> rule : TSGNode
+					.getAllRootsOf(tree.tree)) {
+				grammar.addTree(rule);
+			}
+		}
+		return grammar;
+	}
+
+	@Test
+	public void testIterationStats() {
+		final SamplerMetrics metrics = new SamplerMetrics();
+		final List<IterationStats> received = Lists.newArrayList();
+		metrics.addListener(received::add);
+
+		metrics.startIteration(3);
+		metrics.recordSite(10, 20, 30, 1, 1);
+		metrics.recordSite(1, 2, 3, 5, 2);
+		metrics.recordSite(1, 1, 1, 8, 0);
+		assertEquals(3, metrics.getSitesSampledInIteration());
+
+		final FormattedTSGrammar grammar = createGrammar();
+		final IterationStats stats = metrics.completeIteration(grammar,
+				new AbstractTSGSampler.SampleStats(-10, 5));
+		assertEquals(1, received.size());
+		assertTrue(stats == received.get(0));
+		assertTrue(stats == metrics.getLastIterationStats());
+
+		assertEquals(3, stats.iteration);
+		assertEquals(3, stats.sitesSampled);
+		assertEquals(14, stats.nodesInBlocks);
+		assertEquals(3, stats.rootFlips);
+		assertEquals(3. / 14, stats.getRootFlipRate(), 10E-10);
+		assertEquals(12, stats.extractionNanos);
+		assertEquals(23, stats.posteriorNanos);
+		assertEquals(34, stats.updateNanos);
+		assertArrayEquals(new long[] { 1, 0, 1, 1 }, stats.blockSizeHistogram);
+		assertEquals(-10, stats.corpusLog2Prob, 10E-10);
+		assertEquals(5, stats.corpusNodes);
+
+		int nRules = 0;
+		long nRuleOccurences = 0;
+		for (final TSGNode root : grammar.getInternalGrammar().keySet()) {
+			nRules += grammar.getInternalGrammar().get(root).elementSet()
+					.size();
+			nRuleOccurences += grammar.countTreesWithRoot(root);
+		}
+		assertEquals(2, nRules);
+		assertEquals(nRules, stats.nRules);
+		assertEquals(nRuleOccurences, stats.nRuleOccurences);
+		assertEquals(grammar.getNumberOfRules(), stats.nInternedRules);
+		// The split node is both a leaf of the upper and the root of the
+		// lower rule
+		assertEquals(TreeWithNodeIndex.generateTree1().tree.getTreeSize() + 1,
+				stats.grammarNodes);
+		assertEquals(((double) stats.grammarNodes) / nRules,
+				stats.avgRuleSize, 10E-10);
+
+		// The counters are reset in the next iteration
+		metrics.startIteration(4);
+		assertEquals(0, metrics.getSitesSampledInIteration());
+		final IterationStats nextStats = metrics.completeIteration(grammar,
+				null);
+		assertEquals(4, nextStats.iteration);
+		assertEquals(0, nextStats.blockSizeHistogram.length);
+		assertTrue(Double.isNaN(nextStats.corpusLog2Prob));
+	}
+
+	@Test
+	public void testJmxListener() throws Exception {
+		final SamplerMetrics metrics = new SamplerMetrics();
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final JmxMetricsListener listener = new JmxMetricsListener(metrics,
+				server);
+		metrics.addListener(listener);
+		assertTrue(server.isRegistered(listener.getName()));
+
+		metrics.startIteration(0);
+		metrics.recordSite(1, 1, 1, 2, 1);
+		assertEquals(1L, server.getAttribute(listener.getName(),
+				"SitesSampledInIteration"));
+		metrics.completeIteration(createGrammar(), null);
+		assertEquals(2, server.getAttribute(listener.getName(),
+				"NumberOfRules"));
+		assertEquals(.5, (Double) server.getAttribute(listener.getName(),
+				"RootFlipRate"), 10E-10);
+
+		metrics.removeListener(listener);
+		assertFalse(metrics.hasListeners());
+		assertFalse(server.isRegistered(listener.getName()));
+	}
+
+	@Test
+	public void testJsonLinesListener() throws IOException {
+		final File file = File.createTempFile("metrics", ".jsonl");
+		file.delete();
+		file.deleteOnExit();
+		final SamplerMetrics metrics = new SamplerMetrics();
+		final JsonLinesMetricsListener listener = new JsonLinesMetricsListener(
+				file);
+		metrics.addListener(listener);
+
+		final FormattedTSGrammar grammar = createGrammar();
+		for (int i = 0; i < 2; i++) {
+			metrics.startIteration(i);
+			metrics.recordSite(1, 1, 1, 3, 1);
+			metrics.completeIteration(grammar,
+					i == 0 ? null : new AbstractTSGSampler.SampleStats(-2.5, 7));
+		}
+		metrics.removeListener(listener);
+
+		final List<String> lines = FileUtils.readLines(file);
+		assertEquals(2, lines.size());
+		assertTrue(lines.get(0).startsWith("{\"iteration\":0,"));
+		assertTrue(lines.get(0).contains("\"corpusLog2Prob\":null"));
+		assertTrue(lines.get(0).contains("\"blockSizeHistogram\":[0,1]"));
+		assertTrue(lines.get(1).startsWith("{\"iteration\":1,"));
+		assertTrue(lines.get(1).contains("\"corpusLog2Prob\":-2.50000"));
+		assertTrue(lines.get(1).endsWith("}"));
+	}
+
+}
@@ -2,9 +2,22 @@ package codemining.lm.tsg.samplers;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Test;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.collect.TreeMultiset;
+
 import codemining.ast.TreeNode;
 import codemining.lm.tsg.ITreeSubstitutionGrammar;
 import codemining.lm.tsg.TSGrammar;
@@ -75,6 +88,110 @@ public class TSGrammarTest {
 		return root;
 	}
 
+	@Test
+	public void testAccumulateSamples() {
+		final TSGrammar<Integer> grammar = new TSGrammar<Integer>();
+		final TSGrammar<Integer> summed = new TSGrammar<Integer>();
+		final TSGrammar<Integer> expected = new TSGrammar<Integer>();
+		grammar.addTree(generateSampleTree1(), 2);
+		grammar.addTree(generateSampleTree3(), 1);
+		assertEquals(-1, grammar.getNumberOfAccumulatedSamples());
+		grammar.startAccumulatingSamples();
+
+		for (int i = 0; i < 6; i++) {
+			if (i % 2 == 0) {
+				grammar.addTree(generateSampleTree2());
+			}
+			if (i == 3) {
+				grammar.removeTree(generateSampleTree1());
+				grammar.prune(2);
+			}
+			grammar.accumulateSample();
+			expected.addAll(grammar);
+			if (i == 2) {
+				grammar.addAccumulatedSamplesTo(summed);
+				assertEquals(expected.getInternalGrammar(),
+						summed.getInternalGrammar());
+			}
+		}
+		assertEquals(6, grammar.getNumberOfAccumulatedSamples());
+		grammar.addAccumulatedSamplesTo(summed);
+		assertEquals(expected.getInternalGrammar(), summed.getInternalGrammar());
+		assertEquals(15, summed.countTreesWithRoot(1));
+		assertEquals(12, summed.countTreeOccurences(generateSampleTree2()));
+
+		// The sums restart after being added
+		grammar.accumulateSample();
+		final TSGrammar<Integer> lastSample = new TSGrammar<Integer>();
+		grammar.addAccumulatedSamplesTo(lastSample);
+		assertEquals(grammar.getInternalGrammar(),
+				lastSample.getInternalGrammar());
+
+		grammar.stopAccumulatingSamples();
+		assertEquals(-1, grammar.getNumberOfAccumulatedSamples());
+	}
+
+	@Test
+	public void testCountDeltas() throws Exception {
+		final TSGrammar<Integer> grammar = new TSGrammar<Integer>();
+		grammar.addTree(generateSampleTree1(), 2);
+		final TSGrammar.CountDelta delta = grammar.createDelta();
+		final TSGrammar.CountDelta otherDelta = grammar.createDelta();
+
+		grammar.runWithDelta(delta, new Runnable() {
+			@Override
+			public void run() {
+				grammar.addTree(generateSampleTree3());
+				assertTrue(grammar.removeTree(generateSampleTree1()));
+				assertEquals(-2, grammar.removeTree(generateSampleTree2(), 2));
+				for (int i = 0; i < 100; i++) {
+					grammar.addTree(TreeNode.create(100 + i, 0), i + 1);
+				}
+				assertEquals(1,
+						grammar.countTreeOccurences(generateSampleTree1()));
+				assertEquals(1,
+						grammar.countTreeOccurences(generateSampleTree3()));
+				assertEquals(2, grammar.countTreesWithRoot(1));
+				assertEquals(50,
+						grammar.countTreeOccurences(TreeNode.create(149, 0)));
+			}
+		});
+		assertFalse(delta.isEmpty());
+
+		// Other workers and threads only see the grammar. The failures of the
+		// other thread are rethrown by get().
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			executor.submit(() -> grammar.runWithDelta(otherDelta,
+					new Runnable() {
+						@Override
+						public void run() {
+							assertEquals(2, grammar
+									.countTreeOccurences(generateSampleTree1()));
+							assertTrue(grammar
+									.removeTree(generateSampleTree1()));
+							grammar.addTree(generateSampleTree4());
+						}
+					})).get();
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(2, grammar.countTreeOccurences(generateSampleTree1()));
+		assertEquals(0, grammar.countTreeOccurences(generateSampleTree3()));
+		assertEquals(2, grammar.countTreesWithRoot(1));
+		assertStatistics(grammar);
+
+		grammar.applyDelta(delta);
+		grammar.applyDelta(otherDelta);
+		assertTrue(delta.isEmpty());
+		assertEquals(0, grammar.countTreeOccurences(generateSampleTree1()));
+		assertEquals(1, grammar.countTreeOccurences(generateSampleTree3()));
+		assertEquals(1, grammar.countTreeOccurences(generateSampleTree4()));
+		assertEquals(2, grammar.countTreesWithRoot(1));
+		assertEquals(50, grammar.countTreeOccurences(TreeNode.create(149, 0)));
+		assertStatistics(grammar);
+	}
+
 	@Test
 	public void testGrammar() {
 		final ITreeSubstitutionGrammar<Integer> grammar = new TSGrammar<Integer>();
@@ -112,4 +229,190 @@ public class TSGrammarTest {
 		assertEquals(grammar.countTreesWithRoot(1), 2);
 	}
 
+	@Test
+	public void testPruneAndSerialize() throws Exception {
+		final TSGrammar<Integer> grammar = new TSGrammar<Integer>();
+		grammar.addTree(generateSampleTree1(), 5);
+		grammar.addTree(generateSampleTree3(), 1);
+		grammar.addTree(generateSampleTree2(), 1);
+
+		grammar.prune(2);
+		assertEquals(grammar.countTreeOccurences(generateSampleTree1()), 5);
+		assertEquals(grammar.countTreeOccurences(generateSampleTree3()), 0);
+		assertEquals(grammar.countTreeOccurences(grammar.UNK_NODE), 0);
+		assertEquals(grammar.countTreesWithRoot(1), 6);
+		assertEquals(grammar.getInternalGrammar().get(1)
+				.count(grammar.UNK_NODE), 1);
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(grammar);
+		out.close();
+		@SuppressWarnings("unchecked")
+		final TSGrammar<Integer> copy = (TSGrammar<Integer>) new ObjectInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		assertEquals(copy.countTreeOccurences(generateSampleTree1()), 5);
+		assertEquals(copy.countTreesWithRoot(1), 6);
+		assertEquals(copy.getInternalGrammar(), grammar.getInternalGrammar());
+	}
+
+	@Test
+	public void testPruneAndKryoSerialize() {
+		final TSGrammar<Integer> grammar = new TSGrammar<Integer>();
+		grammar.addTree(generateSampleTree1(), 5);
+		grammar.addTree(generateSampleTree3(), 1);
+		grammar.addTree(generateSampleTree2(), 1);
+		grammar.prune(2);
+
+		final Kryo kryo = new Kryo();
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final Output output = new Output(bytes);
+		kryo.writeClassAndObject(output, grammar);
+		output.close();
+		@SuppressWarnings("unchecked")
+		final TSGrammar<Integer> copy = (TSGrammar<Integer>) kryo
+				.readClassAndObject(new Input(bytes.toByteArray()));
+		assertEquals(copy.countTreeOccurences(generateSampleTree1()), 5);
+		assertEquals(copy.countTreesWithRoot(1), 6);
+		assertEquals(copy.getInternalGrammar().get(1).count(copy.UNK_NODE), 1);
+		assertEquals(copy.getInternalGrammar(), grammar.getInternalGrammar());
+	}
+
+	@Test
+	public void testStatistics() {
+		final TSGrammar<Integer> grammar = new TSGrammar<Integer>();
+		grammar.addTree(generateSampleTree1(), 5);
+		grammar.addTree(generateSampleTree3(), 1);
+		grammar.addTree(generateSampleTree2(), 2);
+		grammar.removeTree(generateSampleTree2(), 3);
+		grammar.addTree(generateSampleTree4(), 1);
+		assertStatistics(grammar);
+		assertEquals(3, grammar.getNumberOfDistinctRules());
+		assertEquals(3, grammar.countDistinctRulesWithRoot(1));
+		assertEquals(0, grammar.countDistinctRulesWithRoot(6));
+		assertEquals(5, grammar.countRulesWithSize(6));
+		assertEquals(0, grammar.countRulesWithSize(1000));
+
+		grammar.prune(2);
+		assertStatistics(grammar);
+		assertEquals(2, grammar.getNumberOfDistinctRules());
+		assertEquals(2, grammar.countDistinctRulesWithRoot(1));
+
+		grammar.clear();
+		assertStatistics(grammar);
+		assertEquals(0, grammar.getRuleSizeHistogram().length);
+		assertEquals(0, grammar.getMeanRuleSize(), 0);
+	}
+
+	/**
+	 * Assert that the maintained statistics of the grammar match the ones
+	 * computed from its rules.
+	 */
+	private void assertStatistics(final TSGrammar<Integer> grammar) {
+		int nDistinct = 0;
+		long totalCount = 0;
+		long totalSize = 0;
+		long internedSize = 0;
+		final TreeMultiset<Integer> sizes = TreeMultiset.create();
+		for (int ruleId = 0; ruleId < grammar.getNumberOfRules(); ruleId++) {
+			final int size = grammar.getRule(ruleId).getTreeSize();
+			final int count = grammar.countRuleOccurences(ruleId);
+			internedSize += size;
+			if (count > 0) {
+				nDistinct++;
+				totalCount += count;
+				totalSize += ((long) count) * size;
+				sizes.add(size, count);
+			}
+		}
+		assertEquals(nDistinct, grammar.getNumberOfDistinctRules());
+		assertEquals(totalCount, grammar.getTotalRuleCount());
+		assertEquals(totalSize, grammar.getTotalRuleSize());
+		assertEquals(internedSize, grammar.getSizeOfInternedRules());
+		assertEquals(sizes, grammar.computeGrammarTreeSizeStats());
+		if (totalCount > 0) {
+			assertEquals(((double) totalSize) / totalCount,
+					grammar.getMeanRuleSize(), 1E-10);
+		}
+	}
+
+	@Test
+	public void testReleaseUnusedRules() {
+		final TSGrammar<Integer> grammar = new TSGrammar<Integer>();
+		final int id1 = grammar.getOrAddRuleId(generateSampleTree1());
+		final int id3 = grammar.getOrAddRuleId(generateSampleTree3());
+		grammar.addRule(id1, 2);
+		grammar.addRule(id3, 1);
+		final long size3 = generateSampleTree3().getTreeSize();
+		assertEquals(2, grammar.getInternalGrammar().get(1)
+				.count(generateSampleTree1()));
+
+		grammar.removeTree(generateSampleTree1(), 2);
+		assertEquals(0, grammar.getInternalGrammar().get(1)
+				.count(generateSampleTree1()));
+		final int version = grammar.getRuleIdsVersion();
+		assertEquals(1, grammar.releaseUnusedRules());
+		assertFalse(version == grammar.getRuleIdsVersion());
+		assertEquals(null, grammar.getRule(id1));
+		assertEquals(-1, grammar.getRuleId(generateSampleTree1()));
+		assertEquals(size3, grammar.getSizeOfInternedRules());
+		assertEquals(1, grammar.countTreesWithRoot(1));
+		assertEquals(0, grammar.releaseUnusedRules());
+
+		// The released id is reused
+		assertEquals(id1, grammar.getOrAddRuleId(generateSampleTree2()));
+		assertEquals(2, grammar.getNumberOfRules());
+		grammar.addTree(generateSampleTree2());
+		final TSGrammar<Integer> expected = new TSGrammar<Integer>();
+		expected.addTree(generateSampleTree2());
+		expected.addTree(generateSampleTree3());
+		assertEquals(expected.getInternalGrammar(),
+				grammar.getInternalGrammar());
+
+		// Rules in the accumulated samples are kept until they are added
+		grammar.startAccumulatingSamples();
+		grammar.accumulateSample();
+		grammar.removeTree(generateSampleTree3());
+		assertEquals(0, grammar.releaseUnusedRules());
+		final TSGrammar<Integer> summed = new TSGrammar<Integer>();
+		grammar.addAccumulatedSamplesTo(summed);
+		assertEquals(expected.getInternalGrammar(),
+				summed.getInternalGrammar());
+		assertEquals(1, grammar.releaseUnusedRules());
+		assertEquals(-1, grammar.getRuleId(generateSampleTree3()));
+		assertEquals(0, grammar.countTreesWithRoot(1));
+
+		// A new rule at the released id starts with no samples
+		assertEquals(id3, grammar.getOrAddRuleId(generateSampleTree4()));
+		grammar.addTree(generateSampleTree4());
+		grammar.accumulateSample();
+		final TSGrammar<Integer> lastSample = new TSGrammar<Integer>();
+		grammar.addAccumulatedSamplesTo(lastSample);
+		assertEquals(grammar.getInternalGrammar(),
+				lastSample.getInternalGrammar());
+	}
+
+	@Test
+	public void testRuleIds() {
+		final TSGrammar<Integer> grammar = new TSGrammar<Integer>();
+		final int id1 = grammar.getOrAddRuleId(generateSampleTree1());
+		final int id3 = grammar.getOrAddRuleId(generateSampleTree3());
+		assertFalse(id1 == id3);
+		assertEquals(id1, grammar.getOrAddRuleId(generateSampleTree1()));
+		assertEquals(id1, grammar.getRuleId(generateSampleTree1()));
+		assertEquals(-1, grammar.getRuleId(generateSampleTree4()));
+		assertEquals(grammar.getRule(id3), generateSampleTree3());
+
+		grammar.addRule(id1, 3);
+		grammar.addRule(id3, 1);
+		assertEquals(grammar.countRuleOccurences(id1), 3);
+		assertEquals(grammar.countTreeOccurences(generateSampleTree1()), 3);
+		assertEquals(grammar.countTreesWithRoot(1), 4);
+
+		assertEquals(grammar.removeRule(id1, 2), 1);
+		assertEquals(grammar.removeRule(id3, 2), -1);
+		assertEquals(grammar.countRuleOccurences(id3), 0);
+		assertEquals(grammar.countTreesWithRoot(1), 1);
+	}
+
 }
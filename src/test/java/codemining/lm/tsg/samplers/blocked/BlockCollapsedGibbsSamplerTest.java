@@ -1,21 +1,35 @@
 package codemining.lm.tsg.samplers.blocked;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.commons.math3.util.ArithmeticUtils;
 import org.junit.Test;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.google.common.collect.Lists;
 import com.google.common.math.DoubleMath;
 
 import codemining.ast.TreeNode;
 import codemining.ast.java.AbstractJavaTreeExtractor;
+import codemining.ast.java.JavaAstTreeExtractor;
 import codemining.lm.cfg.AbstractContextFreeGrammar;
 import codemining.lm.cfg.AbstractContextFreeGrammar.NodeConsequent;
 import codemining.lm.tsg.FormattedTSGrammar;
 import codemining.lm.tsg.TSGNode;
+import codemining.lm.tsg.TSGrammar;
 import codemining.lm.tsg.samplers.blocked.BlockCollapsedGibbsSampler;
+import codemining.util.StatsUtil;
 
 public class BlockCollapsedGibbsSamplerTest {
 
@@ -46,6 +60,22 @@ public class BlockCollapsedGibbsSamplerTest {
         return root;
     }
 
+    /**
+     * Generate a random binary tree of the given depth, over a small
+     * alphabet so that many sites share their types.
+     */
+    private TreeNode<TSGNode> generateRandomTree(final Random random, final int depth) {
+        if (depth == 0) {
+            return TreeNode.create(new TSGNode(4 + random.nextInt(2)), 0);
+        }
+        final TSGNode node = new TSGNode(1 + random.nextInt(3));
+        node.isRoot = random.nextBoolean();
+        final TreeNode<TSGNode> tree = TreeNode.create(node, 1);
+        tree.addChildNode(generateRandomTree(random, depth - 1), 0);
+        tree.addChildNode(generateRandomTree(random, depth - 1), 0);
+        return tree;
+    }
+
     @Test
     public void getPosteriorForTree() {
         final FormattedTSGrammar mockGrammar = new FormattedTSGrammar(mock(AbstractJavaTreeExtractor.class));
@@ -97,6 +127,51 @@ public class BlockCollapsedGibbsSamplerTest {
                 .getLog2ProbForCFG(new AbstractContextFreeGrammar.CFGRule(2, nc2)), -1, 0);
     }
 
+    @Test
+    public void testParallelSampling() {
+        final FormattedTSGrammar mockGrammar = new FormattedTSGrammar(mock(AbstractJavaTreeExtractor.class));
+        final BlockCollapsedGibbsSampler sampler = new BlockCollapsedGibbsSampler(10, 10, mockGrammar,
+                new FormattedTSGrammar(mockGrammar.getTreeExtractor()));
+        final Random random = new Random(0);
+        final List<Integer> treeOrder = Lists.newArrayList();
+        for (int i = 0; i < 200; i++) {
+            final TreeNode<TSGNode> tree = generateRandomTree(random, 4);
+            tree.getData().isRoot = true;
+            sampler.addTree(tree, true);
+            treeOrder.add(i);
+        }
+        sampler.lockSamplerData();
+
+        for (int iteration = 0; iteration < 5; iteration++) {
+            sampler.sampleAllTreesInParallel(iteration, treeOrder, new AtomicBoolean(false));
+
+            // The counts match the rules of the corpus
+            final TSGrammar<TSGNode> expected = new TSGrammar<TSGNode>();
+            for (final TreeNode<TSGNode> tree : sampler.getTreeCorpus()) {
+                for (final TreeNode<TSGNode> rule : TSGNode.getAllRootsOf(tree)) {
+                    expected.addTree(rule);
+                }
+            }
+            assertEquals(expected.getInternalGrammar(), sampler.getSampleGrammar().getInternalGrammar());
+            assertEquals(expected.getTotalRuleCount(), sampler.getSampleGrammar().getTotalRuleCount());
+
+            // ...and so does the site index
+            final List<Integer> blockSizes = Lists.newArrayList();
+            for (final TreeNode<TSGNode> tree : sampler.getTreeCorpus()) {
+                for (final TreeNode<TSGNode> site : tree.getChildrenByProperty().get(0)) {
+                    blockSizes.add(sampler.nodeType.getSameTypeNodes(site).size());
+                }
+            }
+            sampler.nodeType.rebuildIndex();
+            int i = 0;
+            for (final TreeNode<TSGNode> tree : sampler.getTreeCorpus()) {
+                for (final TreeNode<TSGNode> site : tree.getChildrenByProperty().get(0)) {
+                    assertEquals((int) blockSizes.get(i++), sampler.nodeType.getSameTypeNodes(site).size());
+                }
+            }
+        }
+    }
+
     @Test
     public void testPriorForTree() {
         final FormattedTSGrammar mockGrammar = new FormattedTSGrammar(mock(AbstractJavaTreeExtractor.class));
@@ -112,6 +187,161 @@ public class BlockCollapsedGibbsSamplerTest {
                 DoubleMath.log2(.25 * geometricProb), 10E-10);
     }
 
+    /**
+     * The straightforward O(n^2) computation of sampleM.
+     */
+    private double[] naiveSampleM(final BlockCollapsedGibbsSampler sampler, final TreeNode<TSGNode> upper,
+            final TreeNode<TSGNode> lower, final TreeNode<TSGNode> joined, final int n, final int nSplit) {
+        final BlockCollapsedGibbsSampler.BlockedPosteriorComputer posterior = sampler.getPosteriorComputer();
+        final double upperPrior = posterior.getLog2PriorForTree(upper);
+        final double lowerPrior = posterior.getLog2PriorForTree(lower);
+        final double joinedPrior = posterior.getLog2PriorForTree(joined);
+        final boolean sameType = upper.getData().nodeKey == lower.getData().nodeKey;
+        final boolean same = sameType && TSGNode.treesMatchToRoot(upper, lower);
+        final TSGrammar<TSGNode> grammar = sampler.getSampleGrammar();
+
+        final long upperCount = grammar.countTreeOccurences(upper) - nSplit - (same ? nSplit : 0L);
+        final long lowerCount = grammar.countTreeOccurences(lower) - nSplit - (same ? nSplit : 0L);
+        final long lowerRootCount = grammar.countTreesWithRoot(lower.getData()) - nSplit - (sameType ? n : 0L);
+        final long jointCount = grammar.countTreeOccurences(joined) - (n - nSplit);
+        final long topRootCount = grammar.countTreesWithRoot(upper.getData()) - n - (sameType ? nSplit : 0L);
+        final double log2a = DoubleMath.log2(posterior.concentrationParameter);
+
+        final double[] mLogProbs = new double[n + 1];
+        for (int m = 0; m <= n; m++) {
+            double log2Prob = ArithmeticUtils.binomialCoefficientLog(n, m) / Math.log(2);
+            for (int i = 0; i < m; i++) {
+                final int toAddNominator = i + (same ? i : 0);
+                final int toAddDenominator = i + (sameType ? i : 0);
+                log2Prob += StatsUtil.log2SumOfExponentials(DoubleMath.log2(upperCount + toAddNominator),
+                        log2a + upperPrior)
+                        - StatsUtil.log2SumOfExponentials(DoubleMath.log2(topRootCount + toAddDenominator), log2a)
+                        + StatsUtil.log2SumOfExponentials(DoubleMath.log2(lowerCount + toAddNominator),
+                                log2a + lowerPrior)
+                        - StatsUtil.log2SumOfExponentials(DoubleMath.log2(lowerRootCount + toAddDenominator), log2a);
+            }
+            for (int i = 0; i < n - m; i++) {
+                log2Prob += StatsUtil.log2SumOfExponentials(DoubleMath.log2(jointCount + i), log2a + joinedPrior)
+                        - StatsUtil.log2SumOfExponentials(
+                                DoubleMath.log2(topRootCount + i + m + (sameType ? m : 0)), log2a);
+            }
+            mLogProbs[m] = log2Prob;
+        }
+        return mLogProbs;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T kryoCopy(final T object) {
+        final Kryo kryo = new Kryo();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final Output output = new Output(bytes);
+        kryo.writeClassAndObject(output, object);
+        output.close();
+        return (T) kryo.readClassAndObject(new Input(bytes.toByteArray()));
+    }
+
+    @Test
+    public void testJointLog2Probability() {
+        final FormattedTSGrammar mockGrammar = new FormattedTSGrammar(mock(AbstractJavaTreeExtractor.class));
+        final BlockCollapsedGibbsSampler sampler = new BlockCollapsedGibbsSampler(10, 10, mockGrammar, mockGrammar);
+        final List<TreeNode<TSGNode>> trees = Lists.newArrayList();
+        trees.add(sampler.addTree(generateSampleTree(), true));
+        trees.add(sampler.addTree(generateSampleTree(), true));
+
+        // The product of the predictive probabilities of the two rules
+        final double prior = .25;
+        assertEquals(DoubleMath.log2(prior * (1 + 10 * prior) / 11), sampler.recomputeJointLog2Probability(),
+                10E-10);
+
+        for (int i = 0; i < 48; i++) {
+            trees.add(sampler.addTree(generateSampleTree(), true));
+        }
+        sampler.recomputeJointLog2Probability();
+        for (int iteration = 0; iteration < 20; iteration++) {
+            for (final TreeNode<TSGNode> tree : trees) {
+                sampler.sampleAt(tree.getChild(0, 0));
+                sampler.sampleAt(tree.getChild(0, 1));
+            }
+            final double incremental = sampler.getJointLog2Probability();
+            assertEquals(0, sampler.verifyJointLog2Probability(), 10E-8);
+            assertEquals(incremental, sampler.getJointLog2Probability(), 10E-8);
+        }
+    }
+
+    @Test
+    public void testKryoSerialization() {
+        final JavaAstTreeExtractor format = new JavaAstTreeExtractor();
+        final BlockCollapsedGibbsSampler sampler = new BlockCollapsedGibbsSampler(10, 10,
+                new FormattedTSGrammar(format), new FormattedTSGrammar(format));
+        for (int i = 0; i < 5; i++) {
+            sampler.addTree(generateSampleTree(), true);
+        }
+        sampler.lockSamplerData();
+        sampler.sampleAllTreesOnce(0, 10, new AtomicBoolean(false));
+        sampler.getBurnInGrammar().addAll(sampler.getSampleGrammar());
+
+        final BlockCollapsedGibbsSampler copy = kryoCopy(sampler);
+        // The root flags of the corpus trees change after they are hashed, so
+        // compare their string representations
+        assertEquals(sampler.getTreeCorpus().toString(), copy.getTreeCorpus().toString());
+        assertEquals(sampler.getSampleGrammar().getInternalGrammar(),
+                copy.getSampleGrammar().getInternalGrammar());
+        assertEquals(sampler.getBurnInGrammar().getInternalGrammar(),
+                copy.getBurnInGrammar().getInternalGrammar());
+        assertTrue(copy.getSampleGrammar().getPosteriorComputer() == copy.getPosteriorComputer());
+        assertTrue(copy.getPrior() == copy.getPosteriorComputer().getPrior());
+        assertEquals(sampler.getSampleGrammar().computeRulePosteriorLog2Probability(generateSampleTree(), false),
+                copy.getSampleGrammar().computeRulePosteriorLog2Probability(generateSampleTree(), false), 10E-10);
+        copy.sampleAllTreesOnce(1, 10, new AtomicBoolean(false));
+
+        // A grammar is written with its posterior computer, but without the
+        // corpus of the sampler
+        final TSGrammar<TSGNode> grammarCopy = kryoCopy(sampler.getBurnInGrammar());
+        assertEquals(sampler.getBurnInGrammar().getInternalGrammar(), grammarCopy.getInternalGrammar());
+        assertEquals(sampler.getBurnInGrammar().computeRulePosteriorLog2Probability(generateSampleTree(), false),
+                grammarCopy.computeRulePosteriorLog2Probability(generateSampleTree(), false), 10E-10);
+    }
+
+    @Test
+    public void testSampleM() {
+        final FormattedTSGrammar mockGrammar = new FormattedTSGrammar(mock(AbstractJavaTreeExtractor.class));
+        final BlockCollapsedGibbsSampler sampler = new BlockCollapsedGibbsSampler(10, 10, mockGrammar, mockGrammar);
+        final List<TreeNode<TSGNode>> trees = Lists.newArrayList();
+        for (int i = 0; i < 50; i++) {
+            trees.add(sampler.addTree(generateSampleTree(), true));
+        }
+        final TreeNode<TSGNode> root = trees.get(0);
+        final TreeNode<TSGNode> node = root.getChild(0, 1);
+
+        for (int iteration = 0; iteration < 20; iteration++) {
+            sampler.sampleAt(node);
+
+            final boolean wasRoot = node.getData().isRoot;
+            node.getData().isRoot = false;
+            final TreeNode<TSGNode> joined = TSGNode.getSubTreeFromRoot(root);
+            node.getData().isRoot = true;
+            final TreeNode<TSGNode> upper = TSGNode.getSubTreeFromRoot(root);
+            final TreeNode<TSGNode> lower = TSGNode.getSubTreeFromRoot(node);
+            node.getData().isRoot = wasRoot;
+
+            final Collection<TreeNode<TSGNode>> sameTypeNodes = sampler.nodeType.getSameTypeNodes(node);
+            assertEquals(50, sameTypeNodes.size());
+            int nSplit = 0;
+            for (final TreeNode<TSGNode> sameTypeNode : sameTypeNodes) {
+                if (sameTypeNode.getData().isRoot) {
+                    nSplit++;
+                }
+            }
+
+            final double[] expected = naiveSampleM(sampler, upper, lower, joined, sameTypeNodes.size(), nSplit);
+            final double[] actual = sampler.sampleM(upper, lower, joined, sameTypeNodes.size(), nSplit);
+            assertEquals(expected.length, actual.length);
+            for (int m = 0; m < expected.length; m++) {
+                assertEquals(expected[m], actual[m], 10E-8);
+            }
+        }
+    }
+
     @Test
     public void testSample() {
         final FormattedTSGrammar mockGrammar = new FormattedTSGrammar(mock(AbstractJavaTreeExtractor.class));
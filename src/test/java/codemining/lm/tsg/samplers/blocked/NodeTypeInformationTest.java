@@ -6,6 +6,8 @@ import static org.junit.Assert.assertTrue;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
 import java.util.Set;
 
 import org.junit.Test;
@@ -16,6 +18,7 @@ import codemining.lm.tsg.samplers.blocked.NodeTypeInformation;
 import codemining.lm.tsg.samplers.blocked.NodeTypeInformation.NodeType;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 public class NodeTypeInformationTest {
 
@@ -66,6 +69,118 @@ public class NodeTypeInformationTest {
 		}
 	}
 
+	@Test
+	public void testConcurrentSetRoot() throws InterruptedException {
+		final NodeTypeInformation nti = new NodeTypeInformation();
+		final List<TreeWithNodeIndex> trees = Lists.newArrayList();
+		for (int i = 0; i < 8; i++) {
+			trees.add(TreeWithNodeIndex.generateTree1());
+			trees.add(TreeWithNodeIndex.generateTree2());
+		}
+		for (final TreeWithNodeIndex tree : trees) {
+			nti.updateCorpusStructures(tree.tree);
+		}
+
+		// Each thread changes the roots of its own trees, whose sites share
+		// blocks with the ones of the other threads
+		final int nThreads = 4;
+		final List<Thread> threads = Lists.newArrayList();
+		for (int t = 0; t < nThreads; t++) {
+			final int threadId = t;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					final Random random = new Random(threadId);
+					for (int step = 0; step < 2000; step++) {
+						final TreeWithNodeIndex tree = trees.get(threadId
+								+ nThreads * random.nextInt(trees.size() / nThreads));
+						final int nodeId = 2 + random.nextInt(tree.nodeIndex
+								.size() - 1);
+						nti.setRoot(tree.nodeIndex.get(nodeId),
+								random.nextBoolean());
+						nti.getSameTypeNodes(tree.nodeIndex.get(nodeId));
+					}
+				}
+			});
+		}
+		for (final Thread thread : threads) {
+			thread.start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+
+		final List<Set<String>> sameTypeNodes = Lists.newArrayList();
+		for (int i = 0; i < trees.size(); i++) {
+			for (int j = 2; j <= trees.get(i).nodeIndex.size(); j++) {
+				sameTypeNodes.add(getNodeIds(trees,
+						nti.getSameTypeNodes(trees.get(i).nodeIndex.get(j))));
+			}
+		}
+		nti.rebuildIndex();
+		int k = 0;
+		for (int i = 0; i < trees.size(); i++) {
+			for (int j = 2; j <= trees.get(i).nodeIndex.size(); j++) {
+				assertEquals(sameTypeNodes.get(k++), getNodeIds(trees,
+						nti.getSameTypeNodes(trees.get(i).nodeIndex.get(j))));
+			}
+		}
+	}
+
+	@Test
+	public void testFingerprintCollisions() {
+		// All the sites of the same type collide
+		final NodeTypeInformation colliding = new NodeTypeInformation() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			long fingerprintLowerFragment(final TreeNode<TSGNode> site) {
+				return 0;
+			}
+
+			@Override
+			long fingerprintUpperFragment(final TreeNode<TSGNode> upperRoot,
+					final TreeNode<TSGNode> site) {
+				return 0;
+			}
+		};
+		final NodeTypeInformation nti = new NodeTypeInformation();
+		final List<TreeWithNodeIndex> collidingTrees = Lists.newArrayList();
+		final List<TreeWithNodeIndex> trees = Lists.newArrayList();
+		for (int i = 0; i < 3; i++) {
+			collidingTrees.add(TreeWithNodeIndex.generateTree1());
+			collidingTrees.add(TreeWithNodeIndex.generateTree2());
+			trees.add(TreeWithNodeIndex.generateTree1());
+			trees.add(TreeWithNodeIndex.generateTree2());
+		}
+		for (int i = 0; i < trees.size(); i++) {
+			colliding.updateCorpusStructures(collidingTrees.get(i).tree);
+			nti.updateCorpusStructures(trees.get(i).tree);
+		}
+
+		final Random random = new Random(7);
+		for (int step = 0; step < 200; step++) {
+			final int treeId = random.nextInt(trees.size());
+			final int nodeId = 2 + random.nextInt(trees.get(treeId).nodeIndex
+					.size() - 1);
+			final boolean isRoot = random.nextBoolean();
+			colliding.setRoot(collidingTrees.get(treeId).nodeIndex.get(nodeId),
+					isRoot);
+			nti.setRoot(trees.get(treeId).nodeIndex.get(nodeId), isRoot);
+
+			for (int i = 0; i < trees.size(); i++) {
+				for (int j = 2; j <= trees.get(i).nodeIndex.size(); j++) {
+					assertEquals(
+							getNodeIds(trees, nti.getSameTypeNodes(trees
+									.get(i).nodeIndex.get(j))),
+							getNodeIds(collidingTrees, colliding
+									.getSameTypeNodes(collidingTrees.get(i).nodeIndex
+											.get(j))));
+				}
+			}
+		}
+	}
+
 	@Test
 	public void testGetInternalRules() {
 		final TreeWithNodeIndex tree1 = TreeWithNodeIndex.generateTree1();
@@ -116,6 +231,78 @@ public class NodeTypeInformationTest {
 
 	}
 
+	@Test
+	public void testIncrementalIndex() {
+		final NodeTypeInformation nti = new NodeTypeInformation();
+		final List<TreeWithNodeIndex> trees = Lists.newArrayList();
+		for (int i = 0; i < 3; i++) {
+			trees.add(TreeWithNodeIndex.generateTree1());
+			trees.add(TreeWithNodeIndex.generateTree2());
+		}
+		for (final TreeWithNodeIndex tree : trees) {
+			nti.updateCorpusStructures(tree.tree);
+		}
+
+		final Random random = new Random(42);
+		for (int step = 0; step < 200; step++) {
+			final TreeWithNodeIndex tree = trees.get(random.nextInt(trees
+					.size()));
+			final int nodeId = 2 + random.nextInt(tree.nodeIndex.size() - 1);
+			nti.setRoot(tree.nodeIndex.get(nodeId), random.nextBoolean());
+
+			// An index built from scratch (on copies of the trees, since the
+			// nodes carry the ids of their index) must agree with the
+			// incremental one
+			final NodeTypeInformation fresh = new NodeTypeInformation();
+			final List<TreeWithNodeIndex> copies = Lists.newArrayList();
+			for (int i = 0; i < trees.size(); i++) {
+				final TreeWithNodeIndex copy = i % 2 == 0 ? TreeWithNodeIndex
+						.generateTree1() : TreeWithNodeIndex.generateTree2();
+				for (int j = 1; j <= copy.nodeIndex.size(); j++) {
+					copy.nodeIndex.get(j).getData().isRoot = trees.get(i).nodeIndex
+							.get(j).getData().isRoot;
+				}
+				fresh.updateCorpusStructures(copy.tree);
+				copies.add(copy);
+			}
+			for (int i = 0; i < trees.size(); i++) {
+				for (int j = 2; j <= trees.get(i).nodeIndex.size(); j++) {
+					assertEquals(
+							getNodeIds(copies,
+									fresh.getSameTypeNodes(copies.get(i).nodeIndex
+											.get(j))),
+							getNodeIds(trees, nti.getSameTypeNodes(trees.get(i).nodeIndex
+									.get(j))));
+					TreeNode<TSGNode> upperRoot = nti.getParentOf(trees.get(i).nodeIndex
+							.get(j));
+					while (!upperRoot.getData().isRoot) {
+						upperRoot = nti.getParentOf(upperRoot);
+					}
+					assertTrue(nti.getRootForNode(trees.get(i).nodeIndex.get(j)) == upperRoot);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the (tree, node) ids of the given nodes.
+	 */
+	private Set<String> getNodeIds(final List<TreeWithNodeIndex> trees,
+			final Collection<TreeNode<TSGNode>> nodes) {
+		final Set<TreeNode<TSGNode>> nodeSet = Sets.newIdentityHashSet();
+		nodeSet.addAll(nodes);
+		final Set<String> ids = Sets.newHashSet();
+		for (int i = 0; i < trees.size(); i++) {
+			for (final Entry<Integer, TreeNode<TSGNode>> entry : trees.get(i).nodeIndex
+					.entrySet()) {
+				if (nodeSet.contains(entry.getValue())) {
+					ids.add(i + ":" + entry.getKey());
+				}
+			}
+		}
+		return ids;
+	}
+
 	@Test
 	public void testNodeType() {
 		final NodeTypeInformation nti = new NodeTypeInformation();
@@ -161,8 +348,8 @@ public class NodeTypeInformationTest {
 		}
 
 		// But..
-		tree2.nodeIndex.get(4).getData().isRoot = true;
-		tree2.nodeIndex.get(13).getData().isRoot = true;
+		nti.setRoot(tree2.nodeIndex.get(4), true);
+		nti.setRoot(tree2.nodeIndex.get(13), true);
 
 		List<Integer> eqNodes = Lists.newArrayList(6, 7, 9, 10, 14, 15, 16, 17);
 		for (int i = 2; i <= 17; i++) {
@@ -179,7 +366,7 @@ public class NodeTypeInformationTest {
 			assertTrue(sameTypeNodes.contains(sampleNode));
 		}
 
-		tree1.nodeIndex.get(4).getData().isRoot = true;
+		nti.setRoot(tree1.nodeIndex.get(4), true);
 		eqNodes = Lists.newArrayList(6, 7, 9, 10);
 		for (int i = 2; i <= 12; i++) {
 			final TreeNode<TSGNode> sampleNode = tree1.nodeIndex.get(i);
@@ -218,7 +405,7 @@ public class NodeTypeInformationTest {
 		// Now add a root, we should find just one node, except from when we
 		// are sampling that node.
 		for (int j = 2; j <= 12; j++) {
-			tree1.nodeIndex.get(j).getData().isRoot = true;
+			nti.setRoot(tree1.nodeIndex.get(j), true);
 			for (int i = 2; i <= 12; i++) {
 				final TreeNode<TSGNode> sampleNode = tree1.nodeIndex.get(i);
 
@@ -231,7 +418,7 @@ public class NodeTypeInformationTest {
 				}
 				assertTrue(sameTypeNodes.contains(sampleNode));
 			}
-			tree1.nodeIndex.get(j).getData().isRoot = false;
+			nti.setRoot(tree1.nodeIndex.get(j), false);
 		}
 	}
 }